@@ -1,5 +1,6 @@
 package p2p;
 
+import p2p.config.Config;
 import p2p.controller.FileController;
 import java.io.IOException;
 
@@ -9,11 +10,13 @@ import java.io.IOException;
 public class App {
     public static void main(String[] args) {
         try {
-            // Start the API server on port 8080
-            FileController fileController = new FileController(8080);
+            // Start the API server on port 8080 unless configured otherwise
+            Config config = Config.load();
+            int port = config.getPort();
+            FileController fileController = new FileController(config);
             fileController.start();
             
-            System.out.println("PeerLink server started on port 8080");
+            System.out.println("PeerLink server started on port " + port);
             System.out.println("UI available at http://localhost:3000");
             
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
@@ -27,6 +30,9 @@ public class App {
         } catch (IOException e) {
             System.err.println("Error starting server: " + e.getMessage());
             e.printStackTrace();
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
         }
     }
 }
@@ -0,0 +1,167 @@
+package p2p.cluster;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import p2p.config.Config;
+import p2p.utils.Log;
+import p2p.utils.NamedThreadFactory;
+
+/**
+ * Static cluster membership with heartbeats, and share placement.
+ * <p>
+ * Every node is started with the same node list. Share codes are placed on
+ * a consistent-hash ring over that list, and a node only hands out codes it
+ * owns, so any node can tell where a share lives without a shared directory.
+ * Heartbeats only track liveness; they never change ownership, which keeps
+ * placement stable while a node restarts.
+ * <p>
+ * Each share is also copied to the next {@code replicas - 1} distinct nodes
+ * on the ring, so it survives the loss of its owner.
+ * <p>
+ * Configured with {@code -Dpeerlink.cluster.self=http://host:port},
+ * {@code -Dpeerlink.cluster.nodes=http://a:8080,http://b:8080} and
+ * optionally {@code -Dpeerlink.cluster.replicas=N}. Without them the node
+ * forms a cluster of one and owns every code.
+ */
+public class Cluster {
+    public static final String FORWARDED_HEADER = "X-PeerLink-Forwarded";
+    public static final String PING_PATH = "/cluster/ping";
+    public static final int DEFAULT_REPLICAS = 2;
+    static final long HEARTBEAT_MILLIS = 1000;
+    static final int MAX_MISSED_HEARTBEATS = 3;
+
+    private final ClusterNode self;
+    private final List<ClusterNode> nodes;
+    private final HashRing ring;
+    private final int replicas;
+    private final HttpClient client;
+    private ScheduledExecutorService heartbeats;
+
+    public Cluster(String selfUrl, List<String> nodeUrls) {
+        this(selfUrl, nodeUrls, DEFAULT_REPLICAS);
+    }
+
+    public Cluster(String selfUrl, List<String> nodeUrls, int replicas) {
+        if (replicas < 1) {
+            throw new IllegalArgumentException("replicas must be at least 1");
+        }
+        List<ClusterNode> members = new ArrayList<>();
+        ClusterNode selfNode = null;
+        String normalizedSelf = ClusterNode.normalize(selfUrl);
+        for (String url : nodeUrls) {
+            ClusterNode node = new ClusterNode(url);
+            if (node.getUrl().equals(normalizedSelf)) {
+                selfNode = node;
+            }
+            members.add(node);
+        }
+        if (selfNode == null) {
+            selfNode = new ClusterNode(normalizedSelf);
+            members.add(selfNode);
+        }
+        this.self = selfNode;
+        this.nodes = Collections.unmodifiableList(members);
+        this.ring = new HashRing(members);
+        this.replicas = Math.min(replicas, members.size());
+        this.client = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofMillis(HEARTBEAT_MILLIS))
+                .build();
+    }
+
+    /**
+     * Builds the cluster from the {@code cluster.*} settings; a single local
+     * node if none are set.
+     */
+    public static Cluster fromConfig(Config config) {
+        return new Cluster(config.getClusterSelf(), config.getClusterNodes(), config.getClusterReplicas());
+    }
+
+    public ClusterNode getSelf() {
+        return self;
+    }
+
+    public List<ClusterNode> getNodes() {
+        return nodes;
+    }
+
+    public boolean isSingleNode() {
+        return nodes.size() == 1;
+    }
+
+    public int getReplicas() {
+        return replicas;
+    }
+
+    /**
+     * Returns the member with this URL, or null if it isn't one.
+     */
+    public ClusterNode findNode(String url) {
+        String normalized = ClusterNode.normalize(url);
+        for (ClusterNode node : nodes) {
+            if (node.getUrl().equals(normalized)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The nodes holding share {@code code}: its owner first, then the replicas.
+     */
+    public List<ClusterNode> placement(int code) {
+        return ring.owners(Integer.toString(code), replicas);
+    }
+
+    public ClusterNode owner(int code) {
+        return ring.owner(Integer.toString(code));
+    }
+
+    public boolean isOwnedLocally(int code) {
+        return owner(code) == self;
+    }
+
+    public synchronized void start() {
+        if (isSingleNode() || heartbeats != null) {
+            return;
+        }
+        heartbeats = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("cluster-heartbeat"));
+        heartbeats.scheduleWithFixedDelay(this::heartbeat, 0, HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+        Log.info("cluster.joined", "self", self, "nodes", nodes);
+    }
+
+    public synchronized void stop() {
+        if (heartbeats != null) {
+            heartbeats.shutdownNow();
+            heartbeats = null;
+        }
+    }
+
+    private void heartbeat() {
+        for (ClusterNode node : nodes) {
+            if (node == self) {
+                continue;
+            }
+            HttpRequest ping = HttpRequest.newBuilder(URI.create(node.getUrl() + PING_PATH))
+                    .timeout(Duration.ofMillis(HEARTBEAT_MILLIS))
+                    .GET()
+                    .build();
+            client.sendAsync(ping, HttpResponse.BodyHandlers.discarding()).whenComplete((response, error) -> {
+                if (error == null && response.statusCode() == 200) {
+                    node.heartbeatSucceeded();
+                } else {
+                    node.heartbeatFailed(MAX_MISSED_HEARTBEATS);
+                }
+            });
+        }
+    }
+}
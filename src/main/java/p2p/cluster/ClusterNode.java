@@ -0,0 +1,57 @@
+package p2p.cluster;
+
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import p2p.utils.Log;
+
+/**
+ * A PeerLink backend in the cluster, identified by the base URL of its API.
+ */
+public class ClusterNode {
+    private final String url;
+    private volatile boolean alive = true;
+    private final AtomicInteger missedHeartbeats = new AtomicInteger();
+
+    public ClusterNode(String url) {
+        this.url = normalize(url);
+    }
+
+    static String normalize(String url) {
+        String trimmed = url.trim();
+        while (trimmed.endsWith("/")) {
+            trimmed = trimmed.substring(0, trimmed.length() - 1);
+        }
+        // Fail early on typos in the node list.
+        URI.create(trimmed);
+        return trimmed;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public boolean isAlive() {
+        return alive;
+    }
+
+    void heartbeatSucceeded() {
+        missedHeartbeats.set(0);
+        if (!alive) {
+            alive = true;
+            Log.info("cluster.node_up", "node", url);
+        }
+    }
+
+    void heartbeatFailed(int maxMissed) {
+        if (missedHeartbeats.incrementAndGet() >= maxMissed && alive) {
+            alive = false;
+            Log.warn("cluster.node_down", "node", url);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return url;
+    }
+}
@@ -0,0 +1,77 @@
+package p2p.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import p2p.utils.DigestUtils;
+
+/**
+ * Consistent-hash ring over cluster nodes. Each node is placed at many
+ * virtual points so keys spread evenly, and adding or removing a node only
+ * moves the keys next to its points.
+ */
+public class HashRing {
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    private final TreeMap<Long, ClusterNode> ring = new TreeMap<>();
+    private final int nodeCount;
+
+    public HashRing(Collection<ClusterNode> nodes) {
+        this(nodes, DEFAULT_VIRTUAL_NODES);
+    }
+
+    public HashRing(Collection<ClusterNode> nodes, int virtualNodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("A ring needs at least one node");
+        }
+        this.nodeCount = nodes.size();
+        for (ClusterNode node : nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(node.getUrl() + "#" + i), node);
+            }
+        }
+    }
+
+    /**
+     * Returns the node owning {@code key}: the first point at or after its hash.
+     */
+    public ClusterNode owner(String key) {
+        Map.Entry<Long, ClusterNode> entry = ring.ceilingEntry(hash(key));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    /**
+     * Returns up to {@code count} distinct nodes for {@code key}, walking the
+     * ring clockwise from its hash. The first one is the {@link #owner}.
+     */
+    public List<ClusterNode> owners(String key, int count) {
+        int wanted = Math.min(count, nodeCount);
+        List<ClusterNode> owners = new ArrayList<>(wanted);
+        Map.Entry<Long, ClusterNode> entry = ring.ceilingEntry(hash(key));
+        while (owners.size() < wanted) {
+            if (entry == null) {
+                entry = ring.firstEntry();
+            }
+            if (!owners.contains(entry.getValue())) {
+                owners.add(entry.getValue());
+            }
+            entry = ring.higherEntry(entry.getKey());
+        }
+        return owners;
+    }
+
+    static long hash(String key) {
+        MessageDigest digest = DigestUtils.sha256();
+        byte[] bytes = digest.digest(key.getBytes(StandardCharsets.UTF_8));
+        long hash = 0;
+        for (int i = 0; i < 8; i++) {
+            hash = (hash << 8) | (bytes[i] & 0xff);
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,205 @@
+package p2p.cluster;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import javax.crypto.SecretKey;
+
+import p2p.service.FileSharer;
+import p2p.service.PeerProtocol;
+import p2p.service.SharedFile;
+import p2p.utils.AdaptiveBuffers;
+import p2p.utils.EncryptingChannel;
+import p2p.utils.Log;
+import p2p.utils.NamedThreadFactory;
+import p2p.utils.StreamEncryption;
+import p2p.utils.TransferUtils;
+import p2p.utils.UploadWriter;
+
+/**
+ * Copies shares to the replica nodes of their placement.
+ * <p>
+ * After an upload the owner tells each replica where its peer server
+ * listens; the replica then pulls the file over the ordinary peer socket
+ * protocol, verifies length and digest, and serves the copy under the same
+ * code. Pulls run on a small bounded pool so replication never competes
+ * with uploads for HTTP workers. Copies are encrypted at rest, under a key
+ * of their own, when the owner's uploads would be.
+ * <p>
+ * Replicate requests carry the cluster secret as a bearer token, and a
+ * replica never replaces a file it already stores.
+ */
+public class Replicator {
+    public static final String REPLICATE_PATH = "/cluster/replicate";
+    public static final String SOURCE_HEADER = "X-PeerLink-Source";
+    static final int PULL_THREADS = 2;
+    static final int PULL_QUEUE_CAPACITY = 256;
+
+    private final Cluster cluster;
+    private final FileSharer fileSharer;
+    private final File storeDir;
+    private final String secret;
+    private final BooleanSupplier encryptAtRest;
+    private final HttpClient client;
+    private final ThreadPoolExecutor pulls;
+    private final AtomicLong replicated = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public Replicator(Cluster cluster, FileSharer fileSharer, File storeDir, String secret) {
+        this(cluster, fileSharer, storeDir, secret, () -> false);
+    }
+
+    /**
+     * @param secret the cluster secret sent with replicate requests
+     * @param encryptAtRest asked before each pull whether to encrypt the copy
+     */
+    public Replicator(Cluster cluster, FileSharer fileSharer, File storeDir, String secret,
+            BooleanSupplier encryptAtRest) {
+        this.cluster = cluster;
+        this.fileSharer = fileSharer;
+        this.storeDir = storeDir;
+        this.secret = secret;
+        this.encryptAtRest = encryptAtRest;
+        storeDir.mkdirs();
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(2))
+                .build();
+        this.pulls = new ThreadPoolExecutor(PULL_THREADS, PULL_THREADS, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(PULL_QUEUE_CAPACITY), new NamedThreadFactory("replica-pull"));
+        pulls.allowCoreThreadTimeOut(true);
+    }
+
+    public long getReplicatedCount() {
+        return replicated.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * Asks the other nodes of the share's placement to pull a copy. Does not wait.
+     */
+    public void replicate(int code, SharedFile sharedFile) {
+        for (ClusterNode node : cluster.placement(code)) {
+            if (node == cluster.getSelf()) {
+                continue;
+            }
+            HttpRequest request = HttpRequest.newBuilder(URI.create(node.getUrl() + REPLICATE_PATH
+                            + "?code=" + code + "&port=" + sharedFile.getPeerPort()))
+                    .header(SOURCE_HEADER, cluster.getSelf().getUrl())
+                    .header("Authorization", "Bearer " + secret)
+                    .header("X-Request-Id", Log.correlationIdOrNew(Log.getCorrelationId()))
+                    .timeout(Duration.ofSeconds(5))
+                    .POST(HttpRequest.BodyPublishers.noBody())
+                    .build();
+            client.sendAsync(request, HttpResponse.BodyHandlers.discarding()).whenComplete((response, error) -> {
+                if (error != null || response.statusCode() != 202) {
+                    failed.incrementAndGet();
+                    Log.warn("replica.request_failed", "code", code, "node", node,
+                            "error", error != null ? error : "HTTP " + response.statusCode());
+                }
+            });
+        }
+    }
+
+    /**
+     * Queues a pull of share {@code code} from the peer server of
+     * {@code source}. Returns false if the pull queue is full.
+     */
+    public boolean schedulePull(ClusterNode source, int code, int peerPort) {
+        String correlationId = Log.getCorrelationId();
+        try {
+            pulls.execute(() -> {
+                Log.setCorrelationId(correlationId);
+                try {
+                    pull(source, code, peerPort);
+                } finally {
+                    Log.setCorrelationId(null);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    private void pull(ClusterNode source, int code, int peerPort) {
+        if (fileSharer.getSharedFile(code) != null) {
+            return;
+        }
+        String host = URI.create(source.getUrl()).getHost();
+        Path target = null;
+        try (ByteChannel peer = fileSharer.connect(host, peerPort);
+             AdaptiveBuffers.Transfer transfer = AdaptiveBuffers.shared().open(host, null)) {
+            ByteBuffer buffer = transfer.buffer();
+            Map<String, String> headers = PeerProtocol.readHeaders(peer, buffer);
+            if (headers == null || headers.get("Filename") == null) {
+                throw new IOException("peer closed before sending headers");
+            }
+            // Keep the owner's stored name, so downloads look the same from every node.
+            String name = new File(headers.get("Filename")).getName();
+            if (name.isEmpty() || name.equals(".") || name.equals("..")) {
+                throw new IOException("peer sent an unusable file name");
+            }
+            Path path = storeDir.toPath().resolve(name);
+            long length = PeerProtocol.contentLength(headers);
+            SecretKey key = encryptAtRest.getAsBoolean() ? StreamEncryption.newKey() : null;
+            // Fails if the file exists, so a pull never replaces a stored
+            // file; only then is it ours to delete.
+            UploadWriter file = new UploadWriter(path,
+                    key == null ? length : StreamEncryption.encryptedSize(length), false, 0);
+            target = path;
+            PeerProtocol.Receiver received;
+            try (file;
+                 WritableByteChannel writer = key == null ? file : new EncryptingChannel(file, key);
+                 PeerProtocol.Receiver receiver = PeerProtocol.receive(headers, peer, buffer, writer)) {
+                received = receiver;
+                TransferUtils.copy(peer, receiver, transfer);
+            }
+            if (!received.isComplete()) {
+                throw new IOException("incomplete or corrupted copy");
+            }
+            if (!fileSharer.offerReplica(code, new SharedFile(target.toString(), received.getCount(),
+                    received.getSha256(), received.getTree(), null, key))) {
+                Files.deleteIfExists(target);
+                return;
+            }
+            fileSharer.startFileServer(code);
+            replicated.incrementAndGet();
+            Log.info("replica.stored", "code", code, "source", source, "bytes", received.getCount());
+        } catch (IOException e) {
+            failed.incrementAndGet();
+            Log.warn("replica.pull_failed", "code", code, "source", source, "error", e);
+            if (target != null) {
+                try {
+                    Files.deleteIfExists(target);
+                } catch (IOException ignored) {
+                    // Nothing more to do.
+                }
+            }
+        }
+    }
+
+    public void shutdown() {
+        pulls.shutdownNow();
+    }
+}
@@ -0,0 +1,640 @@
+package p2p.config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+import p2p.server.HttpServers;
+import p2p.utils.Log;
+import p2p.utils.Timeouts;
+
+/**
+ * Typed settings for every port, pool, buffer and limit of a node.
+ * <p>
+ * Each key is looked up, from lowest to highest precedence, in the built-in
+ * defaults, a properties file, the environment and system properties. The
+ * file is {@code peerlink.properties} in the working directory unless
+ * {@code -Dpeerlink.config} or {@code PEERLINK_CONFIG} names another one.
+ * Keys are written bare in the file ({@code http.workers=16}), with a
+ * {@code peerlink.} prefix as system properties and as
+ * {@code PEERLINK_HTTP_WORKERS} in the environment.
+ * <p>
+ * Pool sizes default to multiples of the core count and the buffer pool to a
+ * share of the heap limit. Sizes accept a {@code k}, {@code m} or {@code g}
+ * suffix. All values are checked when the config is built, and every
+ * problem is reported at once.
+ */
+public final class Config {
+    public static final String FILE_PROPERTY = "peerlink.config";
+    public static final String FILE_ENV = "PEERLINK_CONFIG";
+    public static final String DEFAULT_FILE = "peerlink.properties";
+    static final String PROPERTY_PREFIX = "peerlink.";
+    static final String ENV_PREFIX = "PEERLINK_";
+
+    public static final String PORT = "port";
+    public static final String UPLOAD_DIR = "upload.dir";
+    public static final String UPLOAD_DIRECT = "upload.direct";
+    public static final String UPLOAD_SYNC_BYTES = "upload.syncBytes";
+    public static final String UPLOAD_DEDUP = "upload.dedup";
+    public static final String UPLOAD_TREE_HASH = "upload.treeHash";
+    public static final String UPLOAD_ENCRYPT = "upload.encrypt";
+    public static final String UPLOAD_MAX_IN_FLIGHT = "upload.maxInFlightBytes";
+    public static final String UPLOAD_MIN_FREE_DISK = "upload.minFreeDiskBytes";
+    public static final String HTTP_SERVER = "http.server";
+    public static final String HTTP_WORKERS = "http.workers";
+    public static final String HTTP_QUEUE = "http.queue";
+    public static final String DISK_WRITERS = "disk.writers";
+    public static final String WEBSOCKET_THREADS = "websocket.threads";
+    public static final String TRANSFER_THREADS = "transfer.threads";
+    public static final String TRANSFER_QUEUE = "transfer.queue";
+    public static final String BUFFER_POOL_BYTES = "buffer.poolBytes";
+    public static final String BUFFER_TRANSFER_BYTES = "buffer.transferBytes";
+    public static final String CODE_MIN = "code.min";
+    public static final String CODE_MAX = "code.max";
+    public static final String CLUSTER_SELF = "cluster.self";
+    public static final String CLUSTER_NODES = "cluster.nodes";
+    public static final String CLUSTER_REPLICAS = "cluster.replicas";
+    public static final String CLUSTER_SECRET = "cluster.secret";
+    public static final String PEER_TLS = "peer.tls";
+    public static final String PEER_TLS_KEY_STORE = "peer.tls.keyStore";
+    public static final String PEER_TLS_TRUST_STORE = "peer.tls.trustStore";
+    public static final String PEER_TLS_PASSWORD = "peer.tls.password";
+    public static final String LOG_LEVEL = "log.level";
+    public static final String TRACE_EXPORT = "trace.export";
+    public static final String TIMEOUT_CONNECT = "timeout.connect";
+    public static final String TIMEOUT_READ = "timeout.read";
+    public static final String TIMEOUT_WRITE = "timeout.write";
+    public static final String TIMEOUT_IDLE = "timeout.idle";
+    public static final String TIMEOUT_HEADER = "timeout.header";
+    public static final String TIMEOUT_SHARE_IDLE = "timeout.shareIdle";
+    public static final String MIN_THROUGHPUT = "minThroughput";
+    public static final String MIN_THROUGHPUT_WINDOW = "minThroughput.window";
+    public static final String ADMIN_TOKEN = "admin.token";
+
+    /** Every key this class understands. */
+    public static final List<String> KEYS = List.of(PORT, UPLOAD_DIR, UPLOAD_DIRECT, UPLOAD_SYNC_BYTES,
+            UPLOAD_DEDUP, UPLOAD_TREE_HASH, UPLOAD_ENCRYPT, UPLOAD_MAX_IN_FLIGHT, UPLOAD_MIN_FREE_DISK, HTTP_SERVER,
+            HTTP_WORKERS, HTTP_QUEUE, DISK_WRITERS, WEBSOCKET_THREADS, TRANSFER_THREADS, TRANSFER_QUEUE,
+            BUFFER_POOL_BYTES, BUFFER_TRANSFER_BYTES, CODE_MIN, CODE_MAX, CLUSTER_SELF, CLUSTER_NODES,
+            CLUSTER_REPLICAS, CLUSTER_SECRET, PEER_TLS, PEER_TLS_KEY_STORE, PEER_TLS_TRUST_STORE, PEER_TLS_PASSWORD,
+            LOG_LEVEL, TRACE_EXPORT, TIMEOUT_CONNECT, TIMEOUT_READ, TIMEOUT_WRITE, TIMEOUT_IDLE, TIMEOUT_HEADER,
+            TIMEOUT_SHARE_IDLE, MIN_THROUGHPUT, MIN_THROUGHPUT_WINDOW, ADMIN_TOKEN);
+
+    /**
+     * Keys read only at startup: sockets, directories, fixed-size queues,
+     * cluster membership, peer TLS and trace export. Everything else can be
+     * changed on a running node.
+     */
+    public static final Set<String> RESTART_KEYS = Set.of(PORT, UPLOAD_DIR, HTTP_SERVER, HTTP_QUEUE, TRANSFER_QUEUE,
+            BUFFER_POOL_BYTES, BUFFER_TRANSFER_BYTES, CODE_MIN, CODE_MAX, CLUSTER_SELF, CLUSTER_NODES,
+            CLUSTER_REPLICAS, CLUSTER_SECRET, PEER_TLS, PEER_TLS_KEY_STORE, PEER_TLS_TRUST_STORE, PEER_TLS_PASSWORD,
+            TRACE_EXPORT);
+
+    private static volatile Config startup;
+
+    private final Path source;
+    private final Map<String, String> values;
+    private final List<String> warnings;
+    private final List<String> errors = new ArrayList<>();
+
+    private final int port;
+    private final String uploadDir;
+    private final boolean uploadDirect;
+    private final long uploadSyncBytes;
+    private final boolean uploadDedup;
+    private final boolean uploadTreeHash;
+    private final boolean uploadEncrypt;
+    private final long maxInFlightBytes;
+    private final long minFreeDiskBytes;
+    private final String httpServer;
+    private final int httpWorkers;
+    private final int httpQueue;
+    private final int diskWriters;
+    private final int webSocketThreads;
+    private final int transferThreads;
+    private final int transferQueue;
+    private final long bufferPoolBytes;
+    private final long bufferTransferBytes;
+    private final int codeMin;
+    private final int codeMax;
+    private final String clusterSelf;
+    private final List<String> clusterNodes;
+    private final int clusterReplicas;
+    private final String clusterSecret;
+    private final boolean peerTls;
+    private final String peerTlsKeyStore;
+    private final String peerTlsTrustStore;
+    private final String peerTlsPassword;
+    private final Log.Level logLevel;
+    private final String traceExport;
+    private final String adminToken;
+    private final Timeouts timeouts;
+
+    private Config(Path source, Map<String, String> values, List<String> warnings) {
+        this.source = source;
+        this.values = Collections.unmodifiableMap(new TreeMap<>(values));
+        this.warnings = Collections.unmodifiableList(new ArrayList<>(warnings));
+        int cores = Runtime.getRuntime().availableProcessors();
+        long maxMemory = Runtime.getRuntime().maxMemory();
+
+        port = intValue(PORT, 8080, 0, 65535);
+        uploadDir = string(UPLOAD_DIR, System.getProperty("java.io.tmpdir") + File.separator + "peerlink-uploads");
+        uploadDirect = bool(UPLOAD_DIRECT, false);
+        uploadSyncBytes = size(UPLOAD_SYNC_BYTES, 0, 0);
+        uploadDedup = bool(UPLOAD_DEDUP, true);
+        uploadTreeHash = bool(UPLOAD_TREE_HASH, false);
+        uploadEncrypt = bool(UPLOAD_ENCRYPT, false);
+        maxInFlightBytes = size(UPLOAD_MAX_IN_FLIGHT, 512L << 20, 1 << 20);
+        minFreeDiskBytes = size(UPLOAD_MIN_FREE_DISK, 256L << 20, 0);
+        httpServer = string(HTTP_SERVER, HttpServers.NIO).toLowerCase(Locale.ROOT);
+        if (!httpServer.equals(HttpServers.NIO) && !httpServer.equals(HttpServers.JDK)) {
+            errors.add(HTTP_SERVER + " must be " + HttpServers.NIO + " or " + HttpServers.JDK + ", not " + httpServer);
+        }
+        // Workers spend most of their time on sockets and disks, not the CPU.
+        httpWorkers = intValue(HTTP_WORKERS, Math.max(8, cores * 2), 1, 1024);
+        httpQueue = intValue(HTTP_QUEUE, httpWorkers * 10, 1, 100_000);
+        diskWriters = intValue(DISK_WRITERS, Math.max(2, Math.min(8, cores / 2)), 1, 256);
+        webSocketThreads = intValue(WEBSOCKET_THREADS, Math.max(16, cores * 4), 1, 4096);
+        transferThreads = intValue(TRANSFER_THREADS, Math.max(8, cores * 2), 1, 1024);
+        transferQueue = intValue(TRANSFER_QUEUE, transferThreads * 4, 1, 100_000);
+        bufferPoolBytes = size(BUFFER_POOL_BYTES, Math.max(16L << 20, Math.min(256L << 20, maxMemory / 16)), 1 << 20);
+        bufferTransferBytes = size(BUFFER_TRANSFER_BYTES, Math.max(32L << 20, Math.min(512L << 20, maxMemory / 8)),
+                1 << 20);
+        codeMin = intValue(CODE_MIN, 49152, 1024, 65535);
+        codeMax = intValue(CODE_MAX, 65535, 1024, 65535);
+        if (codeMin >= codeMax) {
+            errors.add(CODE_MIN + " must be below " + CODE_MAX);
+        }
+        clusterSelf = string(CLUSTER_SELF, "http://localhost:" + port);
+        List<String> nodes = new ArrayList<>();
+        for (String url : string(CLUSTER_NODES, "").split(",")) {
+            if (!url.isBlank()) {
+                nodes.add(url.trim());
+            }
+        }
+        clusterNodes = Collections.unmodifiableList(nodes);
+        clusterReplicas = intValue(CLUSTER_REPLICAS, 2, 1, 16);
+        clusterSecret = string(CLUSTER_SECRET, "");
+        if (!clusterSecret.isEmpty() && clusterSecret.length() < 16) {
+            errors.add(CLUSTER_SECRET + " must be at least 16 characters");
+        } else if (clusterSecret.isEmpty() && nodes.stream().anyMatch(url -> !url.equals(clusterSelf))) {
+            errors.add(CLUSTER_SECRET + " must be set when " + CLUSTER_NODES + " lists other nodes");
+        }
+        peerTls = bool(PEER_TLS, false);
+        peerTlsKeyStore = string(PEER_TLS_KEY_STORE, "");
+        peerTlsTrustStore = string(PEER_TLS_TRUST_STORE, "");
+        peerTlsPassword = string(PEER_TLS_PASSWORD, "");
+        if (peerTls && peerTlsKeyStore.isEmpty()) {
+            errors.add(PEER_TLS_KEY_STORE + " must name a key store when " + PEER_TLS + " is on");
+        }
+        logLevel = level(LOG_LEVEL, Log.Level.INFO);
+        traceExport = string(TRACE_EXPORT, "");
+        adminToken = string(ADMIN_TOKEN, "");
+        if (!adminToken.isEmpty() && adminToken.length() < 16) {
+            errors.add(ADMIN_TOKEN + " must be at least 16 characters");
+        }
+        timeouts = buildTimeouts();
+
+        if (!errors.isEmpty()) {
+            throw new IllegalArgumentException("Invalid configuration: " + String.join("; ", errors));
+        }
+    }
+
+    /**
+     * Reads the file, environment and system properties.
+     */
+    public static Config load() {
+        return load(System.getenv(), System.getProperties());
+    }
+
+    /**
+     * Loads from the given environment and system properties instead of the
+     * process's own.
+     */
+    public static Config load(Map<String, String> env, Properties system) {
+        String file = system.getProperty(FILE_PROPERTY, env.get(FILE_ENV));
+        Path path = Paths.get(file != null ? file : DEFAULT_FILE);
+        if (file != null && !Files.isRegularFile(path)) {
+            throw new IllegalArgumentException("Configuration file not found: " + path);
+        }
+        return load(path, env, system);
+    }
+
+    /**
+     * Loads with {@code file} in place of the usual file, if it exists.
+     */
+    public static Config load(Path file, Map<String, String> env, Properties system) {
+        Map<String, String> values = new LinkedHashMap<>();
+        List<String> warnings = new ArrayList<>();
+        Path source = null;
+        if (Files.isRegularFile(file)) {
+            source = file;
+            Properties properties = new Properties();
+            try (InputStream in = Files.newInputStream(file)) {
+                properties.load(in);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not read configuration file " + file, e);
+            }
+            for (String key : properties.stringPropertyNames()) {
+                if (KEYS.contains(key)) {
+                    values.put(key, properties.getProperty(key).trim());
+                } else {
+                    warnings.add("Unknown key " + key + " in " + file);
+                }
+            }
+        }
+
+        for (String key : KEYS) {
+            String value = env.get(envName(key));
+            if (value != null) {
+                values.put(key, value.trim());
+            }
+        }
+        for (String key : KEYS) {
+            String value = system.getProperty(PROPERTY_PREFIX + key);
+            if (value != null) {
+                values.put(key, value.trim());
+            }
+        }
+        return new Config(source, values, warnings);
+    }
+
+    /**
+     * The built-in defaults alone, ignoring the environment.
+     */
+    public static Config defaults() {
+        return new Config(null, Map.of(), List.of());
+    }
+
+    /**
+     * The configuration the process started with, loaded on first use. If
+     * it is invalid this falls back to the defaults, so process-wide
+     * facilities such as the logger still come up; loading it with
+     * {@link #load()} reports the problem.
+     */
+    public static Config startup() {
+        Config config = startup;
+        if (config == null) {
+            synchronized (Config.class) {
+                if (startup == null) {
+                    try {
+                        startup = load();
+                    } catch (RuntimeException e) {
+                        startup = defaults();
+                    }
+                }
+                config = startup;
+            }
+        }
+        return config;
+    }
+
+    /**
+     * The environment variable for {@code key}: {@code http.workers} is
+     * {@code PEERLINK_HTTP_WORKERS}.
+     */
+    public static String envName(String key) {
+        return ENV_PREFIX + key.replace('.', '_').toUpperCase(Locale.ROOT);
+    }
+
+    /**
+     * A copy with {@code key} set to {@code value}, validated like the rest.
+     */
+    public Config with(String key, Object value) {
+        if (!KEYS.contains(key)) {
+            throw new IllegalArgumentException("Unknown configuration key " + key);
+        }
+        Map<String, String> copy = new LinkedHashMap<>(values);
+        copy.put(key, String.valueOf(value));
+        return new Config(source, copy, warnings);
+    }
+
+    /**
+     * Takes every setting that can change at runtime from {@code next} and
+     * keeps this config's {@link #RESTART_KEYS}. The restart keys that
+     * {@code next} sets to a different value are added to {@code ignored}.
+     */
+    public Config reload(Config next, List<String> ignored) {
+        Map<String, String> merged = new LinkedHashMap<>(next.values);
+        for (String key : RESTART_KEYS) {
+            String current = values.get(key);
+            String requested = next.values.get(key);
+            if (!Objects.equals(current, requested)) {
+                if (requested != null) {
+                    ignored.add(key);
+                }
+                if (current == null) {
+                    merged.remove(key);
+                } else {
+                    merged.put(key, current);
+                }
+            }
+        }
+        return new Config(next.source != null ? next.source : source, merged, next.warnings);
+    }
+
+    /**
+     * The file the config was read from, or null if none was.
+     */
+    public Path getSource() {
+        return source;
+    }
+
+    /**
+     * The explicitly set values, by key; defaults are not included.
+     */
+    public Map<String, String> getValues() {
+        return values;
+    }
+
+    /**
+     * Problems that did not stop the config from loading, such as unknown keys.
+     */
+    public List<String> getWarnings() {
+        return warnings;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String getUploadDir() {
+        return uploadDir;
+    }
+
+    public boolean isUploadDirect() {
+        return uploadDirect;
+    }
+
+    public long getUploadSyncBytes() {
+        return uploadSyncBytes;
+    }
+
+    /**
+     * Whether new uploads go to the chunk store instead of a file of their own.
+     */
+    public boolean isUploadDedup() {
+        return uploadDedup;
+    }
+
+    /**
+     * Whether new uploads are identified by a {@link p2p.utils.MerkleTree}
+     * root, hashed in parallel, instead of a plain SHA-256.
+     */
+    public boolean isUploadTreeHash() {
+        return uploadTreeHash;
+    }
+
+    /**
+     * Whether new uploads and replicas are stored encrypted, each under a
+     * key of its own. Takes precedence over {@link #isUploadDedup()}.
+     */
+    public boolean isUploadEncrypt() {
+        return uploadEncrypt;
+    }
+
+    public long getMaxInFlightBytes() {
+        return maxInFlightBytes;
+    }
+
+    public long getMinFreeDiskBytes() {
+        return minFreeDiskBytes;
+    }
+
+    public String getHttpServer() {
+        return httpServer;
+    }
+
+    public int getHttpWorkers() {
+        return httpWorkers;
+    }
+
+    public int getHttpQueue() {
+        return httpQueue;
+    }
+
+    public int getDiskWriters() {
+        return diskWriters;
+    }
+
+    public int getWebSocketThreads() {
+        return webSocketThreads;
+    }
+
+    public int getTransferThreads() {
+        return transferThreads;
+    }
+
+    public int getTransferQueue() {
+        return transferQueue;
+    }
+
+    public long getBufferPoolBytes() {
+        return bufferPoolBytes;
+    }
+
+    public long getBufferTransferBytes() {
+        return bufferTransferBytes;
+    }
+
+    public int getCodeMin() {
+        return codeMin;
+    }
+
+    public int getCodeMax() {
+        return codeMax;
+    }
+
+    public String getClusterSelf() {
+        return clusterSelf;
+    }
+
+    public List<String> getClusterNodes() {
+        return clusterNodes;
+    }
+
+    public int getClusterReplicas() {
+        return clusterReplicas;
+    }
+
+    /**
+     * The shared secret nodes present when they ask each other to pull a
+     * replica, or empty on a single node.
+     */
+    public String getClusterSecret() {
+        return clusterSecret;
+    }
+
+    /**
+     * Whether peer transfer sockets speak TLS.
+     */
+    public boolean isPeerTls() {
+        return peerTls;
+    }
+
+    public String getPeerTlsKeyStore() {
+        return peerTlsKeyStore;
+    }
+
+    /**
+     * The trust store for peer certificates, or empty to trust the key store's.
+     */
+    public String getPeerTlsTrustStore() {
+        return peerTlsTrustStore;
+    }
+
+    public String getPeerTlsPassword() {
+        return peerTlsPassword;
+    }
+
+    public Log.Level getLogLevel() {
+        return logLevel;
+    }
+
+    /**
+     * Where finished traces go: a file to append to, an OTLP/HTTP URL, or
+     * empty for no tracing.
+     */
+    public String getTraceExport() {
+        return traceExport;
+    }
+
+    /**
+     * The bearer token {@code /admin} requests must carry, or empty to turn
+     * the admin API off.
+     */
+    public String getAdminToken() {
+        return adminToken;
+    }
+
+    public Timeouts getTimeouts() {
+        return timeouts;
+    }
+
+    private Timeouts buildTimeouts() {
+        Timeouts defaults = Timeouts.DEFAULT;
+        try {
+            return defaults
+                    .withConnectMillis(longValue(TIMEOUT_CONNECT, defaults.getConnectMillis(), 1))
+                    .withReadMillis(longValue(TIMEOUT_READ, defaults.getReadMillis(), 1))
+                    .withWriteMillis(longValue(TIMEOUT_WRITE, defaults.getWriteMillis(), 1))
+                    .withIdleMillis(longValue(TIMEOUT_IDLE, defaults.getIdleMillis(), 1))
+                    .withHeaderMillis(longValue(TIMEOUT_HEADER, defaults.getHeaderMillis(), 1))
+                    .withShareIdleMillis(longValue(TIMEOUT_SHARE_IDLE, defaults.getShareIdleMillis(), 0))
+                    .withMinThroughput(size(MIN_THROUGHPUT, defaults.getMinBytesPerSecond(), 0),
+                            longValue(MIN_THROUGHPUT_WINDOW, defaults.getThroughputWindowMillis(), 1));
+        } catch (IllegalArgumentException e) {
+            // Already reported by the range checks above.
+            return defaults;
+        }
+    }
+
+    private String string(String key, String defaultValue) {
+        String value = values.get(key);
+        return value == null || value.isEmpty() ? defaultValue : value;
+    }
+
+    private boolean bool(String key, boolean defaultValue) {
+        String value = values.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        if (value.equalsIgnoreCase("true") || value.equalsIgnoreCase("false")) {
+            return Boolean.parseBoolean(value);
+        }
+        errors.add(key + " must be true or false, not " + value);
+        return defaultValue;
+    }
+
+    private int intValue(String key, int defaultValue, int min, int max) {
+        return (int) longValue(key, defaultValue, min, max);
+    }
+
+    private long longValue(String key, long defaultValue, long min) {
+        return longValue(key, defaultValue, min, Long.MAX_VALUE);
+    }
+
+    private long longValue(String key, long defaultValue, long min, long max) {
+        String value = values.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return checkRange(key, Long.parseLong(value), defaultValue, min, max);
+        } catch (NumberFormatException e) {
+            errors.add(key + " must be a whole number, not " + value);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * A byte count, optionally with a binary {@code k}, {@code m} or {@code g} suffix.
+     */
+    private long size(String key, long defaultValue, long min) {
+        String value = values.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        String digits = value.toLowerCase(Locale.ROOT);
+        int shift = 0;
+        if (digits.endsWith("b")) {
+            digits = digits.substring(0, digits.length() - 1);
+        }
+        if (digits.endsWith("k")) {
+            shift = 10;
+        } else if (digits.endsWith("m")) {
+            shift = 20;
+        } else if (digits.endsWith("g")) {
+            shift = 30;
+        }
+        if (shift > 0) {
+            digits = digits.substring(0, digits.length() - 1);
+        }
+        try {
+            long n = Long.parseLong(digits.trim());
+            if (n > Long.MAX_VALUE >> shift) {
+                errors.add(key + " is too large: " + value);
+                return defaultValue;
+            }
+            return checkRange(key, n << shift, defaultValue, min, Long.MAX_VALUE);
+        } catch (NumberFormatException e) {
+            errors.add(key + " must be a size such as 65536 or 64k, not " + value);
+            return defaultValue;
+        }
+    }
+
+    private long checkRange(String key, long n, long defaultValue, long min, long max) {
+        if (n < min || n > max) {
+            errors.add(key + " must be between " + min + " and " + max + ", not " + n);
+            return defaultValue;
+        }
+        return n;
+    }
+
+    private Log.Level level(String key, Log.Level defaultValue) {
+        String value = values.get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Log.Level.valueOf(value.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            errors.add(key + " must be one of DEBUG, INFO, WARN, ERROR, not " + value);
+            return defaultValue;
+        }
+    }
+}
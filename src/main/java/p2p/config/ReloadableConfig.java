@@ -0,0 +1,146 @@
+package p2p.config;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+import p2p.utils.Log;
+import p2p.utils.NamedThreadFactory;
+
+/**
+ * The live configuration of a running node.
+ * <p>
+ * The current {@link Config} is swapped in as a whole, so a reader that
+ * takes one snapshot with {@link #get()} never sees half of an update.
+ * After each swap the listeners are told the old and new config and resize
+ * pools or adjust limits in place; work already running is left alone.
+ * Settings that only take effect at startup keep their current value and
+ * are logged as needing a restart.
+ * <p>
+ * {@link #watch(Path)} reloads whenever the config file changes. An invalid
+ * file is logged and ignored, leaving the running config untouched.
+ */
+public class ReloadableConfig implements Closeable {
+    /** How long to let a burst of file events settle before reading the file. */
+    static final long SETTLE_MILLIS = 100;
+
+    private final AtomicReference<Config> current;
+    private final List<BiConsumer<Config, Config>> listeners = new CopyOnWriteArrayList<>();
+    private volatile WatchService watchService;
+
+    public ReloadableConfig(Config initial) {
+        this.current = new AtomicReference<>(initial);
+    }
+
+    public Config get() {
+        return current.get();
+    }
+
+    /**
+     * Registers {@code listener} to be called with the previous and the new
+     * config after every successful update.
+     */
+    public void addListener(BiConsumer<Config, Config> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Makes {@code next} the live config, except for its restart-only
+     * settings. Returns the config now in effect. Updates are serialized so
+     * listeners see them in order.
+     */
+    public synchronized Config update(Config next) {
+        Config previous = current.get();
+        List<String> ignored = new ArrayList<>();
+        Config merged = previous.reload(next, ignored);
+        if (!ignored.isEmpty()) {
+            Log.warn("config.restart_required", "keys", String.join(",", ignored));
+        }
+        current.set(merged);
+        for (BiConsumer<Config, Config> listener : listeners) {
+            try {
+                listener.accept(previous, merged);
+            } catch (RuntimeException e) {
+                Log.error("config.apply_failed", "error", e);
+            }
+        }
+        Log.info("config.updated", "source", merged.getSource());
+        return merged;
+    }
+
+    /**
+     * Reads the config file, environment and system properties again and
+     * applies the result. Returns false if they don't form a valid config.
+     */
+    public boolean reload(Path file) {
+        Config next;
+        try {
+            next = Config.load(file, System.getenv(), System.getProperties());
+        } catch (RuntimeException e) {
+            Log.error("config.reload_failed", "file", file, "error", e);
+            return false;
+        }
+        update(next);
+        return true;
+    }
+
+    /**
+     * Starts a daemon thread that reloads whenever {@code file} is written.
+     */
+    public synchronized void watch(Path file) throws IOException {
+        if (watchService != null) {
+            throw new IllegalStateException("already watching");
+        }
+        Path absolute = file.toAbsolutePath();
+        WatchService service = absolute.getFileSystem().newWatchService();
+        absolute.getParent().register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        watchService = service;
+        new NamedThreadFactory("config-watcher").newThread(() -> watchLoop(service, absolute)).start();
+        Log.info("config.watching", "file", absolute);
+    }
+
+    private void watchLoop(WatchService service, Path file) {
+        Path name = file.getFileName();
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    changed |= name.equals(event.context());
+                }
+                key.reset();
+                if (changed) {
+                    // Editors often write a file in several steps.
+                    Thread.sleep(SETTLE_MILLIS);
+                    WatchKey more;
+                    while ((more = service.poll()) != null) {
+                        more.pollEvents();
+                        more.reset();
+                    }
+                    reload(file);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Closed.
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+            watchService = null;
+        }
+    }
+}
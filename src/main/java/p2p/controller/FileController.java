@@ -1,55 +1,461 @@
 package p2p.controller;
 
+import p2p.cluster.Cluster;
+import p2p.cluster.ClusterNode;
+import p2p.cluster.Replicator;
+import p2p.config.Config;
+import p2p.config.ReloadableConfig;
+import p2p.server.HttpServers;
+import p2p.server.NioHttpServer;
+import p2p.server.WebSocket;
+import p2p.service.AdmissionController;
+import p2p.service.BlockSignature;
+import p2p.service.ChunkStore;
+import p2p.service.ChunkingChannel;
+import p2p.service.DeltaPatcher;
 import p2p.service.FileSharer;
+import p2p.service.Manifest;
+import p2p.service.PeerProtocol;
+import p2p.service.ProgressTracker;
+import p2p.service.SharedFile;
+import p2p.service.TransferProgress;
+import p2p.service.WebSocketTransfer;
+
+import p2p.utils.AdaptiveBuffers;
+import p2p.utils.BufferPool;
+import p2p.utils.BufferPool.PooledBuffer;
+import p2p.utils.DigestUtils;
+import p2p.utils.EncryptingChannel;
+import p2p.utils.HashingChannel;
+import p2p.utils.JfrEvents;
+import p2p.utils.JsonUtils;
+import p2p.utils.Log;
+import p2p.utils.MerkleTree;
+import p2p.utils.NamedThreadFactory;
+import p2p.utils.StreamEncryption;
+import p2p.utils.ThroughputGuard;
+import p2p.utils.Tracer;
+import p2p.utils.TransferUtils;
+import p2p.utils.TreeHashingChannel;
+import p2p.utils.UploadWriter;
+import p2p.utils.WriteBehindChannel;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.UnknownHostException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
 
+import com.sun.management.UnixOperatingSystemMXBean;
+import com.sun.net.httpserver.Filter;
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 
 import java.net.InetSocketAddress;
-import java.net.Socket;
-
-import org.apache.commons.io.IOUtils;
 
 public class FileController {
+    public static final String REQUEST_ID_HEADER = "X-Request-Id";
+
     private final FileSharer fileSharer;
     private final HttpServer server;
     private final String uploadDir;
-    private final ExecutorService executorService;
+    private final ThreadPoolExecutor executorService;
+    private final ThreadPoolExecutor diskWriter;
+    private final ThreadPoolExecutor webSocketTransfers;
+    private final AdmissionController admissionController;
+    private final ProgressTracker progressTracker;
+    private final Cluster cluster;
+    private final HttpClient proxyClient;
+    private final Replicator replicator;
+    private final ReloadableConfig config;
+    private final ChunkStore chunkStore;
+    private final Tracer tracer;
 
     public FileController(int port) throws IOException {
-        this.fileSharer = new FileSharer();
-        this.server = HttpServer.create(new InetSocketAddress(port), 0);
-        this.uploadDir = System.getProperty("java.io.tmpdir") + File.separator + "peerlink-uploads";
-        this.executorService = Executors.newFixedThreadPool(10);
+        this(Config.load().with(Config.PORT, port));
+    }
+
+    public FileController(int port, Cluster cluster) throws IOException {
+        this(Config.load().with(Config.PORT, port), cluster);
+    }
+
+    public FileController(Config config) throws IOException {
+        this(config, Cluster.fromConfig(config));
+    }
+
+    public FileController(Config config, Cluster cluster) throws IOException {
+        this.config = new ReloadableConfig(config);
+        this.cluster = cluster;
+        // Only hand out codes this node owns, so other nodes know where to find them.
+        this.fileSharer = new FileSharer(cluster::isOwnedLocally, config);
+        this.tracer = Tracer.fromConfig(config);
+        fileSharer.setTracer(tracer);
+        this.proxyClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(2))
+                .build();
+        this.server = HttpServers.create(config.getHttpServer(), new InetSocketAddress(config.getPort()), 0);
+        if (server instanceof NioHttpServer) {
+            ((NioHttpServer) server).setTimeouts(config.getTimeouts());
+        }
+        this.uploadDir = config.getUploadDir();
+        this.executorService = new ThreadPoolExecutor(config.getHttpWorkers(), config.getHttpWorkers(),
+                0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(config.getHttpQueue()),
+                new NamedThreadFactory("http-worker"));
+        // The NIO server answers a rejected request with a 503; the JDK server
+        // has no such path, so it falls back to running on its dispatcher.
+        if (!(server instanceof NioHttpServer)) {
+            executorService.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+        }
         
         File uploadDirFile = new File(uploadDir);
         if (!uploadDirFile.exists()) {
             uploadDirFile.mkdirs();
         }
+        this.admissionController = new AdmissionController(uploadDirFile, executorService,
+                config.getMaxInFlightBytes(), config.getMinFreeDiskBytes());
+        this.progressTracker = new ProgressTracker();
+        fileSharer.setProgressTracker(progressTracker);
+        // Reading ahead is disk-bound work like writing, so it gets as many threads.
+        this.chunkStore = new ChunkStore(new File(uploadDirFile, "chunks").toPath(), config.getDiskWriters());
+        // Pipelines only occupy a disk writer while they have buffers queued,
+        // so the queue is bounded by the number of uploads in flight.
+        this.diskWriter = new ThreadPoolExecutor(config.getDiskWriters(), config.getDiskWriters(), 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), new NamedThreadFactory("disk-writer"));
+        diskWriter.allowCoreThreadTimeOut(true);
+        // A transfer only starts once it has a thread, so a full pool turns
+        // new sockets away instead of leaving them waiting after the handshake.
+        this.webSocketTransfers = new ThreadPoolExecutor(0, config.getWebSocketThreads(), 60, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), new NamedThreadFactory("ws-transfer"));
+        // Replicas keep the owner's file name, so they get a directory of their own.
+        this.replicator = new Replicator(cluster, fileSharer, new File(uploadDirFile, "replicas"),
+                config.getClusterSecret(), () -> this.config.get().isUploadEncrypt());
+        // Expired shares were stored by this node, so their files go too.
+        fileSharer.setExpiryListener(sharedFile -> {
+            if (sharedFile.getManifest() != null) {
+                chunkStore.release(sharedFile.getManifest());
+            }
+            if (!new File(sharedFile.getFilePath()).delete()) {
+                Log.warn("share.delete_failed", "file", sharedFile.getFilename());
+            }
+        });
         
-        server.createContext("/upload", new UploadHandler());
-        server.createContext("/download", new DownloadHandler());
+        RequestIdFilter requestIds = new RequestIdFilter();
+        List<Filter> traced = tracer != null ? List.of(requestIds, new TraceFilter()) : List.of(requestIds);
+        server.createContext("/upload", new UploadHandler()).getFilters().addAll(traced);
+        server.createContext("/download", new DownloadHandler()).getFilters().addAll(traced);
+        server.createContext("/delta", new DeltaHandler()).getFilters().addAll(traced);
+        server.createContext("/ws/download", new WebSocketDownloadHandler()).getFilters().add(requestIds);
+        server.createContext("/progress", new ProgressHandler());
+        server.createContext("/metrics", new MetricsHandler());
+        server.createContext("/admin", new AdminHandler());
+        server.createContext(Cluster.PING_PATH, new ClusterPingHandler());
+        server.createContext(Replicator.REPLICATE_PATH, new ClusterReplicateHandler()).getFilters().add(requestIds);
         server.createContext("/", new CORSHandler());
         
         server.setExecutor(executorService);
+        this.config.addListener(this::applyConfig);
     }
     
     public void start() {
+        Config current = config.get();
+        for (String warning : current.getWarnings()) {
+            Log.warn("config.warning", "detail", warning);
+        }
         server.start();
-        System.out.println("API server started on port " + server.getAddress().getPort());
+        cluster.start();
+        if (current.getSource() != null) {
+            try {
+                config.watch(current.getSource());
+            } catch (IOException e) {
+                Log.warn("config.watch_failed", "file", current.getSource(), "error", e);
+            }
+        }
+        Log.info("server.started", "port", server.getAddress().getPort());
+    }
+    
+    /**
+     * The live configuration; updates to it are applied to the running node.
+     */
+    public ReloadableConfig getConfig() {
+        return config;
+    }
+    
+    /**
+     * Applies a config update to the running pools and limits. Pools grow
+     * at once and shrink as their threads go idle, so running transfers
+     * finish undisturbed.
+     */
+    private void applyConfig(Config previous, Config next) {
+        resize(executorService, next.getHttpWorkers(), next.getHttpWorkers());
+        resize(diskWriter, next.getDiskWriters(), next.getDiskWriters());
+        resize(webSocketTransfers, 0, next.getWebSocketThreads());
+        resize(fileSharer.getTransferExecutor(), next.getTransferThreads(), next.getTransferThreads());
+        admissionController.setLimits(next.getMaxInFlightBytes(), next.getMinFreeDiskBytes());
+        fileSharer.setTimeouts(next.getTimeouts());
+        if (server instanceof NioHttpServer) {
+            ((NioHttpServer) server).setTimeouts(next.getTimeouts());
+        }
+        Log.shared().setLevel(next.getLogLevel());
+    }
+    
+    private static void resize(ThreadPoolExecutor pool, int core, int max) {
+        // The core size may never exceed the maximum, so order the two calls.
+        if (max >= pool.getMaximumPoolSize()) {
+            pool.setMaximumPoolSize(max);
+            pool.setCorePoolSize(core);
+        } else {
+            pool.setCorePoolSize(core);
+            pool.setMaximumPoolSize(max);
+        }
+    }
+    
+    public int getPort() {
+        return server.getAddress().getPort();
     }
     
     public void stop() {
+        try {
+            config.close();
+        } catch (IOException e) {
+            Log.warn("config.close_failed", "error", e);
+        }
+        cluster.stop();
+        replicator.shutdown();
         server.stop(0);
         executorService.shutdown();
-        System.out.println("API server stopped");
+        fileSharer.shutdown();
+        progressTracker.shutdown();
+        diskWriter.shutdown();
+        chunkStore.close();
+        webSocketTransfers.shutdownNow();
+        if (tracer != null) {
+            tracer.close();
+        }
+        Log.info("server.stopped");
+    }
+    
+    /**
+     * Opens a new file in the upload directory for an upload's content:
+     * chunks in the chunk store plus a manifest at {@code path}, or a plain
+     * file when deduplication is off.
+     */
+    private WritableByteChannel createStoredFile(Path path, long expectedSize) throws IOException {
+        Config settings = config.get();
+        if (settings.isUploadEncrypt()) {
+            UploadWriter file = new UploadWriter(path, StreamEncryption.encryptedSize(expectedSize),
+                    settings.isUploadDirect(), settings.getUploadSyncBytes());
+            try {
+                return new EncryptingChannel(file, StreamEncryption.newKey());
+            } catch (IOException e) {
+                file.close();
+                Files.deleteIfExists(path);
+                throw e;
+            }
+        }
+        if (settings.isUploadDedup()) {
+            return new ChunkingChannel(chunkStore, path, settings.isUploadDirect(), settings.getUploadSyncBytes());
+        }
+        return new UploadWriter(path, expectedSize, settings.isUploadDirect(), settings.getUploadSyncBytes());
+    }
+    
+    /**
+     * Deletes a file made by {@link #createStoredFile}, releasing its chunks.
+     */
+    private static void deleteStoredFile(Path path, WritableByteChannel writer) throws IOException {
+        if (writer instanceof ChunkingChannel) {
+            ((ChunkingChannel) writer).discard();
+        }
+        Files.deleteIfExists(path);
+    }
+    
+    /**
+     * The chunks of a closed {@link #createStoredFile} channel, or null.
+     */
+    private static Manifest manifestOf(WritableByteChannel writer) {
+        return writer instanceof ChunkingChannel ? ((ChunkingChannel) writer).getManifest() : null;
+    }
+    
+    /**
+     * The key a {@link #createStoredFile} channel encrypts with, or null.
+     */
+    private static SecretKey keyOf(WritableByteChannel writer) {
+        return writer instanceof EncryptingChannel ? ((EncryptingChannel) writer).getKey() : null;
+    }
+    
+    /**
+     * Shares a file stored in the upload directory and replicates it to the
+     * other nodes of its placement. Returns its share code.
+     */
+    private int share(String filePath, long size, byte[] sha256, MerkleTree tree, WritableByteChannel writer) {
+        int span = Tracer.span("upload.share");
+        try {
+            int port = fileSharer.offerFile(new SharedFile(filePath, size, sha256, tree, manifestOf(writer),
+                    keyOf(writer)));
+            fileSharer.startFileServer(port);
+            replicator.replicate(port, fileSharer.getSharedFile(port));
+            return port;
+        } finally {
+            Tracer.end(span);
+        }
+    }
+    
+    /**
+     * Registers the transfer of {@code exchange} under the progress id the
+     * client asked for with {@code ?progress=id}, if it is free.
+     */
+    private TransferProgress startProgress(HttpExchange exchange, String type, long total) {
+        TransferProgress progress = progressTracker.start(queryParam(exchange, "progress"), type, total);
+        progress.setRemote(exchange.getRemoteAddress().getAddress().getHostAddress());
+        return progress;
+    }
+    
+    /**
+     * Returns the request's {@code Content-Length}, or -1 if it is missing
+     * or not a number.
+     */
+    private static long contentLength(Headers requestHeaders) {
+        String value = requestHeaders.getFirst("Content-Length");
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    
+    /**
+     * Sends {@code response} as the whole body, in UTF-8.
+     */
+    private static void sendText(HttpExchange exchange, int status, String response) throws IOException {
+        byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+    
+    /**
+     * Checks the request's {@code Authorization: Bearer} token against
+     * {@code token} in constant time.
+     */
+    private static boolean authorized(HttpExchange exchange, String token) {
+        String header = exchange.getRequestHeaders().getFirst("Authorization");
+        if (header == null || !header.regionMatches(true, 0, "Bearer ", 0, 7)) {
+            return false;
+        }
+        return MessageDigest.isEqual(header.substring(7).trim().getBytes(StandardCharsets.UTF_8),
+                token.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    /**
+     * Returns the raw value of query parameter {@code name}, or null.
+     */
+    private static String queryParam(HttpExchange exchange, String name) {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return null;
+        }
+        for (String param : query.split("&")) {
+            if (param.startsWith(name + "=")) {
+                return param.substring(name.length() + 1);
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Gives each request a correlation id for the logs of the thread handling
+     * it: the caller's {@code X-Request-Id} if usable, else a new one. The id
+     * is echoed back and passed on to other nodes.
+     */
+    private static class RequestIdFilter extends Filter {
+        @Override
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            String id = Log.correlationIdOrNew(exchange.getRequestHeaders().getFirst(REQUEST_ID_HEADER));
+            exchange.getResponseHeaders().set(REQUEST_ID_HEADER, id);
+            Log.setCorrelationId(id);
+            try {
+                chain.doFilter(exchange);
+            } finally {
+                Log.setCorrelationId(null);
+            }
+        }
+        
+        @Override
+        public String description() {
+            return "Assigns request correlation ids";
+        }
+    }
+    
+    /**
+     * Traces a request from the handler's first byte to its last, named by
+     * method and route. Handlers and the share service add spans for their
+     * steps on the same thread.
+     */
+    private class TraceFilter extends Filter {
+        @Override
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            String route = exchange.getHttpContext().getPath();
+            try (Tracer.Trace trace = tracer.start(exchange.getRequestMethod() + " " + route)) {
+                Tracer.attribute("http.request.method", exchange.getRequestMethod());
+                Tracer.attribute("http.route", route);
+                Tracer.attribute("peerlink.request_id", Log.getCorrelationId());
+                try {
+                    chain.doFilter(exchange);
+                } finally {
+                    if (trace != null) {
+                        trace.setStatus(exchange.getResponseCode());
+                    }
+                }
+            }
+        }
+        
+        @Override
+        public String description() {
+            return "Traces requests";
+        }
     }
     
     private class CORSHandler implements HttpHandler {
@@ -73,74 +479,124 @@ public class FileController {
         }
     }
     
+    /**
+     * Streaming multipart/form-data parser. Part headers are parsed from the
+     * buffer and file content is passed straight through to a channel, so an
+     * upload is never held in memory as a whole.
+     */
     private static class MultipartParser {
-        private final byte[] data;
-        private final String boundary;
-        
-        public MultipartParser(byte[] data, String boundary) {
-            this.data = data;
-            this.boundary = boundary;
+        private final ReadableByteChannel in;
+        private final ByteBuffer buffer;
+        private final byte[] dashBoundary;
+        private final byte[] delimiter;
+        private boolean eof;
+
+        public MultipartParser(ReadableByteChannel in, String boundary, ByteBuffer buffer) {
+            this.in = in;
+            this.buffer = buffer;
+            this.dashBoundary = ("--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+            this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+            buffer.clear().flip();
         }
-        
-        public ParseResult parse() {
-            try {
-                String dataAsString = new String(data);
-                
-                String filenameMarker = "filename=\"";
-                int filenameStart = dataAsString.indexOf(filenameMarker);
-                if (filenameStart == -1) {
+
+        /**
+         * Advances to the next part that carries a filename and returns its
+         * headers, or null if there is none. Other parts are skipped.
+         */
+        public Part nextFilePart() throws IOException {
+            while (true) {
+                if (!skipTo(dashBoundary)) {
                     return null;
                 }
-                
-                filenameStart += filenameMarker.length();
-                int filenameEnd = dataAsString.indexOf("\"", filenameStart);
-                String filename = dataAsString.substring(filenameStart, filenameEnd);
-                
-                String contentTypeMarker = "Content-Type: ";
-                int contentTypeStart = dataAsString.indexOf(contentTypeMarker, filenameEnd);
-                String contentType = "application/octet-stream"; // Default
-                
-                if (contentTypeStart != -1) {
-                    contentTypeStart += contentTypeMarker.length();
-                    int contentTypeEnd = dataAsString.indexOf("\r\n", contentTypeStart);
-                    contentType = dataAsString.substring(contentTypeStart, contentTypeEnd);
+                if (!ensure(2) || buffer.get(buffer.position()) == '-') {
+                    return null; // closing boundary
                 }
-                
-                String headerEndMarker = "\r\n\r\n";
-                int headerEnd = dataAsString.indexOf(headerEndMarker);
-                if (headerEnd == -1) {
-                    return null;
+                int headersEnd = find(HEADER_END, buffer.position());
+                while (headersEnd < 0) {
+                    if (buffer.remaining() == buffer.capacity() || !fill()) {
+                        return null;
+                    }
+                    headersEnd = find(HEADER_END, buffer.position());
                 }
-                
-                int contentStart = headerEnd + headerEndMarker.length();
-                
-                byte[] boundaryBytes = ("\r\n--" + boundary + "--").getBytes();
-                int contentEnd = findSequence(data, boundaryBytes, contentStart);
-                
-                if (contentEnd == -1) {
-                    boundaryBytes = ("\r\n--" + boundary).getBytes();
-                    contentEnd = findSequence(data, boundaryBytes, contentStart);
+                byte[] raw = new byte[headersEnd - buffer.position()];
+                buffer.get(raw);
+                buffer.position(buffer.position() + HEADER_END.length);
+                Part part = Part.parse(new String(raw, StandardCharsets.UTF_8));
+                if (part != null) {
+                    return part;
                 }
-                
-                if (contentEnd == -1 || contentEnd <= contentStart) {
-                    return null;
+            }
+        }
+
+        /**
+         * Writes the content of the current part to {@code out}. Returns the
+         * number of bytes written, or -1 if the body ended before the closing
+         * delimiter.
+         */
+        public long transferContent(WritableByteChannel out) throws IOException {
+            long total = 0;
+            while (true) {
+                int end = find(delimiter, buffer.position());
+                int safe = end >= 0 ? end : Math.max(buffer.position(), buffer.limit() - delimiter.length + 1);
+                int limit = buffer.limit();
+                buffer.limit(safe);
+                total += TransferUtils.writeFully(out, buffer);
+                buffer.limit(limit);
+                if (end >= 0) {
+                    buffer.position(end + 2); // leave "--boundary" for nextFilePart
+                    return total;
+                }
+                if (!fill()) {
+                    return -1;
                 }
-                
-                byte[] fileContent = new byte[contentEnd - contentStart];
-                System.arraycopy(data, contentStart, fileContent, 0, fileContent.length);
-                
-                return new ParseResult(filename, contentType, fileContent);
-            } catch (Exception e) {
-                System.err.println("Error parsing multipart data: " + e.getMessage());
-                return null;
             }
         }
-        
-        private int findSequence(byte[] data, byte[] sequence, int startPos) {
+
+        private boolean skipTo(byte[] pattern) throws IOException {
+            while (true) {
+                int index = find(pattern, buffer.position());
+                if (index >= 0) {
+                    buffer.position(index + pattern.length);
+                    return true;
+                }
+                buffer.position(Math.max(buffer.position(), buffer.limit() - pattern.length + 1));
+                if (!fill()) {
+                    return false;
+                }
+            }
+        }
+
+        private boolean ensure(int bytes) throws IOException {
+            while (buffer.remaining() < bytes) {
+                if (!fill()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean fill() throws IOException {
+            if (eof) {
+                return false;
+            }
+            buffer.compact();
+            try {
+                if (in.read(buffer) < 0) {
+                    eof = true;
+                    return false;
+                }
+                return true;
+            } finally {
+                buffer.flip();
+            }
+        }
+
+        private int find(byte[] pattern, int from) {
+            int last = buffer.limit() - pattern.length;
             outer:
-            for (int i = startPos; i <= data.length - sequence.length; i++) {
-                for (int j = 0; j < sequence.length; j++) {
-                    if (data[i + j] != sequence[j]) {
+            for (int i = from; i <= last; i++) {
+                for (int j = 0; j < pattern.length; j++) {
+                    if (buffer.get(i + j) != pattern[j]) {
                         continue outer;
                     }
                 }
@@ -148,21 +604,55 @@ public class FileController {
             }
             return -1;
         }
-        
-        public static class ParseResult {
+
+        private static final byte[] HEADER_END = {'\r', '\n', '\r', '\n'};
+
+        public static class Part {
             public final String filename;
             public final String contentType;
-            public final byte[] fileContent;
-            
-            public ParseResult(String filename, String contentType, byte[] fileContent) {
+
+            public Part(String filename, String contentType) {
                 this.filename = filename;
                 this.contentType = contentType;
-                this.fileContent = fileContent;
+            }
+
+            static Part parse(String headers) {
+                String filenameMarker = "filename=\"";
+                int filenameStart = headers.indexOf(filenameMarker);
+                if (filenameStart == -1) {
+                    return null;
+                }
+                filenameStart += filenameMarker.length();
+                int filenameEnd = headers.indexOf("\"", filenameStart);
+                if (filenameEnd == -1) {
+                    return null;
+                }
+                String filename = headers.substring(filenameStart, filenameEnd);
+
+                String contentTypeMarker = "Content-Type: ";
+                int contentTypeStart = headers.indexOf(contentTypeMarker);
+                String contentType = "application/octet-stream"; // Default
+                if (contentTypeStart != -1) {
+                    contentTypeStart += contentTypeMarker.length();
+                    int contentTypeEnd = headers.indexOf("\r\n", contentTypeStart);
+                    contentType = contentTypeEnd == -1
+                            ? headers.substring(contentTypeStart)
+                            : headers.substring(contentTypeStart, contentTypeEnd);
+                }
+                return new Part(filename, contentType);
             }
         }
     }
     
     private class UploadHandler implements HttpHandler {
+        private void sendBadRequest(HttpExchange exchange) throws IOException {
+            String response = "Bad Request: Could not parse file content";
+            exchange.sendResponseHeaders(400, response.getBytes().length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(response.getBytes());
+            }
+        }
+        
         @Override
         public void handle(HttpExchange exchange) throws IOException {
             Headers headers = exchange.getResponseHeaders();
@@ -189,50 +679,147 @@ public class FileController {
                 return;
             }
             
-            try {
-                String boundary = contentType.substring(contentType.indexOf("boundary=") + 9);
-                
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                IOUtils.copy(exchange.getRequestBody(), baos);
-                byte[] requestData = baos.toByteArray();
-                
-                MultipartParser parser = new MultipartParser(requestData, boundary);
-                MultipartParser.ParseResult result = parser.parse();
-                
-                if (result == null) {
-                    String response = "Bad Request: Could not parse file content";
-                    exchange.sendResponseHeaders(400, response.getBytes().length);
+            // Decide before reading any of the body, so a rejected client
+            // doesn't spend its bandwidth or our disk.
+            try (AdmissionController.Admission admission = admissionController.admit(contentLength(requestHeaders))) {
+                if (!admission.isAccepted()) {
+                    String response = "Service Unavailable: " + admission.getRejectionReason();
+                    headers.add("Retry-After", String.valueOf(admission.getRetryAfterSeconds()));
+                    exchange.sendResponseHeaders(503, response.getBytes().length);
                     try (OutputStream os = exchange.getResponseBody()) {
                         os.write(response.getBytes());
                     }
                     return;
                 }
-                
-                String filename = result.filename;
-                if (filename == null || filename.trim().isEmpty()) {
-                    filename = "unnamed-file";
+                TransferProgress progress = startProgress(exchange, "upload", contentLength(requestHeaders));
+                headers.add("X-Progress-Id", progress.getId());
+                try {
+                    receiveUpload(exchange, contentType, admission, progress);
+                } finally {
+                    progress.fail();
                 }
+            }
+        }
+        
+        private void receiveUpload(HttpExchange exchange, String contentType,
+                AdmissionController.Admission admission, TransferProgress progress) throws IOException {
+            Headers headers = exchange.getResponseHeaders();
+            try {
+                String boundary = contentType.substring(contentType.indexOf("boundary=") + 9);
                 
-                String uniqueFilename = UUID.randomUUID().toString() + "_" + new File(filename).getName();
-                String filePath = uploadDir + File.separator + uniqueFilename;
-                
-                try (FileOutputStream fos = new FileOutputStream(filePath)) {
-                    fos.write(result.fileContent);
+                String filePath;
+                HashingChannel hashing = null;
+                TreeHashingChannel treeHashing = null;
+                WritableByteChannel writer;
+                JfrEvents.UploadParsed parsed = new JfrEvents.UploadParsed();
+                parsed.begin();
+                try (PooledBuffer pooled = BufferPool.shared().acquire(TransferUtils.COPY_BUFFER_SIZE)) {
+                    MultipartParser parser = new MultipartParser(
+                            progress.trackReads(admission.limit(TransferUtils.channel(exchange.getRequestBody()))),
+                            boundary, pooled.buffer());
+                    MultipartParser.Part part;
+                    int parse = Tracer.span("multipart.parse");
+                    try {
+                        part = parser.nextFilePart();
+                    } finally {
+                        Tracer.end(parse);
+                    }
+                    
+                    if (part == null) {
+                        sendBadRequest(exchange);
+                        return;
+                    }
+                    
+                    String filename = part.filename;
+                    if (filename == null || filename.trim().isEmpty()) {
+                        filename = "unnamed-file";
+                    }
+                    
+                    progress.setFilename(filename);
+                    parsed.filename = filename;
+                    String uniqueFilename = UUID.randomUUID().toString() + "_" + new File(filename).getName();
+                    filePath = uploadDir + File.separator + uniqueFilename;
+                    
+                    long written;
+                    int flush = -1;
+                    int open = Tracer.span("upload.open");
+                    try {
+                        writer = createStoredFile(Paths.get(filePath), contentLength(exchange.getRequestHeaders()));
+                    } finally {
+                        Tracer.end(open);
+                    }
+                    try (writer) {
+                        // Hash on the disk-writer side of the pipeline, so hashing
+                        // overlaps with reading the next bytes off the network.
+                        WritableByteChannel digesting;
+                        if (config.get().isUploadTreeHash()) {
+                            treeHashing = new TreeHashingChannel(writer);
+                            digesting = treeHashing;
+                        } else {
+                            hashing = new HashingChannel(writer, DigestUtils.sha256());
+                            digesting = hashing;
+                        }
+                        try (digesting; WriteBehindChannel pipeline = new WriteBehindChannel(digesting, diskWriter)) {
+                            int receive = Tracer.span("upload.receive");
+                            try {
+                                written = parser.transferContent(pipeline);
+                            } finally {
+                                Tracer.end(receive);
+                            }
+                            // Closing waits for the pipeline and the writer to finish.
+                            flush = Tracer.span("upload.flush");
+                        }
+                    } catch (IOException e) {
+                        deleteStoredFile(Paths.get(filePath), writer);
+                        throw e;
+                    } finally {
+                        Tracer.end(flush);
+                    }
+                    parsed.end();
+                    
+                    if (written < 0) {
+                        deleteStoredFile(Paths.get(filePath), writer);
+                        sendBadRequest(exchange);
+                        return;
+                    }
                 }
                 
-                int port = fileSharer.offerFile(filePath);
-                
-                new Thread(() -> fileSharer.startFileServer(port)).start();
+                long size = hashing != null ? hashing.getCount() : treeHashing.getCount();
+                byte[] sha256 = hashing != null ? hashing.digest() : null;
+                MerkleTree tree = treeHashing != null ? treeHashing.tree() : null;
+                if (parsed.shouldCommit()) {
+                    parsed.requestId = Log.getCorrelationId();
+                    parsed.bytes = size;
+                    parsed.commit();
+                }
+                int port = share(filePath, size, sha256, tree, writer);
+                progress.complete();
+                Log.info("upload.stored", "code", port, "file", filePath, "bytes", size);
+                Tracer.attribute("peerlink.code", port);
+                Tracer.attribute("peerlink.bytes", size);
                 
-                String jsonResponse = "{\"port\": " + port + "}";
-                headers.add("Content-Type", "application/json");
-                exchange.sendResponseHeaders(200, jsonResponse.getBytes().length);
-                try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(jsonResponse.getBytes());
+                int respond = Tracer.span("upload.respond");
+                try {
+                    String jsonResponse = "{\"port\": " + port + (sha256 != null
+                            ? ", \"sha256\": \"" + DigestUtils.toHex(sha256) + "\"}"
+                            : ", \"treeRoot\": \"" + DigestUtils.toHex(tree.getRoot()) + "\"}");
+                    headers.add("Content-Type", "application/json");
+                    exchange.sendResponseHeaders(200, jsonResponse.getBytes().length);
+                    try (OutputStream os = exchange.getResponseBody()) {
+                        os.write(jsonResponse.getBytes());
+                    }
+                } finally {
+                    Tracer.end(respond);
                 }
                 
+            } catch (AdmissionController.BudgetExceededException e) {
+                Log.warn("upload.over_budget", "error", e);
+                Tracer.failed(e);
+                headers.add("Retry-After", String.valueOf(e.getRetryAfterSeconds()));
+                sendText(exchange, 503, "Service Unavailable: " + e.getMessage());
             } catch (Exception e) {
-                System.err.println("Error processing file upload: " + e.getMessage());
+                Log.error("upload.failed", "error", e);
+                Tracer.failed(e);
                 String response = "Server error: " + e.getMessage();
                 exchange.sendResponseHeaders(500, response.getBytes().length);
                 try (OutputStream os = exchange.getResponseBody()) {
@@ -242,7 +829,301 @@ public class FileController {
         }
     }
     
+    /**
+     * Uploads of a new version of a share stored on this node, sending only
+     * what changed. {@code GET /delta/{code}?blockSize=n} returns the
+     * {@link BlockSignature} of the share's file; {@code POST /delta/{code}}
+     * takes a {@link DeltaEncoder} delta against that signature, rebuilds the
+     * new version and shares it under a new code. The name defaults to the
+     * old version's and can be set with {@code ?filename=}; a {@code Digest}
+     * request header, if sent, is checked against the result.
+     */
+    private class DeltaHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            exchange.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+            String method = exchange.getRequestMethod();
+            if (!method.equalsIgnoreCase("GET") && !method.equalsIgnoreCase("POST")) {
+                sendText(exchange, 405, "Method Not Allowed");
+                return;
+            }
+            
+            String path = exchange.getRequestURI().getPath();
+            int code;
+            try {
+                code = Integer.parseInt(path.substring(path.lastIndexOf('/') + 1));
+            } catch (NumberFormatException e) {
+                sendText(exchange, 400, "Bad Request: Invalid port number");
+                return;
+            }
+            SharedFile base = fileSharer.getSharedFile(code);
+            if (base == null) {
+                // The old version has to be on this node's disk.
+                sendText(exchange, 404, "Not Found: share is not on this node");
+                return;
+            }
+            
+            // Keep the old version from expiring while it is in use.
+            base.beginTransfer();
+            try {
+                if (method.equalsIgnoreCase("GET")) {
+                    sendSignature(exchange, base);
+                } else {
+                    receiveDelta(exchange, code, base);
+                }
+            } finally {
+                base.endTransfer();
+            }
+        }
+        
+        private void sendSignature(HttpExchange exchange, SharedFile base) throws IOException {
+            int blockSize = BlockSignature.defaultBlockSize(base.getSize());
+            String requested = queryParam(exchange, "blockSize");
+            try {
+                if (requested != null) {
+                    blockSize = Integer.parseInt(requested);
+                }
+                if (blockSize < BlockSignature.MIN_BLOCK_SIZE || blockSize > BlockSignature.MAX_BLOCK_SIZE) {
+                    throw new NumberFormatException();
+                }
+            } catch (NumberFormatException e) {
+                sendText(exchange, 400, "Bad Request: blockSize must be between " + BlockSignature.MIN_BLOCK_SIZE
+                        + " and " + BlockSignature.MAX_BLOCK_SIZE);
+                return;
+            }
+            
+            BlockSignature signature;
+            try (SeekableByteChannel file = base.open()) {
+                signature = BlockSignature.compute(file, blockSize);
+            }
+            exchange.getResponseHeaders().add("Content-Type", "application/octet-stream");
+            exchange.getResponseHeaders().add("ETag", base.getETag());
+            exchange.sendResponseHeaders(200, signature.getEncodedLength());
+            try (OutputStream os = exchange.getResponseBody()) {
+                signature.write(TransferUtils.channel(os));
+            }
+        }
+        
+        private void receiveDelta(HttpExchange exchange, int code, SharedFile base) throws IOException {
+            Headers headers = exchange.getResponseHeaders();
+            Headers requestHeaders = exchange.getRequestHeaders();
+            byte[] expected = null;
+            if (requestHeaders.getFirst("Digest") != null) {
+                expected = DigestUtils.fromDigestHeader(requestHeaders.getFirst("Digest"));
+                if (expected == null) {
+                    sendText(exchange, 400, "Bad Request: Digest must be sha-256");
+                    return;
+                }
+            }
+            String filename = queryParam(exchange, "filename");
+            if (filename != null) {
+                filename = URLDecoder.decode(filename, StandardCharsets.UTF_8);
+            } else {
+                // Stored names are prefixed with a UUID and an underscore.
+                filename = base.getFilename();
+                if (filename.length() > 37 && filename.charAt(36) == '_') {
+                    filename = filename.substring(37);
+                }
+            }
+            filename = new File(filename).getName();
+            if (filename.isEmpty()) {
+                filename = "unnamed-file";
+            }
+            
+            long contentLength = contentLength(requestHeaders);
+            // The new version is written in full, so reserve the old one's size plus the
+            // delta's, and let the patched file grow no larger than that.
+            long maxLength = base.getSize() + (contentLength < 0
+                    ? AdmissionController.UNKNOWN_LENGTH_RESERVATION : contentLength);
+            try (AdmissionController.Admission admission = admissionController.admit(maxLength)) {
+                if (!admission.isAccepted()) {
+                    headers.add("Retry-After", String.valueOf(admission.getRetryAfterSeconds()));
+                    sendText(exchange, 503, "Service Unavailable: " + admission.getRejectionReason());
+                    return;
+                }
+                TransferProgress progress = startProgress(exchange, "upload", contentLength);
+                headers.add("X-Progress-Id", progress.getId());
+                progress.setFilename(filename);
+                try {
+                    patch(exchange, code, base, filename, expected, maxLength, progress);
+                } finally {
+                    progress.fail();
+                }
+            }
+        }
+        
+        private void patch(HttpExchange exchange, int code, SharedFile base, String filename, byte[] expected,
+                long maxLength, TransferProgress progress) throws IOException {
+            Path filePath = Paths.get(uploadDir, UUID.randomUUID() + "_" + filename);
+            DeltaPatcher patcher;
+            HashingChannel hashing;
+            WritableByteChannel writer = createStoredFile(filePath, base.getSize());
+            try (writer; SeekableByteChannel baseFile = base.open()) {
+                patcher = new DeltaPatcher(baseFile);
+                hashing = new HashingChannel(writer, DigestUtils.sha256());
+                try (WriteBehindChannel pipeline = new WriteBehindChannel(hashing, diskWriter)) {
+                    patcher.apply(progress.trackReads(TransferUtils.channel(exchange.getRequestBody())), pipeline,
+                            maxLength);
+                }
+            } catch (ProtocolException | EOFException e) {
+                deleteStoredFile(filePath, writer);
+                Log.warn("delta.rejected", "code", code, "error", e);
+                sendText(exchange, 400, "Bad Request: " + e.getMessage());
+                return;
+            } catch (IOException e) {
+                deleteStoredFile(filePath, writer);
+                Log.error("delta.failed", "code", code, "error", e);
+                sendText(exchange, 500, "Server error: " + e.getMessage());
+                return;
+            }
+            
+            byte[] sha256 = hashing.digest();
+            if (expected != null && !MessageDigest.isEqual(expected, sha256)) {
+                deleteStoredFile(filePath, writer);
+                Log.warn("delta.digest_mismatch", "code", code);
+                sendText(exchange, 400, "Bad Request: rebuilt file does not match Digest");
+                return;
+            }
+            
+            int port = share(filePath.toString(), hashing.getCount(), sha256, null, writer);
+            progress.complete();
+            Log.info("delta.stored", "code", port, "base", code, "file", filePath,
+                    "bytes", hashing.getCount(), "received", patcher.getReceivedBytes());
+            
+            String jsonResponse = "{\"port\": " + port + ", \"sha256\": \"" + DigestUtils.toHex(sha256)
+                    + "\", \"base\": " + code + ", \"received\": " + patcher.getReceivedBytes() + "}";
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, jsonResponse.getBytes().length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(jsonResponse.getBytes());
+            }
+        }
+    }
+    
     private class DownloadHandler implements HttpHandler {
+        private static final String CACHE_CONTROL = "public, max-age=3600";
+        private static final String[] PROXIED_REQUEST_HEADERS = {"If-None-Match", "If-Modified-Since"};
+        private static final String[] PROXIED_RESPONSE_HEADERS = {"Content-Type", "Content-Disposition", "ETag", "Digest",
+                "Last-Modified", "Cache-Control", "Retry-After", "X-Progress-Id"};
+        
+        /**
+         * Evaluates If-None-Match, or If-Modified-Since when there is no
+         * If-None-Match, as described in RFC 9110 section 13.2.2.
+         */
+        private boolean isNotModified(Headers requestHeaders, SharedFile sharedFile) {
+            String ifNoneMatch = requestHeaders.getFirst("If-None-Match");
+            if (ifNoneMatch != null) {
+                for (String tag : ifNoneMatch.split(",")) {
+                    String candidate = tag.trim();
+                    if (candidate.startsWith("W/")) {
+                        candidate = candidate.substring(2);
+                    }
+                    if (candidate.equals("*") || candidate.equals(sharedFile.getETag())) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            String ifModifiedSince = requestHeaders.getFirst("If-Modified-Since");
+            if (ifModifiedSince != null) {
+                try {
+                    long since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME)
+                            .toInstant().toEpochMilli();
+                    return sharedFile.getCreatedAt() / 1000 <= since / 1000;
+                } catch (DateTimeParseException e) {
+                    return false;
+                }
+            }
+            return false;
+        }
+        
+        /**
+         * Relays the download from one of the nodes holding the share,
+         * starting at a random one to spread load and failing over to the
+         * next if it can't be reached. The forwarded header stops the
+         * holder from forwarding it again.
+         */
+        private void proxyDownload(HttpExchange exchange, List<ClusterNode> holders) throws IOException {
+            Headers headers = exchange.getResponseHeaders();
+            int start = ThreadLocalRandom.current().nextInt(holders.size());
+            boolean reachable = false;
+            for (int i = 0; i < holders.size(); i++) {
+                ClusterNode holder = holders.get((start + i) % holders.size());
+                if (!holder.isAlive()) {
+                    continue;
+                }
+                reachable = true;
+                HttpResponse<InputStream> response = sendProxied(exchange, holder);
+                if (response == null) {
+                    continue;
+                }
+                // A replica may not have finished copying the share yet.
+                boolean last = i == holders.size() - 1;
+                if (!last && (response.statusCode() == 404 || response.statusCode() >= 500)) {
+                    response.body().close();
+                    continue;
+                }
+                relay(exchange, response);
+                return;
+            }
+            
+            String message = reachable ? "Bad Gateway: could not reach the nodes holding this share"
+                    : "Service Unavailable: the nodes holding this share are down";
+            if (!reachable) {
+                headers.add("Retry-After", "5");
+            }
+            exchange.sendResponseHeaders(reachable ? 502 : 503, message.getBytes().length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(message.getBytes());
+            }
+        }
+        
+        /**
+         * Returns the holder's response, or null if it couldn't be reached.
+         */
+        private HttpResponse<InputStream> sendProxied(HttpExchange exchange, ClusterNode holder) throws IOException {
+            URI requestUri = exchange.getRequestURI();
+            HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(holder.getUrl() + requestUri.getRawPath()
+                            + (requestUri.getRawQuery() != null ? "?" + requestUri.getRawQuery() : "")))
+                    .header(Cluster.FORWARDED_HEADER, cluster.getSelf().getUrl())
+                    .header(REQUEST_ID_HEADER, Log.getCorrelationId())
+                    .GET();
+            for (String name : PROXIED_REQUEST_HEADERS) {
+                String value = exchange.getRequestHeaders().getFirst(name);
+                if (value != null) {
+                    request.header(name, value);
+                }
+            }
+            try {
+                return proxyClient.send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted proxying to " + holder, e);
+            } catch (IOException e) {
+                Log.warn("download.proxy_failed", "node", holder, "error", e);
+                return null;
+            }
+        }
+        
+        private void relay(HttpExchange exchange, HttpResponse<InputStream> response) throws IOException {
+            Headers headers = exchange.getResponseHeaders();
+            for (String name : PROXIED_RESPONSE_HEADERS) {
+                response.headers().firstValue(name).ifPresent(value -> headers.add(name, value));
+            }
+            int status = response.statusCode();
+            long length = response.headers().firstValueAsLong("Content-Length").orElse(0);
+            try (InputStream in = response.body();
+                 PooledBuffer pooled = BufferPool.shared().acquire(TransferUtils.COPY_BUFFER_SIZE)) {
+                // Without a Content-Length the body is relayed chunked.
+                exchange.sendResponseHeaders(status, status == 304 ? -1 : length);
+                if (status != 304) {
+                    try (OutputStream os = exchange.getResponseBody()) {
+                        TransferUtils.copy(TransferUtils.channel(in), TransferUtils.channel(os), pooled.buffer());
+                    }
+                }
+            }
+        }
+        
         @Override
         public void handle(HttpExchange exchange) throws IOException {
             Headers headers = exchange.getResponseHeaders();
@@ -263,56 +1144,137 @@ public class FileController {
             try {
                 int port = Integer.parseInt(portStr);
                 
-                try (Socket socket = new Socket("localhost", port);
-                     InputStream socketInput = socket.getInputStream()) {
+                SharedFile sharedFile = fileSharer.getSharedFile(port);
+                if (sharedFile == null && exchange.getRequestHeaders().getFirst(Cluster.FORWARDED_HEADER) == null) {
+                    List<ClusterNode> holders = new ArrayList<>(cluster.placement(port));
+                    holders.remove(cluster.getSelf());
+                    if (!holders.isEmpty()) {
+                        int proxy = Tracer.span("download.proxy");
+                        try {
+                            proxyDownload(exchange, holders);
+                        } finally {
+                            Tracer.end(proxy);
+                        }
+                        return;
+                    }
+                } else if (sharedFile == null && !cluster.isOwnedLocally(port)) {
+                    // Forwarded here, but this node's copy isn't there (yet).
+                    String response = "Not Found: share is not on this node";
+                    exchange.sendResponseHeaders(404, response.getBytes().length);
+                    try (OutputStream os = exchange.getResponseBody()) {
+                        os.write(response.getBytes());
+                    }
+                    return;
+                }
+                
+                // Revalidation is answered from the share metadata alone,
+                // without opening the peer socket or the file.
+                if (sharedFile != null && isNotModified(exchange.getRequestHeaders(), sharedFile)) {
+                    headers.add("ETag", sharedFile.getETag());
+                    headers.add("Last-Modified", sharedFile.getLastModified());
+                    headers.add("Cache-Control", CACHE_CONTROL);
+                    exchange.sendResponseHeaders(304, -1);
+                    return;
+                }
+                
+                TransferProgress progress = startProgress(exchange, "download", -1);
+                headers.add("X-Progress-Id", progress.getId());
+                int peerPort = sharedFile != null ? sharedFile.getPeerPort() : port;
+                Tracer.attribute("peerlink.code", port);
+                JfrEvents.TransferCompleted completed = new JfrEvents.TransferCompleted();
+                completed.begin();
+                try (ByteChannel peer = fileSharer.connect("localhost", peerPort);
+                     AdaptiveBuffers.Transfer transfer = AdaptiveBuffers.shared().open("localhost", null)) {
                     
                     File tempFile = File.createTempFile("download-", ".tmp");
                     String filename = "downloaded-file"; // Default filename
+                    ByteBuffer buffer = transfer.buffer();
                     
-                    try (FileOutputStream fos = new FileOutputStream(tempFile)) {
-                        byte[] buffer = new byte[4096];
-                        int bytesRead;
-                        
-                        ByteArrayOutputStream headerBaos = new ByteArrayOutputStream();
-                        int b;
-                        while ((b = socketInput.read()) != -1) {
-                            if (b == '\n') break;
-                            headerBaos.write(b);
+                    PeerProtocol.Receiver received = null;
+                    int receive = Tracer.span("download.receive");
+                    try (FileChannel fileChannel = FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE)) {
+                        Map<String, String> peerHeaders = PeerProtocol.readHeaders(peer, buffer);
+                        if (peerHeaders != null) {
+                            filename = peerHeaders.getOrDefault("Filename", filename);
+                            progress.setFilename(filename);
+                            progress.setTotal(PeerProtocol.contentLength(peerHeaders));
+                            try (PeerProtocol.Receiver receiver = PeerProtocol.receive(peerHeaders, peer, buffer,
+                                    progress.trackWrites(fileChannel))) {
+                                received = receiver;
+                                TransferUtils.copy(peer, receiver, transfer);
+                            }
                         }
-                        
-                        String header = headerBaos.toString().trim();
-                        if (header.startsWith("Filename: ")) {
-                            filename = header.substring("Filename: ".length());
-                        }
-                        
-                        while ((bytesRead = socketInput.read(buffer)) != -1) {
-                            fos.write(buffer, 0, bytesRead);
+                    } catch (IOException e) {
+                        // A leaf that fails its hash stops the copy here; don't
+                        // leave the partial file.
+                        tempFile.delete();
+                        throw e;
+                    } finally {
+                        Tracer.end(receive);
+                    }
+                    
+                    long count = received != null ? received.getCount() : 0;
+                    Tracer.attribute("peerlink.bytes", count);
+                    completed.bytes = count;
+                    if (received == null || !received.isComplete()) {
+                        tempFile.delete();
+                        Log.warn("download.incomplete", "code", port, "bytes", count);
+                        String response = "Bad Gateway: transfer from peer was incomplete or corrupted";
+                        headers.add("Content-Type", "text/plain");
+                        exchange.sendResponseHeaders(502, response.getBytes().length);
+                        try (OutputStream os = exchange.getResponseBody()) {
+                            os.write(response.getBytes());
                         }
+                        return;
                     }
                     
                     headers.add("Content-Disposition", "attachment; filename=\"" + filename + "\"");
                     headers.add("Content-Type", "application/octet-stream");
+                    byte[] sha256 = received.getSha256();
+                    headers.add("ETag", DigestUtils.toETag(sha256 != null ? sha256 : received.getTree().getRoot()));
+                    if (sha256 != null) {
+                        headers.add("Digest", DigestUtils.toDigestHeader(sha256));
+                    }
+                    if (sharedFile != null) {
+                        headers.add("Last-Modified", sharedFile.getLastModified());
+                        headers.add("Cache-Control", CACHE_CONTROL);
+                    }
                     
-                    exchange.sendResponseHeaders(200, tempFile.length());
-                    try (OutputStream os = exchange.getResponseBody();
-                         FileInputStream fis = new FileInputStream(tempFile)) {
-                        byte[] buffer = new byte[4096];
-                        int bytesRead;
-                        while ((bytesRead = fis.read(buffer)) != -1) {
-                            os.write(buffer, 0, bytesRead);
+                    int respond = Tracer.span("download.respond");
+                    try {
+                        exchange.sendResponseHeaders(200, tempFile.length());
+                        try (OutputStream os = exchange.getResponseBody();
+                             FileChannel fileChannel = FileChannel.open(tempFile.toPath(), StandardOpenOption.READ)) {
+                            // The buffer keeps the size the peer leg settled on.
+                            TransferUtils.copy(fileChannel, TransferUtils.channel(os), transfer.buffer());
                         }
+                    } finally {
+                        tempFile.delete();
+                        Tracer.end(respond);
                     }
-                    
-                    tempFile.delete();
+                    progress.complete();
+                    completed.succeeded = true;
+                    Log.info("download.served", "code", port, "bytes", count,
+                            "origin", sharedFile != null ? sharedFile.getCorrelationId() : null);
                     
                 } catch (IOException e) {
-                    System.err.println("Error downloading file from peer: " + e.getMessage());
+                    Log.error("download.failed", "code", port, "error", e);
+                    Tracer.failed(e);
                     String response = "Error downloading file: " + e.getMessage();
                     headers.add("Content-Type", "text/plain");
                     exchange.sendResponseHeaders(500, response.getBytes().length);
                     try (OutputStream os = exchange.getResponseBody()) {
                         os.write(response.getBytes());
                     }
+                } finally {
+                    progress.fail();
+                    completed.end();
+                    if (completed.shouldCommit()) {
+                        completed.requestId = Log.getCorrelationId();
+                        completed.code = port;
+                        completed.host = "localhost";
+                        completed.commit();
+                    }
                 }
                 
             } catch (NumberFormatException e) {
@@ -324,4 +1286,421 @@ public class FileController {
             }
         }
     }
+    
+    private class ProgressHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            Headers headers = exchange.getResponseHeaders();
+            headers.add("Access-Control-Allow-Origin", "*");
+            
+            if (!exchange.getRequestMethod().equalsIgnoreCase("GET")) {
+                String response = "Method Not Allowed";
+                exchange.sendResponseHeaders(405, response.getBytes().length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(response.getBytes());
+                }
+                return;
+            }
+            
+            String path = exchange.getRequestURI().getPath();
+            String id = path.substring(path.lastIndexOf('/') + 1);
+            if (!ProgressTracker.isValidId(id)) {
+                String response = "Bad Request: Invalid progress id";
+                exchange.sendResponseHeaders(400, response.getBytes().length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(response.getBytes());
+                }
+                return;
+            }
+            
+            headers.add("Content-Type", "text/event-stream");
+            headers.add("Cache-Control", "no-cache");
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream os = exchange.getResponseBody();
+            os.write("retry: 1000\n\n".getBytes(StandardCharsets.UTF_8));
+            os.flush();
+            // The stream stays open after returning; the tracker's ticker
+            // writes the events and closes it, so watchers hold no worker.
+            progressTracker.subscribe(id, os);
+        }
+    }
+    
+    private class MetricsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!exchange.getRequestMethod().equalsIgnoreCase("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            
+            BufferPool pool = BufferPool.shared();
+            StringBuilder metrics = new StringBuilder();
+            appendMetric(metrics, "peerlink_http_workers", executorService.getMaximumPoolSize());
+            appendMetric(metrics, "peerlink_http_queue_depth", executorService.getQueue().size());
+            appendMetric(metrics, "peerlink_upload_inflight_bytes", admissionController.getInFlightBytes());
+            appendMetric(metrics, "peerlink_upload_rejected_total", admissionController.getRejectedCount());
+            appendMetric(metrics, "peerlink_upload_pipeline_queued_buffers", WriteBehindChannel.getQueuedBuffers());
+            appendMetric(metrics, "peerlink_upload_pipeline_buffers_written_total", WriteBehindChannel.getBuffersWritten());
+            appendMetric(metrics, "peerlink_upload_pipeline_producer_stalls_total", WriteBehindChannel.getProducerStalls());
+            appendMetric(metrics, "peerlink_disk_writer_active", diskWriter.getActiveCount());
+            appendMetric(metrics, "peerlink_websocket_transfers_active", WebSocketTransfer.getActiveCount());
+            appendMetric(metrics, "peerlink_log_written_total", Log.shared().getWrittenCount());
+            appendMetric(metrics, "peerlink_log_dropped_total", Log.shared().getDroppedCount());
+            appendMetric(metrics, "peerlink_cluster_replicated_total", replicator.getReplicatedCount());
+            appendMetric(metrics, "peerlink_cluster_replication_failed_total", replicator.getFailedCount());
+            appendMetric(metrics, "peerlink_http_timeouts_total",
+                    server instanceof NioHttpServer ? ((NioHttpServer) server).getTimedOutCount() : 0);
+            appendMetric(metrics, "peerlink_slow_connections_dropped_total", ThroughputGuard.getDroppedCount());
+            appendMetric(metrics, "peerlink_shares_expired_total", fileSharer.getExpiredCount());
+            appendMetric(metrics, "peerlink_shares_evicted_total", fileSharer.getEvictedCount());
+            appendMetric(metrics, "peerlink_chunks_stored", chunkStore.getChunkCount());
+            appendMetric(metrics, "peerlink_chunk_store_bytes", chunkStore.getStoredBytes());
+            appendMetric(metrics, "peerlink_chunk_deduplicated_bytes_total", chunkStore.getDeduplicatedBytes());
+            if (fileSharer.getTls() != null) {
+                appendMetric(metrics, "peerlink_tls_handshakes_total", fileSharer.getTls().getHandshakeCount());
+                appendMetric(metrics, "peerlink_tls_resumed_total", fileSharer.getTls().getResumedCount());
+            }
+            appendMetric(metrics, "peerlink_buffer_pool_pooled_bytes", pool.getPooledBytes());
+            appendMetric(metrics, "peerlink_buffer_pool_leaked_total", pool.getLeakedCount());
+            AdaptiveBuffers transferBuffers = AdaptiveBuffers.shared();
+            appendMetric(metrics, "peerlink_transfer_buffer_bytes", transferBuffers.getReservedBytes());
+            appendMetric(metrics, "peerlink_transfer_buffer_grown_total", transferBuffers.getGrownCount());
+            appendMetric(metrics, "peerlink_transfer_buffer_shrunk_total", transferBuffers.getShrunkCount());
+            appendMetric(metrics, "peerlink_transfer_buffer_capped_total", transferBuffers.getCappedCount());
+            if (tracer != null) {
+                appendMetric(metrics, "peerlink_traces_exported_total", tracer.getExportedCount());
+                appendMetric(metrics, "peerlink_traces_dropped_total", tracer.getDroppedCount());
+                appendMetric(metrics, "peerlink_trace_export_failed_total", tracer.getFailedCount());
+            }
+            
+            byte[] response = metrics.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "text/plain; version=0.0.4");
+            exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(response);
+            }
+        }
+        
+        private void appendMetric(StringBuilder out, String name, long value) {
+            out.append(name).append(' ').append(value).append('\n');
+        }
+    }
+    
+    /**
+     * What the node is doing right now, for operators: {@code GET /admin}
+     * lists the shares with their size, age and download count, the running
+     * transfers with bytes and rate, and thread, file descriptor, memory and
+     * disk usage ({@code /admin/shares},
+     * {@code /admin/transfers} and {@code /admin/resources} return one
+     * section). {@code DELETE /admin/transfers/{id}} cancels a transfer at
+     * its next chunk and {@code DELETE /admin/shares/{code}} evicts a share.
+     * <p>
+     * Everything is read from the live concurrent maps and volatile
+     * counters the transfers already keep, so a listing takes no lock a
+     * transfer could wait on; it is a recent view, not an atomic one.
+     * <p>
+     * Requests must carry {@code admin.token} as a bearer token; the remote
+     * address proves nothing behind a reverse proxy. With no token set the
+     * API is off.
+     */
+    private class AdminHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String token = config.get().getAdminToken();
+            if (token.isEmpty()) {
+                sendText(exchange, 404, "Not Found: set admin.token to enable the admin API");
+                return;
+            }
+            if (!authorized(exchange, token)) {
+                Log.warn("admin.unauthorized", "remote", exchange.getRemoteAddress().getAddress().getHostAddress());
+                exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer realm=\"admin\"");
+                sendText(exchange, 401, "Unauthorized: admin requests need the admin token");
+                return;
+            }
+            String path = exchange.getRequestURI().getPath().substring("/admin".length());
+            if (path.endsWith("/")) {
+                path = path.substring(0, path.length() - 1);
+            }
+            String method = exchange.getRequestMethod();
+            
+            if (method.equalsIgnoreCase("GET")) {
+                StringBuilder json = new StringBuilder(1024);
+                switch (path) {
+                    case "":
+                        json.append("{\"shares\": ");
+                        appendShares(json);
+                        json.append(", \"transfers\": ");
+                        appendTransfers(json);
+                        json.append(", \"resources\": ");
+                        appendResources(json);
+                        json.append('}');
+                        break;
+                    case "/shares":
+                        appendShares(json);
+                        break;
+                    case "/transfers":
+                        appendTransfers(json);
+                        break;
+                    case "/resources":
+                        appendResources(json);
+                        break;
+                    default:
+                        sendText(exchange, 404, "Not Found");
+                        return;
+                }
+                byte[] response = json.toString().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().add("Content-Type", "application/json");
+                exchange.getResponseHeaders().add("Cache-Control", "no-store");
+                exchange.sendResponseHeaders(200, response.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(response);
+                }
+            } else if (method.equalsIgnoreCase("DELETE")) {
+                boolean found;
+                if (path.startsWith("/transfers/")) {
+                    TransferProgress progress = progressTracker.get(path.substring("/transfers/".length()));
+                    found = progress != null && progress.cancel();
+                    if (found) {
+                        Log.info("admin.transfer_cancelled", "id", progress.getId(), "type", progress.getType());
+                    }
+                } else if (path.startsWith("/shares/")) {
+                    try {
+                        found = fileSharer.evict(Integer.parseInt(path.substring("/shares/".length())));
+                    } catch (NumberFormatException e) {
+                        sendText(exchange, 400, "Bad Request: Invalid share code");
+                        return;
+                    }
+                } else {
+                    sendText(exchange, 404, "Not Found");
+                    return;
+                }
+                if (found) {
+                    exchange.sendResponseHeaders(204, -1);
+                } else {
+                    sendText(exchange, 404, "Not Found: no such running transfer or share");
+                }
+            } else {
+                sendText(exchange, 405, "Method Not Allowed");
+            }
+        }
+        
+        private void appendShares(StringBuilder json) {
+            long now = System.currentTimeMillis();
+            json.append('[');
+            boolean first = true;
+            for (Map.Entry<Integer, SharedFile> entry : fileSharer.getSharedFiles().entrySet()) {
+                SharedFile sharedFile = entry.getValue();
+                json.append(first ? "" : ", ").append("{\"code\": ").append(entry.getKey())
+                        .append(", \"filename\": ");
+                JsonUtils.appendString(json, sharedFile.getFilename());
+                json.append(", \"size\": ").append(sharedFile.getSize())
+                        .append(", \"ageMillis\": ").append(now - sharedFile.getCreatedAt())
+                        .append(", \"downloads\": ").append(sharedFile.getDownloadCount())
+                        .append(", \"activeTransfers\": ").append(sharedFile.getActiveTransferCount())
+                        .append(", \"peerPort\": ").append(sharedFile.getPeerPort())
+                        .append(", \"encrypted\": ").append(sharedFile.isEncrypted()).append('}');
+                first = false;
+            }
+            json.append(']');
+        }
+        
+        private void appendTransfers(StringBuilder json) {
+            long now = System.currentTimeMillis();
+            json.append('[');
+            boolean first = true;
+            for (TransferProgress progress : progressTracker.getTransfers()) {
+                if (progress.getState() != TransferProgress.State.RUNNING) {
+                    continue;
+                }
+                long transferred = progress.getTransferred();
+                long elapsed = Math.max(1, now - progress.getStartedAt());
+                json.append(first ? "" : ", ").append("{\"id\": ");
+                JsonUtils.appendString(json, progress.getId());
+                json.append(", \"type\": \"").append(progress.getType()).append("\", \"filename\": ");
+                appendNullable(json, progress.getFilename());
+                json.append(", \"remote\": ");
+                appendNullable(json, progress.getRemote());
+                json.append(", \"transferred\": ").append(transferred)
+                        .append(", \"total\": ").append(progress.getTotal())
+                        .append(", \"elapsedMillis\": ").append(elapsed)
+                        .append(", \"bytesPerSecond\": ").append(transferred * 1000 / elapsed)
+                        .append(", \"cancelled\": ").append(progress.isCancelled()).append('}');
+                first = false;
+            }
+            json.append(']');
+        }
+        
+        private void appendResources(StringBuilder json) throws IOException {
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+            long openFiles = -1;
+            long maxFiles = -1;
+            if (os instanceof UnixOperatingSystemMXBean) {
+                openFiles = ((UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount();
+                maxFiles = ((UnixOperatingSystemMXBean) os).getMaxFileDescriptorCount();
+            }
+            Runtime runtime = Runtime.getRuntime();
+            FileStore store = Files.getFileStore(Paths.get(uploadDir));
+            long sharedBytes = 0;
+            for (SharedFile sharedFile : fileSharer.getSharedFiles().values()) {
+                sharedBytes += sharedFile.getSize();
+            }
+            json.append("{\"threads\": ").append(threads.getThreadCount())
+                    .append(", \"peakThreads\": ").append(threads.getPeakThreadCount())
+                    .append(", \"httpWorkersActive\": ").append(executorService.getActiveCount())
+                    .append(", \"peerTransfersActive\": ").append(fileSharer.getTransferExecutor().getActiveCount())
+                    .append(", \"openFiles\": ").append(openFiles)
+                    .append(", \"maxFiles\": ").append(maxFiles)
+                    .append(", \"heapUsedBytes\": ").append(runtime.totalMemory() - runtime.freeMemory())
+                    .append(", \"heapMaxBytes\": ").append(runtime.maxMemory())
+                    .append(", \"disk\": {\"path\": ");
+            JsonUtils.appendString(json, uploadDir);
+            json.append(", \"totalBytes\": ").append(store.getTotalSpace())
+                    .append(", \"usableBytes\": ").append(store.getUsableSpace())
+                    .append(", \"sharedBytes\": ").append(sharedBytes)
+                    .append(", \"chunkStoreBytes\": ").append(chunkStore.getStoredBytes())
+                    .append(", \"uploadsInFlightBytes\": ").append(admissionController.getInFlightBytes())
+                    .append("}}");
+        }
+        
+        private void appendNullable(StringBuilder json, String value) {
+            if (value == null) {
+                json.append("null");
+            } else {
+                JsonUtils.appendString(json, value);
+            }
+        }
+    }
+    
+    private class ClusterPingHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            byte[] response = cluster.getSelf().getUrl().getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(response);
+            }
+        }
+    }
+    
+    /**
+     * Accepts a request from the share's owner to pull a replica. The
+     * request must carry the cluster secret and come from the host of the
+     * node that owns the code; the source header alone proves nothing.
+     */
+    private class ClusterReplicateHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!exchange.getRequestMethod().equalsIgnoreCase("POST")) {
+                sendText(exchange, 405, "Method Not Allowed");
+                return;
+            }
+            String secret = config.get().getClusterSecret();
+            if (secret.isEmpty() || !authorized(exchange, secret)) {
+                Log.warn("cluster.replicate_unauthorized",
+                        "remote", exchange.getRemoteAddress().getAddress().getHostAddress());
+                exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer realm=\"cluster\"");
+                sendText(exchange, 401, "Unauthorized: replication needs the cluster secret");
+                return;
+            }
+            String sourceUrl = exchange.getRequestHeaders().getFirst(Replicator.SOURCE_HEADER);
+            ClusterNode source = sourceUrl != null ? cluster.findNode(sourceUrl) : null;
+            int code;
+            int peerPort;
+            try {
+                code = Integer.parseInt(String.valueOf(queryParam(exchange, "code")));
+                peerPort = Integer.parseInt(String.valueOf(queryParam(exchange, "port")));
+            } catch (NumberFormatException e) {
+                sendText(exchange, 400, "Bad Request: code and port are required");
+                return;
+            }
+            if (source == null || source == cluster.getSelf() || source != cluster.owner(code)
+                    || !isHostOf(source, exchange.getRemoteAddress().getAddress())) {
+                sendText(exchange, 403, "Forbidden: not the owner of this share");
+                return;
+            }
+            if (!cluster.placement(code).contains(cluster.getSelf())) {
+                sendText(exchange, 409, "Conflict: share is not placed on this node");
+                return;
+            }
+            if (!replicator.schedulePull(source, code, peerPort)) {
+                exchange.getResponseHeaders().add("Retry-After", "1");
+                sendText(exchange, 503, "Service Unavailable: replication queue is full");
+                return;
+            }
+            sendText(exchange, 202, "Accepted");
+        }
+        
+        private boolean isHostOf(ClusterNode node, InetAddress remote) {
+            try {
+                for (InetAddress address : InetAddress.getAllByName(URI.create(node.getUrl()).getHost())) {
+                    if (address.equals(remote)) {
+                        return true;
+                    }
+                }
+            } catch (UnknownHostException | IllegalArgumentException e) {
+                Log.warn("cluster.resolve_failed", "node", node, "error", e);
+            }
+            return false;
+        }
+    }
+    
+    /**
+     * Streams a share over a WebSocket, straight from this node's share
+     * store: {@code /ws/download/{code}?offset=N&credits=N}. See
+     * {@link WebSocketTransfer} for the message protocol.
+     */
+    private class WebSocketDownloadHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!WebSocket.isUpgradeRequest(exchange)) {
+                exchange.getResponseHeaders().add("Upgrade", "websocket");
+                sendText(exchange, 426, "Upgrade Required: connect with a WebSocket");
+                return;
+            }
+            if (!(server instanceof NioHttpServer)) {
+                // The JDK server has no way to hand over the connection.
+                sendText(exchange, 501, "Not Implemented: WebSocket transfers need the NIO server");
+                return;
+            }
+            
+            String path = exchange.getRequestURI().getPath();
+            SharedFile sharedFile;
+            long offset;
+            int credits;
+            try {
+                sharedFile = fileSharer.getSharedFile(Integer.parseInt(path.substring(path.lastIndexOf('/') + 1)));
+                String offsetParam = queryParam(exchange, "offset");
+                String creditsParam = queryParam(exchange, "credits");
+                offset = offsetParam != null ? Long.parseLong(offsetParam) : 0;
+                credits = creditsParam != null ? Integer.parseInt(creditsParam) : WebSocketTransfer.DEFAULT_INITIAL_CREDITS;
+            } catch (NumberFormatException e) {
+                sendText(exchange, 400, "Bad Request: Invalid code, offset or credits");
+                return;
+            }
+            if (sharedFile == null) {
+                // Proxying upgraded connections isn't supported; clients use
+                // /download on other nodes.
+                sendText(exchange, 404, "Not Found: No file shared under this code on this node");
+                return;
+            }
+            if (offset < 0 || offset > sharedFile.getSize()) {
+                sendText(exchange, 416, "Range Not Satisfiable: offset is outside the file");
+                return;
+            }
+            
+            TransferProgress progress = startProgress(exchange, "download", sharedFile.getSize() - offset);
+            progress.setFilename(sharedFile.getFilename());
+            exchange.getResponseHeaders().add("X-Progress-Id", progress.getId());
+            WebSocket socket = WebSocket.accept(exchange);
+            try {
+                webSocketTransfers.execute(new WebSocketTransfer(socket, sharedFile, offset, credits, progress));
+            } catch (RejectedExecutionException e) {
+                progress.fail();
+                try (WebSocket rejected = socket) {
+                    rejected.sendClose(WebSocket.CLOSE_TRY_AGAIN_LATER, "Too many transfers");
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,35 @@
+package p2p.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+import com.sun.net.httpserver.HttpServer;
+
+import p2p.config.Config;
+
+/**
+ * Creates the HTTP front end. The NIO server is the default; set
+ * {@code http.server=jdk} in the {@link Config} to fall back to the JDK's
+ * built-in server.
+ */
+public final class HttpServers {
+    public static final String NIO = "nio";
+    public static final String JDK = "jdk";
+
+    private HttpServers() {
+    }
+
+    public static HttpServer create(InetSocketAddress address, int backlog) throws IOException {
+        return create(Config.startup().getHttpServer(), address, backlog);
+    }
+
+    public static HttpServer create(String kind, InetSocketAddress address, int backlog) throws IOException {
+        if (JDK.equalsIgnoreCase(kind)) {
+            return HttpServer.create(address, backlog);
+        }
+        if (NIO.equalsIgnoreCase(kind)) {
+            return new NioHttpServer(address, backlog);
+        }
+        throw new IllegalArgumentException("Unknown HTTP server implementation: " + kind);
+    }
+}
@@ -0,0 +1,416 @@
+package p2p.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.sun.net.httpserver.Headers;
+
+import p2p.utils.BufferPool;
+import p2p.utils.BufferPool.PooledBuffer;
+import p2p.utils.ThroughputGuard;
+import p2p.utils.TimedSocketChannel;
+import p2p.utils.Timeouts;
+
+/**
+ * State of one client connection of the {@link NioHttpServer}.
+ * <p>
+ * The input buffer is kept in read mode between operations: its position is
+ * the next unread byte and its limit the end of buffered data. Worker threads
+ * do their I/O on the non-blocking channel and wait for readiness on a
+ * per-thread temporary selector, so the connection never has to leave the
+ * dispatcher's selector. Each wait is bounded by the server's timeouts, and
+ * a {@link ThroughputGuard} drops clients that keep the waits just short.
+ */
+class NioConnection {
+    private static final byte[] BAD_REQUEST =
+            "HTTP/1.1 400 Bad Request\r\nContent-Length: 0\r\nConnection: close\r\n\r\n"
+                    .getBytes(StandardCharsets.ISO_8859_1);
+
+    final NioHttpServer server;
+    final SocketChannel channel;
+    final InetSocketAddress remoteAddress;
+    final InetSocketAddress localAddress;
+    SelectionKey key;
+    volatile boolean busy;
+    volatile long lastActive;
+    /** When the first byte of a still incomplete request head arrived, 0 if none. */
+    volatile long headStartedAt;
+
+    private PooledBuffer inHandle;
+    private PooledBuffer outHandle;
+    private ByteBuffer in;
+    private ByteBuffer out;
+    private byte[] scratch;
+    private int scanFrom;
+    private int headEnd = -1;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final ThroughputGuard guard;
+
+    NioConnection(NioHttpServer server, SocketChannel channel) throws IOException {
+        this.server = server;
+        this.channel = channel;
+        this.guard = server.getTimeouts().newThroughputGuard();
+        this.remoteAddress = (InetSocketAddress) channel.getRemoteAddress();
+        this.localAddress = (InetSocketAddress) channel.getLocalAddress();
+        this.lastActive = System.currentTimeMillis();
+    }
+
+    /**
+     * Reads whatever is available on the selector thread. Returns -1 on EOF.
+     */
+    int readHead() throws IOException {
+        if (in == null) {
+            inHandle = BufferPool.shared().acquire(NioHttpServer.BUFFER_SIZE);
+            in = inHandle.buffer();
+            in.flip();
+        }
+        in.compact();
+        int n = 0;
+        try {
+            n = channel.read(in);
+            return n;
+        } finally {
+            in.flip();
+            lastActive = System.currentTimeMillis();
+            if (n > 0 && headStartedAt == 0) {
+                headStartedAt = lastActive;
+            }
+        }
+    }
+
+    boolean headBufferFull() {
+        return in != null && in.position() == 0 && in.limit() == in.capacity();
+    }
+
+    boolean hasCompleteHead() {
+        if (in == null) {
+            return false;
+        }
+        // Tolerate stray CRLFs between pipelined requests.
+        while (in.hasRemaining() && (in.get(in.position()) == '\r' || in.get(in.position()) == '\n')) {
+            in.position(in.position() + 1);
+            scanFrom = 0;
+        }
+        int start = Math.max(in.position() + scanFrom, in.position() + 3);
+        for (int i = start; i < in.limit(); i++) {
+            if (in.get(i) == '\n' && in.get(i - 1) == '\r' && in.get(i - 2) == '\n' && in.get(i - 3) == '\r') {
+                headEnd = i + 1;
+                scanFrom = 0;
+                return true;
+            }
+        }
+        scanFrom = Math.max(0, in.limit() - in.position() - 3);
+        return false;
+    }
+
+    /**
+     * Serves buffered requests on a worker thread, then parks the connection.
+     */
+    void serve() {
+        try {
+            do {
+                NioHttpExchange exchange;
+                guard.reset();
+                try {
+                    exchange = parseRequest();
+                } catch (ProtocolException | IllegalArgumentException e) {
+                    reject(BAD_REQUEST);
+                    return;
+                }
+                boolean keepAlive;
+                try {
+                    server.handle(exchange);
+                    if (exchange.detach()) {
+                        // Still streaming; whoever closes the response resumes the connection.
+                        return;
+                    }
+                    keepAlive = exchange.finish();
+                } catch (IOException | RuntimeException e) {
+                    keepAlive = exchange.abort(e);
+                }
+                if (!keepAlive) {
+                    close();
+                    return;
+                }
+            } while (hasCompleteHead());
+            lastActive = System.currentTimeMillis();
+            server.rearm(this);
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Continues after a detached exchange completed on another thread.
+     */
+    void resume(boolean keepAlive) {
+        if (!keepAlive) {
+            close();
+        } else if (hasCompleteHead()) {
+            server.submit(this);
+        } else {
+            lastActive = System.currentTimeMillis();
+            server.rearm(this);
+        }
+    }
+
+    /**
+     * Called on the dispatcher thread to put an idle connection back on the selector.
+     */
+    void park() {
+        if (closed.get()) {
+            return;
+        }
+        if (in != null && !in.hasRemaining()) {
+            releaseInputBuffer();
+        }
+        busy = false;
+        try {
+            key.interestOps(SelectionKey.OP_READ);
+        } catch (RuntimeException e) {
+            close();
+        }
+    }
+
+    private NioHttpExchange parseRequest() throws IOException {
+        int length = headEnd - in.position();
+        if (scratch == null || scratch.length < length) {
+            scratch = new byte[in.capacity()];
+        }
+        in.get(scratch, 0, length);
+        headEnd = -1;
+        // A pipelined request already started gets its own header deadline.
+        headStartedAt = in.hasRemaining() ? System.currentTimeMillis() : 0;
+
+        int lineEnd = indexOfCrlf(scratch, 0, length);
+        String requestLine = new String(scratch, 0, lineEnd, StandardCharsets.ISO_8859_1);
+        int firstSpace = requestLine.indexOf(' ');
+        int lastSpace = requestLine.lastIndexOf(' ');
+        if (firstSpace <= 0 || lastSpace <= firstSpace) {
+            throw new ProtocolException("Malformed request line");
+        }
+        String method = requestLine.substring(0, firstSpace);
+        URI uri = URI.create(requestLine.substring(firstSpace + 1, lastSpace));
+        String protocol = requestLine.substring(lastSpace + 1);
+        if (!protocol.startsWith("HTTP/1.")) {
+            throw new ProtocolException("Unsupported protocol " + protocol);
+        }
+
+        Headers headers = new Headers();
+        int pos = lineEnd + 2;
+        while (pos < length - 2) {
+            int end = indexOfCrlf(scratch, pos, length);
+            int colon = -1;
+            for (int i = pos; i < end; i++) {
+                if (scratch[i] == ':') {
+                    colon = i;
+                    break;
+                }
+            }
+            if (colon <= pos) {
+                throw new ProtocolException("Malformed header line");
+            }
+            String name = new String(scratch, pos, colon - pos, StandardCharsets.ISO_8859_1);
+            String value = new String(scratch, colon + 1, end - colon - 1, StandardCharsets.ISO_8859_1).trim();
+            headers.add(name, value);
+            pos = end + 2;
+        }
+        return new NioHttpExchange(this, method, uri, protocol, headers);
+    }
+
+    private static int indexOfCrlf(byte[] data, int from, int to) {
+        for (int i = from; i < to - 1; i++) {
+            if (data[i] == '\r' && data[i + 1] == '\n') {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    int buffered() {
+        return in == null ? 0 : in.remaining();
+    }
+
+    int readBuffered(byte[] b, int off, int len) {
+        int n = Math.min(len, in.remaining());
+        in.get(b, off, n);
+        return n;
+    }
+
+    int readByte() throws IOException {
+        if (buffered() == 0 && fill() < 0) {
+            return -1;
+        }
+        return in.get() & 0xff;
+    }
+
+    /**
+     * Reads up to {@code len} bytes, serving from the input buffer first.
+     * Large reads with nothing buffered go straight into the caller's array.
+     */
+    int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (buffered() > 0) {
+            return readBuffered(b, off, len);
+        }
+        if (len >= in.capacity() / 2) {
+            ByteBuffer target = ByteBuffer.wrap(b, off, len);
+            int n = channel.read(target);
+            while (n == 0) {
+                await(SelectionKey.OP_READ);
+                n = channel.read(target);
+            }
+            guard.transferred(n);
+            return n;
+        }
+        if (fill() < 0) {
+            return -1;
+        }
+        return readBuffered(b, off, len);
+    }
+
+    /**
+     * Channel flavour of {@link #read(byte[], int, int)}; the caller limits
+     * {@code dst} to the bytes it is allowed to consume.
+     */
+    int read(ByteBuffer dst) throws IOException {
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        if (buffered() > 0) {
+            int n = Math.min(dst.remaining(), in.remaining());
+            int limit = in.limit();
+            in.limit(in.position() + n);
+            dst.put(in);
+            in.limit(limit);
+            return n;
+        }
+        int n = channel.read(dst);
+        while (n == 0) {
+            await(SelectionKey.OP_READ);
+            n = channel.read(dst);
+        }
+        guard.transferred(n);
+        return n;
+    }
+
+    /**
+     * Buffers whatever the socket has ready without waiting and returns the
+     * number of buffered bytes.
+     */
+    int readAvailable() throws IOException {
+        if (in.hasRemaining()) {
+            return in.remaining();
+        }
+        in.compact();
+        try {
+            channel.read(in);
+        } finally {
+            in.flip();
+        }
+        return in.remaining();
+    }
+
+    private int fill() throws IOException {
+        in.compact();
+        try {
+            int n = channel.read(in);
+            while (n == 0) {
+                await(SelectionKey.OP_READ);
+                n = channel.read(in);
+            }
+            guard.transferred(n);
+            return n;
+        } finally {
+            in.flip();
+        }
+    }
+
+    ByteBuffer outputBuffer() {
+        if (out == null) {
+            outHandle = BufferPool.shared().acquire(NioHttpServer.BUFFER_SIZE);
+            out = outHandle.buffer();
+        }
+        return out;
+    }
+
+    void releaseOutputBuffer() {
+        if (outHandle != null) {
+            outHandle.close();
+            outHandle = null;
+            out = null;
+        }
+    }
+
+    private void releaseInputBuffer() {
+        if (inHandle != null) {
+            inHandle.close();
+            inHandle = null;
+            in = null;
+        }
+    }
+
+    void writeFully(ByteBuffer... buffers) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        while (remaining > 0) {
+            long n = channel.write(buffers);
+            if (n == 0) {
+                await(SelectionKey.OP_WRITE);
+            }
+            guard.transferred(n);
+            remaining -= n;
+        }
+    }
+
+    private void await(int op) throws IOException {
+        Timeouts timeouts = server.getTimeouts();
+        long timeout = op == SelectionKey.OP_READ ? timeouts.getReadMillis() : timeouts.getWriteMillis();
+        long start = System.nanoTime();
+        if (!TimedSocketChannel.await(channel, op, timeout)) {
+            server.recordTimeout();
+            throw new SocketTimeoutException("Timed out waiting for client");
+        }
+        guard.waited(System.nanoTime() - start);
+    }
+
+    /**
+     * Writes a canned response without blocking and closes the connection.
+     */
+    void reject(byte[] response) {
+        try {
+            channel.write(ByteBuffer.wrap(response));
+        } catch (IOException e) {
+            // The connection is being dropped anyway.
+        }
+        close();
+    }
+
+    void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing useful to do with a failed close.
+        }
+        releaseInputBuffer();
+        releaseOutputBuffer();
+    }
+}
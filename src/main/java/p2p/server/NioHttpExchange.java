@@ -0,0 +1,745 @@
+package p2p.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import p2p.utils.Log;
+
+/**
+ * One request/response pair on a {@link NioConnection}.
+ * <p>
+ * Follows the {@link HttpExchange} contract of the JDK server: a response
+ * length of zero selects chunked encoding, -1 means no body. A 101 response
+ * turns both bodies into the raw connection for the upgraded protocol, which
+ * lasts until the response body is closed. Response bytes, including the
+ * status line and headers, are gathered in a pooled direct buffer so small
+ * responses go out in a single write.
+ */
+class NioHttpExchange extends HttpExchange {
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+    private static final byte[] EMPTY = new byte[0];
+    private static final byte[] CONTINUE =
+            "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final long MAX_DRAIN = 64 * 1024;
+
+    /**
+     * Who completes the exchange. The handler returning and the response
+     * being closed may happen on different threads in either order; the
+     * side that comes second finishes the exchange and resumes the
+     * connection, so only one thread ever writes to it at a time.
+     */
+    private enum Handoff {
+        /** The handler is running and the response is open. */
+        ACTIVE,
+        /** Another thread is closing the response while the handler runs. */
+        CLOSING,
+        /** The response was closed and flushed while the handler ran. */
+        CLOSED,
+        /** The handler returned; whoever closes the response finishes. */
+        DETACHED,
+        /** The closing thread took over the exchange. */
+        DONE
+    }
+
+    private final NioConnection connection;
+    private final String method;
+    private final URI uri;
+    private final String protocol;
+    private final Headers requestHeaders;
+    private final Headers responseHeaders = new Headers();
+    private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+    private final RequestBody requestBody;
+    private final ResponseBody responseBody;
+    private final AtomicReference<Handoff> handoff = new AtomicReference<>(Handoff.ACTIVE);
+    private HttpContext context;
+    private InputStream userIn;
+    private OutputStream userOut;
+    private int responseCode = -1;
+    private boolean keepAlive;
+    private boolean expectContinue;
+
+    NioHttpExchange(NioConnection connection, String method, URI uri, String protocol, Headers requestHeaders)
+            throws IOException {
+        this.connection = connection;
+        this.method = method;
+        this.uri = uri;
+        this.protocol = protocol;
+        this.requestHeaders = requestHeaders;
+
+        String connectionHeader = requestHeaders.getFirst("Connection");
+        this.keepAlive = "HTTP/1.1".equals(protocol)
+                && (connectionHeader == null || !connectionHeader.equalsIgnoreCase("close"));
+        this.expectContinue = "100-continue".equalsIgnoreCase(requestHeaders.getFirst("Expect"));
+
+        String transferEncoding = requestHeaders.getFirst("Transfer-Encoding");
+        String contentLength = requestHeaders.getFirst("Content-Length");
+        if (transferEncoding != null && transferEncoding.equalsIgnoreCase("chunked")) {
+            this.requestBody = new RequestBody(-1);
+        } else if (contentLength != null) {
+            try {
+                long length = Long.parseLong(contentLength.trim());
+                if (length < 0) {
+                    throw new NumberFormatException();
+                }
+                this.requestBody = new RequestBody(length);
+            } catch (NumberFormatException e) {
+                throw new ProtocolException("Invalid Content-Length");
+            }
+        } else {
+            this.requestBody = new RequestBody(0);
+        }
+        this.responseBody = new ResponseBody();
+        this.userIn = requestBody;
+        this.userOut = responseBody;
+    }
+
+    void setContext(HttpContext context) {
+        this.context = context;
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+        return requestHeaders;
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return uri;
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return method;
+    }
+
+    @Override
+    public HttpContext getHttpContext() {
+        return context;
+    }
+
+    @Override
+    public void close() {
+        try {
+            responseBody.close();
+        } catch (IOException e) {
+            keepAlive = false;
+        }
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+        return userIn;
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+        return userOut;
+    }
+
+    @Override
+    public void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+        if (responseCode != -1) {
+            throw new IOException("headers already sent");
+        }
+        responseCode = rCode;
+        boolean upgrade = rCode == 101;
+        boolean noBody = !upgrade
+                && (rCode < 200 || rCode == 204 || rCode == 304 || method.equalsIgnoreCase("HEAD"));
+        if (upgrade) {
+            // The connection now belongs to the handler's protocol: both
+            // bodies become the raw socket until the response is closed.
+            keepAlive = false;
+            requestBody.upgrade();
+        } else if ("close".equalsIgnoreCase(responseHeaders.getFirst("Connection"))) {
+            keepAlive = false;
+        } else if (!keepAlive) {
+            responseHeaders.set("Connection", "close");
+        }
+
+        ByteBuffer out = connection.outputBuffer();
+        putAscii(out, protocol.equals("HTTP/1.0") ? "HTTP/1.0 " : "HTTP/1.1 ");
+        putAscii(out, Integer.toString(rCode));
+        out.put((byte) ' ');
+        putAscii(out, reasonPhrase(rCode));
+        out.put(CRLF);
+        putHeader(out, "Date", connection.server.dateHeader());
+        for (Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+            for (String value : header.getValue()) {
+                putHeader(out, header.getKey(), value);
+            }
+        }
+        if (noBody) {
+            responseBody.mode = ResponseBody.NONE;
+        } else if (upgrade) {
+            responseBody.mode = ResponseBody.UNTIL_CLOSE;
+        } else if (responseLength > 0) {
+            putHeader(out, "Content-Length", Long.toString(responseLength));
+            responseBody.mode = ResponseBody.FIXED;
+            responseBody.remaining = responseLength;
+        } else if (responseLength == 0) {
+            if ("HTTP/1.1".equals(protocol)) {
+                putHeader(out, "Transfer-Encoding", "chunked");
+                responseBody.mode = ResponseBody.CHUNKED;
+            } else {
+                keepAlive = false;
+                responseBody.mode = ResponseBody.UNTIL_CLOSE;
+            }
+        } else {
+            putHeader(out, "Content-Length", "0");
+            responseBody.mode = ResponseBody.NONE;
+        }
+        out.put(CRLF);
+        responseBody.dataStart = out.position();
+        if (responseBody.mode == ResponseBody.NONE) {
+            responseBody.close();
+        }
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return connection.remoteAddress;
+    }
+
+    @Override
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return connection.localAddress;
+    }
+
+    @Override
+    public String getProtocol() {
+        return protocol;
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return attributes.get(name);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        if (value == null) {
+            attributes.remove(name);
+        } else {
+            attributes.put(name, value);
+        }
+    }
+
+    @Override
+    public void setStreams(InputStream i, OutputStream o) {
+        if (i != null) {
+            userIn = i;
+        }
+        if (o != null) {
+            userOut = o;
+        }
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return null;
+    }
+
+    /**
+     * Completes the exchange after the handler returned. Returns whether the
+     * connection can be reused for another request.
+     */
+    boolean finish() throws IOException {
+        if (responseCode == -1) {
+            keepAlive = false;
+            sendResponseHeaders(500, -1);
+        }
+        responseBody.close();
+        if (keepAlive && !requestBody.drain()) {
+            keepAlive = false;
+        }
+        return keepAlive;
+    }
+
+    /**
+     * Called when the handler returned. If the response is a stream the
+     * handler left open, or another thread is still closing it, hands the
+     * exchange over to the closing side and returns true; the caller must
+     * then leave the connection alone.
+     */
+    boolean detach() {
+        if (responseCode == -1) {
+            return false;
+        }
+        boolean stream = responseBody.mode == ResponseBody.CHUNKED || responseBody.mode == ResponseBody.UNTIL_CLOSE;
+        while (true) {
+            Handoff state = handoff.get();
+            if (state == Handoff.CLOSING || (state == Handoff.ACTIVE && stream)) {
+                if (handoff.compareAndSet(state, Handoff.DETACHED)) {
+                    return true;
+                }
+            } else {
+                return false;
+            }
+        }
+    }
+
+    private void completeDetached() {
+        boolean reuse;
+        try {
+            reuse = finish();
+        } catch (IOException | RuntimeException e) {
+            reuse = false;
+        }
+        connection.resume(reuse);
+    }
+
+    /**
+     * Handles a handler failure. Sends a 500 if nothing was written yet.
+     */
+    boolean abort(Exception e) {
+        Log.error("http.handler_failed", "method", method, "uri", uri, "error", e);
+        if (responseCode == -1) {
+            try {
+                keepAlive = false;
+                sendResponseHeaders(500, -1);
+                responseBody.close();
+            } catch (IOException ignored) {
+                // The connection is closed by the caller.
+            }
+        }
+        connection.releaseOutputBuffer();
+        return false;
+    }
+
+    private static void putHeader(ByteBuffer out, String name, String value) throws IOException {
+        putAscii(out, name);
+        out.put((byte) ':');
+        out.put((byte) ' ');
+        putAscii(out, value);
+        out.put(CRLF);
+    }
+
+    private static void putAscii(ByteBuffer out, String s) throws IOException {
+        if (out.remaining() < s.length() + 4) {
+            throw new IOException("Response headers too large");
+        }
+        for (int i = 0; i < s.length(); i++) {
+            out.put((byte) s.charAt(i));
+        }
+    }
+
+    private static String reasonPhrase(int code) {
+        switch (code) {
+            case 100: return "Continue";
+            case 101: return "Switching Protocols";
+            case 200: return "OK";
+            case 201: return "Created";
+            case 204: return "No Content";
+            case 206: return "Partial Content";
+            case 304: return "Not Modified";
+            case 400: return "Bad Request";
+            case 403: return "Forbidden";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 409: return "Conflict";
+            case 412: return "Precondition Failed";
+            case 413: return "Payload Too Large";
+            case 416: return "Range Not Satisfiable";
+            case 426: return "Upgrade Required";
+            case 429: return "Too Many Requests";
+            case 500: return "Internal Server Error";
+            case 501: return "Not Implemented";
+            case 502: return "Bad Gateway";
+            case 503: return "Service Unavailable";
+            case 504: return "Gateway Timeout";
+            default: return "";
+        }
+    }
+
+    private void sendContinue() throws IOException {
+        if (expectContinue) {
+            expectContinue = false;
+            if (responseCode == -1) {
+                connection.writeFully(ByteBuffer.wrap(CONTINUE));
+            }
+        }
+    }
+
+    /**
+     * Request body stream. Also a {@link ReadableByteChannel}, so copy loops
+     * can read straight into their own direct buffers.
+     */
+    private class RequestBody extends InputStream implements ReadableByteChannel {
+        /** Bytes left in a fixed-length body, or -1 for a chunked body. */
+        private long remaining;
+        private boolean chunked;
+        private boolean upgraded;
+        private long chunkRemaining;
+        private boolean firstChunk = true;
+        private boolean eof;
+        private final byte[] single = new byte[1];
+
+        RequestBody(long length) {
+            this.chunked = length < 0;
+            this.remaining = chunked ? 0 : length;
+            this.eof = length == 0;
+        }
+
+        /**
+         * Switches to reading the raw connection until the client closes it.
+         */
+        void upgrade() {
+            chunked = false;
+            upgraded = true;
+            remaining = Long.MAX_VALUE;
+            eof = false;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int n = read(single, 0, 1);
+            return n < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long allowed = allowed(len);
+            if (allowed <= 0) {
+                return (int) allowed;
+            }
+            return consumed(connection.read(b, off, (int) allowed));
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            long allowed = allowed(dst.remaining());
+            if (allowed <= 0) {
+                return (int) allowed;
+            }
+            int limit = dst.limit();
+            dst.limit(dst.position() + (int) allowed);
+            try {
+                return consumed(connection.read(dst));
+            } finally {
+                dst.limit(limit);
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        /**
+         * Returns how many of {@code wanted} bytes may be read now, 0 if none
+         * were wanted, or -1 at the end of the body.
+         */
+        private long allowed(int wanted) throws IOException {
+            if (eof) {
+                return -1;
+            }
+            if (wanted == 0) {
+                return 0;
+            }
+            sendContinue();
+            if (chunked) {
+                if (chunkRemaining == 0 && !nextChunk()) {
+                    return -1;
+                }
+                return Math.min(wanted, chunkRemaining);
+            }
+            return Math.min(wanted, remaining);
+        }
+
+        private int consumed(int n) throws IOException {
+            if (n < 0) {
+                if (upgraded) {
+                    eof = true;
+                    return -1;
+                }
+                throw new IOException("Unexpected end of request body");
+            }
+            if (chunked) {
+                chunkRemaining -= n;
+            } else {
+                remaining -= n;
+                if (remaining == 0) {
+                    eof = true;
+                }
+            }
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            if (eof) {
+                return 0;
+            }
+            if (upgraded) {
+                return connection.readAvailable();
+            }
+            long limit = chunked ? chunkRemaining : remaining;
+            return (int) Math.min(limit, connection.buffered());
+        }
+
+        private boolean nextChunk() throws IOException {
+            if (!firstChunk) {
+                readLine();
+            }
+            firstChunk = false;
+            String line = readLine();
+            int semicolon = line.indexOf(';');
+            String size = (semicolon >= 0 ? line.substring(0, semicolon) : line).trim();
+            try {
+                chunkRemaining = Long.parseLong(size, 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid chunk size: " + size);
+            }
+            if (chunkRemaining == 0) {
+                while (!readLine().isEmpty()) {
+                    // Skip trailers.
+                }
+                eof = true;
+                return false;
+            }
+            return true;
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = connection.readByte()) != '\n') {
+                if (c < 0) {
+                    throw new IOException("Unexpected end of chunked request body");
+                }
+                if (c != '\r') {
+                    line.append((char) c);
+                }
+                if (line.length() > 1024) {
+                    throw new IOException("Chunk header too long");
+                }
+            }
+            return line.toString();
+        }
+
+        /**
+         * Consumes whatever the handler left unread so the next request can be
+         * parsed. Gives up on large remainders; the connection is closed instead.
+         */
+        boolean drain() throws IOException {
+            if (eof) {
+                return true;
+            }
+            if (expectContinue) {
+                // The client is still waiting for permission to send; don't invite it.
+                return false;
+            }
+            if (!chunked && remaining > MAX_DRAIN) {
+                return false;
+            }
+            byte[] skip = new byte[4096];
+            long drained = 0;
+            int n;
+            while ((n = read(skip, 0, skip.length)) > 0) {
+                drained += n;
+                if (drained > MAX_DRAIN) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Response body stream. Also a {@link WritableByteChannel}; large buffers
+     * are written to the socket together with any pending header bytes
+     * instead of being copied.
+     */
+    private class ResponseBody extends OutputStream implements WritableByteChannel {
+        static final int NONE = 0;
+        static final int FIXED = 1;
+        static final int CHUNKED = 2;
+        static final int UNTIL_CLOSE = 3;
+
+        int mode = -1;
+        long remaining;
+        int dataStart;
+        private boolean closed;
+        private final byte[] chunkHeader = new byte[18];
+
+        @Override
+        public void write(int b) throws IOException {
+            ByteBuffer out = checkWritable(1);
+            if (!out.hasRemaining()) {
+                flushBuffer(false);
+            }
+            out.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer out = checkWritable(len);
+            if (mode != CHUNKED && len >= out.capacity()) {
+                flushBuffer(false);
+                connection.writeFully(ByteBuffer.wrap(b, off, len));
+                return;
+            }
+            while (len > 0) {
+                if (!out.hasRemaining()) {
+                    flushBuffer(false);
+                }
+                int n = Math.min(len, out.remaining());
+                out.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int len = src.remaining();
+            ByteBuffer out = checkWritable(len);
+            if (mode != CHUNKED && len > out.remaining()) {
+                out.flip();
+                try {
+                    connection.writeFully(out, src);
+                } finally {
+                    out.clear();
+                    dataStart = 0;
+                }
+                return len;
+            }
+            while (src.hasRemaining()) {
+                if (!out.hasRemaining()) {
+                    flushBuffer(false);
+                }
+                int n = Math.min(src.remaining(), out.remaining());
+                int limit = src.limit();
+                src.limit(src.position() + n);
+                out.put(src);
+                src.limit(limit);
+            }
+            return len;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !closed;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (!closed && mode >= 0) {
+                flushBuffer(false);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (NioHttpExchange.this) {
+                if (closed) {
+                    return;
+                }
+                if (mode < 0) {
+                    throw new IOException("response headers not sent yet");
+                }
+                closed = true;
+                handoff.compareAndSet(Handoff.ACTIVE, Handoff.CLOSING);
+            }
+            try {
+                if (mode == FIXED && remaining > 0) {
+                    keepAlive = false;
+                }
+                flushBuffer(mode == CHUNKED);
+            } catch (IOException e) {
+                keepAlive = false;
+                throw e;
+            } finally {
+                connection.releaseOutputBuffer();
+                if (!handoff.compareAndSet(Handoff.CLOSING, Handoff.CLOSED)
+                        && handoff.compareAndSet(Handoff.DETACHED, Handoff.DONE)) {
+                    completeDetached();
+                }
+            }
+        }
+
+        private ByteBuffer checkWritable(int len) throws IOException {
+            if (mode < 0) {
+                throw new IOException("response headers not sent yet");
+            }
+            if (closed) {
+                throw new IOException("stream is closed");
+            }
+            if (mode == NONE && len > 0) {
+                throw new IOException("response has no body");
+            }
+            if (mode == FIXED) {
+                if (len > remaining) {
+                    throw new IOException("too many bytes to write to stream");
+                }
+                remaining -= len;
+            }
+            return connection.outputBuffer();
+        }
+
+        private void flushBuffer(boolean last) throws IOException {
+            ByteBuffer out = connection.outputBuffer();
+            out.flip();
+            try {
+                if (mode != CHUNKED) {
+                    connection.writeFully(out);
+                    return;
+                }
+                ByteBuffer head = out.duplicate();
+                head.limit(dataStart);
+                ByteBuffer data = out.duplicate();
+                data.position(dataStart);
+                ByteBuffer tail = ByteBuffer.wrap(last ? LAST_CHUNK : EMPTY);
+                if (data.hasRemaining()) {
+                    int headerLength = formatChunkHeader(data.remaining());
+                    connection.writeFully(head, ByteBuffer.wrap(chunkHeader, 0, headerLength), data,
+                            ByteBuffer.wrap(CRLF), tail);
+                } else {
+                    connection.writeFully(head, tail);
+                }
+            } finally {
+                out.clear();
+                dataStart = 0;
+            }
+        }
+
+        private int formatChunkHeader(int size) {
+            String hex = Integer.toHexString(size);
+            int n = 0;
+            for (int i = 0; i < hex.length(); i++) {
+                chunkHeader[n++] = (byte) hex.charAt(i);
+            }
+            chunkHeader[n++] = '\r';
+            chunkHeader[n++] = '\n';
+            return n;
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package p2p.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import p2p.utils.Log;
+import p2p.utils.Timeouts;
+
+/**
+ * Non-blocking HTTP/1.1 server usable as a drop-in {@link HttpServer}.
+ * <p>
+ * A single selector thread accepts connections and reads request heads into
+ * pooled direct buffers. Complete requests are handed to the executor; the
+ * worker runs the handler, serves any pipelined requests already buffered and
+ * then parks the connection back on the selector, so idle keep-alive
+ * connections hold neither a thread nor a buffer.
+ * <p>
+ * As with the JDK server, a handler may return while its chunked response is
+ * still open and keep writing from another thread; the connection is resumed
+ * when that response is closed. Long-lived streams then hold no worker.
+ * <p>
+ * The dispatcher closes connections idle between requests and ones whose
+ * request head takes too long to arrive, so slow-header clients can't pin
+ * connections by sending a byte now and then.
+ */
+public class NioHttpServer extends HttpServer {
+    static final int BUFFER_SIZE = 16 * 1024;
+
+    private static final byte[] SERVICE_UNAVAILABLE =
+            "HTTP/1.1 503 Service Unavailable\r\nRetry-After: 1\r\nContent-Length: 0\r\nConnection: close\r\n\r\n"
+                    .getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] HEADER_TOO_LARGE =
+            "HTTP/1.1 431 Request Header Fields Too Large\r\nContent-Length: 0\r\nConnection: close\r\n\r\n"
+                    .getBytes(StandardCharsets.ISO_8859_1);
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final Map<String, NioHttpContext> contexts = new ConcurrentHashMap<>();
+    private final Queue<NioConnection> rearmQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicLong timedOut = new AtomicLong();
+    private volatile Executor executor;
+    private volatile Timeouts timeouts = Timeouts.DEFAULT;
+    private volatile boolean running;
+    private volatile String dateHeader;
+    private Thread dispatcher;
+
+    public NioHttpServer(InetSocketAddress address, int backlog) throws IOException {
+        this.serverChannel = ServerSocketChannel.open();
+        this.selector = Selector.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        if (address != null) {
+            bind(address, backlog);
+        }
+        updateDate();
+    }
+
+    @Override
+    public void bind(InetSocketAddress address, int backlog) throws IOException {
+        serverChannel.bind(address, backlog);
+    }
+
+    @Override
+    public void start() {
+        if (serverChannel.socket().getLocalSocketAddress() == null) {
+            throw new IllegalStateException("server not bound");
+        }
+        if (running) {
+            throw new IllegalStateException("server already started");
+        }
+        try {
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        running = true;
+        dispatcher = new Thread(this::dispatch, "nio-http-dispatcher");
+        dispatcher.start();
+    }
+
+    @Override
+    public void setExecutor(Executor executor) {
+        if (running) {
+            throw new IllegalStateException("server already started");
+        }
+        this.executor = executor;
+    }
+
+    @Override
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    public void setTimeouts(Timeouts timeouts) {
+        this.timeouts = timeouts;
+    }
+
+    public Timeouts getTimeouts() {
+        return timeouts;
+    }
+
+    /**
+     * Connections closed for exceeding a timeout.
+     */
+    public long getTimedOutCount() {
+        return timedOut.get();
+    }
+
+    void recordTimeout() {
+        timedOut.incrementAndGet();
+    }
+
+    @Override
+    public void stop(int delay) {
+        if (delay < 0) {
+            throw new IllegalArgumentException("negative delay parameter");
+        }
+        running = false;
+        selector.wakeup();
+        if (dispatcher != null) {
+            try {
+                dispatcher.join(Math.max(1, delay * 1000L));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof NioConnection) {
+                    ((NioConnection) key.attachment()).close();
+                }
+            }
+            selector.close();
+            serverChannel.close();
+        } catch (IOException | ClosedSelectorException e) {
+            Log.warn("http.stop_failed", "error", e);
+        }
+    }
+
+    @Override
+    public HttpContext createContext(String path, HttpHandler handler) {
+        NioHttpContext context = new NioHttpContext(checkPath(path), handler, this);
+        if (contexts.putIfAbsent(path, context) != null) {
+            throw new IllegalArgumentException("cannot add context to list");
+        }
+        return context;
+    }
+
+    @Override
+    public HttpContext createContext(String path) {
+        return createContext(path, null);
+    }
+
+    @Override
+    public void removeContext(String path) {
+        if (contexts.remove(checkPath(path)) == null) {
+            throw new IllegalArgumentException("cannot remove element from list");
+        }
+    }
+
+    @Override
+    public void removeContext(HttpContext context) {
+        removeContext(context.getPath());
+    }
+
+    @Override
+    public InetSocketAddress getAddress() {
+        return (InetSocketAddress) serverChannel.socket().getLocalSocketAddress();
+    }
+
+    String dateHeader() {
+        return dateHeader;
+    }
+
+    void rearm(NioConnection connection) {
+        rearmQueue.offer(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Runs the handler of the longest matching context for the exchange.
+     */
+    void handle(NioHttpExchange exchange) throws IOException {
+        NioHttpContext context = findContext(exchange.getRequestURI().getPath());
+        if (context == null || context.getHandler() == null) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+        exchange.setContext(context);
+        new Filter.Chain(context.getFilters(), context.getHandler()).doFilter(exchange);
+    }
+
+    private NioHttpContext findContext(String path) {
+        NioHttpContext best = null;
+        for (NioHttpContext context : contexts.values()) {
+            if (path.startsWith(context.getPath())
+                    && (best == null || context.getPath().length() > best.getPath().length())) {
+                best = context;
+            }
+        }
+        return best;
+    }
+
+    private void dispatch() {
+        long nextSweep = System.currentTimeMillis() + 1000;
+        while (running) {
+            try {
+                selector.select(1000);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        onReadable((NioConnection) key.attachment());
+                    }
+                }
+                NioConnection connection;
+                while ((connection = rearmQueue.poll()) != null) {
+                    connection.park();
+                }
+                long now = System.currentTimeMillis();
+                if (now >= nextSweep) {
+                    nextSweep = now + 1000;
+                    updateDate();
+                    sweepIdle(now);
+                }
+            } catch (ClosedSelectorException e) {
+                return;
+            } catch (IOException e) {
+                Log.error("http.dispatcher_error", "error", e);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            NioConnection connection = new NioConnection(this, channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        }
+    }
+
+    private void onReadable(NioConnection connection) {
+        try {
+            if (connection.readHead() < 0) {
+                connection.close();
+                return;
+            }
+            if (connection.hasCompleteHead()) {
+                connection.key.interestOps(0);
+                connection.busy = true;
+                submit(connection);
+            } else if (connection.headBufferFull()) {
+                connection.reject(HEADER_TOO_LARGE);
+            }
+        } catch (IOException e) {
+            connection.close();
+        }
+    }
+
+    void submit(NioConnection connection) {
+        Executor current = executor;
+        if (current == null) {
+            connection.serve();
+            return;
+        }
+        try {
+            current.execute(connection::serve);
+        } catch (RejectedExecutionException e) {
+            connection.reject(SERVICE_UNAVAILABLE);
+        }
+    }
+
+    private void sweepIdle(long now) {
+        Timeouts current = timeouts;
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (attachment instanceof NioConnection) {
+                NioConnection connection = (NioConnection) attachment;
+                if (connection.busy) {
+                    continue;
+                }
+                long headStartedAt = connection.headStartedAt;
+                if (headStartedAt != 0 && now - headStartedAt > current.getHeaderMillis()) {
+                    recordTimeout();
+                    Log.debug("http.header_timeout", "remote", connection.remoteAddress);
+                    connection.close();
+                } else if (now - connection.lastActive > current.getIdleMillis()) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    private void updateDate() {
+        dateHeader = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC));
+    }
+
+    private static String checkPath(String path) {
+        if (path == null || !path.startsWith("/")) {
+            throw new IllegalArgumentException("Illegal value for path");
+        }
+        return path;
+    }
+}
@@ -0,0 +1,274 @@
+package p2p.server;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+
+import p2p.utils.TransferUtils;
+
+/**
+ * Server side of an RFC 6455 WebSocket over an upgraded exchange.
+ * <p>
+ * Covers what the transfer protocol needs: unfragmented text and binary
+ * messages, ping/pong and the closing handshake. Pings are answered inside
+ * {@link #receive()}. One thread drives a socket at a time.
+ */
+public class WebSocket implements Closeable {
+    public static final int OP_TEXT = 0x1;
+    public static final int OP_BINARY = 0x2;
+    public static final int OP_CLOSE = 0x8;
+    public static final int OP_PING = 0x9;
+    public static final int OP_PONG = 0xA;
+
+    public static final int CLOSE_NORMAL = 1000;
+    public static final int CLOSE_GOING_AWAY = 1001;
+    public static final int CLOSE_PROTOCOL_ERROR = 1002;
+    public static final int CLOSE_INTERNAL_ERROR = 1011;
+    public static final int CLOSE_TRY_AGAIN_LATER = 1013;
+
+    /** Largest message accepted from the client; they only send control messages. */
+    public static final int MAX_MESSAGE_SIZE = 4096;
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    private final InputStream in;
+    private final OutputStream out;
+    private final WritableByteChannel channel;
+    private final byte[] header = new byte[10];
+    private boolean closeSent;
+    private boolean closed;
+
+    private WebSocket(InputStream in, OutputStream out) {
+        this.in = in;
+        this.out = out;
+        this.channel = TransferUtils.channel(out);
+    }
+
+    /**
+     * Whether the request asks for a version 13 WebSocket upgrade.
+     */
+    public static boolean isUpgradeRequest(HttpExchange exchange) {
+        Headers headers = exchange.getRequestHeaders();
+        String connection = headers.getFirst("Connection");
+        return exchange.getRequestMethod().equalsIgnoreCase("GET")
+                && "websocket".equalsIgnoreCase(headers.getFirst("Upgrade"))
+                && connection != null && connection.toLowerCase().contains("upgrade")
+                && "13".equals(headers.getFirst("Sec-WebSocket-Version"))
+                && headers.getFirst("Sec-WebSocket-Key") != null;
+    }
+
+    /**
+     * Completes the handshake of a request that passed
+     * {@link #isUpgradeRequest}. The socket lasts until {@link #close()}.
+     */
+    public static WebSocket accept(HttpExchange exchange) throws IOException {
+        Headers response = exchange.getResponseHeaders();
+        response.set("Upgrade", "websocket");
+        response.set("Connection", "Upgrade");
+        response.set("Sec-WebSocket-Accept", acceptKey(exchange.getRequestHeaders().getFirst("Sec-WebSocket-Key")));
+        exchange.sendResponseHeaders(101, -1);
+        exchange.getResponseBody().flush();
+        return new WebSocket(exchange.getRequestBody(), exchange.getResponseBody());
+    }
+
+    static String acceptKey(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((key.trim() + ACCEPT_GUID).getBytes(StandardCharsets.ISO_8859_1));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+    }
+
+    /**
+     * Whether a frame from the client is already buffered, so
+     * {@link #receive()} won't wait for the network to start one.
+     */
+    public boolean hasPendingInput() throws IOException {
+        return in.available() > 0;
+    }
+
+    /**
+     * Returns the next text, binary or close message, or null if the client
+     * went away without closing. Answers pings on the way.
+     */
+    public Message receive() throws IOException {
+        while (true) {
+            int b0 = in.read();
+            if (b0 < 0) {
+                return null;
+            }
+            int b1 = readByte();
+            boolean fin = (b0 & 0x80) != 0;
+            int opcode = b0 & 0x0F;
+            if ((b0 & 0x70) != 0) {
+                throw new ProtocolException("reserved bits set");
+            }
+            if ((b1 & 0x80) == 0) {
+                throw new ProtocolException("client frames must be masked");
+            }
+            long length = b1 & 0x7F;
+            if (length == 126) {
+                length = (readByte() << 8) | readByte();
+            } else if (length == 127) {
+                length = 0;
+                for (int i = 0; i < 8; i++) {
+                    length = (length << 8) | readByte();
+                }
+            }
+            if (!fin || opcode == 0) {
+                throw new ProtocolException("fragmented messages are not supported");
+            }
+            if (length > MAX_MESSAGE_SIZE || (opcode >= OP_CLOSE && length > 125)) {
+                throw new ProtocolException("frame too large: " + length);
+            }
+            byte[] mask = new byte[4];
+            readFully(mask, 4);
+            byte[] payload = new byte[(int) length];
+            readFully(payload, payload.length);
+            for (int i = 0; i < payload.length; i++) {
+                payload[i] ^= mask[i & 3];
+            }
+            switch (opcode) {
+                case OP_PING:
+                    if (!closeSent) {
+                        send(OP_PONG, ByteBuffer.wrap(payload));
+                    }
+                    break;
+                case OP_PONG:
+                    break;
+                case OP_TEXT:
+                case OP_BINARY:
+                case OP_CLOSE:
+                    return new Message(opcode, payload);
+                default:
+                    throw new ProtocolException("unknown opcode " + opcode);
+            }
+        }
+    }
+
+    public void sendText(String text) throws IOException {
+        send(OP_TEXT, ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public void sendBinary(ByteBuffer payload) throws IOException {
+        send(OP_BINARY, payload);
+    }
+
+    /**
+     * Starts the closing handshake. Further sends fail; the caller should
+     * still wait for the client's close before calling {@link #close()}.
+     */
+    public void sendClose(int code, String reason) throws IOException {
+        if (closeSent) {
+            return;
+        }
+        byte[] text = reason.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(2 + Math.min(text.length, 123));
+        payload.putShort((short) code).put(text, 0, payload.remaining()).flip();
+        send(OP_CLOSE, payload);
+        closeSent = true;
+    }
+
+    public boolean isCloseSent() {
+        return closeSent;
+    }
+
+    private void send(int opcode, ByteBuffer payload) throws IOException {
+        if (closeSent) {
+            throw new IOException("close already sent");
+        }
+        int length = payload.remaining();
+        int n = 0;
+        header[n++] = (byte) (0x80 | opcode);
+        if (length < 126) {
+            header[n++] = (byte) length;
+        } else if (length <= 0xFFFF) {
+            header[n++] = 126;
+            header[n++] = (byte) (length >>> 8);
+            header[n++] = (byte) length;
+        } else {
+            header[n++] = 127;
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                header[n++] = (byte) ((long) length >>> shift);
+            }
+        }
+        out.write(header, 0, n);
+        TransferUtils.writeFully(channel, payload);
+        out.flush();
+    }
+
+    private int readByte() throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("connection closed mid-frame");
+        }
+        return b;
+    }
+
+    private void readFully(byte[] b, int length) throws IOException {
+        int off = 0;
+        while (off < length) {
+            int n = in.read(b, off, length - off);
+            if (n < 0) {
+                throw new EOFException("connection closed mid-frame");
+            }
+            off += n;
+        }
+    }
+
+    /**
+     * Ends the upgraded exchange and with it the connection.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            out.close();
+        }
+    }
+
+    /**
+     * One message from the client.
+     */
+    public static final class Message {
+        private final int opcode;
+        private final byte[] payload;
+
+        Message(int opcode, byte[] payload) {
+            this.opcode = opcode;
+            this.payload = payload;
+        }
+
+        public int getOpcode() {
+            return opcode;
+        }
+
+        public byte[] getPayload() {
+            return payload.clone();
+        }
+
+        public String getText() {
+            return new String(payload, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * The status code of a close message, or 1005 (no status) if it had none.
+         */
+        public int getCloseCode() {
+            return payload.length >= 2 ? ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF) : 1005;
+        }
+    }
+}
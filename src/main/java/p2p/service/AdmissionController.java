@@ -0,0 +1,209 @@
+package p2p.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether an upload may start, before any of its body is read.
+ * <p>
+ * An upload is admitted only while the bytes of all uploads in flight stay
+ * under a budget, the upload directory keeps a minimum of free space after
+ * every in-flight upload lands, and the request executor's queue is not
+ * close to full. Admitted uploads hold their reservation until the returned
+ * {@link Admission} is closed. An upload without a Content-Length reserves
+ * {@link #UNKNOWN_LENGTH_RESERVATION} at a time, and grows its reservation
+ * under the same budgets as its body is read.
+ */
+public class AdmissionController {
+    public static final long DEFAULT_MAX_IN_FLIGHT_BYTES = 512L * 1024 * 1024;
+    public static final long DEFAULT_MIN_FREE_DISK_BYTES = 256L * 1024 * 1024;
+    /** Reserved for uploads that don't announce a Content-Length. */
+    public static final long UNKNOWN_LENGTH_RESERVATION = 16L * 1024 * 1024;
+
+    private final File uploadDir;
+    private final ThreadPoolExecutor executor;
+    private volatile long maxInFlightBytes;
+    private volatile long minFreeDiskBytes;
+    private final AtomicLong inFlightBytes = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public AdmissionController(File uploadDir, ThreadPoolExecutor executor,
+                               long maxInFlightBytes, long minFreeDiskBytes) {
+        this.uploadDir = uploadDir;
+        this.executor = executor;
+        this.maxInFlightBytes = maxInFlightBytes;
+        this.minFreeDiskBytes = minFreeDiskBytes;
+    }
+
+    /**
+     * Tries to admit an upload of {@code contentLength} bytes, or -1 if unknown.
+     */
+    public Admission admit(long contentLength) {
+        long size = contentLength < 0 ? UNKNOWN_LENGTH_RESERVATION : contentLength;
+
+        int queued = executor.getQueue().size();
+        int capacity = queued + executor.getQueue().remainingCapacity();
+        if (queued > 0 && queued >= capacity * 3 / 4) {
+            return reject("request queue is full", 1);
+        }
+
+        long current;
+        do {
+            current = inFlightBytes.get();
+            // A single upload bigger than the budget still gets through when idle.
+            if (current > 0 && current + size > maxInFlightBytes) {
+                return reject("too many uploads in progress", 5);
+            }
+        } while (!inFlightBytes.compareAndSet(current, current + size));
+
+        Admission admission = new Admission(this, size, contentLength < 0, null, 0);
+        if (uploadDir.getUsableSpace() - (current + size) < minFreeDiskBytes) {
+            admission.close();
+            return reject("not enough free disk space", 60);
+        }
+        return admission;
+    }
+
+    private Admission reject(String reason, int retryAfterSeconds) {
+        rejected.incrementAndGet();
+        return new Admission(this, 0, false, reason, retryAfterSeconds);
+    }
+
+    /**
+     * Changes the budgets for uploads admitted from now on; uploads already
+     * admitted keep their reservation.
+     */
+    public void setLimits(long maxInFlightBytes, long minFreeDiskBytes) {
+        this.maxInFlightBytes = maxInFlightBytes;
+        this.minFreeDiskBytes = minFreeDiskBytes;
+    }
+
+    public long getInFlightBytes() {
+        return inFlightBytes.get();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * Thrown while reading the body of an upload of unknown length that has
+     * passed its reservation when the budgets allow no more.
+     */
+    public static class BudgetExceededException extends IOException {
+        private static final long serialVersionUID = 1L;
+        private final int retryAfterSeconds;
+
+        BudgetExceededException(String reason, int retryAfterSeconds) {
+            super(reason);
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        public int getRetryAfterSeconds() {
+            return retryAfterSeconds;
+        }
+    }
+
+    public static class Admission implements AutoCloseable {
+        private final AdmissionController controller;
+        private final boolean unknownLength;
+        private final String rejectionReason;
+        private final int retryAfterSeconds;
+        private long reserved;
+
+        Admission(AdmissionController controller, long reserved, boolean unknownLength, String rejectionReason,
+                  int retryAfterSeconds) {
+            this.controller = controller;
+            this.reserved = reserved;
+            this.unknownLength = unknownLength;
+            this.rejectionReason = rejectionReason;
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        public boolean isAccepted() {
+            return rejectionReason == null;
+        }
+
+        public String getRejectionReason() {
+            return rejectionReason;
+        }
+
+        public int getRetryAfterSeconds() {
+            return retryAfterSeconds;
+        }
+
+        /**
+         * Wraps the body of the admitted upload. When it was admitted without
+         * a length, the reservation grows by {@link #UNKNOWN_LENGTH_RESERVATION}
+         * each time the bytes read pass it, and a read fails with a
+         * {@link BudgetExceededException} once the budgets allow no more. A
+         * body of known length is returned as it is: the server reads no
+         * further than its Content-Length.
+         */
+        public ReadableByteChannel limit(ReadableByteChannel body) {
+            if (!unknownLength) {
+                return body;
+            }
+            return new ReadableByteChannel() {
+                private long read;
+
+                @Override
+                public int read(ByteBuffer dst) throws IOException {
+                    int n = body.read(dst);
+                    if (n > 0) {
+                        read += n;
+                        while (read > reserved) {
+                            grow(UNKNOWN_LENGTH_RESERVATION);
+                        }
+                    }
+                    return n;
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return body.isOpen();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    body.close();
+                }
+            };
+        }
+
+        private void grow(long size) throws BudgetExceededException {
+            long current;
+            do {
+                current = controller.inFlightBytes.get();
+                // As in admit(), an upload on its own may pass the budget.
+                if (current > reserved && current + size > controller.maxInFlightBytes) {
+                    throw exceeded("too many uploads in progress", 5);
+                }
+            } while (!controller.inFlightBytes.compareAndSet(current, current + size));
+            reserved += size;
+            if (controller.uploadDir.getUsableSpace() - (current + size) < controller.minFreeDiskBytes) {
+                throw exceeded("not enough free disk space", 60);
+            }
+        }
+
+        private BudgetExceededException exceeded(String reason, int retryAfterSeconds) {
+            controller.rejected.incrementAndGet();
+            return new BudgetExceededException(reason, retryAfterSeconds);
+        }
+
+        /**
+         * Releases the reservation. Safe to call more than once.
+         */
+        @Override
+        public void close() {
+            if (reserved > 0) {
+                controller.inFlightBytes.addAndGet(-reserved);
+                reserved = 0;
+            }
+        }
+    }
+}
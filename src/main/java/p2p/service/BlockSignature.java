@@ -0,0 +1,229 @@
+package p2p.service;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import p2p.utils.BufferPool;
+import p2p.utils.BufferPool.PooledBuffer;
+import p2p.utils.DigestUtils;
+import p2p.utils.RollingChecksum;
+import p2p.utils.TransferUtils;
+
+/**
+ * The block checksums of a stored file, which a client uses to work out
+ * which parts of a new version it has to send.
+ * <p>
+ * The file is cut into blocks of {@code blockSize} bytes (the last one may
+ * be shorter). Each block has a {@link RollingChecksum} and the first
+ * {@link #STRONG_LENGTH} bytes of its SHA-256. On the wire a signature is
+ * {@code "PLS1"}, the block size (int), the file size (long), then four
+ * bytes of weak and the strong checksum per block, all big-endian.
+ */
+public class BlockSignature {
+    public static final int STRONG_LENGTH = 16;
+    public static final int MIN_BLOCK_SIZE = 512;
+    public static final int MAX_BLOCK_SIZE = 1024 * 1024;
+    static final int MAGIC = 0x504c5331; // "PLS1"
+    private static final int HEADER_LENGTH = 16;
+
+    private final int blockSize;
+    private final long fileSize;
+    private final int[] weak;
+    private final byte[] strong;
+    private Map<Integer, int[]> index;
+
+    private BlockSignature(int blockSize, long fileSize, int[] weak, byte[] strong) {
+        this.blockSize = blockSize;
+        this.fileSize = fileSize;
+        this.weak = weak;
+        this.strong = strong;
+    }
+
+    /**
+     * A block size around the square root of the file size, as rsync picks,
+     * rounded to a power of two between 2 KB and 64 KB.
+     */
+    public static int defaultBlockSize(long fileSize) {
+        int root = (int) Math.sqrt((double) fileSize);
+        return Math.max(2048, Math.min(64 * 1024, Integer.highestOneBit(Math.max(1, root))));
+    }
+
+    public static BlockSignature compute(SeekableByteChannel file, int blockSize) throws IOException {
+        checkBlockSize(blockSize);
+        long size = file.size();
+        long count = (size + blockSize - 1) / blockSize;
+        if (count > Integer.MAX_VALUE / STRONG_LENGTH) {
+            throw new IOException("file has too many blocks for block size " + blockSize);
+        }
+        int[] weak = new int[(int) count];
+        byte[] strong = new byte[(int) count * STRONG_LENGTH];
+        MessageDigest sha256 = DigestUtils.sha256();
+        byte[] block = new byte[blockSize];
+        file.position(0);
+        try (PooledBuffer pooled = BufferPool.shared().acquire(blockSize)) {
+            ByteBuffer buffer = pooled.buffer();
+            for (int i = 0; i < count; i++) {
+                int length = (int) Math.min(blockSize, size - (long) i * blockSize);
+                buffer.clear().limit(length);
+                while (buffer.hasRemaining()) {
+                    if (file.read(buffer) < 0) {
+                        throw new EOFException("file shrank while computing its signature");
+                    }
+                }
+                buffer.flip().get(block, 0, length);
+                weak[i] = RollingChecksum.of(block, 0, length);
+                sha256.update(block, 0, length);
+                System.arraycopy(sha256.digest(), 0, strong, i * STRONG_LENGTH, STRONG_LENGTH);
+            }
+        }
+        return new BlockSignature(blockSize, size, weak, strong);
+    }
+
+    public static BlockSignature read(ReadableByteChannel in) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        readFully(in, header);
+        if (header.getInt() != MAGIC) {
+            throw new ProtocolException("not a block signature");
+        }
+        int blockSize = header.getInt();
+        long fileSize = header.getLong();
+        checkBlockSize(blockSize);
+        long count = fileSize < 0 ? -1 : (fileSize + blockSize - 1) / blockSize;
+        if (count < 0 || count > Integer.MAX_VALUE / (4 + STRONG_LENGTH)) {
+            throw new ProtocolException("bad signature size " + fileSize);
+        }
+        ByteBuffer body = ByteBuffer.allocate((int) count * (4 + STRONG_LENGTH));
+        readFully(in, body);
+        int[] weak = new int[(int) count];
+        byte[] strong = new byte[(int) count * STRONG_LENGTH];
+        for (int i = 0; i < count; i++) {
+            weak[i] = body.getInt();
+            body.get(strong, i * STRONG_LENGTH, STRONG_LENGTH);
+        }
+        return new BlockSignature(blockSize, fileSize, weak, strong);
+    }
+
+    public void write(WritableByteChannel out) throws IOException {
+        try (PooledBuffer pooled = BufferPool.shared().acquire(TransferUtils.COPY_BUFFER_SIZE)) {
+            ByteBuffer buffer = pooled.buffer();
+            buffer.putInt(MAGIC).putInt(blockSize).putLong(fileSize);
+            for (int i = 0; i < weak.length; i++) {
+                if (buffer.remaining() < 4 + STRONG_LENGTH) {
+                    buffer.flip();
+                    TransferUtils.writeFully(out, buffer);
+                    buffer.clear();
+                }
+                buffer.putInt(weak[i]).put(strong, i * STRONG_LENGTH, STRONG_LENGTH);
+            }
+            buffer.flip();
+            TransferUtils.writeFully(out, buffer);
+        }
+    }
+
+    /**
+     * The length of {@link #write}'s output.
+     */
+    public long getEncodedLength() {
+        return HEADER_LENGTH + (long) weak.length * (4 + STRONG_LENGTH);
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public int getBlockCount() {
+        return weak.length;
+    }
+
+    /**
+     * The length of block {@code i}; only the last block may be short.
+     */
+    public int blockLength(int i) {
+        return (int) Math.min(blockSize, fileSize - (long) i * blockSize);
+    }
+
+    /**
+     * Returns the block whose checksums match {@code data[offset, offset +
+     * length)}, or -1. {@code weakSum} must be the data's rolling checksum;
+     * the strong hash is only computed when a weak checksum matches.
+     * Prefers {@code preferred} among identical blocks, so runs of copies
+     * stay contiguous.
+     */
+    public int find(int weakSum, byte[] data, int offset, int length, MessageDigest sha256, int preferred) {
+        int[] candidates = index().get(weakSum);
+        if (candidates == null) {
+            return -1;
+        }
+        byte[] digest = null;
+        int found = -1;
+        for (int block : candidates) {
+            if (blockLength(block) != length) {
+                continue;
+            }
+            if (digest == null) {
+                sha256.update(data, offset, length);
+                digest = sha256.digest();
+            }
+            if (strongMatches(block, digest)) {
+                if (block == preferred) {
+                    return block;
+                }
+                if (found < 0) {
+                    found = block;
+                }
+            }
+        }
+        return found;
+    }
+
+    private boolean strongMatches(int block, byte[] digest) {
+        for (int i = 0; i < STRONG_LENGTH; i++) {
+            if (strong[block * STRONG_LENGTH + i] != digest[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Map<Integer, int[]> index() {
+        if (index == null) {
+            Map<Integer, int[]> blocks = new HashMap<>();
+            for (int i = 0; i < weak.length; i++) {
+                int[] existing = blocks.get(weak[i]);
+                int[] grown = existing == null ? new int[1] : Arrays.copyOf(existing, existing.length + 1);
+                grown[grown.length - 1] = i;
+                blocks.put(weak[i], grown);
+            }
+            index = blocks;
+        }
+        return index;
+    }
+
+    static void checkBlockSize(int blockSize) throws ProtocolException {
+        if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE) {
+            throw new ProtocolException("block size must be between " + MIN_BLOCK_SIZE + " and " + MAX_BLOCK_SIZE);
+        }
+    }
+
+    private static void readFully(ReadableByteChannel in, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer) < 0) {
+                throw new EOFException("signature ended early");
+            }
+        }
+        buffer.flip();
+    }
+}
@@ -0,0 +1,138 @@
+package p2p.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import p2p.utils.Log;
+import p2p.utils.NamedThreadFactory;
+
+/**
+ * Content-addressed chunk storage shared by every upload on a node.
+ * <p>
+ * Each chunk is a file named by the hex SHA-256 of its content, under a
+ * directory named by the first two hex digits. A chunk is written once and
+ * then referenced by every {@link Manifest} that contains it; the count of
+ * references lives in memory, and a chunk is deleted when it drops to zero.
+ * The chunk store also owns the threads that read chunks ahead of
+ * sequential readers.
+ */
+public class ChunkStore implements Closeable {
+    private final Path dir;
+    private final ConcurrentHashMap<String, Long> references = new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor readAhead;
+    private final AtomicLong storedBytes = new AtomicLong();
+    private final AtomicLong deduplicatedBytes = new AtomicLong();
+
+    public ChunkStore(Path dir, int readAheadThreads) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        this.readAhead = new ThreadPoolExecutor(readAheadThreads, readAheadThreads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), new NamedThreadFactory("chunk-reader"));
+        readAhead.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * A fresh path in the store's directory, for a chunk being written. The
+     * file does not exist yet.
+     */
+    Path newTempPath() {
+        return dir.resolve("incoming-" + UUID.randomUUID() + ".tmp");
+    }
+
+    /**
+     * Adds the chunk written to {@code temp} and takes a reference to it. If
+     * the store already has a chunk with this hash, {@code temp} is deleted
+     * instead.
+     */
+    void commit(Path temp, String hash, long length) throws IOException {
+        Path target = pathOf(hash);
+        try {
+            // Per-key atomic, so a chunk is never deleted while it is being referenced again.
+            references.compute(hash, (key, count) -> {
+                try {
+                    if (count != null) {
+                        Files.delete(temp);
+                        deduplicatedBytes.addAndGet(length);
+                        return count + 1;
+                    }
+                    if (Files.exists(target)) {
+                        // Left over from an earlier run.
+                        Files.delete(temp);
+                    } else {
+                        Files.createDirectories(target.getParent());
+                        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+                    }
+                    storedBytes.addAndGet(length);
+                    return 1L;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            Files.deleteIfExists(temp);
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Drops one reference to every chunk of {@code manifest}, deleting the
+     * chunks nothing else refers to.
+     */
+    public void release(Manifest manifest) {
+        for (int i = 0; i < manifest.getChunkCount(); i++) {
+            release(manifest.chunkHash(i), manifest.chunkLength(i));
+        }
+    }
+
+    void release(String hash, long length) {
+        references.computeIfPresent(hash, (key, count) -> {
+            if (count > 1) {
+                return count - 1;
+            }
+            try {
+                Files.deleteIfExists(pathOf(hash));
+                storedBytes.addAndGet(-length);
+            } catch (IOException e) {
+                Log.warn("chunk.delete_failed", "chunk", hash, "error", e);
+            }
+            return null;
+        });
+    }
+
+    Path pathOf(String hash) {
+        return dir.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    ThreadPoolExecutor getReadAhead() {
+        return readAhead;
+    }
+
+    /** Number of distinct chunks stored. */
+    public int getChunkCount() {
+        return references.size();
+    }
+
+    /** Bytes on disk, counting each distinct chunk once. */
+    public long getStoredBytes() {
+        return storedBytes.get();
+    }
+
+    /** Bytes uploaded that were already in the store and not written again. */
+    public long getDeduplicatedBytes() {
+        return deduplicatedBytes.get();
+    }
+
+    @Override
+    public void close() {
+        readAhead.shutdown();
+    }
+}
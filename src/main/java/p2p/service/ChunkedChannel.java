@@ -0,0 +1,198 @@
+package p2p.service;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+import p2p.utils.BufferPool;
+import p2p.utils.BufferPool.PooledBuffer;
+
+/**
+ * Reads the content of a {@link Manifest} as one file.
+ * <p>
+ * The content is read in segments of up to {@link #SEGMENT_SIZE} bytes,
+ * none crossing a chunk boundary. While the caller consumes one segment,
+ * the next {@link #READ_AHEAD} are already being read into pooled buffers
+ * on the store's read-ahead threads, so disk reads overlap with sending and
+ * a sequential reader rarely waits on the disk. Seeking elsewhere drops the
+ * segments read ahead.
+ */
+class ChunkedChannel implements SeekableByteChannel {
+    static final int SEGMENT_SIZE = 1024 * 1024;
+    static final int READ_AHEAD = 2;
+
+    private final ChunkStore store;
+    private final Manifest manifest;
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private long position;
+    private boolean closed;
+
+    ChunkedChannel(ChunkStore store, Manifest manifest) {
+        this.store = store;
+        this.manifest = manifest;
+    }
+
+    private static final class Segment {
+        final long start;
+        final int length;
+        final CompletableFuture<PooledBuffer> data;
+
+        Segment(long start, int length, CompletableFuture<PooledBuffer> data) {
+            this.start = start;
+            this.length = length;
+            this.data = data;
+        }
+
+        boolean contains(long position) {
+            return position >= start && position < start + length;
+        }
+
+        long end() {
+            return start + length;
+        }
+
+        void release() {
+            data.whenComplete((buffer, error) -> {
+                if (buffer != null) {
+                    buffer.close();
+                }
+            });
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        checkOpen();
+        if (position >= manifest.size()) {
+            return -1;
+        }
+        Segment current = segments.peekFirst();
+        if (current == null || !current.contains(position)) {
+            dropSegments();
+            current = schedule(position);
+        }
+        ByteBuffer data = await(current).duplicate();
+        int offset = (int) (position - current.start);
+        int n = Math.min(dst.remaining(), current.length - offset);
+        data.limit(offset + n).position(offset);
+        dst.put(data);
+        position += n;
+        if (position == current.end()) {
+            segments.pollFirst().release();
+        }
+        while (segments.size() <= READ_AHEAD) {
+            long next = segments.isEmpty() ? position : segments.peekLast().end();
+            if (next >= manifest.size()) {
+                break;
+            }
+            schedule(next);
+        }
+        return n;
+    }
+
+    private Segment schedule(long start) {
+        int index = manifest.chunkAt(start);
+        long offset = start - manifest.chunkOffset(index);
+        int length = (int) Math.min(SEGMENT_SIZE, manifest.chunkLength(index) - offset);
+        String hash = manifest.chunkHash(index);
+        Segment segment = new Segment(start, length, CompletableFuture.supplyAsync(() -> {
+            PooledBuffer pooled = BufferPool.shared().acquire(length);
+            try (FileChannel chunk = FileChannel.open(store.pathOf(hash), StandardOpenOption.READ)) {
+                ByteBuffer buffer = pooled.buffer();
+                buffer.limit(length);
+                while (buffer.hasRemaining()) {
+                    if (chunk.read(buffer, offset + buffer.position()) < 0) {
+                        throw new EOFException("chunk " + hash + " is shorter than its manifest says");
+                    }
+                }
+                buffer.flip();
+                return pooled;
+            } catch (IOException e) {
+                pooled.close();
+                throw new CompletionException(e);
+            }
+        }, store.getReadAhead()));
+        segments.addLast(segment);
+        return segment;
+    }
+
+    private static ByteBuffer await(Segment segment) throws IOException {
+        try {
+            return segment.data.get().buffer();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted reading a chunk");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("failed to read a chunk", e.getCause());
+        }
+    }
+
+    private void dropSegments() {
+        Segment segment;
+        while ((segment = segments.pollFirst()) != null) {
+            segment.release();
+        }
+    }
+
+    private void checkOpen() throws ClosedChannelException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    @Override
+    public long position() throws IOException {
+        checkOpen();
+        return position;
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) throws IOException {
+        checkOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("negative position");
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        checkOpen();
+        return manifest.size();
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        dropSegments();
+    }
+}
@@ -0,0 +1,151 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+import p2p.utils.ContentDefinedChunker;
+import p2p.utils.DigestUtils;
+import p2p.utils.TransferUtils;
+import p2p.utils.UploadWriter;
+
+/**
+ * Stores everything written through it in a {@link ChunkStore}, cut into
+ * content-defined chunks as the bytes stream in. Each chunk is written to
+ * a temporary file through an {@link UploadWriter}, with the same direct
+ * I/O and sync settings as a plain upload, and hashed on the way, then
+ * committed under its hash, so no chunk is ever buffered in memory.
+ * Closing commits the last chunk and writes the {@link Manifest} to
+ * {@code manifestPath}, which must not exist.
+ */
+public class ChunkingChannel implements WritableByteChannel {
+    private final ChunkStore store;
+    private final Path manifestPath;
+    private final ContentDefinedChunker chunker;
+    private final boolean direct;
+    private final long syncBytes;
+    private final MessageDigest digest = DigestUtils.sha256();
+    private final List<String> hashes = new ArrayList<>();
+    private final List<Long> lengths = new ArrayList<>();
+    private Path chunkPath;
+    private UploadWriter chunk;
+    private long chunkLength;
+    private Manifest manifest;
+    private boolean closed;
+
+    /**
+     * @param direct whether to write chunks with {@code O_DIRECT}
+     * @param syncBytes how often to flush chunk data to disk, as for
+     *        {@link UploadWriter}
+     */
+    public ChunkingChannel(ChunkStore store, Path manifestPath, boolean direct, long syncBytes) {
+        this(store, manifestPath, new ContentDefinedChunker(), direct, syncBytes);
+    }
+
+    public ChunkingChannel(ChunkStore store, Path manifestPath, ContentDefinedChunker chunker, boolean direct,
+            long syncBytes) {
+        this.store = store;
+        this.manifestPath = manifestPath;
+        this.chunker = chunker;
+        this.direct = direct;
+        this.syncBytes = syncBytes;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        int total = src.remaining();
+        while (src.hasRemaining()) {
+            int boundary = chunker.findBoundary(src);
+            int length = boundary < 0 ? src.remaining() : boundary;
+            append(src.slice(src.position(), length));
+            src.position(src.position() + length);
+            if (boundary >= 0) {
+                commitChunk();
+            }
+        }
+        return total;
+    }
+
+    private void append(ByteBuffer data) throws IOException {
+        if (chunk == null) {
+            chunkPath = store.newTempPath();
+            chunk = new UploadWriter(chunkPath, -1, direct, syncBytes);
+            chunkLength = 0;
+        }
+        digest.update(data.duplicate());
+        chunkLength += TransferUtils.writeFully(chunk, data);
+    }
+
+    private void commitChunk() throws IOException {
+        chunk.close();
+        chunk = null;
+        Path path = chunkPath;
+        chunkPath = null;
+        String hash = DigestUtils.toHex(digest.digest());
+        store.commit(path, hash, chunkLength);
+        hashes.add(hash);
+        lengths.add(chunkLength);
+    }
+
+    /**
+     * The stored file, once closed.
+     */
+    public Manifest getManifest() {
+        return manifest;
+    }
+
+    /**
+     * Removes whatever was stored: releases the committed chunks and deletes
+     * the manifest and any partly written chunk.
+     */
+    public void discard() throws IOException {
+        closed = true;
+        if (chunk != null) {
+            chunk.close();
+            chunk = null;
+        }
+        if (chunkPath != null) {
+            Files.deleteIfExists(chunkPath);
+        }
+        for (int i = 0; i < hashes.size(); i++) {
+            store.release(hashes.get(i), lengths.get(i));
+        }
+        hashes.clear();
+        lengths.clear();
+        manifest = null;
+        Files.deleteIfExists(manifestPath);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (chunk != null) {
+                commitChunk();
+            }
+            Manifest written = new Manifest(store, hashes, lengths);
+            written.write(manifestPath);
+            manifest = written;
+        } catch (IOException e) {
+            discard();
+            throw e;
+        }
+    }
+}
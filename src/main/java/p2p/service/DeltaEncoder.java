@@ -0,0 +1,173 @@
+package p2p.service;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+
+import p2p.utils.DigestUtils;
+import p2p.utils.RollingChecksum;
+
+/**
+ * Encodes a new version of a file as a delta against the
+ * {@link BlockSignature} of the old one, for {@link DeltaPatcher} to apply.
+ * <p>
+ * A window of one block slides over the new content a byte at a time. Where
+ * it matches a block of the old file the block is referenced, and the
+ * window jumps past it; bytes no block covers are sent as they are. A delta
+ * is {@code "PLD1"} and the block size, then a sequence of operations, all
+ * big-endian:
+ * <ul>
+ * <li>{@link #COPY}, first block (int), block count (int): copy a run of
+ * blocks from the old file;</li>
+ * <li>{@link #DATA}, length (int), bytes: literal content, at most
+ * {@link #MAX_DATA_LENGTH} bytes;</li>
+ * <li>{@link #END}.</li>
+ * </ul>
+ */
+public class DeltaEncoder {
+    public static final int MAGIC = 0x504c4431; // "PLD1"
+    public static final int END = 0;
+    public static final int COPY = 1;
+    public static final int DATA = 2;
+    public static final int MAX_DATA_LENGTH = 4 * 1024 * 1024;
+
+    private final BlockSignature signature;
+    private final int blockSize;
+    private final MessageDigest sha256 = DigestUtils.sha256();
+    private final RollingChecksum checksum = new RollingChecksum();
+    private DataOutputStream out;
+    private int copyStart = -1;
+    private int copyCount;
+    private long literalBytes;
+    private long copiedBytes;
+
+    public DeltaEncoder(BlockSignature signature) {
+        this.signature = signature;
+        this.blockSize = signature.getBlockSize();
+    }
+
+    /**
+     * Reads the new content from {@code in} to its end and writes the delta
+     * to {@code target}, which is flushed but not closed.
+     */
+    public void encode(InputStream in, OutputStream target) throws IOException {
+        out = new DataOutputStream(target);
+        literalBytes = 0;
+        copiedBytes = 0;
+        out.writeInt(MAGIC);
+        out.writeInt(blockSize);
+
+        byte[] window = new byte[Math.max(256 * 1024, 4 * blockSize)];
+        int end = 0;         // bytes buffered
+        int pos = 0;         // start of the block being matched
+        int literal = 0;     // start of the bytes not yet sent
+        boolean rolled = false;
+        boolean eof = false;
+        while (true) {
+            if (end - pos <= blockSize && !eof) {
+                // Need the block plus the byte rolled in next; make room first.
+                if (end == window.length) {
+                    emitData(window, literal, pos - literal);
+                    System.arraycopy(window, pos, window, 0, end - pos);
+                    end -= pos;
+                    pos = 0;
+                    literal = 0;
+                }
+                int n = in.read(window, end, window.length - end);
+                if (n < 0) {
+                    eof = true;
+                } else {
+                    end += n;
+                }
+                continue;
+            }
+            if (end - pos < blockSize) {
+                break;
+            }
+            if (!rolled) {
+                checksum.reset(window, pos, blockSize);
+                rolled = true;
+            }
+            int block = signature.find(checksum.value(), window, pos, blockSize, sha256, copyStart + copyCount);
+            if (block >= 0) {
+                emitData(window, literal, pos - literal);
+                emitCopy(block, blockSize);
+                pos += blockSize;
+                literal = pos;
+                rolled = false;
+            } else if (pos + blockSize < end) {
+                checksum.roll(window[pos], window[pos + blockSize]);
+                pos++;
+            } else {
+                break;
+            }
+        }
+        // The old file's short last block can only match the new file's tail.
+        int count = signature.getBlockCount();
+        int last = count > 0 ? signature.blockLength(count - 1) : blockSize;
+        if (last < blockSize && end - last >= literal) {
+            int tail = end - last;
+            int block = signature.find(RollingChecksum.of(window, tail, last), window, tail, last, sha256, count - 1);
+            if (block >= 0) {
+                emitData(window, literal, tail - literal);
+                emitCopy(block, last);
+                literal = end;
+            }
+        }
+        emitData(window, literal, end - literal);
+        flushCopy();
+        out.writeByte(END);
+        out.flush();
+    }
+
+    /**
+     * Literal bytes sent by the last {@link #encode}.
+     */
+    public long getLiteralBytes() {
+        return literalBytes;
+    }
+
+    /**
+     * Bytes the last {@link #encode} took from the old file.
+     */
+    public long getCopiedBytes() {
+        return copiedBytes;
+    }
+
+    private void emitCopy(int block, int length) throws IOException {
+        copiedBytes += length;
+        if (copyStart >= 0 && block == copyStart + copyCount) {
+            copyCount++;
+            return;
+        }
+        flushCopy();
+        copyStart = block;
+        copyCount = 1;
+    }
+
+    private void flushCopy() throws IOException {
+        if (copyStart >= 0) {
+            out.writeByte(COPY);
+            out.writeInt(copyStart);
+            out.writeInt(copyCount);
+            copyStart = -1;
+            copyCount = 0;
+        }
+    }
+
+    private void emitData(byte[] data, int offset, int length) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        flushCopy();
+        for (int sent = 0; sent < length; sent += MAX_DATA_LENGTH) {
+            int chunk = Math.min(MAX_DATA_LENGTH, length - sent);
+            out.writeByte(DATA);
+            out.writeInt(chunk);
+            out.write(data, offset + sent, chunk);
+        }
+        literalBytes += length;
+    }
+}
@@ -0,0 +1,134 @@
+package p2p.service;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import p2p.utils.BufferPool;
+import p2p.utils.BufferPool.PooledBuffer;
+import p2p.utils.TransferUtils;
+
+/**
+ * Rebuilds a new version of a file from the old one and a delta written by
+ * {@link DeltaEncoder}. Every field is checked against the old file before
+ * it is used, so a broken or hostile delta fails with a
+ * {@link ProtocolException} instead of reading outside the file or
+ * writing past the length its caller allows.
+ */
+public class DeltaPatcher {
+    private final SeekableByteChannel base;
+    private final long baseSize;
+    private long received;
+
+    public DeltaPatcher(SeekableByteChannel base) throws IOException {
+        this.base = base;
+        this.baseSize = base.size();
+    }
+
+    /**
+     * Applies the delta read from {@code delta} and writes the result to
+     * {@code out}. Returns the length of the result, which may not exceed
+     * {@code maxLength}: a few repeated copies would otherwise let a tiny
+     * delta write without end.
+     */
+    public long apply(ReadableByteChannel delta, WritableByteChannel out, long maxLength) throws IOException {
+        long written = 0;
+        received = 0;
+        try (PooledBuffer pooled = BufferPool.shared().acquire(TransferUtils.COPY_BUFFER_SIZE)) {
+            ByteBuffer buffer = pooled.buffer();
+            ByteBuffer header = ByteBuffer.allocate(9);
+            readFully(delta, header.limit(8));
+            if (header.getInt() != DeltaEncoder.MAGIC) {
+                throw new ProtocolException("not a delta");
+            }
+            int blockSize = header.getInt();
+            BlockSignature.checkBlockSize(blockSize);
+            long blockCount = (baseSize + blockSize - 1) / blockSize;
+            while (true) {
+                readFully(delta, header.clear().limit(1));
+                int op = header.get();
+                if (op == DeltaEncoder.END) {
+                    return written;
+                } else if (op == DeltaEncoder.COPY) {
+                    readFully(delta, header.clear().limit(8));
+                    long first = header.getInt();
+                    long count = header.getInt();
+                    if (first < 0 || count <= 0 || first + count > blockCount) {
+                        throw new ProtocolException("copy outside the base file: blocks " + first + "+" + count);
+                    }
+                    long start = first * blockSize;
+                    long end = Math.min(baseSize, (first + count) * blockSize);
+                    checkLength(written + (end - start), maxLength);
+                    written += copyRange(start, end, buffer, out);
+                } else if (op == DeltaEncoder.DATA) {
+                    readFully(delta, header.clear().limit(4));
+                    int length = header.getInt();
+                    if (length <= 0 || length > DeltaEncoder.MAX_DATA_LENGTH) {
+                        throw new ProtocolException("bad data length " + length);
+                    }
+                    checkLength(written + length, maxLength);
+                    written += copyData(delta, length, buffer, out);
+                } else {
+                    throw new ProtocolException("unknown delta operation " + op);
+                }
+            }
+        }
+    }
+
+    /**
+     * Bytes of delta read by the last {@link #apply}; everything else came
+     * from the old file.
+     */
+    public long getReceivedBytes() {
+        return received;
+    }
+
+    private static void checkLength(long length, long maxLength) throws ProtocolException {
+        if (length > maxLength) {
+            throw new ProtocolException("result longer than " + maxLength + " bytes");
+        }
+    }
+
+    private long copyRange(long start, long end, ByteBuffer buffer, WritableByteChannel out) throws IOException {
+        long position = start;
+        base.position(start);
+        while (position < end) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+            int n = base.read(buffer);
+            if (n < 0) {
+                throw new EOFException("base file shrank while patching");
+            }
+            position += n;
+            buffer.flip();
+            TransferUtils.writeFully(out, buffer);
+        }
+        return end - start;
+    }
+
+    private long copyData(ReadableByteChannel delta, int length, ByteBuffer buffer, WritableByteChannel out)
+            throws IOException {
+        int remaining = length;
+        while (remaining > 0) {
+            buffer.clear().limit(Math.min(buffer.capacity(), remaining));
+            readFully(delta, buffer);
+            remaining -= buffer.remaining();
+            TransferUtils.writeFully(out, buffer);
+        }
+        return length;
+    }
+
+    private void readFully(ReadableByteChannel in, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = in.read(buffer);
+            if (n < 0) {
+                throw new EOFException("delta ended early");
+            }
+            received += n;
+        }
+        buffer.flip();
+    }
+}
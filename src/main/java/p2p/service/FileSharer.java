@@ -1,85 +1,597 @@
 package p2p.service;
 
+import p2p.config.Config;
+import p2p.utils.AdaptiveBuffers;
+import p2p.utils.DigestUtils;
+import p2p.utils.HashingChannel;
+import p2p.utils.JfrEvents;
+import p2p.utils.Log;
+import p2p.utils.MerkleTree;
+import p2p.utils.NamedThreadFactory;
+import p2p.utils.NullChannel;
+import p2p.utils.PeerTls;
+import p2p.utils.TimedSocketChannel;
+import p2p.utils.Tracer;
+import p2p.utils.Timeouts;
+import p2p.utils.TransferUtils;
 import p2p.utils.UploadUtils;
 
 import java.io.*;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.IntPredicate;
 
 public class FileSharer {
 
-    private HashMap<Integer, String> availableFiles;
+    private static final long EXPIRY_CHECK_MILLIS = 1000;
+
+    private ConcurrentHashMap<Integer, SharedFile> availableFiles;
+    private final ThreadPoolExecutor transferExecutor;
+    private final IntPredicate codeFilter;
+    private final PeerTls tls;
+    private volatile Timeouts timeouts;
+    private final int codeMin;
+    private final int codeMax;
+    private final Queue<PendingServer> pendingServers = new ConcurrentLinkedQueue<>();
+    private final Queue<Map.Entry<Integer, SharedFile>> evictions = new ConcurrentLinkedQueue<>();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private volatile Consumer<SharedFile> expiryListener = sharedFile -> { };
+    private volatile Tracer tracer;
+    private volatile ProgressTracker progressTracker;
+    private Selector acceptSelector;
 
     public FileSharer() {
-        availableFiles = new HashMap<>();
+        this(code -> true);
+    }
+
+    public FileSharer(IntPredicate codeFilter) {
+        this(codeFilter, Config.load());
+    }
+
+    /**
+     * @param codeFilter accepts the share codes this node may hand out
+     * @param config supplies the code range, transfer pool, timeouts and peer TLS
+     */
+    public FileSharer(IntPredicate codeFilter, Config config) {
+        this.codeFilter = codeFilter;
+        try {
+            this.tls = PeerTls.fromConfig(config);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid configuration: " + e.getMessage(), e);
+        }
+        this.timeouts = config.getTimeouts();
+        this.codeMin = config.getCodeMin();
+        this.codeMax = config.getCodeMax();
+        availableFiles = new ConcurrentHashMap<>();
+        transferExecutor = new ThreadPoolExecutor(config.getTransferThreads(), config.getTransferThreads(),
+                60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(config.getTransferQueue()),
+                new NamedThreadFactory("peer-transfer"));
+        transferExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Offers a file whose digest is not known yet; the file is hashed first.
+     */
+    public int offerFile(String filePath) throws IOException {
+        try (FileChannel file = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            HashingChannel hashing = new HashingChannel(NullChannel.INSTANCE, DigestUtils.sha256());
+            TransferUtils.copy(file, hashing);
+            return offerFile(filePath, hashing.getCount(), hashing.digest());
+        }
+    }
+
+    public int offerFile(String filePath, long size, byte[] sha256) {
+        return offerFile(filePath, size, sha256, null);
+    }
+
+    /**
+     * Offers content stored as chunks; {@code filePath} is its manifest.
+     */
+    public int offerFile(String filePath, long size, byte[] sha256, Manifest manifest) {
+        return offerFile(filePath, size, sha256, null, manifest);
     }
 
-    public int offerFile(String filePath) {
+    /**
+     * Offers content identified by {@code sha256}, {@code tree} or both.
+     */
+    public int offerFile(String filePath, long size, byte[] sha256, MerkleTree tree, Manifest manifest) {
+        return offerFile(new SharedFile(filePath, size, sha256, tree, manifest));
+    }
+
+    /**
+     * Offers {@code sharedFile} under a newly issued code, which is returned.
+     */
+    public int offerFile(SharedFile sharedFile) {
+        JfrEvents.ShareOffered event = new JfrEvents.ShareOffered();
+        event.begin();
+        int span = Tracer.span("share.offer");
         int port;
         while (true) {
-            port = UploadUtils.generateCode();
-            if (!availableFiles.containsKey(port)) {
-                availableFiles.put(port, filePath);
+            port = UploadUtils.generateCode(codeMin, codeMax);
+            if (codeFilter.test(port) && availableFiles.putIfAbsent(port, sharedFile) == null) {
+                // The invite code doubles as the peer port on the node that issued it.
+                sharedFile.setPeerPort(port);
+                Tracer.end(span);
+                event.end();
+                if (event.shouldCommit()) {
+                    event.requestId = Log.getCorrelationId();
+                    event.code = port;
+                    event.filename = sharedFile.getFilename();
+                    event.bytes = sharedFile.getSize();
+                    event.commit();
+                }
                 return port;
             }
         }
     }
 
-    public void startFileServer(int port) {
-        String filePath = availableFiles.get(port);
-        if (filePath == null) {
-            System.err.println("No file associated with port: " + port);
+    /**
+     * Offers a copy of a share issued elsewhere under its original code. The
+     * copy listens on an ephemeral port, since the code's port may be taken
+     * on this host. Returns false if the code is already in use here.
+     */
+    public boolean offerReplica(int code, String filePath, long size, byte[] sha256) {
+        return offerReplica(code, new SharedFile(filePath, size, sha256));
+    }
+
+    public boolean offerReplica(int code, SharedFile sharedFile) {
+        return availableFiles.putIfAbsent(code, sharedFile) == null;
+    }
+
+    public SharedFile getSharedFile(int port) {
+        return availableFiles.get(port);
+    }
+
+    /**
+     * A live view of the shares by code. Iterating it takes no locks and
+     * may miss shares offered or removed meanwhile.
+     */
+    public Map<Integer, SharedFile> getSharedFiles() {
+        return Collections.unmodifiableMap(availableFiles);
+    }
+
+    /**
+     * Withdraws a share: it can no longer be downloaded, and its port is
+     * closed and the expiry listener called on the acceptor thread. Sends
+     * already running carry on as long as they can read the file. Returns
+     * false if there is no share under {@code code}.
+     */
+    public boolean evict(int code) throws IOException {
+        SharedFile sharedFile = availableFiles.remove(code);
+        if (sharedFile == null) {
+            return false;
+        }
+        evicted.incrementAndGet();
+        Log.info("share.evicted", "code", code, "file", sharedFile.getFilename());
+        evictions.add(Map.entry(code, sharedFile));
+        startAcceptor().wakeup();
+        return true;
+    }
+
+    /**
+     * Starts listening for peers on the share's port. The call does not
+     * block: a single acceptor thread watches every share port and hands
+     * connections to the bounded transfer executor.
+     */
+    public void startFileServer(int code) {
+        SharedFile sharedFile = availableFiles.get(code);
+        if (sharedFile == null) {
+            Log.warn("share.unknown", "code", code);
             return;
         }
 
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("Serving file '" + new File(filePath).getName() + "' on port " + port);
-            Socket clientSocket = serverSocket.accept();
-            System.out.println("Client connected: " + clientSocket.getInetAddress());
+        int span = Tracer.span("share.serve");
+        try {
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            try {
+                serverChannel.bind(new InetSocketAddress(sharedFile.getPeerPort()));
+                serverChannel.configureBlocking(false);
+            } catch (IOException e) {
+                serverChannel.close();
+                throw e;
+            }
+            int port = ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+            sharedFile.setPeerPort(port);
+            pendingServers.add(new PendingServer(code, serverChannel));
+            startAcceptor().wakeup();
+            Log.info("share.serving", "code", code, "file", sharedFile.getFilename(), "port", port);
+        } catch (IOException e) {
+            Log.error("share.serve_failed", "code", code, "error", e);
+        } finally {
+            Tracer.end(span);
+        }
+    }
+
+    /**
+     * Connects to the peer server on {@code host}, over TLS when peer TLS is
+     * on, within the connect timeout. The connect time is kept as the round
+     * trip to the host, for sizing transfer buffers.
+     */
+    public ByteChannel connect(String host, int port) throws IOException {
+        AdaptiveBuffers buffers = AdaptiveBuffers.shared();
+        JfrEvents.PeerConnected event = new JfrEvents.PeerConnected();
+        event.begin();
+        int span = Tracer.span("peer.connect");
+        TimedSocketChannel channel;
+        try {
+            long start = System.nanoTime();
+            channel = TimedSocketChannel.open(new InetSocketAddress(host, port), timeouts,
+                    buffers.receiveBufferFor(host));
+            buffers.connected(host, System.nanoTime() - start);
+        } finally {
+            Tracer.end(span);
+        }
+        ByteChannel peer = channel;
+        if (tls != null) {
+            span = Tracer.span("tls.handshake");
+            try {
+                peer = tls.connect(channel, host);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            } finally {
+                Tracer.end(span);
+            }
+        }
+        connected(event, host, port, false, tls != null);
+        return peer;
+    }
 
-            new Thread(new FileSenderHandler(clientSocket, filePath)).start();
+    private static void connected(JfrEvents.PeerConnected event, String host, int port, boolean inbound,
+            boolean tls) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.requestId = Log.getCorrelationId();
+            event.host = host;
+            event.port = port;
+            event.inbound = inbound;
+            event.tls = tls;
+            event.commit();
+        }
+    }
 
+    /**
+     * The peer TLS setup, or null if peer sockets are plaintext.
+     */
+    public PeerTls getTls() {
+        return tls;
+    }
+
+    public ThreadPoolExecutor getTransferExecutor() {
+        return transferExecutor;
+    }
+
+    public Timeouts getTimeouts() {
+        return timeouts;
+    }
+
+    /**
+     * Applies to connections accepted from now on and to the next expiry check.
+     */
+    public void setTimeouts(Timeouts timeouts) {
+        this.timeouts = timeouts;
+    }
+
+    /**
+     * Called on the acceptor thread with each share that expired unused or
+     * was evicted, after its port was closed.
+     */
+    public void setExpiryListener(Consumer<SharedFile> expiryListener) {
+        this.expiryListener = expiryListener;
+    }
+
+    /**
+     * Traces each peer send from now on, or none if {@code tracer} is null.
+     */
+    public void setTracer(Tracer tracer) {
+        this.tracer = tracer;
+    }
+
+    /**
+     * Registers each peer send from now on with {@code progressTracker},
+     * where it can be watched and cancelled.
+     */
+    public void setProgressTracker(ProgressTracker progressTracker) {
+        this.progressTracker = progressTracker;
+    }
+
+    /**
+     * Shares dropped because nobody downloaded them within the share idle timeout.
+     */
+    public long getExpiredCount() {
+        return expired.get();
+    }
+
+    /**
+     * Shares withdrawn with {@link #evict(int)}.
+     */
+    public long getEvictedCount() {
+        return evicted.get();
+    }
+
+    /**
+     * Closes every share port and stops the transfer threads.
+     */
+    public synchronized void shutdown() {
+        if (acceptSelector != null) {
+            try {
+                for (SelectionKey key : acceptSelector.keys()) {
+                    key.channel().close();
+                }
+                acceptSelector.close();
+            } catch (IOException e) {
+                Log.warn("share.close_failed", "error", e);
+            }
+        }
+        transferExecutor.shutdown();
+    }
+
+    private synchronized Selector startAcceptor() throws IOException {
+        if (acceptSelector == null) {
+            acceptSelector = Selector.open();
+            Thread acceptor = new Thread(this::acceptLoop, "peer-acceptor");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+        return acceptSelector;
+    }
+
+    private void acceptLoop() {
+        Selector selector = acceptSelector;
+        long nextExpiryCheck = System.currentTimeMillis() + EXPIRY_CHECK_MILLIS;
+        while (selector.isOpen()) {
+            try {
+                selector.select(EXPIRY_CHECK_MILLIS);
+                PendingServer pending;
+                while ((pending = pendingServers.poll()) != null) {
+                    pending.channel.register(selector, SelectionKey.OP_ACCEPT, pending.code);
+                }
+                Map.Entry<Integer, SharedFile> eviction;
+                while ((eviction = evictions.poll()) != null) {
+                    closeEvicted(selector, eviction.getKey(), eviction.getValue());
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isAcceptable()) {
+                        accept((ServerSocketChannel) key.channel(), (Integer) key.attachment());
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if (now >= nextExpiryCheck) {
+                    nextExpiryCheck = now + EXPIRY_CHECK_MILLIS;
+                    expireIdleShares(selector, now);
+                }
+            } catch (ClosedSelectorException e) {
+                return;
+            } catch (IOException e) {
+                Log.warn("peer.accept_failed", "error", e);
+            }
+        }
+    }
+
+    /**
+     * Closes the port of every share nobody has downloaded for the share
+     * idle timeout, so unused shares don't hold a port and a file forever.
+     */
+    private void expireIdleShares(Selector selector, long now) throws IOException {
+        long idleMillis = timeouts.getShareIdleMillis();
+        if (idleMillis == 0) {
+            return;
+        }
+        for (SelectionKey key : selector.keys()) {
+            int code = (Integer) key.attachment();
+            SharedFile sharedFile = availableFiles.get(code);
+            if (sharedFile == null || !sharedFile.isIdleFor(idleMillis, now)) {
+                continue;
+            }
+            key.channel().close();
+            if (availableFiles.remove(code, sharedFile)) {
+                expired.incrementAndGet();
+                Log.info("share.expired", "code", code, "file", sharedFile.getFilename(), "idleMillis", idleMillis);
+                expiryListener.accept(sharedFile);
+            }
+        }
+    }
+
+    private void closeEvicted(Selector selector, int code, SharedFile sharedFile) throws IOException {
+        for (SelectionKey key : selector.keys()) {
+            // The code may have been issued again since.
+            if ((Integer) key.attachment() == code && availableFiles.get(code) == null) {
+                key.channel().close();
+            }
+        }
+        expiryListener.accept(sharedFile);
+    }
+
+    private void accept(ServerSocketChannel serverChannel, int code) throws IOException {
+        SocketChannel clientChannel = serverChannel.accept();
+        if (clientChannel == null) {
+            return;
+        }
+        SharedFile sharedFile = availableFiles.get(code);
+        if (sharedFile == null) {
+            clientChannel.close();
+            serverChannel.close();
+            return;
+        }
+        Log.debug("peer.connected", "code", code, "remote", clientChannel.socket().getInetAddress());
+        TimedSocketChannel timedChannel;
+        try {
+            timedChannel = new TimedSocketChannel(clientChannel, timeouts);
         } catch (IOException e) {
-            System.err.println("Error starting file server on port " + port + ": " + e.getMessage());
+            clientChannel.close();
+            throw e;
+        }
+        ProgressTracker progressTracker = this.progressTracker;
+        TransferProgress progress = progressTracker != null
+                ? progressTracker.start(null, "send", sharedFile.getSize())
+                : new TransferProgress(null, "send", sharedFile.getSize());
+        progress.setFilename(sharedFile.getFilename());
+        progress.setRemote(clientChannel.socket().getInetAddress().getHostAddress());
+        sharedFile.beginTransfer();
+        try {
+            transferExecutor.execute(new FileSenderHandler(timedChannel, code, sharedFile, tls, tracer, progress));
+        } catch (RejectedExecutionException e) {
+            // Shed load: the downloader sees an incomplete transfer and can retry.
+            Log.warn("peer.rejected", "code", code, "reason", "transfer queue full");
+            sharedFile.endTransfer();
+            progress.fail();
+            clientChannel.close();
         }
     }
 
+    private static class PendingServer {
+        final int code;
+        final ServerSocketChannel channel;
+
+        PendingServer(int code, ServerSocketChannel channel) {
+            this.code = code;
+            this.channel = channel;
+        }
+    }
+
+    /**
+     * Sends one share to a peer. Every write is bounded by the write timeout
+     * and the minimum throughput, so a stalled downloader frees the thread.
+     * With peer TLS on, the handshake runs here too, off the acceptor thread.
+     */
     private static class FileSenderHandler implements Runnable {
-        private final Socket clientSocket;
-        private final String filePath;
+        private final TimedSocketChannel clientChannel;
+        private final int code;
+        private final SharedFile sharedFile;
+        private final PeerTls tls;
+        private final Tracer tracer;
+        private final TransferProgress progress;
 
-        public FileSenderHandler(Socket clientSocket, String filePath) {
-            this.clientSocket = clientSocket;
-            this.filePath = filePath;
+        public FileSenderHandler(TimedSocketChannel clientChannel, int code, SharedFile sharedFile, PeerTls tls,
+                Tracer tracer, TransferProgress progress) {
+            this.clientChannel = clientChannel;
+            this.code = code;
+            this.sharedFile = sharedFile;
+            this.tls = tls;
+            this.tracer = tracer;
+            this.progress = progress;
         }
 
         @Override
         public void run() {
-            try (FileInputStream fis = new FileInputStream(filePath);
-                 OutputStream oss = clientSocket.getOutputStream()) {
-                
-                // Send the filename as a header
-                String filename = new File(filePath).getName();
-                String header = "Filename: " + filename + "\n";
-                oss.write(header.getBytes());
-                
+            // Peer sends are logged under the request that stored the share.
+            Log.setCorrelationId(sharedFile.getCorrelationId());
+            SocketChannel socket = clientChannel.socket();
+            String host = socket.socket().getInetAddress().getHostAddress();
+            JfrEvents.TransferCompleted completed = new JfrEvents.TransferCompleted();
+            completed.begin();
+            long sent = 0;
+            // A send runs on a transfer thread, so it is its own trace, tied
+            // to the upload by the request id.
+            Tracer.Trace trace = tracer != null ? tracer.start("peer.send") : null;
+            try (ByteChannel peer = accept();
+                 SeekableByteChannel file = sharedFile.open();
+                 AdaptiveBuffers.Transfer transfer = AdaptiveBuffers.shared().open(host, socket)) {
+                ByteBuffer buffer = transfer.buffer();
+                WritableByteChannel out = progress.trackWrites(peer);
+                Tracer.attribute("peerlink.request_id", sharedFile.getCorrelationId());
+                Tracer.attribute("peerlink.bytes", sharedFile.getSize());
+
+                // Send the header, in the same write as the first chunk.
+                String filename = sharedFile.getFilename();
+                buffer.put(PeerProtocol.header(sharedFile).getBytes(StandardCharsets.UTF_8));
+                MerkleTree tree = sharedFile.getTree();
+                if (tree != null) {
+                    // The leaf hashes go ahead of the content, so the receiver
+                    // can check each leaf as it lands.
+                    for (int i = 0; i < tree.getLeafCount(); i++) {
+                        if (buffer.remaining() < MerkleTree.HASH_LENGTH) {
+                            buffer.flip();
+                            TransferUtils.writeFully(out, buffer);
+                            buffer.clear();
+                        }
+                        buffer.put(tree.getLeaf(i));
+                    }
+                }
+
                 // Send the file content
-                byte[] buffer = new byte[4096];
-                int bytesRead;
-                while ((bytesRead = fis.read(buffer)) != -1) {
-                    oss.write(buffer, 0, bytesRead);
+                int span = Tracer.span("peer.send.content");
+                try {
+                    sent = TransferUtils.copy(file, out, transfer);
+                } finally {
+                    Tracer.end(span);
                 }
-                System.out.println("File '" + filename + "' sent to " + clientSocket.getInetAddress());
+                completed.succeeded = true;
+                sharedFile.countDownload();
+                progress.complete();
+                Log.info("peer.sent", "file", filename, "bytes", sharedFile.getSize(),
+                        "remote", clientChannel.socket().socket().getInetAddress());
             } catch (IOException e) {
-                System.err.println("Error sending file to client: " + e.getMessage());
+                Tracer.failed(e);
+                Log.warn("peer.send_failed", "file", sharedFile.getFilename(), "error", e);
             } finally {
+                if (trace != null) {
+                    trace.close();
+                }
                 try {
-                    clientSocket.close();
+                    clientChannel.close();
                 } catch (IOException e) {
-                    System.err.println("Error closing client socket: " + e.getMessage());
+                    Log.warn("peer.close_failed", "error", e);
+                }
+                sharedFile.endTransfer();
+                progress.fail();
+                completed.end();
+                if (completed.shouldCommit()) {
+                    completed.requestId = sharedFile.getCorrelationId();
+                    completed.code = code;
+                    completed.host = host;
+                    completed.sending = true;
+                    completed.bytes = sent;
+                    completed.commit();
+                }
+                Log.setCorrelationId(null);
+            }
+        }
+
+        private ByteChannel accept() throws IOException {
+            JfrEvents.PeerConnected event = new JfrEvents.PeerConnected();
+            event.begin();
+            ByteChannel peer = clientChannel;
+            if (tls != null) {
+                int span = Tracer.span("tls.handshake");
+                try {
+                    peer = tls.accept(clientChannel);
+                } finally {
+                    Tracer.end(span);
                 }
             }
+            Socket socket = clientChannel.socket().socket();
+            connected(event, socket.getInetAddress().getHostAddress(), socket.getLocalPort(), true, tls != null);
+            return peer;
         }
     }
 
@@ -0,0 +1,80 @@
+package p2p.service;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A file stored as a list of chunks in a {@link ChunkStore}. On disk it is
+ * a text file: {@code PLM1 <size> <chunks>}, then one
+ * {@code <sha-256 hex> <length>} line per chunk.
+ */
+public final class Manifest {
+    private static final String MAGIC = "PLM1";
+
+    private final ChunkStore store;
+    private final String[] hashes;
+    private final long[] offsets;
+
+    Manifest(ChunkStore store, List<String> hashes, List<Long> lengths) {
+        this.store = store;
+        this.hashes = hashes.toArray(new String[0]);
+        this.offsets = new long[hashes.size() + 1];
+        for (int i = 0; i < lengths.size(); i++) {
+            offsets[i + 1] = offsets[i] + lengths.get(i);
+        }
+    }
+
+    void write(Path path) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.US_ASCII,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            writer.write(MAGIC + " " + size() + " " + hashes.length + "\n");
+            for (int i = 0; i < hashes.length; i++) {
+                writer.write(hashes[i] + " " + chunkLength(i) + "\n");
+            }
+        }
+    }
+
+    /**
+     * Opens the content for reading, with read-ahead for sequential reads.
+     */
+    public SeekableByteChannel open() {
+        return new ChunkedChannel(store, this);
+    }
+
+    public long size() {
+        return offsets[hashes.length];
+    }
+
+    public int getChunkCount() {
+        return hashes.length;
+    }
+
+    public String chunkHash(int i) {
+        return hashes[i];
+    }
+
+    public long chunkOffset(int i) {
+        return offsets[i];
+    }
+
+    public long chunkLength(int i) {
+        return offsets[i + 1] - offsets[i];
+    }
+
+    /**
+     * The chunk holding byte {@code position}, which must be below {@link #size()}.
+     */
+    public int chunkAt(long position) {
+        int found = Arrays.binarySearch(offsets, position);
+        // An exact hit on a boundary starts that chunk; otherwise take
+        // the chunk before the insertion point.
+        return found >= 0 ? found : -found - 2;
+    }
+}
@@ -0,0 +1,242 @@
+package p2p.service;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+import p2p.utils.DigestUtils;
+import p2p.utils.HashingChannel;
+import p2p.utils.MerkleTree;
+import p2p.utils.TreeHashingChannel;
+
+/**
+ * The peer socket protocol: a header block of {@code Name: value} lines
+ * ended by an empty line, followed by the raw file content.
+ * <p>
+ * A share identified by a {@link MerkleTree} announces its root in
+ * {@code Tree-Root} and its leaf count in {@code Tree-Leaves}, and sends the
+ * leaf hashes, {@link MerkleTree#HASH_LENGTH} bytes each, between the header
+ * block and the content. A {@link Receiver} checks them against the root
+ * and then each leaf of content against its hash.
+ */
+public final class PeerProtocol {
+
+    private PeerProtocol() {
+    }
+
+    /**
+     * The header block announcing {@code sharedFile}. The length and digest
+     * let the receiver detect truncated or corrupted transfers.
+     */
+    public static String header(SharedFile sharedFile) {
+        StringBuilder header = new StringBuilder()
+                .append("Filename: ").append(sharedFile.getFilename()).append('\n')
+                .append("Content-Length: ").append(sharedFile.getSize()).append('\n');
+        if (sharedFile.getDigestHeader() != null) {
+            header.append("Digest: ").append(sharedFile.getDigestHeader()).append('\n');
+        }
+        MerkleTree tree = sharedFile.getTree();
+        if (tree != null) {
+            header.append("Tree-Root: ").append(Base64.getEncoder().encodeToString(tree.getRoot())).append('\n')
+                    .append("Tree-Leaves: ").append(tree.getLeafCount()).append('\n');
+        }
+        return header.append('\n').toString();
+    }
+
+    /**
+     * Reads the peer's header block. Any content bytes read past it are left
+     * in the buffer, which is returned in write mode. Returns null if the
+     * peer closed the connection first.
+     */
+    public static Map<String, String> readHeaders(ReadableByteChannel peer, ByteBuffer buffer) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        int lineStart = 0;
+        int scanned = 0;
+        while (true) {
+            for (int i = scanned; i < buffer.position(); i++) {
+                if (buffer.get(i) != '\n') {
+                    continue;
+                }
+                byte[] line = new byte[i - lineStart];
+                buffer.get(lineStart, line);
+                String header = new String(line, StandardCharsets.UTF_8).trim();
+                lineStart = i + 1;
+                if (header.isEmpty()) {
+                    buffer.flip();
+                    buffer.position(lineStart);
+                    buffer.compact();
+                    return headers;
+                }
+                int colon = header.indexOf(':');
+                if (colon > 0) {
+                    headers.put(header.substring(0, colon).trim(), header.substring(colon + 1).trim());
+                }
+            }
+            scanned = buffer.position();
+            if (!buffer.hasRemaining() || peer.read(buffer) < 0) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * The announced content length, or -1 if missing or malformed.
+     */
+    public static long contentLength(Map<String, String> headers) {
+        String value = headers.get("Content-Length");
+        try {
+            return value == null ? -1 : Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Checks received content against the length and digest the peer
+     * announced, so a truncated stream is never taken as a complete file.
+     */
+    public static boolean isComplete(Map<String, String> headers, long length, byte[] sha256) {
+        if (headers == null || contentLength(headers) != length) {
+            return false;
+        }
+        byte[] expectedDigest = DigestUtils.fromDigestHeader(headers.get("Digest"));
+        return expectedDigest != null && MessageDigest.isEqual(expectedDigest, sha256);
+    }
+
+    /**
+     * Receives the content announced by {@code headers} into {@code out},
+     * hashing it the way the sender identified it. For a tree, the leaf
+     * hashes that follow the header block are read first, from what is left
+     * in {@code buffer} and then from {@code peer}, and checked against the
+     * announced root. The buffer is left in write mode holding any content
+     * bytes read past them.
+     */
+    public static Receiver receive(Map<String, String> headers, ReadableByteChannel peer, ByteBuffer buffer,
+            WritableByteChannel out) throws IOException {
+        String root = headers.get("Tree-Root");
+        if (root == null) {
+            return new Receiver(headers, new HashingChannel(out, DigestUtils.sha256()), null, null);
+        }
+        long length = contentLength(headers);
+        long leafCount;
+        byte[] expectedRoot;
+        try {
+            leafCount = Long.parseLong(headers.getOrDefault("Tree-Leaves", "").trim());
+            expectedRoot = Base64.getDecoder().decode(root.trim());
+        } catch (IllegalArgumentException e) {
+            throw new ProtocolException("Malformed tree headers");
+        }
+        if (length < 0 || leafCount != MerkleTree.leafCount(length)
+                || leafCount > Integer.MAX_VALUE / MerkleTree.HASH_LENGTH) {
+            throw new ProtocolException("Tree of " + leafCount + " leaves does not fit " + length + " bytes");
+        }
+
+        byte[] packed = new byte[(int) leafCount * MerkleTree.HASH_LENGTH];
+        int filled = 0;
+        while (true) {
+            buffer.flip();
+            int n = Math.min(buffer.remaining(), packed.length - filled);
+            buffer.get(packed, filled, n);
+            buffer.compact();
+            filled += n;
+            if (filled == packed.length) {
+                break;
+            }
+            if (peer.read(buffer) < 0) {
+                throw new EOFException("Peer closed before sending the leaf hashes");
+            }
+        }
+        byte[][] leaves = new byte[(int) leafCount][];
+        for (int i = 0; i < leaves.length; i++) {
+            leaves[i] = new byte[MerkleTree.HASH_LENGTH];
+            System.arraycopy(packed, i * MerkleTree.HASH_LENGTH, leaves[i], 0, MerkleTree.HASH_LENGTH);
+        }
+        MerkleTree tree = new MerkleTree(leaves);
+        if (!MessageDigest.isEqual(tree.getRoot(), expectedRoot)) {
+            throw new ProtocolException("Leaf hashes do not match the announced root");
+        }
+        return new Receiver(headers, null, new TreeHashingChannel(out, leaves), tree);
+    }
+
+    /**
+     * Content arriving from a peer. Write the content through it, close it,
+     * then check {@link #isComplete()}.
+     */
+    public static final class Receiver implements WritableByteChannel {
+        private final Map<String, String> headers;
+        private final HashingChannel hashing;
+        private final TreeHashingChannel treeHashing;
+        private final MerkleTree expectedTree;
+        private byte[] sha256;
+
+        private Receiver(Map<String, String> headers, HashingChannel hashing, TreeHashingChannel treeHashing,
+                MerkleTree expectedTree) {
+            this.headers = headers;
+            this.hashing = hashing;
+            this.treeHashing = treeHashing;
+            this.expectedTree = expectedTree;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return hashing != null ? hashing.write(src) : treeHashing.write(src);
+        }
+
+        public long getCount() {
+            return hashing != null ? hashing.getCount() : treeHashing.getCount();
+        }
+
+        /**
+         * Whether the whole content arrived and matches what the sender
+         * announced. Call once, after {@link #close()}.
+         */
+        public boolean isComplete() throws IOException {
+            if (contentLength(headers) != getCount()) {
+                return false;
+            }
+            if (hashing != null) {
+                sha256 = hashing.digest();
+                return PeerProtocol.isComplete(headers, getCount(), sha256);
+            }
+            treeHashing.tree();
+            return treeHashing.matchesExpected();
+        }
+
+        /**
+         * The content digest, if the sender identified it by one. Call after
+         * {@link #isComplete()}.
+         */
+        public byte[] getSha256() {
+            return sha256;
+        }
+
+        /**
+         * The verified hash tree, if the sender sent one.
+         */
+        public MerkleTree getTree() {
+            return expectedTree;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return hashing != null ? hashing.isOpen() : treeHashing.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (hashing != null) {
+                hashing.close();
+            } else {
+                treeHashing.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import p2p.utils.JsonUtils;
+import p2p.utils.Log;
+import p2p.utils.NamedThreadFactory;
+
+/**
+ * Publishes transfer progress as Server-Sent Events.
+ * <p>
+ * Transfers only bump their counters; a single ticker thread samples them at
+ * a fixed rate, formats at most one event per transfer and tick, and writes
+ * that event to every watcher that hasn't seen it yet. Watchers therefore
+ * cost the transfers nothing, and a busy transfer produces no more events
+ * than an idle one.
+ */
+public class ProgressTracker {
+    public static final long DEFAULT_TICK_MILLIS = 250;
+    static final long HEARTBEAT_MILLIS = 15_000;
+    static final long KEEP_FINISHED_MILLIS = 60_000;
+    static final long PENDING_WATCH_MILLIS = 5 * 60_000;
+
+    private static final Pattern VALID_ID = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+    private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.UTF_8);
+
+    private final Map<String, TransferProgress> transfers = new ConcurrentHashMap<>();
+    private final Map<String, Set<Watcher>> watchers = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService ticker;
+
+    public ProgressTracker() {
+        this(DEFAULT_TICK_MILLIS);
+    }
+
+    public ProgressTracker(long tickMillis) {
+        ticker = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("progress-ticker"));
+        ticker.scheduleAtFixedRate(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public static boolean isValidId(String id) {
+        return id != null && VALID_ID.matcher(id).matches();
+    }
+
+    /**
+     * Registers a transfer. A client-chosen {@code id} lets the client
+     * subscribe before the transfer starts; a fresh id is used if it is
+     * missing, invalid or taken.
+     */
+    public TransferProgress start(String id, String type, long total) {
+        if (isValidId(id)) {
+            TransferProgress progress = new TransferProgress(id, type, total);
+            if (transfers.putIfAbsent(id, progress) == null) {
+                return progress;
+            }
+        }
+        while (true) {
+            TransferProgress progress = new TransferProgress(UUID.randomUUID().toString(), type, total);
+            if (transfers.putIfAbsent(progress.getId(), progress) == null) {
+                return progress;
+            }
+        }
+    }
+
+    public TransferProgress get(String id) {
+        return transfers.get(id);
+    }
+
+    /**
+     * A live view of the transfers running or recently finished. Iterating
+     * it takes no locks and may miss transfers that start meanwhile.
+     */
+    public Collection<TransferProgress> getTransfers() {
+        return Collections.unmodifiableCollection(transfers.values());
+    }
+
+    /**
+     * Streams events for transfer {@code id} to {@code out}, which must
+     * already carry the response headers. The stream is closed after the
+     * final event or when a write fails. The transfer need not exist yet.
+     */
+    public void subscribe(String id, OutputStream out) {
+        Watcher watcher = new Watcher(out);
+        watchers.compute(id, (key, set) -> {
+            if (set == null) {
+                set = ConcurrentHashMap.newKeySet();
+            }
+            set.add(watcher);
+            return set;
+        });
+    }
+
+    public int getWatcherCount() {
+        int count = 0;
+        for (Set<Watcher> set : watchers.values()) {
+            count += set.size();
+        }
+        return count;
+    }
+
+    public void shutdown() {
+        ticker.shutdownNow();
+        for (Set<Watcher> set : watchers.values()) {
+            for (Watcher watcher : set) {
+                watcher.close();
+            }
+        }
+        watchers.clear();
+    }
+
+    private void tick() {
+        long now = System.currentTimeMillis();
+        try {
+            for (Map.Entry<String, Set<Watcher>> entry : watchers.entrySet()) {
+                publish(entry.getKey(), entry.getValue(), now);
+                watchers.computeIfPresent(entry.getKey(), (key, set) -> set.isEmpty() ? null : set);
+            }
+            transfers.values().removeIf(progress -> progress.getState() != TransferProgress.State.RUNNING
+                    && now - progress.getFinishedAt() > KEEP_FINISHED_MILLIS);
+        } catch (RuntimeException e) {
+            // Keep ticking; an exception would cancel the schedule.
+            Log.warn("progress.publish_failed", "error", e);
+        }
+    }
+
+    private void publish(String id, Set<Watcher> set, long now) {
+        TransferProgress progress = transfers.get(id);
+        // Sample once, so every watcher gets the same consistent snapshot.
+        long transferred = progress == null ? 0 : progress.getTransferred();
+        TransferProgress.State state = progress == null ? null : progress.getState();
+        byte[] event = null;
+
+        Iterator<Watcher> iterator = set.iterator();
+        while (iterator.hasNext()) {
+            Watcher watcher = iterator.next();
+            boolean keep;
+            if (progress != null && (watcher.sentState != state || watcher.sentTransferred != transferred)) {
+                if (event == null) {
+                    event = format(progress, transferred, state);
+                }
+                keep = watcher.send(event, now) && state == TransferProgress.State.RUNNING;
+                watcher.sentState = state;
+                watcher.sentTransferred = transferred;
+            } else if (progress == null && now - watcher.createdAt > PENDING_WATCH_MILLIS) {
+                keep = false;
+            } else if (now - watcher.lastWrite >= HEARTBEAT_MILLIS) {
+                // Comment lines keep proxies from timing out and reveal closed clients.
+                keep = watcher.send(HEARTBEAT, now);
+            } else {
+                keep = true;
+            }
+            if (!keep) {
+                iterator.remove();
+                watcher.close();
+            }
+        }
+    }
+
+    private static byte[] format(TransferProgress progress, long transferred, TransferProgress.State state) {
+        StringBuilder json = new StringBuilder(160);
+        json.append("{\"id\": \"").append(progress.getId())
+                .append("\", \"type\": \"").append(progress.getType()).append('"');
+        String filename = progress.getFilename();
+        if (filename != null) {
+            json.append(", \"filename\": ");
+            JsonUtils.appendString(json, filename);
+        }
+        json.append(", \"transferred\": ").append(transferred)
+                .append(", \"total\": ").append(progress.getTotal())
+                .append(", \"state\": \"").append(state.name().toLowerCase()).append("\"}");
+        String event = "event: " + (state == TransferProgress.State.RUNNING ? "progress" : "done") + "\n"
+                + "data: " + json + "\n\n";
+        return event.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static class Watcher {
+        final OutputStream out;
+        final long createdAt = System.currentTimeMillis();
+        long lastWrite = createdAt;
+        long sentTransferred = -1;
+        TransferProgress.State sentState;
+
+        Watcher(OutputStream out) {
+            this.out = out;
+        }
+
+        boolean send(byte[] event, long now) {
+            try {
+                out.write(event);
+                out.flush();
+                lastWrite = now;
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        void close() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // The client is gone already.
+            }
+        }
+    }
+}
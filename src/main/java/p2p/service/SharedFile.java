@@ -0,0 +1,217 @@
+package p2p.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.SecretKey;
+
+import p2p.utils.DecryptingChannel;
+import p2p.utils.DigestUtils;
+import p2p.utils.Log;
+import p2p.utils.MerkleTree;
+
+/**
+ * A file offered for download together with the metadata recorded when it
+ * was stored. The content is either the file at {@link #getFilePath()} or,
+ * for uploads stored in a {@link ChunkStore}, the chunks listed by the
+ * {@link Manifest} kept there; {@link #open()} reads either. The content is
+ * identified by its SHA-256 or, for uploads hashed in tree mode, by the root
+ * of its {@link MerkleTree}. A file encrypted at rest is decrypted by
+ * {@link #open()} with the share's key, which is only ever held in memory.
+ */
+public class SharedFile {
+    private final String filePath;
+    private final long size;
+    private final byte[] sha256;
+    private final Manifest manifest;
+    private final MerkleTree tree;
+    private final SecretKey key;
+    private final long createdAt;
+    private final String lastModified;
+    private final String correlationId;
+    private final AtomicInteger activeTransfers = new AtomicInteger();
+    private final AtomicLong downloads = new AtomicLong();
+    private volatile int peerPort;
+    private volatile long lastUsed;
+
+    public SharedFile(String filePath, long size, byte[] sha256) {
+        this(filePath, size, sha256, null);
+    }
+
+    public SharedFile(String filePath, long size, byte[] sha256, Manifest manifest) {
+        this(filePath, size, sha256, null, manifest);
+    }
+
+    /**
+     * @param sha256 the content digest, or null if only {@code tree} is known
+     * @param tree the content's hash tree, or null
+     */
+    public SharedFile(String filePath, long size, byte[] sha256, MerkleTree tree, Manifest manifest) {
+        this(filePath, size, sha256, tree, manifest, null);
+    }
+
+    /**
+     * @param key the key the file at {@code filePath} is encrypted with, or null
+     */
+    public SharedFile(String filePath, long size, byte[] sha256, MerkleTree tree, Manifest manifest,
+            SecretKey key) {
+        if (sha256 == null && tree == null) {
+            throw new IllegalArgumentException("A shared file needs a SHA-256 or a hash tree");
+        }
+        this.filePath = filePath;
+        this.size = size;
+        this.sha256 = sha256;
+        this.tree = tree;
+        this.manifest = manifest;
+        this.key = key;
+        this.createdAt = System.currentTimeMillis();
+        this.lastUsed = createdAt;
+        this.correlationId = Log.getCorrelationId();
+        this.lastModified = DateTimeFormatter.RFC_1123_DATE_TIME.format(
+                Instant.ofEpochMilli(createdAt).atZone(ZoneOffset.UTC));
+    }
+
+    /**
+     * The correlation id of the request that stored the file, or null.
+     */
+    public String getCorrelationId() {
+        return correlationId;
+    }
+
+    /**
+     * The port the peer server listens on for this share, 0 if not yet bound.
+     */
+    public int getPeerPort() {
+        return peerPort;
+    }
+
+    void setPeerPort(int peerPort) {
+        this.peerPort = peerPort;
+    }
+
+    public String getFilePath() {
+        return filePath;
+    }
+
+    /**
+     * The chunks holding the content, or null if it is a plain file.
+     */
+    public Manifest getManifest() {
+        return manifest;
+    }
+
+    /**
+     * Whether the stored file is encrypted.
+     */
+    public boolean isEncrypted() {
+        return key != null;
+    }
+
+    /**
+     * Opens the content for reading.
+     */
+    public SeekableByteChannel open() throws IOException {
+        if (manifest != null) {
+            return manifest.open();
+        }
+        FileChannel file = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ);
+        if (key == null) {
+            return file;
+        }
+        try {
+            return new DecryptingChannel(file, key);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    public String getFilename() {
+        return new File(filePath).getName();
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * The content digest, or null if the share is identified by its tree.
+     */
+    public byte[] getSha256() {
+        return sha256 == null ? null : sha256.clone();
+    }
+
+    /**
+     * The content's hash tree, or null.
+     */
+    public MerkleTree getTree() {
+        return tree;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    /**
+     * Creation time formatted for the {@code Last-Modified} header.
+     */
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * The {@code Digest} header value, or null without a SHA-256.
+     */
+    public String getDigestHeader() {
+        return sha256 == null ? null : DigestUtils.toDigestHeader(sha256);
+    }
+
+    public String getETag() {
+        return DigestUtils.toETag(sha256 != null ? sha256 : tree.getRoot());
+    }
+
+    /**
+     * Marks the start of a download; the share can't expire until the
+     * matching {@link #endTransfer()}.
+     */
+    public void beginTransfer() {
+        activeTransfers.incrementAndGet();
+        lastUsed = System.currentTimeMillis();
+    }
+
+    public void endTransfer() {
+        lastUsed = System.currentTimeMillis();
+        activeTransfers.decrementAndGet();
+    }
+
+    /**
+     * Counts a peer send of the whole file.
+     */
+    public void countDownload() {
+        downloads.incrementAndGet();
+    }
+
+    public long getDownloadCount() {
+        return downloads.get();
+    }
+
+    public int getActiveTransferCount() {
+        return activeTransfers.get();
+    }
+
+    /**
+     * Whether no download is running and none has for {@code millis}.
+     */
+    boolean isIdleFor(long millis, long now) {
+        return activeTransfers.get() == 0 && now - lastUsed > millis;
+    }
+}
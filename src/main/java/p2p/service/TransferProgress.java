@@ -0,0 +1,189 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Byte counter of one upload, download or peer send, read by the
+ * {@link ProgressTracker}.
+ * <p>
+ * Only the transferring thread updates a progress, so counting is a single
+ * volatile write per chunk; readers see a recent value, never a torn one.
+ * {@link #cancel()} only sets a flag, which the tracked channels check
+ * before each chunk.
+ */
+public class TransferProgress {
+    public enum State { RUNNING, COMPLETED, FAILED }
+
+    private final String id;
+    private final String type;
+    private volatile String filename;
+    private volatile long total;
+    private volatile long transferred;
+    private volatile State state = State.RUNNING;
+    private volatile long finishedAt;
+    private volatile String remote;
+    private volatile boolean cancelled;
+    private final long startedAt = System.currentTimeMillis();
+
+    TransferProgress(String id, String type, long total) {
+        this.id = id;
+        this.type = type;
+        this.total = total;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public void setFilename(String filename) {
+        this.filename = filename;
+    }
+
+    /**
+     * Total bytes expected, or -1 if unknown.
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    public void setTotal(long total) {
+        this.total = total;
+    }
+
+    public long getTransferred() {
+        return transferred;
+    }
+
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    /**
+     * The address of the other end, or null if not recorded.
+     */
+    public String getRemote() {
+        return remote;
+    }
+
+    public void setRemote(String remote) {
+        this.remote = remote;
+    }
+
+    public void add(long bytes) {
+        transferred += bytes;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    long getFinishedAt() {
+        return finishedAt;
+    }
+
+    public void complete() {
+        finish(State.COMPLETED);
+    }
+
+    /**
+     * Marks the transfer failed unless it already completed.
+     */
+    public void fail() {
+        finish(State.FAILED);
+    }
+
+    /**
+     * Stops the transfer at its next tracked read or write, which fails
+     * with an {@link IOException}. Returns false if it already finished or
+     * was already cancelled.
+     */
+    public synchronized boolean cancel() {
+        if (state != State.RUNNING || cancelled) {
+            return false;
+        }
+        cancelled = true;
+        return true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    private void checkCancelled() throws IOException {
+        if (cancelled) {
+            throw new IOException("Transfer cancelled");
+        }
+    }
+
+    private void finish(State result) {
+        if (state == State.RUNNING) {
+            finishedAt = System.currentTimeMillis();
+            state = result;
+        }
+    }
+
+    /**
+     * Counts the bytes read through {@code channel}.
+     */
+    public ReadableByteChannel trackReads(ReadableByteChannel channel) {
+        return new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                checkCancelled();
+                int n = channel.read(dst);
+                if (n > 0) {
+                    add(n);
+                }
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    /**
+     * Counts the bytes written through {@code channel}.
+     */
+    public WritableByteChannel trackWrites(WritableByteChannel channel) {
+        return new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                checkCancelled();
+                int n = channel.write(src);
+                if (n > 0) {
+                    add(n);
+                }
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+}
@@ -0,0 +1,192 @@
+package p2p.service;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import p2p.server.WebSocket;
+import p2p.utils.BufferPool;
+import p2p.utils.BufferPool.PooledBuffer;
+import p2p.utils.DigestUtils;
+import p2p.utils.JsonUtils;
+import p2p.utils.Log;
+
+/**
+ * Streams a share to a browser over a WebSocket, straight from the share
+ * store.
+ * <p>
+ * The server opens with a text message describing the file, then sends the
+ * content from the requested offset as binary messages of at most
+ * {@code chunkSize} bytes. Each binary message uses up one credit; the client
+ * grants more with {@code {"credit": n}} text messages, so a slow browser
+ * holds back the sender instead of piling up data in its socket buffers.
+ * After the last chunk the server sends {@code {"type": "done"}} and closes.
+ * A client that lost the connection reconnects with {@code ?offset=} set to
+ * the bytes it kept and checks the whole file against the announced digest.
+ * A transfer cancelled through its {@link TransferProgress} closes with
+ * status 1011 before its next chunk.
+ */
+public class WebSocketTransfer implements Runnable {
+    public static final int CHUNK_SIZE = 64 * 1024;
+    public static final int DEFAULT_INITIAL_CREDITS = 4;
+    /** Upper bound on outstanding credits, whatever the client grants. */
+    public static final int MAX_CREDITS = 256;
+
+    private static final Pattern CREDIT = Pattern.compile("\"credit\"\\s*:\\s*(\\d{1,9})");
+    private static final AtomicInteger ACTIVE = new AtomicInteger();
+
+    private final WebSocket socket;
+    private final SharedFile sharedFile;
+    private final long offset;
+    private final TransferProgress progress;
+    private final String correlationId = Log.getCorrelationId();
+    private int credits;
+    private boolean closeReceived;
+
+    public WebSocketTransfer(WebSocket socket, SharedFile sharedFile, long offset, int initialCredits,
+            TransferProgress progress) {
+        this.socket = socket;
+        this.sharedFile = sharedFile;
+        this.offset = offset;
+        this.credits = Math.max(0, Math.min(initialCredits, MAX_CREDITS));
+        this.progress = progress;
+    }
+
+    /**
+     * Transfers currently streaming, across all sockets.
+     */
+    public static int getActiveCount() {
+        return ACTIVE.get();
+    }
+
+    @Override
+    public void run() {
+        ACTIVE.incrementAndGet();
+        sharedFile.beginTransfer();
+        Log.setCorrelationId(correlationId);
+        try (socket) {
+            if (stream()) {
+                progress.complete();
+            } else {
+                progress.fail();
+            }
+            awaitClose();
+        } catch (IOException e) {
+            progress.fail();
+            Log.warn("ws.transfer_failed", "file", sharedFile.getFilename(), "error", e);
+        } finally {
+            Log.setCorrelationId(null);
+            sharedFile.endTransfer();
+            ACTIVE.decrementAndGet();
+        }
+    }
+
+    /**
+     * Sends the file from {@code offset}. Returns false if the client closed
+     * the socket or broke the protocol, or the transfer was cancelled, before
+     * the end.
+     */
+    private boolean stream() throws IOException {
+        sendMeta();
+        long size = sharedFile.getSize();
+        try (SeekableByteChannel file = sharedFile.open();
+             PooledBuffer pooled = BufferPool.shared().acquire(CHUNK_SIZE)) {
+            ByteBuffer buffer = pooled.buffer();
+            long position = offset;
+            while (position < size) {
+                // Take in credits as they arrive, and wait for them when out.
+                while (credits == 0 || socket.hasPendingInput()) {
+                    if (!handleClientMessage()) {
+                        return false;
+                    }
+                }
+                if (progress.isCancelled()) {
+                    socket.sendClose(WebSocket.CLOSE_INTERNAL_ERROR, "Transfer cancelled");
+                    return false;
+                }
+                buffer.clear().limit((int) Math.min(CHUNK_SIZE, size - position));
+                while (buffer.hasRemaining()) {
+                    if (file.position(position + buffer.position()).read(buffer) < 0) {
+                        throw new IOException("share is shorter than announced");
+                    }
+                }
+                buffer.flip();
+                int length = buffer.remaining();
+                socket.sendBinary(buffer);
+                position += length;
+                progress.add(length);
+                credits--;
+            }
+        }
+        socket.sendText("{\"type\": \"done\", \"size\": " + size + "}");
+        socket.sendClose(WebSocket.CLOSE_NORMAL, "done");
+        return true;
+    }
+
+    private void sendMeta() throws IOException {
+        StringBuilder json = new StringBuilder("{\"type\": \"meta\", \"filename\": ");
+        JsonUtils.appendString(json, sharedFile.getFilename());
+        json.append(", \"size\": ").append(sharedFile.getSize())
+                .append(", \"offset\": ").append(offset)
+                .append(", \"chunkSize\": ").append(CHUNK_SIZE);
+        byte[] sha256 = sharedFile.getSha256();
+        if (sha256 != null) {
+            json.append(", \"sha256\": \"").append(DigestUtils.toHex(sha256)).append('"');
+        } else {
+            json.append(", \"treeRoot\": \"").append(DigestUtils.toHex(sharedFile.getTree().getRoot())).append('"');
+        }
+        json.append('}');
+        socket.sendText(json.toString());
+    }
+
+    /**
+     * Reads one message from the client. Returns false once the transfer
+     * has to stop.
+     */
+    private boolean handleClientMessage() throws IOException {
+        WebSocket.Message message;
+        try {
+            message = socket.receive();
+        } catch (ProtocolException e) {
+            socket.sendClose(WebSocket.CLOSE_PROTOCOL_ERROR, e.getMessage());
+            return false;
+        }
+        if (message == null) {
+            throw new IOException("client went away");
+        }
+        if (message.getOpcode() == WebSocket.OP_CLOSE) {
+            closeReceived = true;
+            socket.sendClose(WebSocket.CLOSE_NORMAL, "");
+            return false;
+        }
+        if (message.getOpcode() == WebSocket.OP_TEXT) {
+            Matcher matcher = CREDIT.matcher(message.getText());
+            if (matcher.find()) {
+                credits = (int) Math.min(MAX_CREDITS, credits + Long.parseLong(matcher.group(1)));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Waits for the client's half of the closing handshake, skipping any
+     * credits still in flight.
+     */
+    private void awaitClose() throws IOException {
+        if (closeReceived) {
+            return;
+        }
+        WebSocket.Message message;
+        do {
+            try {
+                message = socket.receive();
+            } catch (ProtocolException e) {
+                return;
+            }
+        } while (message != null && message.getOpcode() != WebSocket.OP_CLOSE);
+    }
+}
@@ -0,0 +1,254 @@
+package p2p.utils;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import p2p.config.Config;
+import p2p.utils.BufferPool.PooledBuffer;
+
+/**
+ * Sizes each transfer's copy buffer from the throughput it actually gets.
+ * <p>
+ * Every {@link #WINDOW_NANOS} a transfer's buffer is resized to hold one
+ * round trip's worth of data at the measured rate, and at least
+ * {@link #MIN_INTERVAL_NANOS}'s worth so fast local paths still make large
+ * system calls, in pool size classes between {@link #MIN_BUFFER} and
+ * {@link #MAX_BUFFER}. When the round trip to the peer is known, a sending
+ * socket's send buffer is raised to twice the bandwidth-delay product.
+ * <p>
+ * Each transfer starts at {@link #INITIAL_BUFFER} and grows a size class
+ * per window, so a slow peer never ties up a large buffer for long. The
+ * round trip measured when connecting and the receive buffer a transfer
+ * needed are kept per peer host; the next connection asks for that
+ * receive buffer before connecting, since TCP fixes the window scale in the
+ * handshake.
+ * <p>
+ * Buffers grow only while the bytes held by all transfers stay under
+ * {@code buffer.transferBytes}; past that a transfer keeps the size it has,
+ * and every transfer can always have {@link #MIN_BUFFER}.
+ */
+public class AdaptiveBuffers {
+    public static final int MIN_BUFFER = 16 * 1024;
+    public static final int MAX_BUFFER = 1024 * 1024;
+    public static final int INITIAL_BUFFER = TransferUtils.COPY_BUFFER_SIZE;
+    public static final int MAX_SOCKET_BUFFER = 8 * 1024 * 1024;
+    static final long WINDOW_NANOS = 50_000_000L;
+    static final long MIN_INTERVAL_NANOS = 1_000_000L;
+    private static final int MAX_PEERS = 1024;
+
+    private static final AdaptiveBuffers SHARED = new AdaptiveBuffers(BufferPool.shared(),
+            Config.startup().getBufferTransferBytes());
+
+    private final BufferPool pool;
+    private final long maxBytes;
+    private final AtomicLong reserved = new AtomicLong();
+    private final AtomicLong grown = new AtomicLong();
+    private final AtomicLong shrunk = new AtomicLong();
+    private final AtomicLong capped = new AtomicLong();
+    private final ConcurrentHashMap<String, PeerPath> paths = new ConcurrentHashMap<>();
+
+    public AdaptiveBuffers(BufferPool pool, long maxBytes) {
+        this.pool = pool;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * The process-wide instance used by peer transfers and downloads.
+     */
+    public static AdaptiveBuffers shared() {
+        return SHARED;
+    }
+
+    /**
+     * Records how long connecting to {@code host} took, which is about one
+     * round trip.
+     */
+    public void connected(String host, long connectNanos) {
+        PeerPath path = path(host);
+        long rtt = path.rttNanos;
+        path.rttNanos = rtt == 0 ? connectNanos : (3 * rtt + connectNanos) / 4;
+    }
+
+    /**
+     * The receive buffer earlier transfers from {@code host} needed, or 0 if
+     * none is known.
+     */
+    public int receiveBufferFor(String host) {
+        PeerPath path = paths.get(host);
+        return path == null ? 0 : path.socketBuffer;
+    }
+
+    /**
+     * Starts a transfer with {@code host}. Pass the socket when this end
+     * sends, so its send buffer grows with the transfer; null otherwise.
+     */
+    public Transfer open(String host, SocketChannel socket) throws IOException {
+        PeerPath path = path(host);
+        int size = INITIAL_BUFFER;
+        if (!reserve(size)) {
+            size = MIN_BUFFER;
+            reserved.addAndGet(size);
+        }
+        return new Transfer(path, socket, size);
+    }
+
+    private PeerPath path(String host) {
+        if (paths.size() >= MAX_PEERS && !paths.containsKey(host)) {
+            paths.clear();
+        }
+        return paths.computeIfAbsent(host, h -> new PeerPath());
+    }
+
+    private boolean reserve(long bytes) {
+        while (true) {
+            long current = reserved.get();
+            if (current + bytes > maxBytes) {
+                return false;
+            }
+            if (reserved.compareAndSet(current, current + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * The smallest pool size class holding {@code bytes}, within the limits.
+     */
+    static int sizeFor(long bytes) {
+        int size = MIN_BUFFER;
+        while (size < bytes && size < MAX_BUFFER) {
+            size *= 4;
+        }
+        return size;
+    }
+
+    /** Bytes held by transfer buffers right now. */
+    public long getReservedBytes() {
+        return reserved.get();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getGrownCount() {
+        return grown.get();
+    }
+
+    public long getShrunkCount() {
+        return shrunk.get();
+    }
+
+    /** Number of times a buffer stayed smaller than its transfer wanted because of the cap. */
+    public long getCappedCount() {
+        return capped.get();
+    }
+
+    /**
+     * What the transfers with one peer host have learned. Updated without
+     * locking; a lost update only costs a transfer its head start.
+     */
+    private static final class PeerPath {
+        volatile long rttNanos;
+        volatile int socketBuffer;
+    }
+
+    /**
+     * The buffer of one transfer. Not thread-safe; close it exactly once,
+     * from the thread that owns it.
+     */
+    public final class Transfer implements AutoCloseable {
+        private final PeerPath path;
+        private final SocketChannel socket;
+        private PooledBuffer pooled;
+        private int size;
+        private int sendBuffer;
+        private long peakBandwidthDelay;
+        private long windowStart = System.nanoTime();
+        private long windowBytes;
+
+        Transfer(PeerPath path, SocketChannel socket, int size) throws IOException {
+            this.path = path;
+            this.socket = socket;
+            this.size = size;
+            this.pooled = pool.acquire(size);
+            this.sendBuffer = socket != null ? socket.getOption(StandardSocketOptions.SO_SNDBUF) : 0;
+        }
+
+        public ByteBuffer buffer() {
+            return pooled.buffer();
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Counts {@code bytes} as moved. Once a window has passed, an empty
+         * buffer may be swapped for one of another size, so use the returned
+         * buffer from then on.
+         */
+        public ByteBuffer transferred(long bytes) throws IOException {
+            windowBytes += bytes;
+            long now = System.nanoTime();
+            long elapsed = now - windowStart;
+            if (elapsed >= WINDOW_NANOS) {
+                adapt(windowBytes * 1_000_000_000.0 / elapsed);
+                windowStart = now;
+                windowBytes = 0;
+            }
+            return pooled.buffer();
+        }
+
+        private void adapt(double bytesPerSecond) throws IOException {
+            long rtt = path.rttNanos;
+            long bandwidthDelay = (long) (bytesPerSecond * rtt / 1e9);
+            peakBandwidthDelay = Math.max(peakBandwidthDelay, bandwidthDelay);
+            if (socket != null && rtt > 0) {
+                // Only ever raised: setting it at all turns off the kernel's own tuning.
+                int wanted = (int) Math.min(MAX_SOCKET_BUFFER, 2 * bandwidthDelay);
+                if (wanted > sendBuffer) {
+                    socket.setOption(StandardSocketOptions.SO_SNDBUF, wanted);
+                    sendBuffer = wanted;
+                }
+            }
+
+            long wanted = (long) (bytesPerSecond * Math.max(rtt, MIN_INTERVAL_NANOS) / 1e9);
+            int target = Math.min(sizeFor(wanted), 4 * size);
+            if (target == size || pooled.buffer().position() > 0) {
+                return;
+            }
+            if (target > size) {
+                if (!reserve(target - size)) {
+                    capped.incrementAndGet();
+                    return;
+                }
+                grown.incrementAndGet();
+            } else {
+                reserved.addAndGet(target - size);
+                shrunk.incrementAndGet();
+            }
+            pooled.close();
+            pooled = pool.acquire(target);
+            size = target;
+        }
+
+        /**
+         * Returns the buffer and leaves the receive buffer this transfer
+         * needed for the next connection to the same peer.
+         */
+        @Override
+        public void close() {
+            int socketBuffer = (int) Math.min(MAX_SOCKET_BUFFER, 2 * peakBandwidthDelay);
+            if (socketBuffer > 0) {
+                path.socketBuffer = socketBuffer;
+            }
+            reserved.addAndGet(-size);
+            pooled.close();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package p2p.utils;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import p2p.config.Config;
+
+/**
+ * Size-classed pool of reusable direct buffers.
+ * <p>
+ * Buffers are handed out wrapped in a {@link PooledBuffer} that is returned
+ * with {@code close()}. Handles are pooled along with their buffers, so a
+ * steady-state acquire/release cycle allocates nothing. Every handle is
+ * registered with a {@link Cleaner} when it is created; if a checked-out
+ * handle becomes unreachable without being released, the leak is counted and
+ * reported. Requests larger than the biggest class get an unpooled buffer.
+ */
+public class BufferPool {
+    public static final int[] DEFAULT_SIZE_CLASSES = {4 * 1024, 16 * 1024, 64 * 1024, 256 * 1024, 1024 * 1024};
+    public static final long DEFAULT_MAX_POOLED_BYTES = 64L * 1024 * 1024;
+
+    private static final Cleaner CLEANER = Cleaner.create();
+    private static final BufferPool SHARED = new BufferPool(DEFAULT_SIZE_CLASSES,
+            Config.startup().getBufferPoolBytes());
+
+    private final SizeClass[] classes;
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong leaked = new AtomicLong();
+
+    public BufferPool(int[] sizeClasses, long maxPooledBytes) {
+        this.classes = new SizeClass[sizeClasses.length];
+        for (int i = 0; i < sizeClasses.length; i++) {
+            if (i > 0 && sizeClasses[i] <= sizeClasses[i - 1]) {
+                throw new IllegalArgumentException("Size classes must be strictly increasing");
+            }
+            int maxCount = (int) Math.max(1, maxPooledBytes / sizeClasses.length / sizeClasses[i]);
+            classes[i] = new SizeClass(sizeClasses[i], maxCount);
+        }
+    }
+
+    /**
+     * The process-wide pool used by every transfer copy loop, capped at the
+     * configured {@code buffer.poolBytes}.
+     */
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * Returns a cleared buffer with a capacity of at least {@code minCapacity}.
+     */
+    public PooledBuffer acquire(int minCapacity) {
+        acquired.incrementAndGet();
+        for (SizeClass sizeClass : classes) {
+            if (sizeClass.size >= minCapacity) {
+                PooledBuffer handle = sizeClass.free.poll();
+                if (handle == null) {
+                    handle = newHandle(sizeClass.size, sizeClass);
+                } else {
+                    sizeClass.pooled.decrementAndGet();
+                }
+                handle.checkOut();
+                return handle;
+            }
+        }
+        PooledBuffer handle = newHandle(minCapacity, null);
+        handle.checkOut();
+        return handle;
+    }
+
+    private PooledBuffer newHandle(int capacity, SizeClass sizeClass) {
+        allocated.incrementAndGet();
+        PooledBuffer handle = new PooledBuffer(this, ByteBuffer.allocateDirect(capacity), sizeClass);
+        CLEANER.register(handle, new LeakCheck(handle.outstanding, leaked, capacity));
+        return handle;
+    }
+
+    void release(PooledBuffer handle) {
+        SizeClass sizeClass = handle.sizeClass;
+        if (sizeClass == null) {
+            return;
+        }
+        if (sizeClass.pooled.incrementAndGet() > sizeClass.maxCount) {
+            sizeClass.pooled.decrementAndGet();
+            return;
+        }
+        handle.buffer().clear();
+        sizeClass.free.offer(handle);
+    }
+
+    /** Total number of acquisitions. */
+    public long getAcquiredCount() {
+        return acquired.get();
+    }
+
+    /** Number of buffers that had to be allocated because the pool was empty. */
+    public long getAllocatedCount() {
+        return allocated.get();
+    }
+
+    /** Number of buffers that were garbage collected without being released. */
+    public long getLeakedCount() {
+        return leaked.get();
+    }
+
+    /** Bytes currently held in the free lists. */
+    public long getPooledBytes() {
+        long bytes = 0;
+        for (SizeClass sizeClass : classes) {
+            bytes += (long) sizeClass.pooled.get() * sizeClass.size;
+        }
+        return bytes;
+    }
+
+    static final class SizeClass {
+        final int size;
+        final int maxCount;
+        final ConcurrentLinkedQueue<PooledBuffer> free = new ConcurrentLinkedQueue<>();
+        final AtomicInteger pooled = new AtomicInteger();
+
+        SizeClass(int size, int maxCount) {
+            this.size = size;
+            this.maxCount = maxCount;
+        }
+    }
+
+    /**
+     * Runs when a handle is collected. Handles dropped by the pool itself are
+     * never outstanding; anything else was lost by its borrower.
+     */
+    private static final class LeakCheck implements Runnable {
+        private final AtomicBoolean outstanding;
+        private final AtomicLong leaked;
+        private final int capacity;
+
+        LeakCheck(AtomicBoolean outstanding, AtomicLong leaked, int capacity) {
+            this.outstanding = outstanding;
+            this.leaked = leaked;
+            this.capacity = capacity;
+        }
+
+        @Override
+        public void run() {
+            if (outstanding.get()) {
+                leaked.incrementAndGet();
+                Log.error("buffer.leaked", "bytes", capacity);
+            }
+        }
+    }
+
+    /**
+     * A buffer borrowed from a {@link BufferPool}. Not thread-safe; release it
+     * exactly once, from the thread that owns it.
+     */
+    public static final class PooledBuffer implements AutoCloseable {
+        private final BufferPool pool;
+        private final ByteBuffer buffer;
+        private final SizeClass sizeClass;
+        final AtomicBoolean outstanding = new AtomicBoolean();
+
+        PooledBuffer(BufferPool pool, ByteBuffer buffer, SizeClass sizeClass) {
+            this.pool = pool;
+            this.buffer = buffer;
+            this.sizeClass = sizeClass;
+        }
+
+        void checkOut() {
+            outstanding.set(true);
+        }
+
+        public ByteBuffer buffer() {
+            return buffer;
+        }
+
+        @Override
+        public void close() {
+            if (!outstanding.compareAndSet(true, false)) {
+                throw new IllegalStateException("Buffer released twice");
+            }
+            pool.release(this);
+        }
+    }
+}
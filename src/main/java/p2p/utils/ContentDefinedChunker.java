@@ -0,0 +1,90 @@
+package p2p.utils;
+
+import java.nio.ByteBuffer;
+import java.util.SplittableRandom;
+
+/**
+ * Finds chunk boundaries in a byte stream from the content itself
+ * (FastCDC), so an insertion or deletion only changes the chunks around it
+ * and the rest of a near-duplicate file still produces the same chunks.
+ * <p>
+ * A gear hash rolls over the bytes, and a chunk ends where the hash's top
+ * bits are all zero. Nothing is hashed in the first {@code minSize} bytes of
+ * a chunk; up to {@code avgSize} a stricter mask makes a cut less likely and
+ * after it a looser one more likely, which keeps chunk sizes close to the
+ * average. Every chunk ends by {@code maxSize}.
+ */
+public class ContentDefinedChunker {
+    public static final int DEFAULT_MIN_SIZE = 256 * 1024;
+    public static final int DEFAULT_AVG_SIZE = 1024 * 1024;
+    public static final int DEFAULT_MAX_SIZE = 4 * 1024 * 1024;
+
+    /** Random values for each byte; fixed, so the same content always cuts the same way. */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        SplittableRandom random = new SplittableRandom(0x5045_4552_4c49_4e4bL);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final int minSize;
+    private final int avgSize;
+    private final int maxSize;
+    private final long strictMask;
+    private final long looseMask;
+    private long hash;
+    private long length;
+
+    public ContentDefinedChunker() {
+        this(DEFAULT_MIN_SIZE, DEFAULT_AVG_SIZE, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param avgSize the target chunk size, a power of two
+     */
+    public ContentDefinedChunker(int minSize, int avgSize, int maxSize) {
+        if (Integer.bitCount(avgSize) != 1 || minSize <= 0 || minSize >= avgSize || avgSize >= maxSize) {
+            throw new IllegalArgumentException("Need 0 < minSize < avgSize < maxSize and a power-of-two avgSize");
+        }
+        this.minSize = minSize;
+        this.avgSize = avgSize;
+        this.maxSize = maxSize;
+        int bits = Integer.numberOfTrailingZeros(avgSize);
+        // The top bits of the gear hash depend on the last 64 bytes; the
+        // low ones only on the last few.
+        this.strictMask = -1L << (64 - (bits + 2));
+        this.looseMask = -1L << (64 - Math.max(1, bits - 2));
+    }
+
+    /**
+     * Scans {@code data} from its position to its limit, without moving
+     * either, as the continuation of the current chunk. Returns how many of
+     * those bytes complete the chunk, after which the next chunk begins, or
+     * -1 if the chunk goes on past the limit.
+     */
+    public int findBoundary(ByteBuffer data) {
+        int start = data.position();
+        int limit = data.limit();
+        int i = start;
+        if (length < minSize) {
+            // No cut can fall this early, so there is nothing to hash.
+            int skip = (int) Math.min(limit - i, minSize - length);
+            i += skip;
+            length += skip;
+        }
+        long h = hash;
+        while (i < limit) {
+            h = (h << 1) + GEAR[data.get(i++) & 0xff];
+            length++;
+            if ((h & (length < avgSize ? strictMask : looseMask)) == 0 || length >= maxSize) {
+                hash = 0;
+                length = 0;
+                return i - start;
+            }
+        }
+        hash = h;
+        return -1;
+    }
+}
@@ -0,0 +1,147 @@
+package p2p.utils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * Reads content written by an {@link EncryptingChannel}, at any position.
+ * A read decrypts the segment holding the position and keeps it, so
+ * sequential reads decrypt each segment once and a seek costs at most one
+ * segment. A segment that fails authentication fails the read.
+ */
+public class DecryptingChannel implements SeekableByteChannel {
+    private final SeekableByteChannel delegate;
+    private final SecretKey key;
+    private final Cipher cipher = StreamEncryption.newCipher();
+    private final ByteBuffer sealed = ByteBuffer.allocate(StreamEncryption.SEGMENT_SIZE + StreamEncryption.TAG_LENGTH);
+    private final ByteBuffer segment = ByteBuffer.allocate(StreamEncryption.SEGMENT_SIZE);
+    private final long fileSize;
+    private final long size;
+    private final long lastSegment;
+    private long segmentIndex = -1;
+    private long position;
+    private boolean closed;
+
+    public DecryptingChannel(SeekableByteChannel delegate, SecretKey key) throws IOException {
+        this.delegate = delegate;
+        this.key = key;
+        ByteBuffer header = ByteBuffer.allocate(StreamEncryption.HEADER_LENGTH);
+        readFully(header, 0);
+        header.flip();
+        if (header.getInt() != StreamEncryption.MAGIC || header.getInt() != StreamEncryption.SEGMENT_SIZE) {
+            throw new ProtocolException("Not an encrypted share file");
+        }
+        this.fileSize = delegate.size();
+        this.size = StreamEncryption.contentSize(fileSize);
+        if (size < 0) {
+            throw new ProtocolException("Encrypted share file has a truncated segment");
+        }
+        this.lastSegment = size == 0 ? 0 : (size - 1) / StreamEncryption.SEGMENT_SIZE;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        if (position >= size) {
+            return -1;
+        }
+        int total = 0;
+        while (dst.hasRemaining() && position < size) {
+            long index = position / StreamEncryption.SEGMENT_SIZE;
+            if (index != segmentIndex) {
+                load(index);
+            }
+            int offset = (int) (position - index * StreamEncryption.SEGMENT_SIZE);
+            int n = Math.min(dst.remaining(), segment.limit() - offset);
+            dst.put(segment.slice(offset, n));
+            position += n;
+            total += n;
+        }
+        return total;
+    }
+
+    private void load(long index) throws IOException {
+        long start = StreamEncryption.HEADER_LENGTH
+                + index * (StreamEncryption.SEGMENT_SIZE + StreamEncryption.TAG_LENGTH);
+        int length = (int) Math.min(sealed.capacity(), fileSize - start);
+        sealed.clear().limit(length);
+        readFully(sealed, start);
+        sealed.flip();
+        segment.clear();
+        segmentIndex = -1;
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, key, StreamEncryption.segmentIv(index, index == lastSegment));
+            cipher.doFinal(sealed, segment);
+        } catch (AEADBadTagException e) {
+            throw new ProtocolException("Segment " + index + " of the encrypted share file failed authentication");
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Decryption failed", e);
+        }
+        segment.flip();
+        segmentIndex = index;
+    }
+
+    private void readFully(ByteBuffer buffer, long at) throws IOException {
+        delegate.position(at);
+        while (buffer.hasRemaining()) {
+            if (delegate.read(buffer) < 0) {
+                throw new EOFException("Encrypted share file ended early");
+            }
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) {
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position");
+        }
+        position = newPosition;
+        return this;
+    }
+
+    /**
+     * The size of the content, not of the file.
+     */
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        delegate.close();
+    }
+}
@@ -0,0 +1,64 @@
+package p2p.utils;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+public class DigestUtils {
+
+    public static final String ALGORITHM = "SHA-256";
+    public static final String DIGEST_PREFIX = "sha-256=";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    public static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    public static String toHex(byte[] digest) {
+        char[] chars = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            chars[2 * i] = HEX[(digest[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX[digest[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Value for a {@code Digest} header (RFC 3230), e.g. {@code sha-256=base64}.
+     */
+    public static String toDigestHeader(byte[] digest) {
+        return DIGEST_PREFIX + Base64.getEncoder().encodeToString(digest);
+    }
+
+    /**
+     * Parses a {@code Digest} header value; returns null if it carries no SHA-256.
+     */
+    public static byte[] fromDigestHeader(String value) {
+        if (value == null) {
+            return null;
+        }
+        for (String part : value.split(",")) {
+            String trimmed = part.trim();
+            if (trimmed.regionMatches(true, 0, DIGEST_PREFIX, 0, DIGEST_PREFIX.length())) {
+                try {
+                    return Base64.getDecoder().decode(trimmed.substring(DIGEST_PREFIX.length()));
+                } catch (IllegalArgumentException e) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Strong entity tag derived from the content digest.
+     */
+    public static String toETag(byte[] digest) {
+        return "\"" + toHex(digest) + "\"";
+    }
+}
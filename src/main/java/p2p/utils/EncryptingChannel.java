@@ -0,0 +1,87 @@
+package p2p.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * Encrypts everything written through it into the {@link StreamEncryption}
+ * format. Content is gathered into one segment at a time, and a full
+ * segment is only sealed once more bytes arrive, since the last segment is
+ * sealed differently; {@link #close()} seals whatever is left.
+ */
+public class EncryptingChannel implements WritableByteChannel {
+    private final WritableByteChannel delegate;
+    private final SecretKey key;
+    private final Cipher cipher = StreamEncryption.newCipher();
+    private final ByteBuffer segment = ByteBuffer.allocate(StreamEncryption.SEGMENT_SIZE);
+    private final ByteBuffer sealed = ByteBuffer.allocate(StreamEncryption.SEGMENT_SIZE + StreamEncryption.TAG_LENGTH);
+    private long index;
+    private boolean closed;
+
+    public EncryptingChannel(WritableByteChannel delegate, SecretKey key) throws IOException {
+        this.delegate = delegate;
+        this.key = key;
+        ByteBuffer header = ByteBuffer.allocate(StreamEncryption.HEADER_LENGTH);
+        header.putInt(StreamEncryption.MAGIC).putInt(StreamEncryption.SEGMENT_SIZE).flip();
+        TransferUtils.writeFully(delegate, header);
+    }
+
+    public SecretKey getKey() {
+        return key;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int written = src.remaining();
+        while (src.hasRemaining()) {
+            if (!segment.hasRemaining()) {
+                seal(false);
+            }
+            int n = Math.min(segment.remaining(), src.remaining());
+            int limit = src.limit();
+            segment.put(src.limit(src.position() + n));
+            src.limit(limit);
+        }
+        return written;
+    }
+
+    private void seal(boolean last) throws IOException {
+        segment.flip();
+        sealed.clear();
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, key, StreamEncryption.segmentIv(index++, last));
+            cipher.doFinal(segment, sealed);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Encryption failed", e);
+        }
+        segment.clear();
+        sealed.flip();
+        TransferUtils.writeFully(delegate, sealed);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed && delegate.isOpen();
+    }
+
+    /**
+     * Seals the last segment and closes the delegate.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            seal(true);
+        } finally {
+            delegate.close();
+        }
+    }
+}
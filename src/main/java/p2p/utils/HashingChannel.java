@@ -0,0 +1,58 @@
+package p2p.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+
+/**
+ * Digests and counts everything written through it. The bytes are hashed
+ * from the same buffer right after they are handed to the delegate, so the
+ * digest is ready as soon as the last write returns.
+ */
+public class HashingChannel implements WritableByteChannel {
+    private final WritableByteChannel delegate;
+    private final MessageDigest digest;
+    private long count;
+
+    public HashingChannel(WritableByteChannel delegate, MessageDigest digest) {
+        this.delegate = delegate;
+        this.digest = digest;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int start = src.position();
+        int written = delegate.write(src);
+        if (written > 0) {
+            int end = src.position();
+            int limit = src.limit();
+            src.position(start).limit(start + written);
+            digest.update(src);
+            src.limit(limit).position(end);
+            count += written;
+        }
+        return written;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Completes the digest. Call once, after the last write.
+     */
+    public byte[] digest() {
+        return digest.digest();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return delegate.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+}
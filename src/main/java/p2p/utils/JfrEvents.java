@@ -0,0 +1,132 @@
+package p2p.utils;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Java Flight Recorder events for uploads, shares and peer transfers, so a
+ * recording lines up GC, I/O and lock contention with the transfers they
+ * hit. Every event carries the request id from {@link Log}, which a peer
+ * send inherits from the upload that stored its share.
+ * <p>
+ * Call sites create an event, {@code begin()} and {@code end()} it around
+ * the work and fill in the fields only if {@code shouldCommit()}; while
+ * nothing records an event type that is all the event costs. Chunk events
+ * are off by default, since a transfer makes thousands of them.
+ */
+public final class JfrEvents {
+    private JfrEvents() {
+    }
+
+    @Name("peerlink.UploadParsed")
+    @Label("Upload Parsed")
+    @Category({"PeerLink", "Uploads"})
+    @Description("A multipart upload read off the request and written to storage")
+    @StackTrace(false)
+    public static final class UploadParsed extends Event {
+        @Label("Request Id")
+        public String requestId;
+
+        @Label("Filename")
+        public String filename;
+
+        @Label("Bytes")
+        @DataAmount
+        public long bytes;
+    }
+
+    @Name("peerlink.ShareOffered")
+    @Label("Share Offered")
+    @Category({"PeerLink", "Shares"})
+    @Description("A stored file issued an invite code")
+    @StackTrace(false)
+    public static final class ShareOffered extends Event {
+        @Label("Request Id")
+        public String requestId;
+
+        @Label("Code")
+        public int code;
+
+        @Label("Filename")
+        public String filename;
+
+        @Label("Bytes")
+        @DataAmount
+        public long bytes;
+    }
+
+    @Name("peerlink.PeerConnected")
+    @Label("Peer Connected")
+    @Category({"PeerLink", "Transfers"})
+    @Description("A peer socket connected or accepted, including the TLS handshake")
+    @StackTrace(false)
+    public static final class PeerConnected extends Event {
+        @Label("Request Id")
+        public String requestId;
+
+        @Label("Remote Host")
+        public String host;
+
+        @Label("Port")
+        public int port;
+
+        @Label("Inbound")
+        public boolean inbound;
+
+        @Label("TLS")
+        public boolean tls;
+    }
+
+    @Name("peerlink.TransferChunk")
+    @Label("Transfer Chunk")
+    @Category({"PeerLink", "Transfers"})
+    @Description("One buffer written by a peer send, download or replica pull")
+    @StackTrace(false)
+    @Enabled(false)
+    @Threshold("0 ns")
+    public static final class TransferChunk extends Event {
+        @Label("Request Id")
+        public String requestId;
+
+        @Label("Bytes")
+        @DataAmount
+        public int bytes;
+
+        @Label("Buffer Size")
+        @DataAmount
+        public int bufferSize;
+    }
+
+    @Name("peerlink.TransferCompleted")
+    @Label("Transfer Completed")
+    @Category({"PeerLink", "Transfers"})
+    @Description("A peer send or a download finished or failed")
+    @StackTrace(false)
+    public static final class TransferCompleted extends Event {
+        @Label("Request Id")
+        public String requestId;
+
+        @Label("Code")
+        public int code;
+
+        @Label("Remote Host")
+        public String host;
+
+        @Label("Sending")
+        public boolean sending;
+
+        @Label("Bytes")
+        @DataAmount
+        public long bytes;
+
+        @Label("Succeeded")
+        public boolean succeeded;
+    }
+}
@@ -0,0 +1,282 @@
+package p2p.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Pattern;
+
+import p2p.config.Config;
+
+/**
+ * Asynchronous structured logger writing one JSON object per line.
+ * <p>
+ * A caller copies its event into a preallocated slot of a bounded ring and
+ * returns; a single daemon thread formats and writes the lines, so request
+ * threads never wait on the stdout lock. When the ring is full the event is
+ * dropped and counted rather than blocking the caller.
+ * <p>
+ * Fields are passed as alternating names and values:
+ * {@code Log.info("share.serving", "code", code, "port", port)}. Values are
+ * only formatted on the writer thread. A throwable value is written as its
+ * class and message.
+ * <p>
+ * Each thread may carry a correlation id, set per request, which is added
+ * to every event it logs as {@code "cid"}.
+ */
+public final class Log {
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    public static final int DEFAULT_CAPACITY = 8192;
+    static final int MAX_FIELDS = 8;
+    private static final int WRITE_THRESHOLD = 16 * 1024;
+    private static final long IDLE_PARK_NANOS = 100_000_000L;
+    private static final Pattern VALID_ID = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+    private static final ThreadLocal<String> CORRELATION_ID = new ThreadLocal<>();
+    private static final Log SHARED = new Log(DEFAULT_CAPACITY, System.out, Config.startup().getLogLevel());
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> SHARED.flush(1000), "log-flush"));
+    }
+
+    private final Slot[] slots;
+    private final int mask;
+    private final OutputStream out;
+    private volatile Level minLevel;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+    private final StringBuilder line = new StringBuilder(512);
+    private final StringBuilder pending = new StringBuilder(WRITE_THRESHOLD + 1024);
+    private volatile long tail;
+    private volatile long written;
+    private volatile boolean idle;
+
+    /**
+     * {@code capacity} is rounded up to a power of two.
+     */
+    public Log(int capacity, OutputStream out, Level minLevel) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+        }
+        this.mask = size - 1;
+        this.out = out;
+        this.minLevel = minLevel;
+        this.writer = new NamedThreadFactory("log-writer").newThread(this::drain);
+        writer.start();
+    }
+
+    public static Log shared() {
+        return SHARED;
+    }
+
+    public static void debug(String message, Object... fields) {
+        SHARED.log(Level.DEBUG, message, fields);
+    }
+
+    public static void info(String message, Object... fields) {
+        SHARED.log(Level.INFO, message, fields);
+    }
+
+    public static void warn(String message, Object... fields) {
+        SHARED.log(Level.WARN, message, fields);
+    }
+
+    public static void error(String message, Object... fields) {
+        SHARED.log(Level.ERROR, message, fields);
+    }
+
+    /**
+     * Sets the correlation id of the current thread; null clears it.
+     */
+    public static void setCorrelationId(String id) {
+        if (id == null) {
+            CORRELATION_ID.remove();
+        } else {
+            CORRELATION_ID.set(id);
+        }
+    }
+
+    public static String getCorrelationId() {
+        return CORRELATION_ID.get();
+    }
+
+    /**
+     * Returns {@code requested} if it is usable as a correlation id, else a new random one.
+     */
+    public static String correlationIdOrNew(String requested) {
+        if (requested != null && VALID_ID.matcher(requested).matches()) {
+            return requested;
+        }
+        return Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+    }
+
+    /**
+     * Queues an event without blocking. The {@code fields} array is copied,
+     * not kept, so the JIT can usually leave the varargs array off the heap.
+     */
+    public void log(Level level, String message, Object... fields) {
+        if (level.compareTo(minLevel) < 0) {
+            return;
+        }
+        long sequence;
+        do {
+            sequence = head.get();
+            if (sequence - tail >= slots.length) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!head.compareAndSet(sequence, sequence + 1));
+
+        Slot slot = slots[(int) (sequence & mask)];
+        slot.time = System.currentTimeMillis();
+        slot.level = level;
+        slot.message = message;
+        slot.thread = Thread.currentThread().getName();
+        slot.correlationId = CORRELATION_ID.get();
+        int count = Math.min(fields.length, slot.fields.length);
+        System.arraycopy(fields, 0, slot.fields, 0, count);
+        slot.fieldCount = count;
+        slot.sequence = sequence;
+        if (idle) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Changes the least severe level written, effective for the next event.
+     */
+    public void setLevel(Level minLevel) {
+        this.minLevel = minLevel;
+    }
+
+    public Level getLevel() {
+        return minLevel;
+    }
+
+    /**
+     * Events lost because the ring was full.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Events written so far.
+     */
+    public long getWrittenCount() {
+        return written;
+    }
+
+    /**
+     * Waits up to {@code timeoutMillis} until everything logged before the
+     * call has been written. Returns whether it was.
+     */
+    public boolean flush(long timeoutMillis) {
+        long target = head.get();
+        long deadline = System.nanoTime() + timeoutMillis * 1_000_000;
+        while (written < target) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(1_000_000);
+        }
+        return true;
+    }
+
+    private void drain() {
+        long next = 0;
+        while (true) {
+            Slot slot = slots[(int) (next & mask)];
+            if (slot.sequence != next) {
+                writePending(next);
+                idle = true;
+                if (slot.sequence != next) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+                idle = false;
+                continue;
+            }
+            format(slot);
+            slot.clear();
+            next++;
+            // Frees the slot for producers.
+            tail = next;
+            if (pending.length() >= WRITE_THRESHOLD) {
+                writePending(next);
+            }
+        }
+    }
+
+    private void writePending(long upTo) {
+        if (pending.length() > 0) {
+            try {
+                out.write(pending.toString().getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            } catch (IOException e) {
+                // Nowhere left to report it.
+            }
+            pending.setLength(0);
+        }
+        written = upTo;
+    }
+
+    private void format(Slot slot) {
+        line.setLength(0);
+        line.append("{\"ts\":\"");
+        DateTimeFormatter.ISO_INSTANT.formatTo(Instant.ofEpochMilli(slot.time), line);
+        line.append("\",\"level\":\"").append(slot.level.name()).append("\",\"thread\":");
+        JsonUtils.appendString(line, slot.thread);
+        if (slot.correlationId != null) {
+            line.append(",\"cid\":");
+            JsonUtils.appendString(line, slot.correlationId);
+        }
+        line.append(",\"msg\":");
+        JsonUtils.appendString(line, slot.message);
+        for (int i = 0; i + 1 < slot.fieldCount; i += 2) {
+            line.append(',');
+            JsonUtils.appendString(line, String.valueOf(slot.fields[i]));
+            line.append(':');
+            appendValue(slot.fields[i + 1]);
+        }
+        line.append("}\n");
+        pending.append(line);
+    }
+
+    private void appendValue(Object value) {
+        if (value instanceof Number || value instanceof Boolean) {
+            line.append(value);
+        } else if (value instanceof Throwable) {
+            Throwable error = (Throwable) value;
+            JsonUtils.appendString(line, error.getClass().getSimpleName() + ": " + error.getMessage());
+        } else {
+            JsonUtils.appendString(line, String.valueOf(value));
+        }
+    }
+
+    private static final class Slot {
+        final Object[] fields = new Object[MAX_FIELDS * 2];
+        volatile long sequence = -1;
+        long time;
+        Level level;
+        String message;
+        String thread;
+        String correlationId;
+        int fieldCount;
+
+        void clear() {
+            message = null;
+            correlationId = null;
+            for (int i = 0; i < fieldCount; i++) {
+                fields[i] = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package p2p.utils;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * A SHA-256 hash tree over the content of a file cut into
+ * {@link #LEAF_SIZE} leaves, shaped as in RFC 6962: a leaf hashes
+ * {@code 0x00 || data}, an inner node {@code 0x01 || left || right}, and a
+ * range of n leaves splits at the largest power of two below n. Empty
+ * content has one empty leaf.
+ * <p>
+ * Unlike a plain SHA-256 of the file, the leaves can be hashed on every
+ * core at once, and a receiver holding the leaf hashes can check each leaf
+ * as it arrives.
+ */
+public final class MerkleTree {
+    public static final int LEAF_SIZE = 1024 * 1024;
+    public static final int HASH_LENGTH = 32;
+
+    /** Below this many leaves a subtree is hashed on the calling thread. */
+    private static final int SEQUENTIAL_LEAVES = 64;
+
+    private static final ForkJoinPool HASHERS = new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+            pool -> {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("hasher-" + thread.getPoolIndex());
+                thread.setDaemon(true);
+                return thread;
+            }, null, false);
+
+    private final byte[][] leaves;
+    private final byte[] root;
+
+    public MerkleTree(byte[][] leaves) {
+        if (leaves.length == 0) {
+            throw new IllegalArgumentException("A tree has at least one leaf");
+        }
+        this.leaves = leaves;
+        this.root = leaves.length <= SEQUENTIAL_LEAVES ? subtree(leaves, 0, leaves.length)
+                : HASHERS.invoke(new SubtreeTask(leaves, 0, leaves.length));
+    }
+
+    /**
+     * The pool leaf hashes are computed on.
+     */
+    static ForkJoinPool hashers() {
+        return HASHERS;
+    }
+
+    public static byte[] leafHash(ByteBuffer data) {
+        MessageDigest digest = DigestUtils.sha256();
+        digest.update((byte) 0);
+        digest.update(data);
+        return digest.digest();
+    }
+
+    static byte[] nodeHash(byte[] left, byte[] right) {
+        MessageDigest digest = DigestUtils.sha256();
+        digest.update((byte) 1);
+        digest.update(left);
+        digest.update(right);
+        return digest.digest();
+    }
+
+    /**
+     * The number of leaves for content of {@code size} bytes.
+     */
+    public static long leafCount(long size) {
+        return Math.max(1, (size + LEAF_SIZE - 1) / LEAF_SIZE);
+    }
+
+    private static byte[] subtree(byte[][] leaves, int from, int to) {
+        if (to - from == 1) {
+            return leaves[from];
+        }
+        int split = from + Integer.highestOneBit(to - from - 1);
+        return nodeHash(subtree(leaves, from, split), subtree(leaves, split, to));
+    }
+
+    private static final class SubtreeTask extends RecursiveTask<byte[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final byte[][] leaves;
+        private final int from;
+        private final int to;
+
+        SubtreeTask(byte[][] leaves, int from, int to) {
+            this.leaves = leaves;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected byte[] compute() {
+            if (to - from <= SEQUENTIAL_LEAVES) {
+                return subtree(leaves, from, to);
+            }
+            int split = from + Integer.highestOneBit(to - from - 1);
+            SubtreeTask left = new SubtreeTask(leaves, from, split);
+            left.fork();
+            byte[] right = new SubtreeTask(leaves, split, to).compute();
+            return nodeHash(left.join(), right);
+        }
+    }
+
+    public byte[] getRoot() {
+        return root;
+    }
+
+    public int getLeafCount() {
+        return leaves.length;
+    }
+
+    public byte[] getLeaf(int i) {
+        return leaves[i];
+    }
+}
@@ -0,0 +1,30 @@
+package p2p.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Discards everything written to it.
+ */
+public final class NullChannel implements WritableByteChannel {
+    public static final NullChannel INSTANCE = new NullChannel();
+
+    private NullChannel() {
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        int n = src.remaining();
+        src.position(src.limit());
+        return n;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+    }
+}
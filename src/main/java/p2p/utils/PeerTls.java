@@ -0,0 +1,112 @@
+package p2p.utils;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.TrustManagerFactory;
+
+import p2p.config.Config;
+
+/**
+ * TLS 1.3 for the peer transfer sockets. Both ends present the
+ * certificate in the configured key store and accept only peers whose
+ * certificate is in the trust store, which for a cluster sharing one
+ * self-signed certificate is the same file.
+ * <p>
+ * All connections share one {@link SSLContext}, so a node reconnecting to
+ * a peer resumes its earlier session from a session ticket and skips the
+ * certificate exchange. Clients are keyed by peer host alone, since every
+ * share listens on a port of its own.
+ */
+public final class PeerTls {
+    private static final String PROTOCOL = "TLSv1.3";
+
+    private final SSLContext context;
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong resumed = new AtomicLong();
+
+    public PeerTls(Path keyStore, char[] password, Path trustStore) throws IOException {
+        try {
+            KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keys.init(KeyStore.getInstance(keyStore.toFile(), password), password);
+            TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trust.init(KeyStore.getInstance(trustStore.toFile(), password));
+            context = SSLContext.getInstance(PROTOCOL);
+            context.init(keys.getKeyManagers(), trust.getTrustManagers(), null);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot set up peer TLS from " + keyStore + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * The TLS setup {@code config} asks for, or null if peer TLS is off.
+     */
+    public static PeerTls fromConfig(Config config) throws IOException {
+        if (!config.isPeerTls()) {
+            return null;
+        }
+        Path keyStore = Paths.get(config.getPeerTlsKeyStore());
+        String trustStore = config.getPeerTlsTrustStore();
+        return new PeerTls(keyStore, config.getPeerTlsPassword().toCharArray(),
+                trustStore.isEmpty() ? keyStore : Paths.get(trustStore));
+    }
+
+    /**
+     * Runs the server side of the handshake on an accepted connection.
+     */
+    public TlsChannel accept(TimedSocketChannel transport) throws IOException {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setNeedClientAuth(true);
+        return handshake(transport, engine);
+    }
+
+    /**
+     * Runs the client side of the handshake with a peer on {@code host},
+     * resuming an earlier session with it if there is one.
+     */
+    public TlsChannel connect(TimedSocketChannel transport, String host) throws IOException {
+        SSLEngine engine = context.createSSLEngine(host, 0);
+        engine.setUseClientMode(true);
+        return handshake(transport, engine);
+    }
+
+    private TlsChannel handshake(TimedSocketChannel transport, SSLEngine engine) throws IOException {
+        // TlsChannel already batches records, and Nagle would hold a small
+        // header back behind a session ticket until the peer's delayed ACK.
+        transport.socket().setOption(StandardSocketOptions.TCP_NODELAY, true);
+        SSLParameters parameters = engine.getSSLParameters();
+        parameters.setProtocols(new String[] {PROTOCOL});
+        engine.setSSLParameters(parameters);
+        TlsChannel channel = new TlsChannel(transport, engine);
+        channel.handshake();
+        handshakes.incrementAndGet();
+        if (isResumed(engine.getSession())) {
+            resumed.incrementAndGet();
+        }
+        return channel;
+    }
+
+    private static boolean isResumed(SSLSession session) {
+        // A resumed session keeps the creation time of the handshake that made it.
+        return session.getCreationTime() < session.getLastAccessedTime();
+    }
+
+    public long getHandshakeCount() {
+        return handshakes.get();
+    }
+
+    public long getResumedCount() {
+        return resumed.get();
+    }
+}
@@ -0,0 +1,51 @@
+package p2p.utils;
+
+/**
+ * The rsync weak checksum over a fixed-size window, which can slide one
+ * byte at a time in constant time.
+ * <p>
+ * {@code a} is the sum of the window's bytes and {@code b} the sum of the
+ * running values of {@code a}, both modulo 2^16; the checksum is
+ * {@code b << 16 | a}.
+ */
+public class RollingChecksum {
+    private int a;
+    private int b;
+    private int length;
+
+    /**
+     * Starts over on {@code data[offset, offset + length)}.
+     */
+    public void reset(byte[] data, int offset, int length) {
+        int sumA = 0;
+        int sumB = 0;
+        for (int i = 0; i < length; i++) {
+            sumA += data[offset + i] & 0xff;
+            sumB += (length - i) * (data[offset + i] & 0xff);
+        }
+        this.a = sumA & 0xffff;
+        this.b = sumB & 0xffff;
+        this.length = length;
+    }
+
+    /**
+     * Slides the window one byte: {@code out} leaves it and {@code in} enters.
+     */
+    public void roll(byte out, byte in) {
+        a = (a - (out & 0xff) + (in & 0xff)) & 0xffff;
+        b = (b - length * (out & 0xff) + a) & 0xffff;
+    }
+
+    public int value() {
+        return (b << 16) | a;
+    }
+
+    /**
+     * The checksum of {@code data[offset, offset + length)}.
+     */
+    public static int of(byte[] data, int offset, int length) {
+        RollingChecksum checksum = new RollingChecksum();
+        checksum.reset(data, offset, length);
+        return checksum.value();
+    }
+}
@@ -0,0 +1,94 @@
+package p2p.utils;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * The format of files encrypted at rest: a {@code PLE1} magic and the
+ * segment size, then the content cut into segments that are each sealed
+ * with AES-GCM on their own, so any segment can be read without the ones
+ * before it. The IV of a segment is its index and whether it is the last
+ * one; a segment moved, dropped or cut off at the end fails authentication.
+ * <p>
+ * Every file has its own random key, so the counter IVs never repeat under
+ * one key. The JCE runs AES-GCM on the CPU's AES and carry-less multiply
+ * instructions where it has them.
+ */
+public final class StreamEncryption {
+    public static final int SEGMENT_SIZE = 64 * 1024;
+    public static final int TAG_LENGTH = 16;
+    public static final int HEADER_LENGTH = 8;
+    static final int MAGIC = 0x504c4531; // "PLE1"
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private StreamEncryption() {
+    }
+
+    /**
+     * A fresh 256-bit key for one file.
+     */
+    public static SecretKey newKey() {
+        try {
+            KeyGenerator generator = KeyGenerator.getInstance("AES");
+            generator.init(256, RANDOM);
+            return generator.generateKey();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES not available", e);
+        }
+    }
+
+    static Cipher newCipher() {
+        try {
+            return Cipher.getInstance(TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(TRANSFORMATION + " not available", e);
+        }
+    }
+
+    static GCMParameterSpec segmentIv(long segment, boolean last) {
+        byte[] iv = new byte[12];
+        for (int i = 0; i < 8; i++) {
+            iv[i] = (byte) (segment >>> (56 - 8 * i));
+        }
+        iv[8] = (byte) (last ? 1 : 0);
+        return new GCMParameterSpec(TAG_LENGTH * 8, iv);
+    }
+
+    /**
+     * The size on disk of {@code size} bytes of content, or -1 if the size is
+     * unknown (negative). The last segment is written even when empty, so
+     * there is always at least one.
+     */
+    public static long encryptedSize(long size) {
+        if (size < 0) {
+            return -1;
+        }
+        long segments = Math.max(1, (size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        return HEADER_LENGTH + size + segments * TAG_LENGTH;
+    }
+
+    /**
+     * The content size of an encrypted file of {@code encryptedSize} bytes,
+     * or -1 if no file has that size.
+     */
+    public static long contentSize(long encryptedSize) {
+        long body = encryptedSize - HEADER_LENGTH;
+        if (body == TAG_LENGTH) {
+            return 0;
+        }
+        long full = body / (SEGMENT_SIZE + TAG_LENGTH);
+        long rest = body % (SEGMENT_SIZE + TAG_LENGTH);
+        // Only an empty file ends in an empty segment.
+        if (body < TAG_LENGTH || (rest == 0 && full == 0) || (rest > 0 && rest <= TAG_LENGTH)) {
+            return -1;
+        }
+        return body - (full + (rest > 0 ? 1 : 0)) * TAG_LENGTH;
+    }
+}
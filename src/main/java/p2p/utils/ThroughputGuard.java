@@ -0,0 +1,70 @@
+package p2p.utils;
+
+import java.net.SocketTimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drops connections that trickle data slowly enough to dodge the per-wait
+ * timeouts, as slowloris clients do.
+ * <p>
+ * Only time spent waiting on the peer counts: whenever those waits add up
+ * to a window, the bytes moved since the last window must reach the
+ * minimum rate. Time the server spends on its own work, such as a slow
+ * disk, never counts against the peer. One thread uses a guard at a time.
+ */
+public class ThroughputGuard {
+    private static final AtomicLong DROPPED = new AtomicLong();
+
+    private final long minBytesPerSecond;
+    private final long windowNanos;
+    private long waitedNanos;
+    private long bytes;
+
+    public ThroughputGuard(long minBytesPerSecond, long windowMillis) {
+        this.minBytesPerSecond = minBytesPerSecond;
+        this.windowNanos = windowMillis * 1_000_000;
+    }
+
+    /**
+     * Connections dropped for being too slow, process-wide.
+     */
+    public static long getDroppedCount() {
+        return DROPPED.get();
+    }
+
+    public void transferred(long n) {
+        if (n > 0) {
+            bytes += n;
+        }
+    }
+
+    /**
+     * Records a wait on the peer and fails once the peer has fallen below
+     * the minimum rate over a full window.
+     */
+    public void waited(long nanos) throws SocketTimeoutException {
+        if (minBytesPerSecond == 0) {
+            return;
+        }
+        waitedNanos += nanos;
+        if (waitedNanos < windowNanos) {
+            return;
+        }
+        double rate = bytes * 1e9 / waitedNanos;
+        waitedNanos = 0;
+        bytes = 0;
+        if (rate < minBytesPerSecond) {
+            DROPPED.incrementAndGet();
+            throw new SocketTimeoutException(String.format("Peer below minimum throughput: %.0f B/s < %d B/s",
+                    rate, minBytesPerSecond));
+        }
+    }
+
+    /**
+     * Starts over, as between requests on a keep-alive connection.
+     */
+    public void reset() {
+        waitedNanos = 0;
+        bytes = 0;
+    }
+}
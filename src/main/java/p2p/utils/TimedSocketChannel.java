@@ -0,0 +1,137 @@
+package p2p.utils;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A socket with a time limit on every connect, read and write, and a
+ * {@link ThroughputGuard} against peers that stay just inside them.
+ * <p>
+ * The socket is switched to non-blocking mode and each wait happens on a
+ * per-thread temporary selector, since a blocking {@link SocketChannel}
+ * has no way to time out.
+ */
+public class TimedSocketChannel implements ByteChannel {
+    private static final ThreadLocal<Selector> TEMP_SELECTOR = ThreadLocal.withInitial(() -> {
+        try {
+            return Selector.open();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    });
+
+    private final SocketChannel channel;
+    private final Timeouts timeouts;
+    private final ThroughputGuard guard;
+
+    public TimedSocketChannel(SocketChannel channel, Timeouts timeouts) throws IOException {
+        this.channel = channel;
+        this.timeouts = timeouts;
+        this.guard = timeouts.newThroughputGuard();
+        channel.configureBlocking(false);
+    }
+
+    /**
+     * Connects within the connect timeout.
+     */
+    public static TimedSocketChannel open(InetSocketAddress address, Timeouts timeouts) throws IOException {
+        return open(address, timeouts, 0);
+    }
+
+    /**
+     * Connects within the connect timeout, first raising the receive buffer
+     * to {@code receiveBufferBytes} if that is more than the default. It
+     * has to be set before connecting for TCP to scale its window to it.
+     */
+    public static TimedSocketChannel open(InetSocketAddress address, Timeouts timeouts, int receiveBufferBytes)
+            throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            if (receiveBufferBytes > channel.getOption(StandardSocketOptions.SO_RCVBUF)) {
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferBytes);
+            }
+            channel.configureBlocking(false);
+            if (!channel.connect(address)) {
+                if (!await(channel, SelectionKey.OP_CONNECT, timeouts.getConnectMillis())) {
+                    throw new SocketTimeoutException("Timed out connecting to " + address);
+                }
+                channel.finishConnect();
+            }
+            return new TimedSocketChannel(channel, timeouts);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Waits until {@code channel} is ready for {@code op}. Returns false if
+     * the timeout passed first. The channel must be non-blocking.
+     */
+    public static boolean await(SelectableChannel channel, int op, long timeoutMillis) throws IOException {
+        Selector selector = TEMP_SELECTOR.get();
+        SelectionKey key = channel.register(selector, op);
+        try {
+            return selector.select(timeoutMillis) > 0;
+        } finally {
+            key.cancel();
+            selector.selectNow();
+        }
+    }
+
+    public SocketChannel socket() {
+        return channel;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        int n = channel.read(dst);
+        while (n == 0 && dst.hasRemaining()) {
+            waitFor(SelectionKey.OP_READ, timeouts.getReadMillis());
+            n = channel.read(dst);
+        }
+        guard.transferred(n);
+        return n;
+    }
+
+    /**
+     * Writes at least one byte, unless {@code src} is empty.
+     */
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int n = channel.write(src);
+        while (n == 0 && src.hasRemaining()) {
+            waitFor(SelectionKey.OP_WRITE, timeouts.getWriteMillis());
+            n = channel.write(src);
+        }
+        guard.transferred(n);
+        return n;
+    }
+
+    private void waitFor(int op, long timeoutMillis) throws IOException {
+        long start = System.nanoTime();
+        if (!await(channel, op, timeoutMillis)) {
+            throw new SocketTimeoutException("Timed out waiting for peer after " + timeoutMillis + " ms");
+        }
+        guard.waited(System.nanoTime() - start);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
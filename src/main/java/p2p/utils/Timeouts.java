@@ -0,0 +1,120 @@
+package p2p.utils;
+
+/**
+ * Time limits for every network wait, so a stalled or hostile peer releases
+ * its thread and socket instead of holding them forever.
+ * <p>
+ * All limits are in milliseconds: connect, read, write, idle (keep-alive
+ * connections between requests), header (from the first byte of a request
+ * head to its end) and share idle (how long a share waits for a downloader
+ * before it expires; 0 keeps shares forever). The minimum throughput is the
+ * slowest transfer rate tolerated in bytes per second, judged over each
+ * window of time spent waiting on the peer; 0 disables the check. A node
+ * takes its values from {@link p2p.config.Config}.
+ */
+public final class Timeouts {
+    public static final Timeouts DEFAULT = new Timeouts(5_000, 30_000, 30_000, 30_000, 10_000, 60 * 60_000,
+            1024, 10_000);
+
+    private final long connectMillis;
+    private final long readMillis;
+    private final long writeMillis;
+    private final long idleMillis;
+    private final long headerMillis;
+    private final long shareIdleMillis;
+    private final long minBytesPerSecond;
+    private final long throughputWindowMillis;
+
+    private Timeouts(long connectMillis, long readMillis, long writeMillis, long idleMillis, long headerMillis,
+            long shareIdleMillis, long minBytesPerSecond, long throughputWindowMillis) {
+        this.connectMillis = positive(connectMillis, "connect");
+        this.readMillis = positive(readMillis, "read");
+        this.writeMillis = positive(writeMillis, "write");
+        this.idleMillis = positive(idleMillis, "idle");
+        this.headerMillis = positive(headerMillis, "header");
+        this.shareIdleMillis = Math.max(0, shareIdleMillis);
+        this.minBytesPerSecond = Math.max(0, minBytesPerSecond);
+        this.throughputWindowMillis = positive(throughputWindowMillis, "minThroughput.window");
+    }
+
+    private static long positive(long millis, String name) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException("Timeout " + name + " must be positive: " + millis);
+        }
+        return millis;
+    }
+
+    public long getConnectMillis() {
+        return connectMillis;
+    }
+
+    public long getReadMillis() {
+        return readMillis;
+    }
+
+    public long getWriteMillis() {
+        return writeMillis;
+    }
+
+    public long getIdleMillis() {
+        return idleMillis;
+    }
+
+    public long getHeaderMillis() {
+        return headerMillis;
+    }
+
+    public long getShareIdleMillis() {
+        return shareIdleMillis;
+    }
+
+    public long getMinBytesPerSecond() {
+        return minBytesPerSecond;
+    }
+
+    public long getThroughputWindowMillis() {
+        return throughputWindowMillis;
+    }
+
+    public Timeouts withConnectMillis(long millis) {
+        return new Timeouts(millis, readMillis, writeMillis, idleMillis, headerMillis,
+                shareIdleMillis, minBytesPerSecond, throughputWindowMillis);
+    }
+
+    public Timeouts withReadMillis(long millis) {
+        return new Timeouts(connectMillis, millis, writeMillis, idleMillis, headerMillis,
+                shareIdleMillis, minBytesPerSecond, throughputWindowMillis);
+    }
+
+    public Timeouts withWriteMillis(long millis) {
+        return new Timeouts(connectMillis, readMillis, millis, idleMillis, headerMillis,
+                shareIdleMillis, minBytesPerSecond, throughputWindowMillis);
+    }
+
+    public Timeouts withIdleMillis(long millis) {
+        return new Timeouts(connectMillis, readMillis, writeMillis, millis, headerMillis,
+                shareIdleMillis, minBytesPerSecond, throughputWindowMillis);
+    }
+
+    public Timeouts withHeaderMillis(long millis) {
+        return new Timeouts(connectMillis, readMillis, writeMillis, idleMillis, millis,
+                shareIdleMillis, minBytesPerSecond, throughputWindowMillis);
+    }
+
+    public Timeouts withShareIdleMillis(long millis) {
+        return new Timeouts(connectMillis, readMillis, writeMillis, idleMillis, headerMillis,
+                millis, minBytesPerSecond, throughputWindowMillis);
+    }
+
+    public Timeouts withMinThroughput(long bytesPerSecond, long windowMillis) {
+        return new Timeouts(connectMillis, readMillis, writeMillis, idleMillis, headerMillis,
+                shareIdleMillis, bytesPerSecond, windowMillis);
+    }
+
+    /**
+     * A fresh throughput check for one connection.
+     */
+    public ThroughputGuard newThroughputGuard() {
+        return new ThroughputGuard(minBytesPerSecond, throughputWindowMillis);
+    }
+}
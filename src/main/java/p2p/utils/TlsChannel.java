@@ -0,0 +1,228 @@
+package p2p.utils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+
+/**
+ * TLS over any byte channel, driven by an {@link SSLEngine}, so it works on
+ * top of the non-blocking sockets of {@link TimedSocketChannel} with their
+ * time limits intact.
+ * <p>
+ * A TLS record carries at most 16 KB, so to keep framing overhead off the
+ * system calls, writes seal up to {@link #RECORDS_PER_IO} records into one
+ * buffer and send them together, and reads take in as many as the socket
+ * has. The channel is not thread-safe.
+ */
+public class TlsChannel implements ByteChannel {
+    public static final int RECORDS_PER_IO = 4;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final ByteChannel transport;
+    private final SSLEngine engine;
+    private final int packetSize;
+    /** Bytes received and not yet unwrapped; in write mode. */
+    private final ByteBuffer netIn;
+    private final ByteBuffer netOut;
+    /** Bytes unwrapped and not yet read; in read mode. */
+    private final ByteBuffer appIn;
+    private boolean inboundDone;
+    private boolean closed;
+
+    /**
+     * @param engine set to client or server mode, handshake not yet begun
+     */
+    public TlsChannel(ByteChannel transport, SSLEngine engine) {
+        this.transport = transport;
+        this.engine = engine;
+        this.packetSize = engine.getSession().getPacketBufferSize();
+        this.netIn = ByteBuffer.allocate(packetSize * RECORDS_PER_IO);
+        this.netOut = ByteBuffer.allocate(packetSize * RECORDS_PER_IO);
+        this.appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize() * RECORDS_PER_IO);
+        appIn.flip();
+    }
+
+    public SSLEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Runs the handshake to completion. Reads and writes do it implicitly,
+     * but calling this first surfaces handshake failures on their own.
+     */
+    public void handshake() throws IOException {
+        engine.beginHandshake();
+        handshake(engine.getHandshakeStatus());
+    }
+
+    /**
+     * Messages for the peer collect in {@link #netOut} and go out together
+     * once the engine waits for a reply, so a flight of several records
+     * goes out in one write.
+     */
+    private void handshake(HandshakeStatus status) throws IOException {
+        netOut.clear();
+        while (true) {
+            switch (status) {
+                case NEED_TASK:
+                    Runnable task;
+                    while ((task = engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                    status = engine.getHandshakeStatus();
+                    break;
+                case NEED_WRAP:
+                    if (netOut.remaining() < packetSize) {
+                        flush();
+                    }
+                    SSLEngineResult wrapped = engine.wrap(EMPTY, netOut);
+                    if (wrapped.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        flush();
+                        return;
+                    }
+                    status = wrapped.getHandshakeStatus();
+                    break;
+                case NEED_UNWRAP:
+                case NEED_UNWRAP_AGAIN:
+                    flush();
+                    SSLEngineResult unwrapped = unwrap();
+                    if (unwrapped == null) {
+                        throw new EOFException("Peer closed the connection during the TLS handshake");
+                    }
+                    if (unwrapped.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        inboundDone = true;
+                        return;
+                    }
+                    status = unwrapped.getHandshakeStatus();
+                    break;
+                default:
+                    flush();
+                    return;
+            }
+        }
+    }
+
+    private void flush() throws IOException {
+        netOut.flip();
+        TransferUtils.writeFully(transport, netOut);
+        netOut.clear();
+    }
+
+    /**
+     * Unwraps one record into {@link #appIn}, reading from the transport
+     * until a whole one is there. Returns null at end of stream.
+     */
+    private SSLEngineResult unwrap() throws IOException {
+        while (true) {
+            SSLEngineResult result;
+            netIn.flip();
+            appIn.compact();
+            try {
+                result = engine.unwrap(netIn, appIn);
+            } finally {
+                appIn.flip();
+                netIn.compact();
+            }
+            if (result.getStatus() != SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    // appIn holds several records and is only refilled once drained.
+                    throw new SSLException("No room to unwrap a record");
+                }
+                return result;
+            }
+            if (transport.read(netIn) < 0) {
+                return null;
+            }
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        while (!appIn.hasRemaining()) {
+            if (inboundDone) {
+                return -1;
+            }
+            SSLEngineResult result = unwrap();
+            if (result == null || result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                // A stream cut without close_notify ends here too; the peer
+                // protocol's length and digest checks catch the truncation.
+                inboundDone = true;
+                continue;
+            }
+            // Post-handshake messages, such as TLS 1.3 session tickets, arrive between records.
+            handshake(result.getHandshakeStatus());
+        }
+        int n = Math.min(dst.remaining(), appIn.remaining());
+        int limit = appIn.limit();
+        dst.put(appIn.limit(appIn.position() + n));
+        appIn.limit(limit);
+        return n;
+    }
+
+    /**
+     * Seals as much of {@code src} as fits in {@link #RECORDS_PER_IO}
+     * records and writes them all.
+     */
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        int start = src.position();
+        netOut.clear();
+        while (src.hasRemaining() && netOut.remaining() >= packetSize) {
+            SSLEngineResult result = engine.wrap(src, netOut);
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new SSLException("TLS connection already closed");
+            }
+            if (result.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING
+                    && result.getHandshakeStatus() != HandshakeStatus.FINISHED) {
+                flush();
+                handshake(result.getHandshakeStatus());
+            }
+        }
+        flush();
+        return src.position() - start;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed && transport.isOpen();
+    }
+
+    /**
+     * Sends close_notify, so the peer can tell a finished stream from a cut
+     * one, and closes the transport.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            engine.closeOutbound();
+            netOut.clear();
+            while (!engine.isOutboundDone() && netOut.remaining() >= packetSize) {
+                engine.wrap(EMPTY, netOut);
+            }
+            netOut.flip();
+            TransferUtils.writeFully(transport, netOut);
+        } catch (IOException e) {
+            // The connection is going away either way.
+        } finally {
+            transport.close();
+        }
+    }
+}
@@ -0,0 +1,459 @@
+package p2p.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import p2p.config.Config;
+
+/**
+ * Span tracing for requests, exported as OpenTelemetry (OTLP) JSON.
+ * <p>
+ * A trace is a record taken from a fixed pool when a request starts and
+ * bound to the thread handling it. Spans opened on that thread with
+ * {@link #span(String)} and closed with {@link #end(int)} only write
+ * {@link System#nanoTime()} stamps into the record's arrays. When the trace
+ * closes, the record goes to a daemon thread that formats it, appends it to
+ * a file as one OTLP {@code ExportTraceServiceRequest} per line or posts it
+ * to an OTLP/HTTP endpoint, and returns it to the pool. With the pool
+ * empty a request simply goes untraced, and is counted.
+ * <p>
+ * While no tracer is open the static methods cost one volatile read.
+ */
+public final class Tracer implements Closeable {
+    public static final int DEFAULT_CAPACITY = 1024;
+    static final int MAX_SPANS = 32;
+    static final int MAX_ATTRIBUTES = 8;
+    private static final int BATCH = 64;
+    private static final String SERVICE_NAME = "peerlink";
+    private static final ThreadLocal<Trace> CURRENT = new ThreadLocal<>();
+    private static final AtomicInteger OPEN = new AtomicInteger();
+
+    private final String target;
+    private final FileChannel file;
+    private final HttpClient client;
+    private final ArrayBlockingQueue<Trace> free;
+    private final ArrayBlockingQueue<Trace> finished;
+    private final Thread exporter;
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong exported = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final StringBuilder json = new StringBuilder(64 * 1024);
+    private volatile boolean closed;
+
+    /**
+     * @param target a file to append to, or an {@code http://} or
+     *        {@code https://} URL to post to
+     */
+    public Tracer(String target, int capacity) throws IOException {
+        this.target = target;
+        if (target.startsWith("http://") || target.startsWith("https://")) {
+            this.file = null;
+            this.client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(2)).build();
+        } else {
+            this.file = FileChannel.open(Paths.get(target), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+            this.client = null;
+        }
+        this.free = new ArrayBlockingQueue<>(capacity);
+        this.finished = new ArrayBlockingQueue<>(capacity);
+        for (int i = 0; i < capacity; i++) {
+            free.add(new Trace());
+        }
+        this.exporter = new NamedThreadFactory("trace-exporter").newThread(this::export);
+        exporter.start();
+        OPEN.incrementAndGet();
+    }
+
+    /**
+     * The tracer {@code config} asks for, or null if tracing is off.
+     */
+    public static Tracer fromConfig(Config config) {
+        String target = config.getTraceExport();
+        if (target.isEmpty()) {
+            return null;
+        }
+        try {
+            return new Tracer(target, DEFAULT_CAPACITY);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid configuration: cannot open " + Config.TRACE_EXPORT
+                    + " " + target + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Starts a trace on the current thread, with a root span named
+     * {@code name} that lasts until the trace is closed. Returns null if
+     * every record is in use.
+     */
+    public Trace start(String name) {
+        Trace trace = free.poll();
+        if (trace == null) {
+            dropped.incrementAndGet();
+            return null;
+        }
+        trace.begin(name);
+        return trace;
+    }
+
+    /**
+     * Opens a span under the innermost open span of the current thread's
+     * trace. Returns its index for {@link #end(int)}, or -1 if the thread
+     * is not tracing.
+     */
+    public static int span(String name) {
+        if (OPEN.get() == 0) {
+            return -1;
+        }
+        Trace trace = CURRENT.get();
+        return trace == null ? -1 : trace.open(name);
+    }
+
+    public static void end(int span) {
+        if (span < 0) {
+            return;
+        }
+        Trace trace = CURRENT.get();
+        if (trace != null) {
+            trace.close(span);
+        }
+    }
+
+    /**
+     * Adds an attribute to the root span of the current thread's trace.
+     * Values are formatted on the exporter thread.
+     */
+    public static void attribute(String key, Object value) {
+        if (OPEN.get() == 0) {
+            return;
+        }
+        Trace trace = CURRENT.get();
+        if (trace != null) {
+            trace.attribute(key, value);
+        }
+    }
+
+    /**
+     * Marks the current thread's trace as failed with {@code error}.
+     */
+    public static void failed(Throwable error) {
+        if (OPEN.get() == 0) {
+            return;
+        }
+        Trace trace = CURRENT.get();
+        if (trace != null) {
+            trace.error = true;
+            trace.attribute("exception.type", error.getClass().getName());
+            trace.attribute("exception.message", error.getMessage());
+        }
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public long getExportedCount() {
+        return exported.get();
+    }
+
+    /** Requests left untraced because every record was in use. */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /** Traces lost because writing or posting them failed. */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * Waits up to {@code timeoutMillis} until every trace closed before the
+     * call has been exported or has failed. Returns whether it has.
+     */
+    public boolean flush(long timeoutMillis) throws InterruptedException {
+        long target = submitted.get();
+        long deadline = System.nanoTime() + timeoutMillis * 1_000_000;
+        while (exported.get() + failed.get() < target) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    /**
+     * Exports what has finished and stops the exporter.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        OPEN.decrementAndGet();
+        try {
+            exporter.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                Log.warn("trace.close_failed", "error", e);
+            }
+        }
+    }
+
+    private void export() {
+        List<Trace> batch = new ArrayList<>(BATCH);
+        while (true) {
+            int count = 0;
+            boolean written = false;
+            try {
+                Trace first = finished.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (closed) {
+                        return;
+                    }
+                    continue;
+                }
+                batch.add(first);
+                finished.drainTo(batch, BATCH - 1);
+                written = write(batch);
+                count = batch.size();
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                for (Trace trace : batch) {
+                    trace.clear();
+                    free.offer(trace);
+                }
+                batch.clear();
+            }
+            // Counted once the records are free again, so a flush() caller can start new traces.
+            (written ? exported : failed).addAndGet(count);
+        }
+    }
+
+    /**
+     * Sends one batch. Returns false if the export failed.
+     */
+    private boolean write(List<Trace> batch) throws InterruptedException {
+        json.setLength(0);
+        json.append("{\"resourceSpans\":[{\"resource\":{\"attributes\":[");
+        appendAttribute("service.name", SERVICE_NAME);
+        json.append("]},\"scopeSpans\":[{\"scope\":{\"name\":\"").append(SERVICE_NAME).append("\"},\"spans\":[");
+        for (int i = 0; i < batch.size(); i++) {
+            appendSpans(batch.get(i), i > 0);
+        }
+        json.append("]}]}]}\n");
+        byte[] bytes = json.toString().getBytes(StandardCharsets.UTF_8);
+        try {
+            if (file != null) {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                while (buffer.hasRemaining()) {
+                    file.write(buffer);
+                }
+            } else {
+                HttpResponse<Void> response = client.send(HttpRequest.newBuilder(URI.create(target))
+                        .timeout(Duration.ofSeconds(5))
+                        .header("Content-Type", "application/json")
+                        .POST(HttpRequest.BodyPublishers.ofByteArray(bytes))
+                        .build(), HttpResponse.BodyHandlers.discarding());
+                if (response.statusCode() >= 300) {
+                    throw new IOException("HTTP " + response.statusCode());
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            Log.warn("trace.export_failed", "target", target, "traces", batch.size(), "error", e);
+            return false;
+        }
+    }
+
+    private void appendSpans(Trace trace, boolean comma) {
+        String traceId = String.format("%016x%016x", trace.traceIdHigh, trace.traceIdLow);
+        for (int i = 0; i < trace.count; i++) {
+            if (comma || i > 0) {
+                json.append(',');
+            }
+            json.append("{\"traceId\":\"").append(traceId)
+                .append("\",\"spanId\":\"").append(String.format("%016x", trace.spanId(i))).append('"');
+            if (trace.parents[i] >= 0) {
+                json.append(",\"parentSpanId\":\"").append(String.format("%016x", trace.spanId(trace.parents[i])))
+                    .append('"');
+            }
+            json.append(",\"name\":");
+            JsonUtils.appendString(json, trace.names[i]);
+            // SPAN_KIND_SERVER for the request, SPAN_KIND_INTERNAL for its steps.
+            json.append(",\"kind\":").append(i == 0 ? 2 : 1)
+                .append(",\"startTimeUnixNano\":\"").append(trace.epochOffsetNanos + trace.starts[i])
+                .append("\",\"endTimeUnixNano\":\"").append(trace.epochOffsetNanos + trace.ends[i])
+                .append("\",\"attributes\":[");
+            if (i == 0) {
+                for (int a = 0; a < trace.attributeCount; a++) {
+                    if (a > 0) {
+                        json.append(',');
+                    }
+                    appendAttribute(trace.attributeKeys[a], trace.attributeValues[a]);
+                }
+            }
+            json.append("]");
+            if (i == 0 && trace.error) {
+                json.append(",\"status\":{\"code\":2}");
+            }
+            json.append('}');
+        }
+    }
+
+    private void appendAttribute(String key, Object value) {
+        json.append("{\"key\":");
+        JsonUtils.appendString(json, key);
+        if (value instanceof Long || value instanceof Integer) {
+            // OTLP JSON carries 64-bit integers as strings.
+            json.append(",\"value\":{\"intValue\":\"").append(value).append("\"}}");
+        } else if (value instanceof Boolean) {
+            json.append(",\"value\":{\"boolValue\":").append(value).append("}}");
+        } else {
+            json.append(",\"value\":{\"stringValue\":");
+            JsonUtils.appendString(json, String.valueOf(value));
+            json.append("}}");
+        }
+    }
+
+    /**
+     * One request's spans. Written only by the thread it was started on,
+     * and handed to the exporter through a queue once closed.
+     */
+    public final class Trace implements AutoCloseable {
+        final String[] names = new String[MAX_SPANS];
+        final long[] starts = new long[MAX_SPANS];
+        final long[] ends = new long[MAX_SPANS];
+        final int[] parents = new int[MAX_SPANS];
+        final String[] attributeKeys = new String[MAX_ATTRIBUTES];
+        final Object[] attributeValues = new Object[MAX_ATTRIBUTES];
+        int count;
+        int attributeCount;
+        int current;
+        boolean error;
+        long traceIdHigh;
+        long traceIdLow;
+        long spanIdBase;
+        long epochOffsetNanos;
+        Trace previous;
+
+        void begin(String name) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            traceIdHigh = random.nextLong();
+            traceIdLow = random.nextLong() | 1;
+            // Span ids are the base plus the span's index, never zero.
+            spanIdBase = (random.nextLong() & -MAX_SPANS) | MAX_SPANS;
+            epochOffsetNanos = System.currentTimeMillis() * 1_000_000 - System.nanoTime();
+            previous = CURRENT.get();
+            CURRENT.set(this);
+            current = -1;
+            open(name);
+        }
+
+        long spanId(int index) {
+            return spanIdBase + index;
+        }
+
+        int open(String name) {
+            if (count == MAX_SPANS) {
+                return -1;
+            }
+            int index = count++;
+            names[index] = name;
+            parents[index] = current;
+            ends[index] = 0;
+            current = index;
+            starts[index] = System.nanoTime();
+            return index;
+        }
+
+        void close(int index) {
+            long now = System.nanoTime();
+            if (index >= count || ends[index] != 0) {
+                return;
+            }
+            ends[index] = now;
+            if (current == index) {
+                current = parents[index];
+            }
+        }
+
+        /**
+         * Records the HTTP status of the response, failing the trace on a
+         * server error.
+         */
+        public void setStatus(int httpStatus) {
+            attribute("http.response.status_code", httpStatus);
+            if (httpStatus >= 500) {
+                error = true;
+            }
+        }
+
+        void attribute(String key, Object value) {
+            if (attributeCount < MAX_ATTRIBUTES) {
+                attributeKeys[attributeCount] = key;
+                attributeValues[attributeCount] = value;
+                attributeCount++;
+            }
+        }
+
+        /**
+         * Ends the root span, and any span left open by an exception, and
+         * queues the trace for export.
+         */
+        @Override
+        public void close() {
+            long now = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                if (ends[i] == 0) {
+                    ends[i] = now;
+                }
+            }
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+            previous = null;
+            submitted.incrementAndGet();
+            finished.offer(this);
+        }
+
+        void clear() {
+            for (int i = 0; i < count; i++) {
+                names[i] = null;
+            }
+            for (int i = 0; i < attributeCount; i++) {
+                attributeKeys[i] = null;
+                attributeValues[i] = null;
+            }
+            count = 0;
+            attributeCount = 0;
+            error = false;
+        }
+    }
+}
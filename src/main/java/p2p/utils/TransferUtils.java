@@ -0,0 +1,104 @@
+package p2p.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import p2p.utils.BufferPool.PooledBuffer;
+
+public class TransferUtils {
+
+    public static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Views a stream as a channel, reusing the stream itself when it already
+     * is one (as the NIO server's request and response bodies are).
+     */
+    public static ReadableByteChannel channel(InputStream in) {
+        if (in instanceof ReadableByteChannel) {
+            return (ReadableByteChannel) in;
+        }
+        return Channels.newChannel(in);
+    }
+
+    public static WritableByteChannel channel(OutputStream out) {
+        if (out instanceof WritableByteChannel) {
+            return (WritableByteChannel) out;
+        }
+        return Channels.newChannel(out);
+    }
+
+    /**
+     * Copies until end of stream through a pooled direct buffer.
+     */
+    public static long copy(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        try (PooledBuffer pooled = BufferPool.shared().acquire(COPY_BUFFER_SIZE)) {
+            return copy(in, out, pooled.buffer());
+        }
+    }
+
+    /**
+     * Copies until end of stream using the caller's buffer, which must be in
+     * write mode. Bytes already in the buffer are written first.
+     */
+    public static long copy(ReadableByteChannel in, WritableByteChannel out, ByteBuffer buffer) throws IOException {
+        long total = 0;
+        while (in.read(buffer) >= 0) {
+            buffer.flip();
+            total += writeFully(out, buffer);
+            buffer.clear();
+        }
+        buffer.flip();
+        total += writeFully(out, buffer);
+        buffer.clear();
+        return total;
+    }
+
+    /**
+     * Copies until end of stream through the buffer of {@code transfer},
+     * which resizes it as the throughput changes. Bytes already in the
+     * buffer are written first. Each write is a {@link JfrEvents.TransferChunk}.
+     */
+    public static long copy(ReadableByteChannel in, WritableByteChannel out, AdaptiveBuffers.Transfer transfer)
+            throws IOException {
+        ByteBuffer buffer = transfer.buffer();
+        long total = 0;
+        while (in.read(buffer) >= 0) {
+            buffer.flip();
+            int written = writeChunk(out, buffer);
+            total += written;
+            buffer.clear();
+            buffer = transfer.transferred(written);
+        }
+        buffer.flip();
+        total += writeChunk(out, buffer);
+        buffer.clear();
+        return total;
+    }
+
+    private static int writeChunk(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+        JfrEvents.TransferChunk event = new JfrEvents.TransferChunk();
+        event.begin();
+        int written = writeFully(out, buffer);
+        event.end();
+        if (event.shouldCommit()) {
+            event.requestId = Log.getCorrelationId();
+            event.bytes = written;
+            event.bufferSize = buffer.capacity();
+            event.commit();
+        }
+        return written;
+    }
+
+    public static int writeFully(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+        int written = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        return written;
+    }
+}
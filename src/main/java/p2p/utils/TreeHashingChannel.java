@@ -0,0 +1,164 @@
+package p2p.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Semaphore;
+
+import p2p.utils.BufferPool.PooledBuffer;
+
+/**
+ * Builds the {@link MerkleTree} of everything written through it, hashing
+ * the leaves in parallel. Each full leaf is copied into a pooled buffer and
+ * hashed on the hasher pool while later bytes keep flowing to the
+ * delegate, so the writing thread only pays for the copy. At most two
+ * leaves per core are in flight; past that, writes wait for the hashers.
+ * <p>
+ * Given the leaf hashes the sender announced, it checks each leaf as soon
+ * as it is hashed and fails the next write after a mismatch, so a corrupt
+ * transfer stops at the first bad leaf instead of at the end.
+ */
+public class TreeHashingChannel implements WritableByteChannel {
+    private final WritableByteChannel delegate;
+    private final byte[][] expected;
+    private final Semaphore inFlight = new Semaphore(2 * MerkleTree.hashers().getParallelism());
+    private final List<ForkJoinTask<byte[]>> leaves = new ArrayList<>();
+    private volatile int mismatch = -1;
+    private PooledBuffer leaf;
+    private long count;
+    private boolean closed;
+
+    public TreeHashingChannel(WritableByteChannel delegate) {
+        this(delegate, null);
+    }
+
+    /**
+     * @param expected the leaf hashes to check against, or null
+     */
+    public TreeHashingChannel(WritableByteChannel delegate, byte[][] expected) {
+        this.delegate = delegate;
+        this.expected = expected;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        checkLeaves();
+        int start = src.position();
+        int written = delegate.write(src);
+        if (written > 0) {
+            ByteBuffer view = src.duplicate();
+            view.position(start).limit(start + written);
+            while (view.hasRemaining()) {
+                if (leaf == null) {
+                    leaf = BufferPool.shared().acquire(MerkleTree.LEAF_SIZE);
+                    leaf.buffer().limit(MerkleTree.LEAF_SIZE);
+                }
+                ByteBuffer target = leaf.buffer();
+                int n = Math.min(target.remaining(), view.remaining());
+                int limit = view.limit();
+                target.put(view.limit(view.position() + n));
+                view.limit(limit);
+                if (!target.hasRemaining()) {
+                    submitLeaf();
+                }
+            }
+            count += written;
+        }
+        return written;
+    }
+
+    private void submitLeaf() throws IOException {
+        PooledBuffer full = leaf;
+        leaf = null;
+        full.buffer().flip();
+        int index = leaves.size();
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            full.close();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for a hasher");
+        }
+        leaves.add(MerkleTree.hashers().submit(() -> {
+            try {
+                byte[] hash = MerkleTree.leafHash(full.buffer());
+                if (expected != null && (index >= expected.length || !MessageDigest.isEqual(hash, expected[index]))) {
+                    mismatch = index;
+                }
+                return hash;
+            } finally {
+                full.close();
+                inFlight.release();
+            }
+        }));
+    }
+
+    private void checkLeaves() throws IOException {
+        if (mismatch >= 0) {
+            throw new IOException("leaf " + mismatch + " does not match its announced hash");
+        }
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Waits for the last leaves and returns the tree. Call once, after close.
+     */
+    public MerkleTree tree() throws IOException {
+        byte[][] hashes = new byte[leaves.size()][];
+        for (int i = 0; i < hashes.length; i++) {
+            try {
+                hashes[i] = leaves.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for a hasher");
+            } catch (ExecutionException e) {
+                throw new IOException("hashing failed", e.getCause());
+            }
+        }
+        return new MerkleTree(hashes);
+    }
+
+    /**
+     * Whether every leaf matched the expected hashes and none is missing.
+     * Call after {@link #tree()}.
+     */
+    public boolean matchesExpected() {
+        return expected != null && mismatch < 0 && leaves.size() == expected.length;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return delegate.isOpen();
+    }
+
+    /**
+     * Hashes the last, possibly short or empty, leaf and closes the delegate.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (leaf != null || leaves.isEmpty()) {
+                if (leaf == null) {
+                    leaf = BufferPool.shared().acquire(0);
+                    leaf.buffer().limit(0);
+                }
+                submitLeaf();
+            }
+        } finally {
+            delegate.close();
+        }
+    }
+}
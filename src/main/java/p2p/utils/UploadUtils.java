@@ -8,8 +8,15 @@ public class UploadUtils {
         int DYNAMIC_STARTING_PORT = 49152;
         int DYNAMIC_ENDING_PORT = 65535;
 
+        return generateCode(DYNAMIC_STARTING_PORT, DYNAMIC_ENDING_PORT);
+    }
+
+    /**
+     * A random code in {@code [min, max)}.
+     */
+    public static int generateCode(int min, int max) {
         Random random = new Random();
-        return random.nextInt(DYNAMIC_ENDING_PORT-DYNAMIC_STARTING_PORT) + DYNAMIC_STARTING_PORT;
+        return random.nextInt(max - min) + min;
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,168 @@
+package p2p.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import com.sun.nio.file.ExtendedOpenOption;
+
+import p2p.utils.BufferPool.PooledBuffer;
+
+/**
+ * Writes a new upload file in large, block-aligned writes.
+ * <p>
+ * Incoming chunks of any size are gathered in an aligned direct buffer and
+ * handed to the file system {@link #DEFAULT_WRITE_SIZE} bytes at a time,
+ * which lets it allocate long contiguous extents instead of growing the
+ * file a few kilobytes per write. Optionally the file is opened with
+ * {@code O_DIRECT}, bypassing the page cache, and flushed to disk every
+ * {@code syncBytes} bytes so dirty pages don't pile up behind a fast client.
+ */
+public class UploadWriter implements WritableByteChannel {
+    public static final int DEFAULT_WRITE_SIZE = 1024 * 1024;
+    private static final int MIN_ALIGNMENT = 4096;
+
+    private static volatile boolean directUnsupported;
+
+    private final FileChannel channel;
+    private final PooledBuffer pooled;
+    private final ByteBuffer buffer;
+    private final int alignment;
+    private final boolean direct;
+    private final long syncBytes;
+    private long position;
+    private long unsynced;
+    private boolean closed;
+
+    /**
+     * Creates {@code path}, which must not exist. {@code expectedSize} bounds
+     * the write buffer for small uploads; pass -1 if unknown. A
+     * {@code syncBytes} of 0 never forces data to disk before close.
+     */
+    public UploadWriter(Path path, long expectedSize, boolean direct, long syncBytes) throws IOException {
+        this.alignment = alignment(path);
+        this.syncBytes = syncBytes;
+        FileChannel opened = null;
+        if (direct && !directUnsupported) {
+            try {
+                opened = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE,
+                        ExtendedOpenOption.DIRECT);
+            } catch (FileAlreadyExistsException e) {
+                throw e;
+            } catch (UnsupportedOperationException | IOException e) {
+                // tmpfs and some other file systems refuse O_DIRECT.
+                Files.deleteIfExists(path);
+                directUnsupported = true;
+                Log.warn("upload.direct_unavailable", "error", e);
+            }
+        }
+        this.direct = opened != null;
+        this.channel = opened != null ? opened
+                : FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+
+        int size = DEFAULT_WRITE_SIZE;
+        if (expectedSize >= 0 && expectedSize < size) {
+            size = (int) Math.max(alignment, (expectedSize + alignment - 1) / alignment * alignment);
+        }
+        // Leave room to align the buffer, without spilling out of the largest pool class.
+        this.pooled = BufferPool.shared().acquire(Math.min(size + alignment, DEFAULT_WRITE_SIZE));
+        ByteBuffer aligned = pooled.buffer().alignedSlice(alignment);
+        aligned.limit(aligned.capacity() / alignment * alignment);
+        this.buffer = aligned;
+    }
+
+    private static int alignment(Path path) {
+        try {
+            long blockSize = Files.getFileStore(path.toAbsolutePath().getParent()).getBlockSize();
+            return (int) Math.max(MIN_ALIGNMENT, blockSize);
+        } catch (IOException | UnsupportedOperationException e) {
+            return MIN_ALIGNMENT;
+        }
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    public long size() {
+        return position + buffer.position();
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (closed) {
+            throw new IOException("writer is closed");
+        }
+        int length = src.remaining();
+        while (src.hasRemaining()) {
+            int n = Math.min(src.remaining(), buffer.remaining());
+            int limit = src.limit();
+            src.limit(src.position() + n);
+            buffer.put(src);
+            src.limit(limit);
+            if (!buffer.hasRemaining()) {
+                flushBuffer();
+            }
+        }
+        return length;
+    }
+
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        int length = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+        buffer.clear();
+        buffer.limit(buffer.capacity() / alignment * alignment);
+        position += length;
+        unsynced += length;
+        if (syncBytes > 0 && unsynced >= syncBytes) {
+            channel.force(false);
+            unsynced = 0;
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    /**
+     * Writes the tail and closes the file. In direct mode the tail is padded
+     * to a whole block and the file truncated back to its real size.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            long size = size();
+            if (buffer.position() > 0) {
+                if (direct) {
+                    int padded = (buffer.position() + alignment - 1) / alignment * alignment;
+                    while (buffer.position() < padded) {
+                        buffer.put((byte) 0);
+                    }
+                }
+                flushBuffer();
+                if (direct) {
+                    channel.truncate(size);
+                }
+            }
+            if (syncBytes > 0 && unsynced > 0) {
+                channel.force(false);
+            }
+        } finally {
+            pooled.close();
+            channel.close();
+        }
+    }
+}
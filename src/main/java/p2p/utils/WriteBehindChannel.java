@@ -0,0 +1,202 @@
+package p2p.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import p2p.utils.BufferPool.PooledBuffer;
+
+/**
+ * Decouples the thread writing into it from the delegate channel.
+ * <p>
+ * Writes fill buffers from a small fixed ring. Each full buffer is queued
+ * and drained into the delegate on the given executor, so the writing
+ * thread can go back to the network while the disk catches up. The drain
+ * task only holds an executor thread while buffers are queued: a slow
+ * writer doesn't tie up the disk side, and a slow disk only blocks the
+ * writer once the whole ring is queued.
+ * <p>
+ * Occupancy is tracked process-wide so it can be reported as a metric.
+ */
+public class WriteBehindChannel implements WritableByteChannel {
+    public static final int DEFAULT_BUFFER_COUNT = 8;
+    public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+    private static final AtomicInteger QUEUED_BUFFERS = new AtomicInteger();
+    private static final AtomicLong BUFFERS_WRITTEN = new AtomicLong();
+    private static final AtomicLong PRODUCER_STALLS = new AtomicLong();
+
+    private final WritableByteChannel delegate;
+    private final Executor executor;
+    private final int bufferCount;
+    private final BlockingQueue<PooledBuffer> free;
+    private final ConcurrentLinkedQueue<PooledBuffer> queued = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private volatile Exception failure;
+    private PooledBuffer current;
+    private boolean closed;
+
+    public WriteBehindChannel(WritableByteChannel delegate, Executor executor) {
+        this(delegate, executor, DEFAULT_BUFFER_COUNT, DEFAULT_BUFFER_SIZE);
+    }
+
+    public WriteBehindChannel(WritableByteChannel delegate, Executor executor, int bufferCount, int bufferSize) {
+        this.delegate = delegate;
+        this.executor = executor;
+        this.bufferCount = bufferCount;
+        this.free = new ArrayBlockingQueue<>(bufferCount);
+        for (int i = 0; i < bufferCount; i++) {
+            free.add(BufferPool.shared().acquire(bufferSize));
+        }
+    }
+
+    /**
+     * Filled buffers waiting for the disk, across all pipelines.
+     */
+    public static int getQueuedBuffers() {
+        return QUEUED_BUFFERS.get();
+    }
+
+    public static long getBuffersWritten() {
+        return BUFFERS_WRITTEN.get();
+    }
+
+    /**
+     * How often a writer had to wait because its whole ring was queued.
+     */
+    public static long getProducerStalls() {
+        return PRODUCER_STALLS.get();
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (closed) {
+            throw new IOException("channel is closed");
+        }
+        checkFailure();
+        int length = src.remaining();
+        while (src.hasRemaining()) {
+            if (current == null) {
+                current = takeFree();
+            }
+            ByteBuffer buffer = current.buffer();
+            int n = Math.min(src.remaining(), buffer.remaining());
+            int limit = src.limit();
+            src.limit(src.position() + n);
+            buffer.put(src);
+            src.limit(limit);
+            if (!buffer.hasRemaining()) {
+                submit();
+            }
+        }
+        return length;
+    }
+
+    private PooledBuffer takeFree() throws IOException {
+        PooledBuffer buffer = free.poll();
+        if (buffer == null) {
+            PRODUCER_STALLS.incrementAndGet();
+            try {
+                buffer = free.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for the disk writer");
+            }
+        }
+        return buffer;
+    }
+
+    private void submit() {
+        current.buffer().flip();
+        queued.add(current);
+        QUEUED_BUFFERS.incrementAndGet();
+        current = null;
+        if (draining.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        do {
+            PooledBuffer buffer;
+            while ((buffer = queued.poll()) != null) {
+                QUEUED_BUFFERS.decrementAndGet();
+                try {
+                    if (failure == null) {
+                        TransferUtils.writeFully(delegate, buffer.buffer());
+                        BUFFERS_WRITTEN.incrementAndGet();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    failure = e;
+                } finally {
+                    buffer.buffer().clear();
+                    free.add(buffer);
+                }
+            }
+            draining.set(false);
+            // A buffer queued after the last poll but before the flag was
+            // cleared found the drain still running; pick it up here.
+        } while (!queued.isEmpty() && draining.compareAndSet(false, true));
+    }
+
+    private void checkFailure() throws IOException {
+        Exception e = failure;
+        if (e != null) {
+            // A fresh exception each time: the same failure may be thrown
+            // from write() and again from close() in one try block.
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    /**
+     * Queues the last partial buffer and waits until everything reached the
+     * delegate. The delegate itself is not closed. Rethrows any write
+     * failure.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (current != null && current.buffer().position() > 0) {
+            submit();
+        }
+        // Every buffer back in the free queue means the disk side is done.
+        PooledBuffer[] buffers = new PooledBuffer[bufferCount];
+        boolean interrupted = false;
+        for (int i = 0; i < bufferCount; i++) {
+            if (current != null) {
+                buffers[i] = current;
+                current = null;
+                continue;
+            }
+            try {
+                buffers[i] = free.take();
+            } catch (InterruptedException e) {
+                interrupted = true;
+                i--;
+            }
+        }
+        for (PooledBuffer buffer : buffers) {
+            buffer.close();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        checkFailure();
+    }
+}
@@ -0,0 +1,162 @@
+package p2p;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import p2p.utils.AdaptiveBuffers;
+import p2p.utils.BufferPool;
+import p2p.utils.BufferPool.PooledBuffer;
+import p2p.utils.TransferUtils;
+
+/**
+ * Compares the fixed 64 KB copy buffer with {@link AdaptiveBuffers}: the
+ * throughput of one sender to a loopback client that reads as fast as it
+ * can, and the buffer memory held by many senders to clients that each
+ * read at a trickle.
+ * <p>
+ * Run with {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=p2p.AdaptiveBufferBenchmark [-Dexec.args="sizeMb slowClients"]}.
+ */
+public class AdaptiveBufferBenchmark {
+
+    private static final int SLOW_BYTES_PER_SECOND = 256 * 1024;
+    private static final long SLOW_MILLIS = 3000;
+
+    public static void main(String[] args) throws Exception {
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+        int slowClients = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        Path file = Files.createTempFile("adaptive-bench-", ".bin");
+        byte[] block = new byte[1024 * 1024];
+        new Random(7).nextBytes(block);
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (int i = 0; i < sizeMb; i++) {
+                out.write(block);
+            }
+        }
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress("localhost", 0));
+            System.out.printf("%-9s %12s %16s%n", "mode", "fast MB/s", "slow buffer KB");
+            for (int round = 0; round < 3; round++) {
+                // The first rounds warm up the JIT and the page cache.
+                for (boolean adaptive : new boolean[] {false, true}) {
+                    AdaptiveBuffers buffers = new AdaptiveBuffers(BufferPool.shared(), 1L << 30);
+                    double seconds = fast(server, executor, file, adaptive ? buffers : null);
+                    long held = slow(server, executor, file, slowClients, adaptive ? buffers : null);
+                    if (round == 2) {
+                        System.out.printf("%-9s %12.1f %16d%n", adaptive ? "adaptive" : "fixed",
+                                sizeMb / seconds, held / 1024);
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            Files.delete(file);
+        }
+    }
+
+    private static double fast(ServerSocketChannel server, ExecutorService executor, Path file,
+            AdaptiveBuffers buffers) throws Exception {
+        long start = System.nanoTime();
+        Future<?> sender = executor.submit(() -> send(server, file, buffers, new AtomicLong(), false));
+        try (SocketChannel client = SocketChannel.open(server.getLocalAddress())) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(256 * 1024);
+            while (client.read(buffer) >= 0) {
+                buffer.clear();
+            }
+        }
+        sender.get();
+        return (System.nanoTime() - start) / 1e9;
+    }
+
+    /**
+     * Runs the slow clients for a while and returns the buffer bytes their
+     * senders hold at the end.
+     */
+    private static long slow(ServerSocketChannel server, ExecutorService executor, Path file, int clients,
+            AdaptiveBuffers buffers) throws Exception {
+        AtomicLong held = new AtomicLong();
+        List<Future<?>> senders = new ArrayList<>();
+        List<SocketChannel> sockets = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            senders.add(executor.submit(() -> send(server, file, buffers, held, true)));
+            // A small receive window, as a slow client far away would advertise.
+            SocketChannel socket = SocketChannel.open();
+            socket.setOption(StandardSocketOptions.SO_RCVBUF, 64 * 1024);
+            socket.connect(server.getLocalAddress());
+            sockets.add(socket);
+        }
+        List<Future<?>> readers = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + SLOW_MILLIS;
+        for (SocketChannel socket : sockets) {
+            readers.add(executor.submit(() -> {
+                ByteBuffer buffer = ByteBuffer.allocate(16 * 1024);
+                long pause = 1000L * buffer.capacity() / SLOW_BYTES_PER_SECOND;
+                while (System.currentTimeMillis() < deadline && socket.read(buffer) >= 0) {
+                    buffer.clear();
+                    Thread.sleep(pause);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> reader : readers) {
+            reader.get();
+        }
+        long bytes = buffers != null ? buffers.getReservedBytes() : held.get();
+        for (SocketChannel socket : sockets) {
+            socket.close();
+        }
+        for (Future<?> sender : senders) {
+            sender.get();
+        }
+        return bytes;
+    }
+
+    /**
+     * Accepts one client and sends it the file, through a fixed buffer when
+     * {@code buffers} is null. For slow clients the send buffer is kept
+     * small, otherwise the kernel takes megabytes from the sender at once
+     * and the copy loop sees nothing of the client's pace for seconds.
+     */
+    private static Void send(ServerSocketChannel server, Path file, AdaptiveBuffers buffers, AtomicLong held,
+            boolean slow) throws IOException {
+        try (SocketChannel socket = server.accept();
+             FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (slow) {
+                socket.setOption(StandardSocketOptions.SO_SNDBUF, 64 * 1024);
+            }
+            if (buffers == null) {
+                try (PooledBuffer pooled = BufferPool.shared().acquire(TransferUtils.COPY_BUFFER_SIZE)) {
+                    held.addAndGet(pooled.buffer().capacity());
+                    TransferUtils.copy(in, socket, pooled.buffer());
+                } finally {
+                    held.addAndGet(-TransferUtils.COPY_BUFFER_SIZE);
+                }
+            } else {
+                try (AdaptiveBuffers.Transfer transfer = buffers.open("client", socket)) {
+                    TransferUtils.copy(in, socket, transfer);
+                }
+            }
+        } catch (IOException e) {
+            // The slow clients hang up mid-transfer.
+        }
+        return null;
+    }
+}
@@ -0,0 +1,106 @@
+package p2p;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+
+import org.junit.jupiter.api.*;
+
+import p2p.utils.AdaptiveBuffers;
+import p2p.utils.BufferPool;
+
+/**
+ * Grows and shrinks transfer buffers with the measured throughput, within
+ * the global cap.
+ */
+public class AdaptiveBuffersTest {
+
+    private static final long WINDOW_MILLIS = 60;
+
+    private BufferPool pool;
+
+    @BeforeEach
+    void setUp() {
+        pool = new BufferPool(BufferPool.DEFAULT_SIZE_CLASSES, 16L << 20);
+    }
+
+    @Test
+    @DisplayName("A fast transfer should grow its buffer and a slow one should shrink it")
+    void testFollowsThroughput() throws Exception {
+        AdaptiveBuffers buffers = new AdaptiveBuffers(pool, 64L << 20);
+        try (AdaptiveBuffers.Transfer fast = buffers.open("fast", null);
+             AdaptiveBuffers.Transfer slow = buffers.open("slow", null)) {
+            assertEquals(AdaptiveBuffers.INITIAL_BUFFER, fast.size());
+            Thread.sleep(WINDOW_MILLIS);
+            // Gigabytes per window, however slow the machine, call for the largest buffer.
+            assertEquals(4 * AdaptiveBuffers.INITIAL_BUFFER, fast.transferred(10L << 30).capacity());
+            slow.transferred(1000);
+            assertEquals(AdaptiveBuffers.MIN_BUFFER, slow.size());
+            for (int i = 0; i < 2; i++) {
+                Thread.sleep(WINDOW_MILLIS);
+                fast.transferred(10L << 30);
+            }
+            assertEquals(AdaptiveBuffers.MAX_BUFFER, fast.size());
+
+            assertEquals(AdaptiveBuffers.MAX_BUFFER + AdaptiveBuffers.MIN_BUFFER, buffers.getReservedBytes());
+            assertEquals(2, buffers.getGrownCount());
+            assertEquals(1, buffers.getShrunkCount());
+        }
+        assertEquals(0, buffers.getReservedBytes());
+    }
+
+    @Test
+    @DisplayName("Buffers should stop growing at the global cap and every transfer should still get one")
+    void testCapped() throws Exception {
+        AdaptiveBuffers buffers = new AdaptiveBuffers(pool, 3 * AdaptiveBuffers.INITIAL_BUFFER);
+        try (AdaptiveBuffers.Transfer first = buffers.open("a", null);
+             AdaptiveBuffers.Transfer second = buffers.open("b", null)) {
+            Thread.sleep(WINDOW_MILLIS);
+            first.transferred(10L << 30);
+            assertEquals(AdaptiveBuffers.INITIAL_BUFFER, first.size());
+            assertEquals(AdaptiveBuffers.INITIAL_BUFFER, second.size());
+            assertEquals(1, buffers.getCappedCount());
+
+            try (AdaptiveBuffers.Transfer third = buffers.open("c", null);
+                 AdaptiveBuffers.Transfer fourth = buffers.open("d", null)) {
+                assertEquals(AdaptiveBuffers.INITIAL_BUFFER, third.size());
+                assertEquals(AdaptiveBuffers.MIN_BUFFER, fourth.size());
+            }
+        }
+        assertEquals(0, buffers.getReservedBytes());
+    }
+
+    @Test
+    @DisplayName("The next connection to a peer should ask for the receive buffer the last transfer needed")
+    void testLearnsPerPeer() throws Exception {
+        AdaptiveBuffers buffers = new AdaptiveBuffers(pool, 64L << 20);
+        buffers.connected("near", 100_000L);
+        buffers.connected("far", 100_000_000L);
+        for (String host : new String[] {"near", "far", "unknown"}) {
+            try (AdaptiveBuffers.Transfer transfer = buffers.open(host, null)) {
+                Thread.sleep(WINDOW_MILLIS);
+                transfer.transferred(1L << 20);
+            }
+        }
+        // Twice the bandwidth-delay product: 1 MB over the window, times the round trip.
+        assertTrue(buffers.receiveBufferFor("near") < 8 * 1024, "near: " + buffers.receiveBufferFor("near"));
+        assertTrue(buffers.receiveBufferFor("far") > 100 * 1024, "far: " + buffers.receiveBufferFor("far"));
+        assertEquals(0, buffers.receiveBufferFor("unknown"));
+        assertEquals(0, buffers.receiveBufferFor("never"));
+    }
+
+    @Test
+    @DisplayName("Swapped buffers should go back to the pool")
+    void testNoLeaks() throws IOException, InterruptedException {
+        AdaptiveBuffers buffers = new AdaptiveBuffers(pool, 64L << 20);
+        for (int i = 0; i < 3; i++) {
+            try (AdaptiveBuffers.Transfer transfer = buffers.open("peer", null)) {
+                Thread.sleep(WINDOW_MILLIS);
+                transfer.transferred(i % 2 == 0 ? 10L << 30 : 0);
+            }
+        }
+        assertEquals(6, pool.getAcquiredCount());
+        assertTrue(pool.getPooledBytes() > 0);
+        assertEquals(0, buffers.getReservedBytes());
+    }
+}
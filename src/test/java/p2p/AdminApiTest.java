@@ -0,0 +1,238 @@
+package p2p;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.*;
+
+import p2p.config.Config;
+import p2p.controller.FileController;
+
+/**
+ * Lists shares, transfers and resource usage under {@code /admin}, and
+ * cancels transfers and evicts shares.
+ */
+public class AdminApiTest {
+
+    private static final String TOKEN = "test-admin-token-0123";
+
+    private Path dir;
+    private FileController controller;
+    private HttpClient client;
+    private String baseUrl;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        dir = Files.createTempDirectory("admin-");
+        controller = new FileController(Config.load()
+            .with(Config.PORT, 0)
+            .with(Config.UPLOAD_DIR, dir.toString())
+            .with(Config.ADMIN_TOKEN, TOKEN));
+        controller.start();
+        client = HttpClient.newHttpClient();
+        baseUrl = "http://localhost:" + controller.getPort();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        controller.stop();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    @DisplayName("Shares should be listed with their download count, and resources with thread and disk usage")
+    void testListsSharesAndResources() throws Exception {
+        int code = FileTransferTest.upload(client, baseUrl, "listed.txt", "admin listing".getBytes());
+        assertTrue(get("/admin/shares").contains("{\"code\": " + code + ", \"filename\": "), get("/admin/shares"));
+        assertEquals(0, number(get("/admin/shares"), "downloads"));
+
+        HttpResponse<String> download = client.send(HttpRequest.newBuilder()
+            .uri(URI.create(baseUrl + "/download/" + code)).GET().build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, download.statusCode());
+        String shares = get("/admin/shares");
+        assertEquals(1, number(shares, "downloads"));
+        assertEquals(13, number(shares, "size"));
+
+        String all = get("/admin");
+        assertTrue(all.startsWith("{\"shares\": [{"), all);
+        assertTrue(number(all, "threads") > 0, all);
+        assertTrue(number(all, "totalBytes") > 0, all);
+        assertTrue(all.contains("\"transfers\": ["), all);
+
+        assertEquals(404, send("GET", "/admin/nothing").statusCode());
+        assertEquals(405, send("POST", "/admin/shares").statusCode());
+    }
+
+    @Test
+    @DisplayName("A cancelled peer send should stop before the end of the file")
+    void testCancelTransfer() throws Exception {
+        byte[] content = new byte[32 * 1024 * 1024];
+        new Random(4).nextBytes(content);
+        int code = FileTransferTest.upload(client, baseUrl, "large.bin", content);
+        int peerPort = (int) number(get("/admin/shares"), "peerPort");
+
+        try (SocketChannel peer = SocketChannel.open(new InetSocketAddress("localhost", peerPort))) {
+            // Not reading yet, so the send stalls on a full socket.
+            String id = null;
+            long deadline = System.currentTimeMillis() + 5000;
+            while (id == null && System.currentTimeMillis() < deadline) {
+                Matcher matcher = Pattern.compile("\"id\": \"([^\"]+)\", \"type\": \"send\"")
+                    .matcher(get("/admin/transfers"));
+                id = matcher.find() ? matcher.group(1) : null;
+            }
+            assertNotNull(id, get("/admin/transfers"));
+            assertTrue(get("/admin/transfers").contains("_large.bin\", \"remote\": \"127.0.0.1\""));
+
+            assertEquals(204, send("DELETE", "/admin/transfers/" + id).statusCode());
+            long received = 0;
+            ByteBuffer buffer = ByteBuffer.allocate(256 * 1024);
+            try {
+                int n;
+                while ((n = peer.read(buffer)) >= 0) {
+                    received += n;
+                    buffer.clear();
+                }
+            } catch (IOException e) {
+                // A reset is as good as a close.
+            }
+            assertTrue(received < content.length, "received " + received);
+            assertEquals(404, send("DELETE", "/admin/transfers/" + id).statusCode());
+        }
+        assertTrue(get("/admin/shares").contains("\"code\": " + code));
+    }
+
+    @Test
+    @DisplayName("A cancelled WebSocket download should close with an error before its next chunk")
+    void testCancelWebSocketTransfer() throws Exception {
+        byte[] content = new byte[1024 * 1024];
+        new Random(5).nextBytes(content);
+        int code = FileTransferTest.upload(client, baseUrl, "socket.bin", content);
+
+        AtomicInteger chunks = new AtomicInteger();
+        CompletableFuture<Void> firstChunk = new CompletableFuture<>();
+        CompletableFuture<Integer> closed = new CompletableFuture<>();
+        WebSocket ws = client.newWebSocketBuilder()
+            .buildAsync(URI.create(baseUrl.replace("http", "ws") + "/ws/download/" + code + "?credits=1"),
+                new WebSocket.Listener() {
+                    @Override
+                    public CompletionStage<?> onBinary(WebSocket webSocket, ByteBuffer data, boolean last) {
+                        if (last) {
+                            chunks.incrementAndGet();
+                            firstChunk.complete(null);
+                        }
+                        webSocket.request(1);
+                        return null;
+                    }
+
+                    @Override
+                    public CompletionStage<?> onClose(WebSocket webSocket, int statusCode, String reason) {
+                        closed.complete(statusCode);
+                        return null;
+                    }
+                })
+            .get(5, TimeUnit.SECONDS);
+        // Out of credits after one chunk, so the transfer waits.
+        firstChunk.get(5, TimeUnit.SECONDS);
+        Matcher matcher = Pattern.compile("\"id\": \"([^\"]+)\", \"type\": \"download\"")
+            .matcher(get("/admin/transfers"));
+        assertTrue(matcher.find(), get("/admin/transfers"));
+
+        assertEquals(204, send("DELETE", "/admin/transfers/" + matcher.group(1)).statusCode());
+        ws.sendText("{\"credit\": 16}", true).join();
+        assertEquals(1011, closed.get(5, TimeUnit.SECONDS));
+        assertEquals(1, chunks.get());
+    }
+
+    @Test
+    @DisplayName("An evicted share should disappear, close its port and delete its file")
+    void testEvictShare() throws Exception {
+        int code = FileTransferTest.upload(client, baseUrl, "evicted.txt", "evict me".getBytes());
+        int peerPort = (int) number(get("/admin/shares"), "peerPort");
+
+        assertEquals(204, send("DELETE", "/admin/shares/" + code).statusCode());
+        assertEquals("[]", get("/admin/shares"));
+        assertEquals(404, send("DELETE", "/admin/shares/" + code).statusCode());
+        assertEquals(400, send("DELETE", "/admin/shares/abc").statusCode());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (storedFiles("evicted.txt") > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(0, storedFiles("evicted.txt"));
+        assertThrows(IOException.class, () -> SocketChannel.open(new InetSocketAddress("localhost", peerPort)));
+        assertTrue(get("/metrics").contains("peerlink_shares_evicted_total 1"));
+    }
+
+    @Test
+    @DisplayName("Admin requests without the token should be refused, even from this host through a proxy")
+    void testRequiresToken() throws Exception {
+        HttpResponse<String> forwarded = client.send(HttpRequest.newBuilder()
+            .uri(URI.create(baseUrl + "/admin"))
+            .header("X-Forwarded-For", "203.0.113.7")
+            .header("X-Real-IP", "203.0.113.7")
+            .GET().build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(401, forwarded.statusCode());
+        assertTrue(forwarded.headers().firstValue("WWW-Authenticate").orElse("").startsWith("Bearer"));
+
+        HttpResponse<String> wrong = client.send(HttpRequest.newBuilder()
+            .uri(URI.create(baseUrl + "/admin/shares/1"))
+            .header("Authorization", "Bearer " + TOKEN + "x")
+            .DELETE().build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(401, wrong.statusCode());
+        assertEquals(200, send("GET", "/admin").statusCode());
+
+        controller.stop();
+        controller = new FileController(Config.load().with(Config.PORT, 0).with(Config.UPLOAD_DIR, dir.toString()));
+        controller.start();
+        baseUrl = "http://localhost:" + controller.getPort();
+        assertEquals(404, send("GET", "/admin").statusCode());
+        assertThrows(IllegalArgumentException.class, () -> Config.load().with(Config.ADMIN_TOKEN, "short"));
+    }
+
+    private String get(String path) throws Exception {
+        HttpResponse<String> response = send("GET", path);
+        assertEquals(200, response.statusCode(), response.body());
+        return response.body();
+    }
+
+    private HttpResponse<String> send(String method, String path) throws Exception {
+        return client.send(HttpRequest.newBuilder()
+            .uri(URI.create(baseUrl + path))
+            .header("Authorization", "Bearer " + TOKEN)
+            .method(method, HttpRequest.BodyPublishers.noBody())
+            .build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private long storedFiles(String name) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(path -> path.getFileName().toString().endsWith("_" + name)).count();
+        }
+    }
+
+    private static long number(String json, String key) {
+        Matcher matcher = Pattern.compile("\"" + key + "\":\\s*(-?\\d+)").matcher(json);
+        assertTrue(matcher.find(), json);
+        return Long.parseLong(matcher.group(1));
+    }
+}
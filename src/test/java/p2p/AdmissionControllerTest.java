@@ -0,0 +1,159 @@
+package p2p;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.*;
+
+import p2p.service.AdmissionController;
+import p2p.service.AdmissionController.Admission;
+
+public class AdmissionControllerTest {
+
+    private static final File TMP = new File(System.getProperty("java.io.tmpdir"));
+
+    private ThreadPoolExecutor executor;
+
+    @BeforeEach
+    void setUp() {
+        executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(4));
+    }
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    @DisplayName("In-flight bytes should be bounded and released on close")
+    void testInFlightLimit() {
+        AdmissionController admission = new AdmissionController(TMP, executor, 1000, 0);
+
+        Admission first = admission.admit(600);
+        assertTrue(first.isAccepted());
+        assertEquals(600, admission.getInFlightBytes());
+
+        Admission second = admission.admit(600);
+        assertFalse(second.isAccepted());
+        assertTrue(second.getRetryAfterSeconds() > 0);
+        assertEquals(1, admission.getRejectedCount());
+
+        first.close();
+        first.close();
+        assertEquals(0, admission.getInFlightBytes());
+
+        try (Admission third = admission.admit(600)) {
+            assertTrue(third.isAccepted());
+        }
+        assertEquals(0, admission.getInFlightBytes());
+    }
+
+    @Test
+    @DisplayName("A single upload larger than the budget should be admitted when idle")
+    void testOversizedWhenIdle() {
+        AdmissionController admission = new AdmissionController(TMP, executor, 1000, 0);
+        try (Admission big = admission.admit(5000)) {
+            assertTrue(big.isAccepted());
+            assertFalse(admission.admit(1).isAccepted());
+        }
+    }
+
+    @Test
+    @DisplayName("An upload of unknown length should grow its reservation while the budget allows")
+    void testUnknownLengthGrows() throws IOException {
+        long reservation = AdmissionController.UNKNOWN_LENGTH_RESERVATION;
+        AdmissionController admission = new AdmissionController(TMP, executor, 3 * reservation, 0);
+        try (Admission unknown = admission.admit(-1)) {
+            assertEquals(reservation, admission.getInFlightBytes());
+            ReadableByteChannel body = unknown.limit(zeros());
+            read(body, reservation + 1);
+            assertEquals(2 * reservation, admission.getInFlightBytes());
+
+            try (Admission other = admission.admit(reservation / 2)) {
+                assertTrue(other.isAccepted());
+                AdmissionController.BudgetExceededException e = assertThrows(
+                    AdmissionController.BudgetExceededException.class, () -> read(body, reservation));
+                assertTrue(e.getRetryAfterSeconds() > 0);
+                assertEquals(1, admission.getRejectedCount());
+            }
+            read(body, reservation / 2);
+            assertEquals(3 * reservation, admission.getInFlightBytes());
+        }
+        assertEquals(0, admission.getInFlightBytes());
+
+        try (Admission known = admission.admit(100)) {
+            ReadableByteChannel body = zeros();
+            assertSame(body, known.limit(body));
+        }
+    }
+
+    @Test
+    @DisplayName("Uploads should be rejected when the disk would fall below the reserve")
+    void testDiskReserve() {
+        AdmissionController admission = new AdmissionController(TMP, executor, Long.MAX_VALUE, Long.MAX_VALUE);
+        Admission rejected = admission.admit(1);
+        assertFalse(rejected.isAccepted());
+        assertEquals(0, admission.getInFlightBytes(), "A rejected upload should not keep its reservation");
+    }
+
+    @Test
+    @DisplayName("Uploads should be rejected while the request queue is nearly full")
+    void testQueueDepth() throws InterruptedException {
+        AdmissionController admission = new AdmissionController(TMP, executor, Long.MAX_VALUE, 0);
+        CountDownLatch release = new CountDownLatch(1);
+        Runnable blocked = () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        for (int i = 0; i < 4; i++) {
+            executor.execute(blocked);
+        }
+        assertFalse(admission.admit(1).isAccepted());
+
+        release.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        try (Admission accepted = admission.admit(1)) {
+            assertTrue(accepted.isAccepted());
+        }
+    }
+
+    private static ReadableByteChannel zeros() {
+        return new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) {
+                int n = dst.remaining();
+                dst.position(dst.limit());
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    private static void read(ReadableByteChannel channel, long bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        for (long remaining = bytes; remaining > 0; remaining -= buffer.position()) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), remaining));
+            channel.read(buffer);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package p2p;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.*;
+
+import p2p.utils.BufferPool;
+import p2p.utils.BufferPool.PooledBuffer;
+
+public class BufferPoolTest {
+
+    @Test
+    @DisplayName("Released buffers should be reused")
+    void testReuse() {
+        BufferPool pool = new BufferPool(new int[] {1024, 4096}, 1024 * 1024);
+        PooledBuffer first = pool.acquire(1000);
+        first.buffer().put((byte) 1);
+        first.close();
+
+        PooledBuffer second = pool.acquire(512);
+        assertSame(first, second);
+        assertEquals(0, second.buffer().position(), "Reused buffers should be cleared");
+        second.close();
+        assertEquals(1, pool.getAllocatedCount());
+    }
+
+    @Test
+    @DisplayName("Acquire should pick the smallest fitting size class")
+    void testSizeClasses() {
+        BufferPool pool = new BufferPool(new int[] {1024, 4096}, 1024 * 1024);
+        try (PooledBuffer small = pool.acquire(1);
+             PooledBuffer medium = pool.acquire(1025);
+             PooledBuffer large = pool.acquire(10_000)) {
+            assertEquals(1024, small.buffer().capacity());
+            assertEquals(4096, medium.buffer().capacity());
+            assertEquals(10_000, large.buffer().capacity());
+            assertTrue(small.buffer().isDirect());
+        }
+        assertEquals(1024 + 4096, pool.getPooledBytes(), "Oversized buffers should not be pooled");
+    }
+
+    @Test
+    @DisplayName("Pooled capacity should be bounded")
+    void testBoundedCapacity() {
+        BufferPool pool = new BufferPool(new int[] {1024}, 2048);
+        PooledBuffer a = pool.acquire(1024);
+        PooledBuffer b = pool.acquire(1024);
+        PooledBuffer c = pool.acquire(1024);
+        a.close();
+        b.close();
+        c.close();
+        assertEquals(2048, pool.getPooledBytes());
+    }
+
+    @Test
+    @DisplayName("Double release should be rejected")
+    void testDoubleRelease() {
+        BufferPool pool = new BufferPool(new int[] {1024}, 4096);
+        PooledBuffer buffer = pool.acquire(1024);
+        buffer.close();
+        assertThrows(IllegalStateException.class, buffer::close);
+    }
+
+    @Test
+    @DisplayName("Buffers dropped without release should be reported as leaks")
+    void testLeakDetection() throws InterruptedException {
+        BufferPool pool = new BufferPool(new int[] {1024}, 4096);
+        pool.acquire(1024);
+        for (int i = 0; i < 50 && pool.getLeakedCount() == 0; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        assertEquals(1, pool.getLeakedCount());
+    }
+}
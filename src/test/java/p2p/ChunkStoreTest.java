@@ -0,0 +1,203 @@
+package p2p;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.*;
+
+import p2p.controller.FileController;
+import p2p.service.ChunkStore;
+import p2p.service.ChunkingChannel;
+import p2p.service.Manifest;
+import p2p.utils.ContentDefinedChunker;
+
+/**
+ * Stores uploads as content-defined chunks and reads them back.
+ */
+public class ChunkStoreTest {
+
+    private Path dir;
+    private ChunkStore store;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        dir = Files.createTempDirectory("chunks-");
+        store = new ChunkStore(dir.resolve("chunks"), 2);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        store.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    @DisplayName("An insertion near the start should leave the later chunks unchanged")
+    void testInsertionKeepsChunks() throws IOException {
+        byte[] original = new byte[512 * 1024];
+        new Random(1).nextBytes(original);
+        byte[] edited = new byte[original.length + 100];
+        System.arraycopy(original, 0, edited, 0, 1000);
+        System.arraycopy(original, 1000, edited, 1100, original.length - 1000);
+
+        Manifest first = store("first", original);
+        Manifest second = store("second", edited);
+
+        Set<String> firstChunks = new HashSet<>();
+        for (int i = 0; i < first.getChunkCount(); i++) {
+            firstChunks.add(first.chunkHash(i));
+        }
+        int shared = 0;
+        for (int i = 0; i < second.getChunkCount(); i++) {
+            shared += firstChunks.contains(second.chunkHash(i)) ? 1 : 0;
+        }
+        assertTrue(first.getChunkCount() > 20, "Only " + first.getChunkCount() + " chunks");
+        assertTrue(shared >= second.getChunkCount() - 2, shared + " of " + second.getChunkCount() + " shared");
+        assertTrue(store.getDeduplicatedBytes() > original.length * 3L / 4);
+        assertArrayEquals(edited, readAll(second));
+    }
+
+    @Test
+    @DisplayName("Reads at any position should return the stored bytes")
+    void testRandomAccess() throws IOException {
+        byte[] content = new byte[300_000];
+        new Random(2).nextBytes(content);
+        Manifest manifest = store("random", content);
+        assertEquals(content.length, manifest.size());
+
+        Random random = new Random(3);
+        try (SeekableByteChannel channel = manifest.open()) {
+            for (int i = 0; i < 200; i++) {
+                int position = random.nextInt(content.length);
+                ByteBuffer buffer = ByteBuffer.allocate(1 + random.nextInt(20_000));
+                int n = channel.position(position).read(buffer);
+                assertTrue(n > 0);
+                assertArrayEquals(Arrays.copyOfRange(content, position, position + n),
+                    Arrays.copyOf(buffer.array(), n));
+            }
+            assertEquals(-1, channel.position(content.length).read(ByteBuffer.allocate(1)));
+        }
+    }
+
+    @Test
+    @DisplayName("Chunks written with direct I/O and periodic syncs should match buffered ones")
+    void testDirectChunks() throws IOException {
+        byte[] content = new byte[400_000];
+        new Random(6).nextBytes(content);
+        Manifest buffered = store("buffered", content);
+        Manifest direct = store("direct", content, true, 64 * 1024);
+        assertEquals(buffered.getChunkCount(), direct.getChunkCount());
+        for (int i = 0; i < direct.getChunkCount(); i++) {
+            assertEquals(buffered.chunkHash(i), direct.chunkHash(i));
+        }
+        assertEquals(content.length, store.getDeduplicatedBytes());
+        assertArrayEquals(content, readAll(direct));
+    }
+
+    @Test
+    @DisplayName("Releasing the last manifest should delete its chunks")
+    void testRelease() throws IOException {
+        byte[] content = new byte[100_000];
+        new Random(4).nextBytes(content);
+        Manifest first = store("a", content);
+        Manifest second = store("b", content);
+        int chunks = store.getChunkCount();
+        assertEquals(first.getChunkCount(), chunks);
+
+        store.release(first);
+        assertEquals(chunks, store.getChunkCount());
+        assertArrayEquals(content, readAll(second));
+
+        store.release(second);
+        assertEquals(0, store.getChunkCount());
+        assertEquals(0, store.getStoredBytes());
+        try (Stream<Path> files = Files.walk(dir.resolve("chunks"))) {
+            assertEquals(0, files.filter(Files::isRegularFile).count());
+        }
+    }
+
+    @Test
+    @DisplayName("A re-uploaded file should be deduplicated and still download intact")
+    void testUploadDeduplicates() throws Exception {
+        FileController controller = new FileController(0);
+        controller.start();
+        try {
+            String baseUrl = "http://localhost:" + controller.getPort();
+            HttpClient client = HttpClient.newHttpClient();
+            byte[] content = new byte[3 * 1024 * 1024];
+            new Random(5).nextBytes(content);
+            byte[] appended = Arrays.copyOf(content, content.length + 5000);
+
+            int first = FileTransferTest.upload(client, baseUrl, "image.bin", content);
+            long before = metric(client, baseUrl, "peerlink_chunk_deduplicated_bytes_total");
+            int second = FileTransferTest.upload(client, baseUrl, "image.bin", appended);
+            long deduplicated = metric(client, baseUrl, "peerlink_chunk_deduplicated_bytes_total") - before;
+            assertTrue(deduplicated > content.length / 2, "Deduplicated " + deduplicated + " bytes");
+
+            for (int code : new int[] {first, second}) {
+                HttpResponse<byte[]> download = client.send(HttpRequest.newBuilder()
+                    .uri(URI.create(baseUrl + "/download/" + code))
+                    .GET()
+                    .build(), HttpResponse.BodyHandlers.ofByteArray());
+                assertEquals(200, download.statusCode());
+                assertArrayEquals(code == first ? content : appended, download.body());
+            }
+        } finally {
+            controller.stop();
+        }
+    }
+
+    private Manifest store(String name, byte[] content) throws IOException {
+        return store(name, content, false, 0);
+    }
+
+    private Manifest store(String name, byte[] content, boolean direct, long syncBytes) throws IOException {
+        ChunkingChannel channel = new ChunkingChannel(store, dir.resolve(name + ".manifest"),
+            new ContentDefinedChunker(2048, 8192, 32768), direct, syncBytes);
+        Random random = new Random(name.hashCode());
+        int offset = 0;
+        while (offset < content.length) {
+            int length = Math.min(content.length - offset, 1 + random.nextInt(70_000));
+            channel.write(ByteBuffer.wrap(content, offset, length));
+            offset += length;
+        }
+        channel.close();
+        return channel.getManifest();
+    }
+
+    private static byte[] readAll(Manifest manifest) throws IOException {
+        ByteBuffer all = ByteBuffer.allocate((int) manifest.size());
+        try (SeekableByteChannel channel = manifest.open()) {
+            while (channel.read(all) > 0) {
+                // Keep reading.
+            }
+        }
+        return all.array();
+    }
+
+    private static long metric(HttpClient client, String baseUrl, String name) throws Exception {
+        String body = client.send(HttpRequest.newBuilder().uri(URI.create(baseUrl + "/metrics")).GET().build(),
+            HttpResponse.BodyHandlers.ofString()).body();
+        Matcher matcher = Pattern.compile("(?m)^" + name + " (\\d+)$").matcher(body);
+        assertTrue(matcher.find(), body);
+        return Long.parseLong(matcher.group(1));
+    }
+}
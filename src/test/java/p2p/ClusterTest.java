@@ -0,0 +1,215 @@
+package p2p;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.*;
+
+import p2p.cluster.Cluster;
+import p2p.cluster.ClusterNode;
+import p2p.cluster.HashRing;
+import p2p.config.Config;
+import p2p.controller.FileController;
+
+/**
+ * Runs two backends in one JVM, each with its own cluster view.
+ */
+public class ClusterTest {
+
+    private static final String BOUNDARY = "----PeerLinkTestBoundary7MA4YWxkTrZu0gW";
+    private static final String SECRET = "cluster-test-secret-42";
+
+    private static FileController nodeA;
+    private static FileController nodeB;
+    private static String urlA;
+    private static String urlB;
+    private static Cluster clusterA;
+
+    @BeforeAll
+    static void startNodes() throws IOException {
+        int portA = freePort();
+        int portB = freePort();
+        urlA = "http://localhost:" + portA;
+        urlB = "http://localhost:" + portB;
+        clusterA = new Cluster(urlA, List.of(urlA, urlB));
+        nodeA = new FileController(Config.load().with(Config.PORT, portA).with(Config.CLUSTER_SECRET, SECRET),
+            clusterA);
+        nodeB = new FileController(Config.load().with(Config.PORT, portB).with(Config.CLUSTER_SECRET, SECRET),
+            new Cluster(urlB, List.of(urlA, urlB)));
+        nodeA.start();
+        nodeB.start();
+    }
+
+    @AfterAll
+    static void stopNodes() {
+        nodeA.stop();
+        nodeB.stop();
+    }
+
+    @Test
+    @DisplayName("The ring should spread keys evenly and only move a node's share when it leaves")
+    void testRing() {
+        List<ClusterNode> nodes = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            nodes.add(new ClusterNode("http://node" + i + ":8080"));
+        }
+        HashRing ring = new HashRing(nodes);
+        HashRing smaller = new HashRing(nodes.subList(0, 3));
+
+        Map<String, Integer> counts = new HashMap<>();
+        int moved = 0;
+        for (int code = 0; code < 20_000; code++) {
+            ClusterNode owner = ring.owner(Integer.toString(code));
+            counts.merge(owner.getUrl(), 1, Integer::sum);
+            ClusterNode after = smaller.owner(Integer.toString(code));
+            if (owner != nodes.get(3)) {
+                assertSame(owner, after, "Keys of remaining nodes must not move");
+            } else {
+                moved++;
+            }
+        }
+        for (int count : counts.values()) {
+            assertTrue(count > 3_500 && count < 6_500, "Uneven distribution: " + counts);
+        }
+        assertEquals(counts.get("http://node3:8080"), moved);
+
+        for (int code = 0; code < 1_000; code++) {
+            List<ClusterNode> placement = ring.owners(Integer.toString(code), 3);
+            assertEquals(3, placement.size());
+            assertSame(ring.owner(Integer.toString(code)), placement.get(0));
+            assertEquals(3, placement.stream().distinct().count(), "Replicas must be distinct nodes");
+        }
+        assertEquals(4, ring.owners("42", 10).size());
+    }
+
+    @Test
+    @DisplayName("A share uploaded to one node should download through the other")
+    void testDownloadThroughOtherNode() throws Exception {
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        byte[] content = new byte[200_000];
+        new Random(9).nextBytes(content);
+
+        HttpResponse<String> upload = client.send(HttpRequest.newBuilder()
+            .uri(URI.create(urlA + "/upload"))
+            .timeout(Duration.ofSeconds(30))
+            .header("Content-Type", "multipart/form-data; boundary=" + BOUNDARY)
+            .POST(HttpRequest.BodyPublishers.ofByteArray(FileTransferTest.multipart("clustered.bin", content)))
+            .build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, upload.statusCode(), upload.body());
+        Matcher matcher = Pattern.compile("\"port\":\\s*(\\d+)").matcher(upload.body());
+        assertTrue(matcher.find());
+        int code = Integer.parseInt(matcher.group(1));
+        assertTrue(clusterA.isOwnedLocally(code), "Codes should be placed on the node that issued them");
+
+        HttpResponse<byte[]> download = client.send(HttpRequest.newBuilder()
+            .uri(URI.create(urlB + "/download/" + code))
+            .timeout(Duration.ofSeconds(30))
+            .GET()
+            .build(), HttpResponse.BodyHandlers.ofByteArray());
+        assertEquals(200, download.statusCode());
+        assertArrayEquals(content, download.body());
+        assertTrue(download.headers().firstValue("Content-Disposition").orElse("").contains("clustered.bin"));
+        String etag = download.headers().firstValue("ETag").orElse(null);
+        assertNotNull(etag);
+
+        HttpResponse<byte[]> revalidated = client.send(HttpRequest.newBuilder()
+            .uri(URI.create(urlB + "/download/" + code))
+            .header("If-None-Match", etag)
+            .GET()
+            .build(), HttpResponse.BodyHandlers.ofByteArray());
+        assertEquals(304, revalidated.statusCode());
+    }
+
+    @Test
+    @DisplayName("A share should be replicated so its replica node serves it without the owner")
+    void testReplication() throws Exception {
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        byte[] content = new byte[300_000];
+        new Random(11).nextBytes(content);
+
+        HttpResponse<String> upload = client.send(HttpRequest.newBuilder()
+            .uri(URI.create(urlA + "/upload"))
+            .timeout(Duration.ofSeconds(30))
+            .header("Content-Type", "multipart/form-data; boundary=" + BOUNDARY)
+            .POST(HttpRequest.BodyPublishers.ofByteArray(FileTransferTest.multipart("replicated.bin", content)))
+            .build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, upload.statusCode(), upload.body());
+        Matcher matcher = Pattern.compile("\"port\":\\s*(\\d+)").matcher(upload.body());
+        assertTrue(matcher.find());
+        int code = Integer.parseInt(matcher.group(1));
+        assertEquals(2, clusterA.placement(code).size());
+
+        // A forwarded request is never proxied again, so a 200 means B serves its own copy.
+        HttpResponse<byte[]> download = null;
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (System.currentTimeMillis() < deadline) {
+            download = client.send(HttpRequest.newBuilder()
+                .uri(URI.create(urlB + "/download/" + code))
+                .header(Cluster.FORWARDED_HEADER, urlA)
+                .timeout(Duration.ofSeconds(30))
+                .GET()
+                .build(), HttpResponse.BodyHandlers.ofByteArray());
+            if (download.statusCode() == 200) {
+                break;
+            }
+            assertEquals(404, download.statusCode());
+            Thread.sleep(50);
+        }
+        assertEquals(200, download.statusCode(), "Replica never became available on the other node");
+        assertArrayEquals(content, download.body());
+        assertTrue(download.headers().firstValue("Content-Disposition").orElse("").contains("replicated.bin"));
+
+        assertEquals(403, replicate(code, "http://stranger:8080", SECRET));
+    }
+
+    @Test
+    @DisplayName("Replicate requests without the cluster secret, or for codes the source doesn't own, should be refused")
+    void testReplicateRequiresSecret() throws Exception {
+        int ownedByA = 50_000;
+        while (!clusterA.isOwnedLocally(ownedByA)) {
+            ownedByA++;
+        }
+        int ownedByB = 50_000;
+        while (clusterA.isOwnedLocally(ownedByB)) {
+            ownedByB++;
+        }
+        // The source header alone, as anyone behind a proxy could send it.
+        assertEquals(401, replicate(ownedByA, urlA, null));
+        assertEquals(401, replicate(ownedByA, urlA, SECRET + "x"));
+        assertEquals(403, replicate(ownedByB, urlA, SECRET));
+
+        assertThrows(IllegalArgumentException.class, () -> Config.defaults()
+            .with(Config.CLUSTER_NODES, "http://a:8080,http://b:8080"));
+    }
+
+    private static int replicate(int code, String source, String secret) throws Exception {
+        HttpRequest.Builder request = HttpRequest.newBuilder()
+            .uri(URI.create(urlB + "/cluster/replicate?code=" + code + "&port=1"))
+            .header("X-PeerLink-Source", source)
+            .POST(HttpRequest.BodyPublishers.noBody());
+        if (secret != null) {
+            request.header("Authorization", "Bearer " + secret);
+        }
+        return HttpClient.newHttpClient().send(request.build(), HttpResponse.BodyHandlers.discarding()).statusCode();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
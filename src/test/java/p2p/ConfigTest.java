@@ -0,0 +1,122 @@
+package p2p;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.jupiter.api.*;
+
+import p2p.config.Config;
+import p2p.controller.FileController;
+import p2p.utils.Log;
+
+/**
+ * Checks how settings are layered, parsed and validated.
+ */
+public class ConfigTest {
+
+    @Test
+    @DisplayName("System properties should beat the environment, which beats the file")
+    void testPrecedence() throws Exception {
+        Path file = Files.createTempFile("peerlink-", ".properties");
+        Files.writeString(file, "http.workers=3\ncode.min=50000\ntimeout.read=1500\nno.such.key=1\n");
+        try {
+            Properties system = new Properties();
+            system.setProperty(Config.FILE_PROPERTY, file.toString());
+            system.setProperty("peerlink.http.workers", "7");
+            Map<String, String> env = Map.of("PEERLINK_HTTP_WORKERS", "5", "PEERLINK_LOG_LEVEL", "debug");
+
+            Config config = Config.load(env, system);
+            assertEquals(7, config.getHttpWorkers());
+            assertEquals(50000, config.getCodeMin());
+            assertEquals(1500, config.getTimeouts().getReadMillis());
+            assertEquals(Log.Level.DEBUG, config.getLogLevel());
+            assertEquals(1, config.getWarnings().size(), config.getWarnings().toString());
+
+            system.remove("peerlink.http.workers");
+            assertEquals(5, Config.load(env, system).getHttpWorkers());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    @DisplayName("Every invalid setting should be reported at once")
+    void testValidation() {
+        Properties system = new Properties();
+        system.setProperty("peerlink.http.workers", "0");
+        system.setProperty("peerlink.code.min", "60000");
+        system.setProperty("peerlink.code.max", "50000");
+        system.setProperty("peerlink.log.level", "loud");
+        system.setProperty("peerlink.upload.direct", "maybe");
+
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+            () -> Config.load(Map.of(), system));
+        for (String key : new String[] {"http.workers", "code.min", "log.level", "upload.direct"}) {
+            assertTrue(e.getMessage().contains(key), e.getMessage());
+        }
+        assertThrows(IllegalArgumentException.class, () -> Config.defaults().with("no.such.key", 1));
+    }
+
+    @Test
+    @DisplayName("Sizes should take unit suffixes and unset pools should scale with the machine")
+    void testSizesAndDefaults() {
+        Config config = Config.defaults()
+            .with(Config.BUFFER_POOL_BYTES, "32m")
+            .with(Config.UPLOAD_SYNC_BYTES, "4k")
+            .with(Config.CLUSTER_SECRET, "config-test-secret")
+            .with(Config.CLUSTER_NODES, "http://a:8080, http://b:8080");
+        assertEquals(32L << 20, config.getBufferPoolBytes());
+        assertEquals(4096, config.getUploadSyncBytes());
+        assertEquals(2, config.getClusterNodes().size());
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        assertTrue(config.getHttpWorkers() >= Math.min(8, cores));
+        assertEquals(config.getHttpWorkers() * 10, config.getHttpQueue());
+        assertEquals("http://localhost:8080", config.getClusterSelf());
+    }
+
+    @Test
+    @DisplayName("Editing the config file should resize pools on the running node")
+    void testReload() throws Exception {
+        Path file = Files.createTempFile("peerlink-", ".properties");
+        Files.writeString(file, "http.workers=4\n");
+        Properties system = new Properties();
+        system.setProperty(Config.FILE_PROPERTY, file.toString());
+        FileController controller = new FileController(Config.load(Map.of(), system).with(Config.PORT, 0));
+        controller.start();
+        try {
+            int port = controller.getPort();
+            Files.writeString(file, "http.workers=6\nport=1\ntimeout.read=1234\n");
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (controller.getConfig().get().getHttpWorkers() != 6 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            Config live = controller.getConfig().get();
+            assertEquals(6, live.getHttpWorkers());
+            assertEquals(1234, live.getTimeouts().getReadMillis());
+            assertEquals(0, live.getPort(), "port only changes on restart");
+            assertEquals(port, controller.getPort());
+
+            HttpResponse<String> metrics = HttpClient.newHttpClient().send(HttpRequest.newBuilder()
+                .uri(URI.create("http://localhost:" + port + "/metrics")).GET().build(),
+                HttpResponse.BodyHandlers.ofString());
+            assertTrue(metrics.body().contains("peerlink_http_workers 6"), metrics.body());
+
+            // A broken edit leaves the running config alone.
+            Files.writeString(file, "http.workers=none\n");
+            Thread.sleep(1000);
+            assertEquals(6, controller.getConfig().get().getHttpWorkers());
+        } finally {
+            controller.stop();
+            Files.deleteIfExists(file);
+        }
+    }
+}
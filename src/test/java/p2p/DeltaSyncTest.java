@@ -0,0 +1,255 @@
+package p2p;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.*;
+
+import p2p.controller.FileController;
+import p2p.service.BlockSignature;
+import p2p.service.DeltaEncoder;
+import p2p.service.DeltaPatcher;
+import p2p.utils.DigestUtils;
+import p2p.utils.RollingChecksum;
+
+/**
+ * Re-uploads modified files as deltas against an earlier share.
+ */
+public class DeltaSyncTest {
+
+    private static FileController controller;
+    private static String baseUrl;
+    private HttpClient httpClient;
+
+    @BeforeAll
+    static void startServer() throws IOException {
+        controller = new FileController(0);
+        controller.start();
+        baseUrl = "http://localhost:" + controller.getPort();
+    }
+
+    @AfterAll
+    static void stopServer() {
+        controller.stop();
+    }
+
+    @BeforeEach
+    void setUp() {
+        httpClient = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+    }
+
+    @Test
+    @DisplayName("A modified file should upload as a small delta and download in full")
+    void testDeltaUpload() throws Exception {
+        byte[] original = new byte[2 * 1024 * 1024 + 777];
+        new Random(7).nextBytes(original);
+        byte[] modified = modify(original);
+        int code = FileTransferTest.upload(httpClient, baseUrl, "report.bin", original);
+
+        HttpResponse<byte[]> signatureResponse = httpClient.send(HttpRequest.newBuilder()
+            .uri(URI.create(baseUrl + "/delta/" + code))
+            .GET()
+            .build(), HttpResponse.BodyHandlers.ofByteArray());
+        assertEquals(200, signatureResponse.statusCode());
+        BlockSignature signature = BlockSignature.read(
+            Channels.newChannel(new ByteArrayInputStream(signatureResponse.body())));
+        assertEquals(original.length, signature.getFileSize());
+
+        byte[] delta = encode(signature, modified);
+        assertTrue(delta.length < modified.length / 10, "Delta was " + delta.length + " bytes");
+
+        HttpResponse<String> response = httpClient.send(HttpRequest.newBuilder()
+            .uri(URI.create(baseUrl + "/delta/" + code))
+            .header("Digest", DigestUtils.toDigestHeader(DigestUtils.sha256().digest(modified)))
+            .POST(HttpRequest.BodyPublishers.ofByteArray(delta))
+            .build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, response.statusCode(), response.body());
+        assertTrue(response.body().contains("\"received\": " + delta.length), response.body());
+        int newCode = code(response.body());
+        assertNotEquals(code, newCode);
+
+        HttpResponse<byte[]> download = httpClient.send(HttpRequest.newBuilder()
+            .uri(URI.create(baseUrl + "/download/" + newCode))
+            .GET()
+            .build(), HttpResponse.BodyHandlers.ofByteArray());
+        assertEquals(200, download.statusCode());
+        assertArrayEquals(modified, download.body());
+        assertTrue(download.headers().firstValue("Content-Disposition").orElse("").endsWith("_report.bin\""));
+    }
+
+    @Test
+    @DisplayName("Broken deltas and digest mismatches should be rejected")
+    void testRejectsBadDeltas() throws Exception {
+        byte[] original = new byte[64 * 1024];
+        new Random(11).nextBytes(original);
+        int code = FileTransferTest.upload(httpClient, baseUrl, "small.bin", original);
+
+        ByteBuffer outOfRange = ByteBuffer.allocate(18)
+            .putInt(DeltaEncoder.MAGIC).putInt(4096)
+            .put((byte) DeltaEncoder.COPY).putInt(10).putInt(100)
+            .put((byte) DeltaEncoder.END);
+        assertEquals(400, postDelta(code, outOfRange.array(), null).statusCode());
+
+        byte[] truncated = Arrays.copyOf(outOfRange.array(), 6);
+        assertEquals(400, postDelta(code, truncated, null).statusCode());
+
+        BlockSignature signature = BlockSignature.read(Channels.newChannel(new ByteArrayInputStream(
+            httpClient.send(HttpRequest.newBuilder().uri(URI.create(baseUrl + "/delta/" + code)).GET().build(),
+                HttpResponse.BodyHandlers.ofByteArray()).body())));
+        byte[] delta = encode(signature, original);
+        String wrongDigest = DigestUtils.toDigestHeader(DigestUtils.sha256().digest(new byte[1]));
+        assertEquals(400, postDelta(code, delta, wrongDigest).statusCode());
+
+        assertEquals(404, postDelta(1, delta, null).statusCode());
+        HttpResponse<String> badBlockSize = httpClient.send(HttpRequest.newBuilder()
+            .uri(URI.create(baseUrl + "/delta/" + code + "?blockSize=3"))
+            .GET()
+            .build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(400, badBlockSize.statusCode());
+    }
+
+    @Test
+    @DisplayName("A delta that repeats copies past the allowed length should be rejected")
+    void testRejectsRepeatedCopies() throws Exception {
+        byte[] original = new byte[64 * 1024];
+        new Random(13).nextBytes(original);
+        int code = FileTransferTest.upload(httpClient, baseUrl, "repeated.bin", original);
+
+        // 1000 copies of the whole file: 64 MB of output from a 9 KB delta.
+        ByteBuffer repeated = ByteBuffer.allocate(8 + 1000 * 9 + 1).putInt(DeltaEncoder.MAGIC).putInt(4096);
+        for (int i = 0; i < 1000; i++) {
+            repeated.put((byte) DeltaEncoder.COPY).putInt(0).putInt(16);
+        }
+        repeated.put((byte) DeltaEncoder.END);
+        HttpResponse<String> response = postDelta(code, repeated.array(), null);
+        assertEquals(400, response.statusCode());
+        assertTrue(response.body().contains("result longer than"), response.body());
+
+        Path file = Files.createTempFile("delta-base-", ".bin");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.READ)) {
+            channel.write(ByteBuffer.wrap(original));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertThrows(ProtocolException.class, () -> new DeltaPatcher(channel).apply(
+                Channels.newChannel(new ByteArrayInputStream(repeated.array())), Channels.newChannel(out),
+                3 * original.length));
+            assertEquals(3 * original.length, out.size());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    @DisplayName("Encoding then patching should rebuild any edit exactly")
+    void testRoundTripEdgeCases() throws Exception {
+        Random random = new Random(3);
+        byte[] base = new byte[10_000];
+        random.nextBytes(base);
+        byte[][] versions = {
+            base,
+            new byte[0],
+            Arrays.copyOf(base, 700),
+            Arrays.copyOfRange(base, 1, base.length),
+            concat(base, base),
+            concat(new byte[] {1, 2, 3}, base),
+            modify(base),
+        };
+        for (byte[] version : versions) {
+            assertArrayEquals(version, roundTrip(base, version, 512));
+            assertArrayEquals(version, roundTrip(new byte[0], version, 512));
+        }
+    }
+
+    @Test
+    @DisplayName("The rolling checksum should equal a fresh checksum after sliding")
+    void testRollingChecksum() {
+        byte[] data = new byte[5000];
+        new Random(5).nextBytes(data);
+        RollingChecksum checksum = new RollingChecksum();
+        checksum.reset(data, 0, 1024);
+        for (int i = 1; i + 1024 <= data.length; i++) {
+            checksum.roll(data[i - 1], data[i + 1023]);
+            assertEquals(RollingChecksum.of(data, i, 1024), checksum.value(), "offset " + i);
+        }
+    }
+
+    /**
+     * Overwrites, inserts into, deletes from and appends to a copy of {@code data}.
+     */
+    private static byte[] modify(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int third = data.length / 3;
+        out.write(data, 0, third);
+        out.writeBytes("inserted bytes".getBytes());
+        out.write(data, third, third);
+        byte[] overwritten = Arrays.copyOfRange(data, 2 * third + 100, data.length);
+        Arrays.fill(overwritten, 0, 50, (byte) 'x');
+        out.writeBytes(overwritten);
+        out.writeBytes("appended".getBytes());
+        return out.toByteArray();
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    private static byte[] encode(BlockSignature signature, byte[] content) throws IOException {
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        new DeltaEncoder(signature).encode(new ByteArrayInputStream(content), delta);
+        return delta.toByteArray();
+    }
+
+    private static byte[] roundTrip(byte[] base, byte[] version, int blockSize) throws IOException {
+        Path file = Files.createTempFile("delta-base-", ".bin");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.READ)) {
+            channel.write(ByteBuffer.wrap(base));
+            byte[] delta = encode(BlockSignature.compute(channel, blockSize), version);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            long length = new DeltaPatcher(channel).apply(
+                Channels.newChannel(new ByteArrayInputStream(delta)), Channels.newChannel(out), version.length);
+            assertEquals(version.length, length);
+            return out.toByteArray();
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private HttpResponse<String> postDelta(int code, byte[] delta, String digest) throws Exception {
+        HttpRequest.Builder request = HttpRequest.newBuilder()
+            .uri(URI.create(baseUrl + "/delta/" + code))
+            .POST(HttpRequest.BodyPublishers.ofByteArray(delta));
+        if (digest != null) {
+            request.header("Digest", digest);
+        }
+        return httpClient.send(request.build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private static int code(String json) {
+        Matcher matcher = Pattern.compile("\"port\":\\s*(\\d+)").matcher(json);
+        assertTrue(matcher.find(), json);
+        return Integer.parseInt(matcher.group(1));
+    }
+}
@@ -0,0 +1,186 @@
+package p2p;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.crypto.SecretKey;
+
+import org.junit.jupiter.api.*;
+
+import p2p.config.Config;
+import p2p.controller.FileController;
+import p2p.utils.DecryptingChannel;
+import p2p.utils.EncryptingChannel;
+import p2p.utils.StreamEncryption;
+
+/**
+ * Stores shares encrypted and reads them back at any position.
+ */
+public class EncryptedStorageTest {
+
+    private Path dir;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        dir = Files.createTempDirectory("encrypted-");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    @DisplayName("Content of any size should decrypt to what was written, from any position")
+    void testRoundTrip() throws IOException {
+        int segment = StreamEncryption.SEGMENT_SIZE;
+        Random random = new Random(1);
+        for (int size : new int[] {0, 1, segment - 1, segment, segment + 1, 5 * segment + 123}) {
+            byte[] content = new byte[size];
+            random.nextBytes(content);
+            SecretKey key = StreamEncryption.newKey();
+            Path file = write("size-" + size, content, key);
+            assertEquals(StreamEncryption.encryptedSize(size), Files.size(file));
+            assertEquals(size, StreamEncryption.contentSize(Files.size(file)));
+
+            try (SeekableByteChannel channel = open(file, key)) {
+                assertEquals(size, channel.size());
+                assertArrayEquals(content, readAll(channel));
+                for (int i = 0; i < 20 && size > 0; i++) {
+                    int position = random.nextInt(size);
+                    ByteBuffer buffer = ByteBuffer.allocate(1 + random.nextInt(3 * segment));
+                    int n = channel.position(position).read(buffer);
+                    assertEquals(Math.min(buffer.capacity(), size - position), n);
+                    assertArrayEquals(Arrays.copyOfRange(content, position, position + n),
+                        Arrays.copyOf(buffer.array(), n));
+                }
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("A modified, truncated or wrongly keyed file should fail to decrypt")
+    void testTamperingDetected() throws IOException {
+        byte[] content = new byte[3 * StreamEncryption.SEGMENT_SIZE + 500];
+        new Random(2).nextBytes(content);
+        SecretKey key = StreamEncryption.newKey();
+        Path file = write("original", content, key);
+        byte[] stored = Files.readAllBytes(file);
+
+        byte[] flipped = stored.clone();
+        flipped[StreamEncryption.HEADER_LENGTH + StreamEncryption.SEGMENT_SIZE + 40] ^= 1;
+        Path modified = Files.write(dir.resolve("modified"), flipped);
+        try (SeekableByteChannel channel = open(modified, key)) {
+            assertThrows(ProtocolException.class, () -> readAll(channel));
+        }
+
+        // Whole segments cut off the end leave a valid size, so the
+        // last-segment flag must catch it.
+        int kept = StreamEncryption.HEADER_LENGTH + 2 * (StreamEncryption.SEGMENT_SIZE + StreamEncryption.TAG_LENGTH);
+        Path truncated = Files.write(dir.resolve("truncated"), Arrays.copyOf(stored, kept));
+        try (SeekableByteChannel channel = open(truncated, key)) {
+            assertThrows(ProtocolException.class, () -> readAll(channel));
+        }
+
+        try (SeekableByteChannel channel = open(file, StreamEncryption.newKey())) {
+            assertThrows(ProtocolException.class, () -> readAll(channel));
+        }
+    }
+
+    @Test
+    @DisplayName("An upload should be stored encrypted and still download intact")
+    void testEncryptedUpload() throws Exception {
+        FileController controller = new FileController(Config.load()
+            .with(Config.PORT, 0)
+            .with(Config.UPLOAD_DIR, dir.toString())
+            .with(Config.UPLOAD_ENCRYPT, true));
+        controller.start();
+        try {
+            String baseUrl = "http://localhost:" + controller.getPort();
+            HttpClient client = HttpClient.newHttpClient();
+            byte[] content = new byte[200_000];
+            new Random(3).nextBytes(content);
+
+            HttpResponse<String> upload = client.send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/upload"))
+                .header("Content-Type", "multipart/form-data; boundary=" + FileTransferTest.BOUNDARY)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(FileTransferTest.multipart("secret.bin", content)))
+                .build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(200, upload.statusCode(), upload.body());
+            Matcher matcher = Pattern.compile("\"port\":\\s*(\\d+)").matcher(upload.body());
+            assertTrue(matcher.find(), upload.body());
+
+            List<Path> stored;
+            try (Stream<Path> files = Files.list(dir)) {
+                stored = files.filter(path -> path.getFileName().toString().endsWith("_secret.bin"))
+                    .collect(Collectors.toList());
+            }
+            assertEquals(1, stored.size());
+            byte[] onDisk = Files.readAllBytes(stored.get(0));
+            assertEquals(StreamEncryption.encryptedSize(content.length), onDisk.length);
+            byte[] sample = Arrays.copyOfRange(content, 1000, 1032);
+            for (int i = 0; i + sample.length <= onDisk.length; i++) {
+                assertFalse(Arrays.equals(sample, 0, sample.length, onDisk, i, i + sample.length),
+                    "Plaintext found on disk at " + i);
+            }
+
+            HttpResponse<byte[]> download = client.send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/download/" + matcher.group(1)))
+                .GET()
+                .build(), HttpResponse.BodyHandlers.ofByteArray());
+            assertEquals(200, download.statusCode());
+            assertArrayEquals(content, download.body());
+        } finally {
+            controller.stop();
+        }
+    }
+
+    private Path write(String name, byte[] content, SecretKey key) throws IOException {
+        Path file = dir.resolve(name);
+        Random random = new Random(name.hashCode());
+        try (EncryptingChannel channel = new EncryptingChannel(
+                FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE), key)) {
+            int offset = 0;
+            while (offset < content.length) {
+                int length = Math.min(content.length - offset, 1 + random.nextInt(100_000));
+                channel.write(ByteBuffer.wrap(content, offset, length));
+                offset += length;
+            }
+        }
+        return file;
+    }
+
+    private static SeekableByteChannel open(Path file, SecretKey key) throws IOException {
+        return new DecryptingChannel(FileChannel.open(file, StandardOpenOption.READ), key);
+    }
+
+    private static byte[] readAll(SeekableByteChannel channel) throws IOException {
+        ByteBuffer all = ByteBuffer.allocate((int) channel.size());
+        channel.position(0);
+        while (all.hasRemaining() && channel.read(all) > 0) {
+            // Keep reading.
+        }
+        return all.array();
+    }
+}
@@ -0,0 +1,106 @@
+package p2p;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import javax.crypto.SecretKey;
+
+import p2p.utils.DecryptingChannel;
+import p2p.utils.EncryptingChannel;
+import p2p.utils.StreamEncryption;
+import p2p.utils.UploadWriter;
+
+/**
+ * Measures what encryption at rest costs: writing an upload through
+ * {@link UploadWriter} with and without an {@link EncryptingChannel} in
+ * front, reading it back sequentially as a peer send does, and reading 64 KB
+ * at random positions as a resumed transfer does. The file is read once
+ * before each timed read so both sides come from the page cache, which
+ * leaves the cipher as the only difference.
+ * <p>
+ * Run with {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=p2p.EncryptionBenchmark [-Dexec.args="sizeMb dir"]}.
+ */
+public class EncryptionBenchmark {
+
+    private static final int CHUNK = 64 * 1024;
+    private static final int RANDOM_READS = 4096;
+
+    public static void main(String[] args) throws Exception {
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+        Path dir = Paths.get(args.length > 1 ? args[1] : System.getProperty("java.io.tmpdir"));
+        long size = sizeMb * 1024L * 1024;
+        ByteBuffer chunk = ByteBuffer.allocate(CHUNK);
+        new Random(7).nextBytes(chunk.array());
+
+        System.out.printf("%-10s %12s %12s %14s%n", "mode", "write MB/s", "read MB/s", "random reads/s");
+        for (int round = 0; round < 3; round++) {
+            // The first rounds warm up the JIT and the file system.
+            for (boolean encrypted : new boolean[] {false, true}) {
+                Path file = dir.resolve("encryption-bench-" + encrypted + ".bin");
+                Files.deleteIfExists(file);
+                SecretKey key = encrypted ? StreamEncryption.newKey() : null;
+
+                long start = System.nanoTime();
+                try (WritableByteChannel out = open(file, key)) {
+                    for (long written = 0; written < size; written += CHUNK) {
+                        chunk.clear();
+                        while (chunk.hasRemaining()) {
+                            out.write(chunk);
+                        }
+                    }
+                }
+                double writeSeconds = (System.nanoTime() - start) / 1e9;
+
+                ByteBuffer buffer = ByteBuffer.allocate(CHUNK);
+                readAll(file, key, buffer);
+                start = System.nanoTime();
+                readAll(file, key, buffer);
+                double readSeconds = (System.nanoTime() - start) / 1e9;
+
+                Random random = new Random(11);
+                start = System.nanoTime();
+                try (SeekableByteChannel in = read(file, key)) {
+                    for (int i = 0; i < RANDOM_READS; i++) {
+                        buffer.clear();
+                        in.position((long) (random.nextDouble() * (size - CHUNK))).read(buffer);
+                    }
+                }
+                double randomSeconds = (System.nanoTime() - start) / 1e9;
+
+                if (round == 2) {
+                    System.out.printf("%-10s %12.1f %12.1f %14.0f%n", encrypted ? "aes-gcm" : "plain",
+                            sizeMb / writeSeconds, sizeMb / readSeconds, RANDOM_READS / randomSeconds);
+                }
+                Files.delete(file);
+            }
+        }
+    }
+
+    private static WritableByteChannel open(Path file, SecretKey key) throws IOException {
+        UploadWriter writer = new UploadWriter(file, -1, false, 0);
+        return key == null ? writer : new EncryptingChannel(writer, key);
+    }
+
+    private static SeekableByteChannel read(Path file, SecretKey key) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        return key == null ? channel : new DecryptingChannel(channel, key);
+    }
+
+    private static void readAll(Path file, SecretKey key, ByteBuffer buffer) throws IOException {
+        try (SeekableByteChannel in = read(file, key)) {
+            buffer.clear();
+            while (in.read(buffer) >= 0) {
+                buffer.clear();
+            }
+        }
+    }
+}
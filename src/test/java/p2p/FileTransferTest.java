@@ -0,0 +1,258 @@
+package p2p;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.*;
+
+import p2p.controller.FileController;
+
+/**
+ * Uploads files through a real {@link FileController} and downloads them back.
+ */
+public class FileTransferTest {
+
+    static final String BOUNDARY = "----PeerLinkTestBoundary7MA4YWxkTrZu0gW";
+
+    private static FileController controller;
+    private static String baseUrl;
+    private HttpClient httpClient;
+
+    @BeforeAll
+    static void startServer() throws IOException {
+        controller = new FileController(0);
+        controller.start();
+        baseUrl = "http://localhost:" + controller.getPort();
+    }
+
+    @AfterAll
+    static void stopServer() {
+        controller.stop();
+    }
+
+    @BeforeEach
+    void setUp() {
+        httpClient = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+    }
+
+    @Test
+    @DisplayName("Uploaded file should download byte-for-byte")
+    void testRoundTrip() throws Exception {
+        byte[] content = new byte[1024 * 1024 + 123];
+        new Random(42).nextBytes(content);
+
+        int code = upload(httpClient, baseUrl, "data.bin", content);
+        HttpResponse<byte[]> response = download(code);
+
+        assertEquals(200, response.statusCode());
+        assertArrayEquals(content, response.body());
+        assertTrue(response.headers().firstValue("Content-Disposition").orElse("").contains("data.bin"));
+
+        HttpResponse<String> metrics = httpClient.send(HttpRequest.newBuilder()
+            .uri(URI.create(baseUrl + "/metrics"))
+            .GET()
+            .build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, metrics.statusCode());
+        assertTrue(metrics.body().contains("peerlink_upload_pipeline_queued_buffers 0"), metrics.body());
+    }
+
+    @Test
+    @DisplayName("Downloads should carry the content digest as ETag and Digest")
+    void testDigestHeaders() throws Exception {
+        byte[] content = "integrity matters".getBytes(StandardCharsets.UTF_8);
+        byte[] sha256 = MessageDigest.getInstance("SHA-256").digest(content);
+
+        HttpResponse<byte[]> response = download(upload(httpClient, baseUrl, "digest.txt", content));
+
+        assertEquals(200, response.statusCode());
+        assertEquals("sha-256=" + Base64.getEncoder().encodeToString(sha256),
+            response.headers().firstValue("Digest").orElse(null));
+        assertEquals("\"" + HexFormat.of().formatHex(sha256) + "\"",
+            response.headers().firstValue("ETag").orElse(null));
+    }
+
+    @Test
+    @DisplayName("Revalidation with a matching ETag should return 304 without consuming the share")
+    void testConditionalGet() throws Exception {
+        byte[] content = "cache me".getBytes(StandardCharsets.UTF_8);
+        String etag = "\"" + HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content)) + "\"";
+        int code = upload(httpClient, baseUrl, "cached.txt", content);
+
+        HttpResponse<byte[]> notModified = httpClient.send(HttpRequest.newBuilder()
+            .uri(URI.create(baseUrl + "/download/" + code))
+            .header("If-None-Match", "\"other\", " + etag)
+            .GET()
+            .build(), HttpResponse.BodyHandlers.ofByteArray());
+        assertEquals(304, notModified.statusCode());
+        assertEquals(etag, notModified.headers().firstValue("ETag").orElse(null));
+        String lastModified = notModified.headers().firstValue("Last-Modified").orElse(null);
+        assertNotNull(lastModified);
+
+        HttpResponse<byte[]> sinceCheck = httpClient.send(HttpRequest.newBuilder()
+            .uri(URI.create(baseUrl + "/download/" + code))
+            .header("If-Modified-Since", lastModified)
+            .GET()
+            .build(), HttpResponse.BodyHandlers.ofByteArray());
+        assertEquals(304, sinceCheck.statusCode());
+
+        HttpResponse<byte[]> full = download(code);
+        assertEquals(200, full.statusCode());
+        assertArrayEquals(content, full.body());
+        assertEquals(lastModified, full.headers().firstValue("Last-Modified").orElse(null));
+        assertTrue(full.headers().firstValue("Cache-Control").isPresent());
+    }
+
+    @Test
+    @DisplayName("A peer stream shorter than announced should not be served as complete")
+    void testTruncatedPeerStream() throws Exception {
+        try (ServerSocket fakePeer = new ServerSocket(0)) {
+            Thread peer = new Thread(() -> {
+                try (Socket socket = fakePeer.accept()) {
+                    socket.getOutputStream().write(("Filename: short.bin\nContent-Length: 100\n"
+                        + "Digest: sha-256=AAAA\n\n0123456789").getBytes(StandardCharsets.UTF_8));
+                } catch (IOException e) {
+                    // The test fails on the response instead.
+                }
+            });
+            peer.start();
+
+            HttpResponse<byte[]> response = httpClient.send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/download/" + fakePeer.getLocalPort()))
+                .timeout(Duration.ofSeconds(30))
+                .GET()
+                .build(), HttpResponse.BodyHandlers.ofByteArray());
+            peer.join();
+
+            assertEquals(502, response.statusCode());
+        }
+    }
+
+    @Test
+    @DisplayName("Empty files should be shared")
+    void testEmptyFile() throws Exception {
+        int code = upload(httpClient, baseUrl, "empty.txt", new byte[0]);
+        HttpResponse<byte[]> response = download(code);
+
+        assertEquals(200, response.statusCode());
+        assertEquals(0, response.body().length);
+    }
+
+    @Test
+    @DisplayName("Truncated multipart bodies should be rejected")
+    void testTruncatedUpload() throws Exception {
+        byte[] body = multipart("cut.txt", "no closing boundary".getBytes(StandardCharsets.UTF_8));
+        byte[] truncated = java.util.Arrays.copyOf(body, body.length - BOUNDARY.length() - 8);
+        HttpResponse<String> response = httpClient.send(uploadRequest(baseUrl, truncated), HttpResponse.BodyHandlers.ofString());
+        assertEquals(400, response.statusCode());
+    }
+
+    @Test
+    @DisplayName("Progress watchers should receive events until the upload completes")
+    void testProgressEvents() throws Exception {
+        CompletableFuture<HttpResponse<String>> events = httpClient.sendAsync(HttpRequest.newBuilder()
+            .uri(URI.create(baseUrl + "/progress/itest-upload"))
+            .GET()
+            .build(), HttpResponse.BodyHandlers.ofString());
+        // Let the subscription land before the transfer starts.
+        Thread.sleep(200);
+
+        byte[] content = new byte[256 * 1024];
+        HttpResponse<String> upload = httpClient.send(HttpRequest.newBuilder()
+            .uri(URI.create(baseUrl + "/upload?progress=itest-upload"))
+            .timeout(Duration.ofSeconds(30))
+            .header("Content-Type", "multipart/form-data; boundary=" + BOUNDARY)
+            .POST(HttpRequest.BodyPublishers.ofByteArray(multipart("watched.bin", content)))
+            .build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, upload.statusCode());
+        assertEquals("itest-upload", upload.headers().firstValue("X-Progress-Id").orElse(null));
+
+        HttpResponse<String> stream = events.get(10, TimeUnit.SECONDS);
+        assertEquals(200, stream.statusCode());
+        assertEquals("text/event-stream", stream.headers().firstValue("Content-Type").orElse(null));
+        assertTrue(stream.body().contains("event: done"), stream.body());
+        assertTrue(stream.body().contains("\"filename\": \"watched.bin\""), stream.body());
+        assertTrue(stream.body().contains("\"state\": \"completed\""), stream.body());
+    }
+
+    @Test
+    @DisplayName("Requests should carry a correlation id, echoing the caller's")
+    void testRequestId() throws Exception {
+        HttpResponse<String> given = httpClient.send(HttpRequest.newBuilder()
+            .uri(URI.create(baseUrl + "/download/1"))
+            .header("X-Request-Id", "trace-42")
+            .GET()
+            .build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals("trace-42", given.headers().firstValue("X-Request-Id").orElse(null));
+
+        HttpResponse<String> generated = httpClient.send(HttpRequest.newBuilder()
+            .uri(URI.create(baseUrl + "/download/1"))
+            .header("X-Request-Id", "not a valid id!")
+            .GET()
+            .build(), HttpResponse.BodyHandlers.ofString());
+        String id = generated.headers().firstValue("X-Request-Id").orElse("");
+        assertTrue(id.matches("[0-9a-f]{16}"), id);
+    }
+
+    static byte[] multipart(String filename, byte[] content) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(("--" + BOUNDARY + "\r\n"
+            + "Content-Disposition: form-data; name=\"file\"; filename=\"" + filename + "\"\r\n"
+            + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+        body.write(content);
+        body.write(("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8));
+        return body.toByteArray();
+    }
+
+    private static HttpRequest uploadRequest(String baseUrl, byte[] body) {
+        return HttpRequest.newBuilder()
+            .uri(URI.create(baseUrl + "/upload"))
+            .timeout(Duration.ofSeconds(30))
+            .header("Content-Type", "multipart/form-data; boundary=" + BOUNDARY)
+            .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+            .build();
+    }
+
+    static int upload(HttpClient client, String baseUrl, String filename, byte[] content) throws Exception {
+        HttpResponse<String> response = client.send(uploadRequest(baseUrl, multipart(filename, content)),
+            HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, response.statusCode(), response.body());
+        Matcher matcher = Pattern.compile("\"port\":\\s*(\\d+)").matcher(response.body());
+        assertTrue(matcher.find(), response.body());
+        return Integer.parseInt(matcher.group(1));
+    }
+
+    private HttpResponse<byte[]> download(int code) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            HttpResponse<byte[]> response = httpClient.send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/download/" + code))
+                .timeout(Duration.ofSeconds(30))
+                .GET()
+                .build(), HttpResponse.BodyHandlers.ofByteArray());
+            if (response.statusCode() != 500 || attempt >= 20) {
+                return response;
+            }
+            Thread.sleep(100);
+        }
+    }
+}
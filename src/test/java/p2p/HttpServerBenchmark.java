@@ -0,0 +1,128 @@
+package p2p;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpServer;
+
+import p2p.server.HttpServers;
+
+/**
+ * Compares requests/s and latency percentiles of the JDK and NIO HTTP servers
+ * on loopback using keep-alive connections.
+ * <p>
+ * Run with {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=p2p.HttpServerBenchmark [-Dexec.args="connections seconds"]}.
+ */
+public class HttpServerBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        for (String kind : new String[] {HttpServers.JDK, HttpServers.NIO}) {
+            run(kind, connections, seconds);
+        }
+    }
+
+    private static void run(String kind, int connections, int seconds) throws Exception {
+        HttpServer server = HttpServers.create(kind, new InetSocketAddress("localhost", 0), 1024);
+        ExecutorService executor = Executors.newFixedThreadPool(10);
+        byte[] body = "{\"port\": 50000}".getBytes(StandardCharsets.UTF_8);
+        server.createContext("/", exchange -> {
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+        int port = server.getAddress().getPort();
+
+        long[][] latencies = new long[connections][];
+        int[] counts = new int[connections];
+        CountDownLatch done = new CountDownLatch(connections);
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        for (int c = 0; c < connections; c++) {
+            final int id = c;
+            new Thread(() -> {
+                long[] samples = new long[1 << 20];
+                int n = 0;
+                byte[] request = ("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+                try (Socket socket = new Socket("localhost", port)) {
+                    socket.setTcpNoDelay(true);
+                    OutputStream out = socket.getOutputStream();
+                    InputStream in = new BufferedInputStream(socket.getInputStream());
+                    while (System.nanoTime() < deadline && n < samples.length) {
+                        long start = System.nanoTime();
+                        out.write(request);
+                        readResponse(in);
+                        samples[n++] = System.nanoTime() - start;
+                    }
+                } catch (IOException e) {
+                    System.err.println("Connection " + id + " failed: " + e.getMessage());
+                } finally {
+                    latencies[id] = samples;
+                    counts[id] = n;
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        server.stop(0);
+        executor.shutdown();
+
+        int total = Arrays.stream(counts).sum();
+        long[] all = new long[total];
+        int offset = 0;
+        for (int c = 0; c < connections; c++) {
+            System.arraycopy(latencies[c], 0, all, offset, counts[c]);
+            offset += counts[c];
+        }
+        Arrays.sort(all);
+        System.out.printf("%-4s %6d req/s  p50 %7.1f us  p99 %7.1f us  p99.9 %7.1f us%n",
+                kind, total / seconds, percentile(all, 0.50), percentile(all, 0.99), percentile(all, 0.999));
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))] / 1000.0;
+    }
+
+    private static void readResponse(InputStream in) throws IOException {
+        int contentLength = 0;
+        StringBuilder line = new StringBuilder();
+        while (true) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Connection closed");
+            }
+            if (b != '\n') {
+                if (b != '\r') {
+                    line.append((char) b);
+                }
+                continue;
+            }
+            if (line.length() == 0) {
+                break;
+            }
+            String header = line.toString();
+            if (header.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                contentLength = Integer.parseInt(header.substring(15).trim());
+            }
+            line.setLength(0);
+        }
+        in.readNBytes(contentLength);
+    }
+}
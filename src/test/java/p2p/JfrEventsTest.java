@@ -0,0 +1,114 @@
+package p2p;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.jupiter.api.*;
+
+import p2p.config.Config;
+import p2p.controller.FileController;
+
+/**
+ * Records uploads, shares and peer transfers as Flight Recorder events.
+ */
+public class JfrEventsTest {
+
+    @Test
+    @DisplayName("An upload and a download should record parse, offer, connect, chunk and completion events")
+    void testTransferEventsRecorded() throws Exception {
+        Path file = Files.createTempFile("peerlink-", ".jfr");
+        byte[] content = new byte[500_000];
+        new Random(9).nextBytes(content);
+        FileController controller = new FileController(Config.load().with(Config.PORT, 0));
+        controller.start();
+        try (Recording recording = new Recording()) {
+            for (String name : new String[] {"UploadParsed", "ShareOffered", "PeerConnected", "TransferChunk",
+                    "TransferCompleted"}) {
+                recording.enable("peerlink." + name).withoutThreshold();
+            }
+            recording.start();
+
+            String baseUrl = "http://localhost:" + controller.getPort();
+            HttpClient client = HttpClient.newHttpClient();
+            HttpResponse<String> upload = client.send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/upload"))
+                .header("Content-Type", "multipart/form-data; boundary=" + FileTransferTest.BOUNDARY)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(FileTransferTest.multipart("jfr.bin", content)))
+                .build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(200, upload.statusCode(), upload.body());
+            Matcher matcher = Pattern.compile("\"port\":\\s*(\\d+)").matcher(upload.body());
+            assertTrue(matcher.find(), upload.body());
+            int code = Integer.parseInt(matcher.group(1));
+
+            HttpResponse<byte[]> download = client.send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/download/" + code))
+                .GET()
+                .build(), HttpResponse.BodyHandlers.ofByteArray());
+            assertEquals(200, download.statusCode());
+
+            recording.stop();
+            recording.dump(file);
+
+            List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+            RecordedEvent parsed = only(events, "peerlink.UploadParsed");
+            assertEquals("jfr.bin", parsed.getString("filename"));
+            assertEquals(content.length, parsed.getLong("bytes"));
+
+            RecordedEvent offered = only(events, "peerlink.ShareOffered");
+            assertEquals(code, offered.getInt("code"));
+            assertEquals(parsed.getString("requestId"), offered.getString("requestId"));
+
+            List<RecordedEvent> connected = named(events, "peerlink.PeerConnected");
+            assertEquals(2, connected.size());
+            assertEquals(1, connected.stream().filter(event -> event.getBoolean("inbound")).count());
+
+            List<RecordedEvent> completed = named(events, "peerlink.TransferCompleted");
+            assertEquals(2, completed.size());
+            for (RecordedEvent event : completed) {
+                assertTrue(event.getBoolean("succeeded"));
+                assertEquals(code, event.getInt("code"));
+            }
+            // The peer send carries the upload's request id.
+            RecordedEvent sent = completed.stream().filter(event -> event.getBoolean("sending")).findFirst()
+                .orElseThrow();
+            assertEquals(parsed.getString("requestId"), sent.getString("requestId"));
+            // Written bytes include the header sent ahead of the content.
+            assertTrue(sent.getLong("bytes") > content.length, "sent: " + sent.getLong("bytes"));
+
+            long chunkBytes = named(events, "peerlink.TransferChunk").stream()
+                .filter(event -> parsed.getString("requestId").equals(event.getString("requestId")))
+                .mapToLong(event -> event.getInt("bytes"))
+                .sum();
+            assertTrue(chunkBytes >= content.length, "chunk bytes: " + chunkBytes);
+        } finally {
+            controller.stop();
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static List<RecordedEvent> named(List<RecordedEvent> events, String name) {
+        return events.stream().filter(event -> event.getEventType().getName().equals(name))
+            .collect(Collectors.toList());
+    }
+
+    private static RecordedEvent only(List<RecordedEvent> events, String name) {
+        List<RecordedEvent> matching = named(events, name);
+        assertEquals(1, matching.size(), name);
+        return matching.get(0);
+    }
+}
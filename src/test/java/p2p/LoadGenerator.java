@@ -0,0 +1,498 @@
+package p2p;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import p2p.controller.FileController;
+
+/**
+ * Drives a mix of uploads and downloads against a PeerLink backend and
+ * reports throughput, error rates and latency percentiles.
+ * <p>
+ * Each client is a thread with its own keep-alive connection. It uploads
+ * with probability {@code 1 / (1 + fanOut)} and otherwise downloads a share
+ * some client uploaded earlier, so every share is downloaded about
+ * {@code fanOut} times. Upload sizes are picked uniformly from the
+ * configured list; repeat a size to weight it. A fraction of the clients are
+ * slow: they send request bodies and read responses at a fixed byte rate,
+ * the way a phone on a bad network would.
+ * <p>
+ * Run against an in-process {@link FileController} with {@code mvn
+ * test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=p2p.LoadGenerator}, or against a deployed node with
+ * {@code -Dload.url=http://host:8080}. Other knobs: {@code load.clients}
+ * (16), {@code load.seconds} (30), {@code load.sizes} (4k,64k,1m,8m),
+ * {@code load.fanOut} (4), {@code load.slowFraction} (0.1) and
+ * {@code load.slowRate} in bytes per second (262144). Uploaded shares are
+ * not deleted, so size the run to the target's disk.
+ */
+public class LoadGenerator {
+    public static final String UPLOAD = "upload";
+    public static final String DOWNLOAD = "download";
+
+    private static final String BOUNDARY = "----PeerLinkLoadBoundary";
+    private static final Pattern CODE = Pattern.compile("\"port\":\\s*(\\d+)");
+    private static final int CODE_HISTORY = 1024;
+    private static final int IO_CHUNK = 16 * 1024;
+
+    private final String url;
+    private int clients = 16;
+    private long durationMillis = 30_000;
+    private int[] uploadSizes = {4 * 1024, 64 * 1024, 1024 * 1024, 8 * 1024 * 1024};
+    private int fanOut = 4;
+    private double slowFraction = 0.1;
+    private long slowBytesPerSecond = 256 * 1024;
+
+    private final AtomicIntegerArray codes = new AtomicIntegerArray(CODE_HISTORY);
+    private final AtomicInteger uploaded = new AtomicInteger();
+    private byte[] payload;
+
+    public LoadGenerator(String url) {
+        this.url = url;
+    }
+
+    public LoadGenerator clients(int clients) {
+        this.clients = clients;
+        return this;
+    }
+
+    public LoadGenerator durationMillis(long durationMillis) {
+        this.durationMillis = durationMillis;
+        return this;
+    }
+
+    public LoadGenerator uploadSizes(int... uploadSizes) {
+        this.uploadSizes = uploadSizes.clone();
+        return this;
+    }
+
+    public LoadGenerator fanOut(int fanOut) {
+        this.fanOut = fanOut;
+        return this;
+    }
+
+    public LoadGenerator slowClients(double fraction, long bytesPerSecond) {
+        this.slowFraction = fraction;
+        this.slowBytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String url = System.getProperty("load.url");
+        FileController controller = null;
+        if (url == null) {
+            controller = new FileController(0);
+            controller.start();
+            url = "http://localhost:" + controller.getPort();
+        }
+        try {
+            LoadGenerator generator = new LoadGenerator(url)
+                    .clients(Integer.getInteger("load.clients", 16))
+                    .durationMillis(Long.getLong("load.seconds", 30) * 1000)
+                    .uploadSizes(parseSizes(System.getProperty("load.sizes", "4k,64k,1m,8m")))
+                    .fanOut(Integer.getInteger("load.fanOut", 4))
+                    .slowClients(Double.parseDouble(System.getProperty("load.slowFraction", "0.1")),
+                            Long.getLong("load.slowRate", 256 * 1024));
+            generator.run().print(System.out);
+        } finally {
+            if (controller != null) {
+                controller.stop();
+            }
+        }
+    }
+
+    static int[] parseSizes(String spec) {
+        String[] parts = spec.split(",");
+        int[] sizes = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            String part = parts[i].trim().toLowerCase();
+            int multiplier = 1;
+            if (part.endsWith("k")) {
+                multiplier = 1024;
+            } else if (part.endsWith("m")) {
+                multiplier = 1024 * 1024;
+            }
+            if (multiplier > 1) {
+                part = part.substring(0, part.length() - 1);
+            }
+            sizes[i] = Integer.parseInt(part) * multiplier;
+        }
+        return sizes;
+    }
+
+    public Report run() throws InterruptedException {
+        payload = new byte[Arrays.stream(uploadSizes).max().orElse(0)];
+        new Random(38).nextBytes(payload);
+        int slowClients = (int) Math.round(clients * slowFraction);
+        long deadline = System.nanoTime() + durationMillis * 1_000_000;
+        List<Client> all = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(clients);
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            Client client = new Client(i < slowClients ? slowBytesPerSecond : 0, deadline);
+            all.add(client);
+            Thread thread = new Thread(() -> {
+                try {
+                    client.run();
+                } finally {
+                    done.countDown();
+                }
+            }, "load-client-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        return new Report(all, elapsed, clients, slowClients);
+    }
+
+    /**
+     * One simulated user with a keep-alive connection.
+     */
+    private class Client {
+        final long bytesPerSecond;
+        final long deadline;
+        final Stats uploads = new Stats();
+        final Stats downloads = new Stats();
+        private final URI target = URI.create(url);
+        private final byte[] buffer = new byte[IO_CHUNK];
+        private Socket socket;
+        private OutputStream out;
+        private InputStream in;
+
+        Client(long bytesPerSecond, long deadline) {
+            this.bytesPerSecond = bytesPerSecond;
+            this.deadline = deadline;
+        }
+
+        void run() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            while (System.nanoTime() < deadline) {
+                int known = Math.min(uploaded.get(), CODE_HISTORY);
+                // A slot is 0 until its uploader stores the code.
+                int code = known == 0 ? 0 : codes.get(random.nextInt(known));
+                boolean upload = code == 0 || random.nextInt(1 + fanOut) == 0;
+                Stats stats = upload ? uploads : downloads;
+                long start = System.nanoTime();
+                try {
+                    int status;
+                    if (upload) {
+                        status = upload(uploadSizes[random.nextInt(uploadSizes.length)]);
+                    } else {
+                        status = download(code);
+                    }
+                    stats.record(status, System.nanoTime() - start);
+                } catch (IOException e) {
+                    stats.record(-1, System.nanoTime() - start);
+                    disconnect();
+                }
+            }
+            disconnect();
+        }
+
+        private int upload(int size) throws IOException {
+            byte[] head = ("--" + BOUNDARY + "\r\n"
+                    + "Content-Disposition: form-data; name=\"file\"; filename=\"load-" + size + ".bin\"\r\n"
+                    + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.UTF_8);
+            byte[] tail = ("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8);
+            connect();
+            write(("POST /upload HTTP/1.1\r\nHost: " + target.getAuthority() + "\r\n"
+                    + "Content-Type: multipart/form-data; boundary=" + BOUNDARY + "\r\n"
+                    + "Content-Length: " + (head.length + size + tail.length) + "\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1), 0, -1);
+            write(head, 0, head.length);
+            write(payload, 0, size);
+            write(tail, 0, tail.length);
+            out.flush();
+            ByteSink body = new ByteSink(true);
+            int status = readResponse(body);
+            uploads.bytes += size;
+            if (status == 200) {
+                Matcher matcher = CODE.matcher(body.text());
+                if (matcher.find()) {
+                    int index = uploaded.getAndIncrement();
+                    codes.set(index % CODE_HISTORY, Integer.parseInt(matcher.group(1)));
+                }
+            }
+            return status;
+        }
+
+        private int download(int code) throws IOException {
+            connect();
+            write(("GET /download/" + code + " HTTP/1.1\r\nHost: " + target.getAuthority() + "\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1), 0, -1);
+            out.flush();
+            ByteSink body = new ByteSink(false);
+            int status = readResponse(body);
+            downloads.bytes += body.count;
+            return status;
+        }
+
+        private void connect() throws IOException {
+            if (socket == null) {
+                socket = new Socket(target.getHost(), target.getPort() > 0 ? target.getPort() : 80);
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(120_000);
+                out = socket.getOutputStream();
+                in = new BufferedInputStream(socket.getInputStream(), IO_CHUNK);
+            }
+        }
+
+        private void disconnect() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // Reconnects on the next operation.
+                }
+                socket = null;
+            }
+        }
+
+        /**
+         * Writes {@code length} bytes, or all of {@code data} if negative,
+         * throttled for slow clients.
+         */
+        private void write(byte[] data, int offset, int length) throws IOException {
+            int end = length < 0 ? data.length : offset + length;
+            for (int pos = offset; pos < end; pos += IO_CHUNK) {
+                int n = Math.min(IO_CHUNK, end - pos);
+                out.write(data, pos, n);
+                throttle(n);
+            }
+        }
+
+        private void throttle(int bytes) throws IOException {
+            if (bytesPerSecond <= 0) {
+                return;
+            }
+            try {
+                Thread.sleep(bytes * 1000L / bytesPerSecond);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted");
+            }
+        }
+
+        private int readResponse(ByteSink body) throws IOException {
+            String statusLine = readLine();
+            String[] parts = statusLine.split(" ");
+            if (parts.length < 2) {
+                throw new IOException("Malformed status line: " + statusLine);
+            }
+            int status = Integer.parseInt(parts[1]);
+            long contentLength = -1;
+            boolean chunked = false;
+            boolean close = false;
+            String line;
+            while (!(line = readLine()).isEmpty()) {
+                int colon = line.indexOf(':');
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Content-Length")) {
+                    contentLength = Long.parseLong(value);
+                } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                    chunked = value.equalsIgnoreCase("chunked");
+                } else if (name.equalsIgnoreCase("Connection")) {
+                    close = value.equalsIgnoreCase("close");
+                }
+            }
+            if (chunked) {
+                long size;
+                while ((size = Long.parseLong(readLine().trim(), 16)) > 0) {
+                    readBody(size, body);
+                    readLine();
+                }
+                readLine();
+            } else if (contentLength >= 0) {
+                readBody(contentLength, body);
+            } else if (status != 304 && status != 204) {
+                readBody(Long.MAX_VALUE, body);
+                close = true;
+            }
+            if (close) {
+                disconnect();
+            }
+            return status;
+        }
+
+        private void readBody(long length, ByteSink body) throws IOException {
+            long remaining = length;
+            while (remaining > 0) {
+                int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (n < 0) {
+                    if (length == Long.MAX_VALUE) {
+                        return;
+                    }
+                    throw new IOException("Connection closed mid-body");
+                }
+                body.add(buffer, n);
+                remaining -= n;
+                throttle(n);
+            }
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) {
+                    throw new IOException("Connection closed");
+                }
+                if (b != '\r') {
+                    line.append((char) b);
+                }
+            }
+            return line.toString();
+        }
+    }
+
+    /**
+     * Counts response bytes; keeps them only when the caller needs the text.
+     */
+    private static class ByteSink {
+        final StringBuilder kept;
+        long count;
+
+        ByteSink(boolean keep) {
+            this.kept = keep ? new StringBuilder() : null;
+        }
+
+        void add(byte[] data, int length) {
+            count += length;
+            if (kept != null && kept.length() < 4096) {
+                kept.append(new String(data, 0, length, StandardCharsets.ISO_8859_1));
+            }
+        }
+
+        String text() {
+            return kept == null ? "" : kept.toString();
+        }
+    }
+
+    /**
+     * Per-client results for one operation type; merged in the report.
+     */
+    private static class Stats {
+        long[] latencies = new long[1024];
+        int count;
+        long bytes;
+        final Map<Integer, Integer> statuses = new TreeMap<>();
+
+        void record(int status, long nanos) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = nanos;
+            statuses.merge(status, 1, Integer::sum);
+        }
+    }
+
+    /**
+     * Results of a run. Status -1 stands for a connection error.
+     */
+    public static class Report {
+        private final long elapsedNanos;
+        private final int clients;
+        private final int slowClients;
+        private final Map<String, long[]> latencies = new TreeMap<>();
+        private final Map<String, Long> bytes = new TreeMap<>();
+        private final Map<String, Map<Integer, Integer>> statuses = new TreeMap<>();
+
+        Report(List<Client> all, long elapsedNanos, int clients, int slowClients) {
+            this.elapsedNanos = elapsedNanos;
+            this.clients = clients;
+            this.slowClients = slowClients;
+            for (String type : new String[] {UPLOAD, DOWNLOAD}) {
+                List<Stats> stats = new ArrayList<>();
+                for (Client client : all) {
+                    stats.add(type.equals(UPLOAD) ? client.uploads : client.downloads);
+                }
+                long[] merged = new long[stats.stream().mapToInt(s -> s.count).sum()];
+                int offset = 0;
+                long total = 0;
+                Map<Integer, Integer> byStatus = new TreeMap<>();
+                for (Stats s : stats) {
+                    System.arraycopy(s.latencies, 0, merged, offset, s.count);
+                    offset += s.count;
+                    total += s.bytes;
+                    s.statuses.forEach((status, n) -> byStatus.merge(status, n, Integer::sum));
+                }
+                Arrays.sort(merged);
+                latencies.put(type, merged);
+                bytes.put(type, total);
+                statuses.put(type, byStatus);
+            }
+        }
+
+        public int getCount(String type) {
+            return latencies.get(type).length;
+        }
+
+        /**
+         * Responses other than 2xx and 304, including connection errors.
+         */
+        public int getErrors(String type) {
+            int errors = 0;
+            for (Map.Entry<Integer, Integer> entry : statuses.get(type).entrySet()) {
+                int status = entry.getKey();
+                if (status < 200 || (status >= 300 && status != 304)) {
+                    errors += entry.getValue();
+                }
+            }
+            return errors;
+        }
+
+        public Map<Integer, Integer> getStatuses(String type) {
+            return statuses.get(type);
+        }
+
+        public double getThroughput(String type) {
+            return getCount(type) * 1e9 / elapsedNanos;
+        }
+
+        public double getMegabytesPerSecond(String type) {
+            return bytes.get(type) * 1e9 / elapsedNanos / (1024 * 1024);
+        }
+
+        public double getPercentileMillis(String type, double p) {
+            long[] sorted = latencies.get(type);
+            if (sorted.length == 0) {
+                return 0;
+            }
+            return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))] / 1e6;
+        }
+
+        public void print(PrintStream out) {
+            out.printf("%d clients (%d slow), %.1f s%n", clients, slowClients, elapsedNanos / 1e9);
+            out.printf("%-9s %8s %9s %8s %7s %9s %9s %9s %9s  %s%n",
+                    "", "ops", "ops/s", "MB/s", "err%", "p50 ms", "p90 ms", "p99 ms", "max ms", "statuses");
+            for (String type : latencies.keySet()) {
+                int count = getCount(type);
+                out.printf("%-9s %8d %9.1f %8.1f %7.2f %9.1f %9.1f %9.1f %9.1f  %s%n",
+                        type, count, getThroughput(type), getMegabytesPerSecond(type),
+                        count == 0 ? 0 : getErrors(type) * 100.0 / count,
+                        getPercentileMillis(type, 0.50), getPercentileMillis(type, 0.90),
+                        getPercentileMillis(type, 0.99), getPercentileMillis(type, 1.0), statuses.get(type));
+            }
+        }
+    }
+}
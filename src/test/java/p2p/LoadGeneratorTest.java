@@ -0,0 +1,55 @@
+package p2p;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+
+import org.junit.jupiter.api.*;
+
+import p2p.controller.FileController;
+
+/**
+ * Runs a short, small load mix so the harness itself stays working and a
+ * backend that starts failing under concurrency is caught.
+ */
+public class LoadGeneratorTest {
+
+    private static FileController controller;
+
+    @BeforeAll
+    static void startServer() throws IOException {
+        controller = new FileController(0);
+        controller.start();
+    }
+
+    @AfterAll
+    static void stopServer() {
+        controller.stop();
+    }
+
+    @Test
+    @DisplayName("A mixed load with a slow client should complete without errors")
+    void testMixedLoad() throws Exception {
+        LoadGenerator.Report report = new LoadGenerator("http://localhost:" + controller.getPort())
+            .clients(6)
+            .durationMillis(1500)
+            .uploadSizes(LoadGenerator.parseSizes("8k,8k,64k,512k"))
+            .fanOut(3)
+            .slowClients(0.2, 1024 * 1024)
+            .run();
+
+        assertTrue(report.getCount(LoadGenerator.UPLOAD) > 0);
+        assertTrue(report.getCount(LoadGenerator.DOWNLOAD) > 0);
+        assertEquals(0, report.getErrors(LoadGenerator.UPLOAD), report.getStatuses(LoadGenerator.UPLOAD).toString());
+        assertEquals(0, report.getErrors(LoadGenerator.DOWNLOAD), report.getStatuses(LoadGenerator.DOWNLOAD).toString());
+        assertTrue(report.getPercentileMillis(LoadGenerator.DOWNLOAD, 0.5)
+            <= report.getPercentileMillis(LoadGenerator.DOWNLOAD, 0.99));
+        report.print(System.out);
+    }
+
+    @Test
+    @DisplayName("Upload sizes should accept k and m suffixes")
+    void testParseSizes() {
+        assertArrayEquals(new int[] {512, 4096, 3 * 1024 * 1024}, LoadGenerator.parseSizes("512, 4k,3M"));
+    }
+}
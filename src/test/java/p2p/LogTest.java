@@ -0,0 +1,80 @@
+package p2p;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.*;
+
+import p2p.utils.Log;
+
+public class LogTest {
+
+    @Test
+    @DisplayName("Events should be written as JSON lines with fields and the correlation id")
+    void testJsonLines() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Log log = new Log(64, out, Log.Level.INFO);
+        Log.setCorrelationId("req-1");
+        try {
+            log.log(Log.Level.INFO, "upload.stored", "code", 1234, "file", "a \"b\".txt", "error",
+                    new IOException("disk full"));
+            log.log(Log.Level.DEBUG, "filtered.out");
+        } finally {
+            Log.setCorrelationId(null);
+        }
+        log.log(Log.Level.WARN, "no.cid");
+        assertTrue(log.flush(5000));
+
+        String[] lines = out.toString(StandardCharsets.UTF_8).split("\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].startsWith("{\"ts\":\""), lines[0]);
+        assertTrue(lines[0].contains("\"level\":\"INFO\""), lines[0]);
+        assertTrue(lines[0].contains("\"cid\":\"req-1\""), lines[0]);
+        assertTrue(lines[0].contains("\"msg\":\"upload.stored\",\"code\":1234,\"file\":\"a \\\"b\\\".txt\""), lines[0]);
+        assertTrue(lines[0].contains("\"error\":\"IOException: disk full\"}"), lines[0]);
+        assertFalse(lines[1].contains("\"cid\""), lines[1]);
+        assertEquals(2, log.getWrittenCount());
+    }
+
+    @Test
+    @DisplayName("A full ring should drop events instead of blocking callers")
+    void testDropOnOverflow() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        OutputStream stuck = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        Log log = new Log(16, stuck, Log.Level.INFO);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 1000; i++) {
+            log.log(Log.Level.INFO, "event", "i", i);
+            if (i == 0) {
+                // Let the writer take the first event and block on the stream.
+                Thread.sleep(100);
+            }
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2), "Logging blocked on a stuck stream");
+        assertTrue(log.getDroppedCount() >= 1000 - 1 - 16, "Dropped " + log.getDroppedCount());
+
+        release.countDown();
+        assertTrue(log.flush(5000));
+        assertEquals(1000 - log.getDroppedCount(), log.getWrittenCount());
+    }
+}
@@ -0,0 +1,185 @@
+package p2p;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.*;
+
+import p2p.config.Config;
+import p2p.controller.FileController;
+import p2p.service.PeerProtocol;
+import p2p.service.SharedFile;
+import p2p.utils.DigestUtils;
+import p2p.utils.MerkleTree;
+import p2p.utils.NullChannel;
+import p2p.utils.TransferUtils;
+import p2p.utils.TreeHashingChannel;
+
+/**
+ * Hashes content as a Merkle tree and checks it leaf by leaf on the peer protocol.
+ */
+public class MerkleTreeTest {
+
+    @Test
+    @DisplayName("The root should follow the RFC 6962 shape on both the sequential and parallel paths")
+    void testRootShape() {
+        byte[][] three = leaves(3);
+        assertArrayEquals(node(node(three[0], three[1]), three[2]), new MerkleTree(three).getRoot());
+
+        // Enough leaves to split the work across the pool.
+        byte[][] many = leaves(1000);
+        assertArrayEquals(reference(many, 0, many.length), new MerkleTree(many).getRoot());
+        assertArrayEquals(many[0], new MerkleTree(new byte[][] {many[0]}).getRoot());
+    }
+
+    @Test
+    @DisplayName("Hashing while writing should give the tree of the whole content")
+    void testStreamingHash() throws IOException {
+        byte[] content = new byte[MerkleTree.LEAF_SIZE * 5 / 2];
+        new Random(1).nextBytes(content);
+        MerkleTree tree = hash(content);
+
+        assertEquals(3, tree.getLeafCount());
+        assertEquals(3, MerkleTree.leafCount(content.length));
+        for (int i = 0; i < 3; i++) {
+            int from = i * MerkleTree.LEAF_SIZE;
+            int to = Math.min(content.length, from + MerkleTree.LEAF_SIZE);
+            assertArrayEquals(MerkleTree.leafHash(ByteBuffer.wrap(content, from, to - from)), tree.getLeaf(i));
+        }
+        assertArrayEquals(MerkleTree.leafHash(ByteBuffer.allocate(0)), hash(new byte[0]).getRoot());
+    }
+
+    @Test
+    @DisplayName("A receiver should accept intact content and stop at a corrupted leaf")
+    void testReceiverVerifiesLeaves() throws IOException {
+        byte[] content = new byte[MerkleTree.LEAF_SIZE * 4 + 10];
+        new Random(2).nextBytes(content);
+        SharedFile sharedFile = new SharedFile("/tmp/tree.bin", content.length, null, hash(content), null);
+
+        PeerProtocol.Receiver intact = receive(sharedFile, content);
+        assertTrue(intact.isComplete());
+        assertEquals(content.length, intact.getCount());
+        assertNull(intact.getSha256());
+
+        byte[] corrupted = content.clone();
+        corrupted[MerkleTree.LEAF_SIZE + 7] ^= 1;
+        // Leaves are checked in the background, so the copy fails a few writes later or at the end.
+        boolean rejected;
+        try {
+            rejected = !receive(sharedFile, corrupted).isComplete();
+        } catch (IOException e) {
+            rejected = true;
+        }
+        assertTrue(rejected);
+    }
+
+    @Test
+    @DisplayName("A tree-hashed upload should download intact under its root")
+    void testTreeHashedUpload() throws Exception {
+        FileController controller = new FileController(Config.load()
+            .with(Config.PORT, 0)
+            .with(Config.UPLOAD_TREE_HASH, true));
+        controller.start();
+        try {
+            String baseUrl = "http://localhost:" + controller.getPort();
+            HttpClient client = HttpClient.newHttpClient();
+            byte[] content = new byte[3 * MerkleTree.LEAF_SIZE + 1234];
+            new Random(3).nextBytes(content);
+
+            HttpResponse<String> upload = client.send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/upload"))
+                .header("Content-Type", "multipart/form-data; boundary=" + FileTransferTest.BOUNDARY)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(FileTransferTest.multipart("tree.bin", content)))
+                .build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(200, upload.statusCode(), upload.body());
+            Matcher matcher = Pattern.compile("\"port\": (\\d+), \"treeRoot\": \"([0-9a-f]{64})\"")
+                .matcher(upload.body());
+            assertTrue(matcher.find(), upload.body());
+            assertEquals(DigestUtils.toHex(hash(content).getRoot()), matcher.group(2));
+
+            HttpResponse<byte[]> download = client.send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/download/" + matcher.group(1)))
+                .GET()
+                .build(), HttpResponse.BodyHandlers.ofByteArray());
+            assertEquals(200, download.statusCode());
+            assertArrayEquals(content, download.body());
+            assertEquals("\"" + matcher.group(2) + "\"", download.headers().firstValue("ETag").orElse(null));
+            assertTrue(download.headers().firstValue("Digest").isEmpty());
+        } finally {
+            controller.stop();
+        }
+    }
+
+    private static PeerProtocol.Receiver receive(SharedFile sharedFile, byte[] content) throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(PeerProtocol.header(sharedFile).getBytes(StandardCharsets.UTF_8));
+        for (int i = 0; i < sharedFile.getTree().getLeafCount(); i++) {
+            stream.write(sharedFile.getTree().getLeaf(i));
+        }
+        stream.write(content);
+        ReadableByteChannel peer = Channels.newChannel(new ByteArrayInputStream(stream.toByteArray()));
+        ByteBuffer buffer = ByteBuffer.allocate(TransferUtils.COPY_BUFFER_SIZE);
+        Map<String, String> headers = PeerProtocol.readHeaders(peer, buffer);
+        assertNotNull(headers);
+        try (PeerProtocol.Receiver receiver = PeerProtocol.receive(headers, peer, buffer, NullChannel.INSTANCE)) {
+            TransferUtils.copy(peer, receiver, buffer);
+            return receiver;
+        }
+    }
+
+    private static MerkleTree hash(byte[] content) throws IOException {
+        TreeHashingChannel channel = new TreeHashingChannel(NullChannel.INSTANCE);
+        Random random = new Random(content.length);
+        int offset = 0;
+        while (offset < content.length) {
+            int length = Math.min(content.length - offset, 1 + random.nextInt(300_000));
+            channel.write(ByteBuffer.wrap(content, offset, length));
+            offset += length;
+        }
+        channel.close();
+        return channel.tree();
+    }
+
+    private static byte[][] leaves(int count) {
+        byte[][] leaves = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            leaves[i] = MerkleTree.leafHash(ByteBuffer.wrap(("leaf " + i).getBytes(StandardCharsets.UTF_8)));
+        }
+        return leaves;
+    }
+
+    /** RFC 6962, section 2.1, written out directly. */
+    private static byte[] reference(byte[][] leaves, int from, int to) {
+        if (to - from == 1) {
+            return leaves[from];
+        }
+        int k = 1;
+        while (k * 2 < to - from) {
+            k *= 2;
+        }
+        return node(reference(leaves, from, from + k), reference(leaves, from + k, to));
+    }
+
+    private static byte[] node(byte[] left, byte[] right) {
+        byte[] input = new byte[1 + left.length + right.length];
+        input[0] = 1;
+        System.arraycopy(left, 0, input, 1, left.length);
+        System.arraycopy(right, 0, input, 1 + left.length, right.length);
+        return DigestUtils.sha256().digest(input);
+    }
+}
@@ -0,0 +1,246 @@
+package p2p;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.*;
+
+import com.sun.net.httpserver.HttpServer;
+
+import p2p.server.HttpServers;
+
+public class NioHttpServerTest {
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private int port;
+    private volatile long handedOff;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = HttpServers.create(HttpServers.NIO, new InetSocketAddress("localhost", 0), 0);
+        executor = Executors.newFixedThreadPool(4);
+        server.setExecutor(executor);
+        server.createContext("/hello", exchange -> {
+            byte[] body = "hello".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        server.createContext("/echo", exchange -> {
+            byte[] body = exchange.getRequestBody().readAllBytes();
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        server.createContext("/handoff", exchange -> {
+            // Another thread fills the socket and closes the stream, and the
+            // handler returns while that close is still flushing.
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream os = exchange.getResponseBody();
+            CountDownLatch closing = new CountDownLatch(1);
+            new Thread(() -> {
+                try {
+                    byte[] block = new byte[16 * 1024];
+                    Arrays.fill(block, (byte) 'x');
+                    long written = 0;
+                    boolean stalled = false;
+                    // Writes until one waits on the reader, so the socket is
+                    // full when close() flushes.
+                    while (!stalled && written < 64 * 1024 * 1024) {
+                        long start = System.nanoTime();
+                        os.write(block);
+                        written += block.length;
+                        stalled = System.nanoTime() - start > 1_000_000;
+                    }
+                    // Left in the buffer for close() to flush.
+                    os.write(block, 0, 15_000);
+                    handedOff = written + 15_000;
+                    closing.countDown();
+                    os.close();
+                } catch (IOException e) {
+                    closing.countDown();
+                }
+            }).start();
+            try {
+                closing.await();
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        server.start();
+        port = server.getAddress().getPort();
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    @Test
+    @DisplayName("Keep-alive connection should serve several requests")
+    void testKeepAlive() throws Exception {
+        try (Socket socket = new Socket("localhost", port)) {
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            for (int i = 0; i < 3; i++) {
+                out.write("GET /hello HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+                out.flush();
+                String response = readResponse(in, 5);
+                assertTrue(response.startsWith("HTTP/1.1 200 OK"), response);
+                assertTrue(response.endsWith("hello"), response);
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Pipelined requests should be answered in order")
+    void testPipelining() throws Exception {
+        try (Socket socket = new Socket("localhost", port)) {
+            String request = "GET /hello HTTP/1.1\r\nHost: localhost\r\n\r\n";
+            socket.getOutputStream().write((request + request).getBytes(StandardCharsets.ISO_8859_1));
+            InputStream in = socket.getInputStream();
+            assertTrue(readResponse(in, 5).endsWith("hello"));
+            assertTrue(readResponse(in, 5).endsWith("hello"));
+        }
+    }
+
+    @Test
+    @DisplayName("Chunked request bodies should be decoded")
+    void testChunkedRequest() throws Exception {
+        try (Socket socket = new Socket("localhost", port)) {
+            String request = "POST /echo HTTP/1.1\r\nHost: localhost\r\nTransfer-Encoding: chunked\r\n"
+                    + "Connection: close\r\n\r\n3\r\nabc\r\n2\r\nde\r\n0\r\n\r\n";
+            socket.getOutputStream().write(request.getBytes(StandardCharsets.ISO_8859_1));
+            String response = new String(socket.getInputStream().readAllBytes(), StandardCharsets.ISO_8859_1);
+            assertTrue(response.contains("Transfer-Encoding: chunked"), response);
+            assertTrue(response.endsWith("5\r\nabcde\r\n0\r\n\r\n"), response);
+        }
+    }
+
+    @Test
+    @DisplayName("Unknown paths should return 404")
+    void testNotFound() throws Exception {
+        HttpClient client = HttpClient.newHttpClient();
+        HttpResponse<String> response = client.send(
+                HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/missing")).build(),
+                HttpResponse.BodyHandlers.ofString());
+        assertEquals(404, response.statusCode());
+    }
+
+    @Test
+    @DisplayName("Large bodies should round-trip through the JDK client")
+    void testLargeBody() throws Exception {
+        byte[] payload = new byte[3 * 1024 * 1024 + 17];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) (i * 31);
+        }
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        HttpResponse<byte[]> response = client.send(
+                HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/echo"))
+                        .POST(HttpRequest.BodyPublishers.ofByteArray(payload)).build(),
+                HttpResponse.BodyHandlers.ofByteArray());
+        assertEquals(200, response.statusCode());
+        assertArrayEquals(payload, response.body());
+    }
+
+    @Test
+    @DisplayName("A response closed by another thread as the handler returns should complete before the next request")
+    void testCloseFromAnotherThread() throws Exception {
+        try (Socket socket = new Socket()) {
+            socket.setReceiveBufferSize(16 * 1024);
+            socket.connect(new InetSocketAddress("localhost", port));
+            socket.setSoTimeout(10_000);
+            String request = "GET /handoff HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                    + "GET /hello HTTP/1.1\r\nHost: localhost\r\n\r\n";
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            for (int round = 0; round < 50; round++) {
+                out.write(request.getBytes(StandardCharsets.ISO_8859_1));
+                out.flush();
+                long length = readChunked(in);
+                assertEquals(handedOff, length);
+                assertTrue(readResponse(in, 5).endsWith("hello"));
+            }
+        }
+    }
+
+    private static String readResponse(InputStream in, int contentLength) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        while (!head.toString(StandardCharsets.ISO_8859_1).endsWith("\r\n\r\n")) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Connection closed");
+            }
+            head.write(b);
+        }
+        byte[] body = in.readNBytes(contentLength);
+        return head.toString(StandardCharsets.ISO_8859_1) + new String(body, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Slowly reads a chunked response and returns the length of its body,
+     * checking that it holds nothing but the handler's bytes.
+     */
+    private static long readChunked(InputStream in) throws IOException {
+        String head = readResponse(in, 0);
+        assertTrue(head.startsWith("HTTP/1.1 200 OK") && head.contains("Transfer-Encoding: chunked"), head);
+        long total = 0;
+        while (true) {
+            int size = Integer.parseInt(readLine(in), 16);
+            for (int read = 0; read < size; read += 16 * 1024) {
+                byte[] part = in.readNBytes(Math.min(16 * 1024, size - read));
+                for (byte b : part) {
+                    assertEquals('x', b);
+                }
+                sleep(2);
+            }
+            assertEquals("", readLine(in));
+            if (size == 0) {
+                return total;
+            }
+            total += size;
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new IOException("Connection closed");
+            }
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return line.toString();
+    }
+}
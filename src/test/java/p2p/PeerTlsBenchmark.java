@@ -0,0 +1,132 @@
+package p2p;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Random;
+
+import p2p.config.Config;
+import p2p.service.FileSharer;
+import p2p.service.PeerProtocol;
+import p2p.utils.PeerTls;
+import p2p.utils.TimedSocketChannel;
+
+/**
+ * Measures what TLS costs on the peer sockets: download throughput from a
+ * loopback share with and without it, and the latency of a full handshake
+ * against one resumed from an earlier session.
+ * <p>
+ * Run with {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=p2p.PeerTlsBenchmark [-Dexec.args="sizeMb handshakes"]}.
+ */
+public class PeerTlsBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int handshakes = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        Path dir = Files.createTempDirectory("tls-bench-");
+        Path keyStore = PeerTlsTest.createKeyStore(dir.resolve("peer.p12"));
+        Path large = dir.resolve("large.bin");
+        Path small = dir.resolve("small.txt");
+        byte[] block = new byte[1024 * 1024];
+        new Random(7).nextBytes(block);
+        try (OutputStream out = Files.newOutputStream(large)) {
+            for (int i = 0; i < sizeMb; i++) {
+                out.write(block);
+            }
+        }
+        Files.writeString(small, "hello");
+
+        Config plain = Config.load();
+        Config tls = PeerTlsTest.tlsConfig(keyStore);
+        try {
+            System.out.printf("%-6s %12s%n", "mode", "MB/s");
+            for (Config config : new Config[] {plain, tls}) {
+                FileSharer sharer = new FileSharer(code -> true, config);
+                try {
+                    int port = serve(sharer, large);
+                    double seconds = 0;
+                    for (int round = 0; round < 4; round++) {
+                        // The first round warms up the JIT.
+                        long start = System.nanoTime();
+                        download(sharer.connect("localhost", port));
+                        seconds = round == 0 ? 0 : seconds + (System.nanoTime() - start) / 1e9;
+                    }
+                    System.out.printf("%-6s %12.1f%n", config.isPeerTls() ? "tls" : "plain", 3 * sizeMb / seconds);
+                } finally {
+                    sharer.shutdown();
+                }
+            }
+
+            FileSharer sharer = new FileSharer(code -> true, tls);
+            try {
+                int port = serve(sharer, small);
+                for (int i = 0; i < handshakes; i++) {
+                    fullHandshake(sharer, port, tls);
+                    resumedHandshake(sharer, port);
+                }
+                long full = 0;
+                long resumed = 0;
+                for (int i = 0; i < handshakes; i++) {
+                    full += fullHandshake(sharer, port, tls);
+                    resumed += resumedHandshake(sharer, port);
+                }
+                System.out.printf("%-8s %10.1f us%n", "full", full / 1e3 / handshakes);
+                System.out.printf("%-8s %10.1f us%n", "resumed", resumed / 1e3 / handshakes);
+                System.out.printf("resumed %d of %d handshakes%n",
+                        sharer.getTls().getResumedCount(), sharer.getTls().getHandshakeCount());
+            } finally {
+                sharer.shutdown();
+            }
+        } finally {
+            for (Path file : new Path[] {large, small, keyStore, dir}) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private static int serve(FileSharer sharer, Path file) throws IOException {
+        int code = sharer.offerFile(file.toString());
+        sharer.startFileServer(code);
+        return sharer.getSharedFile(code).getPeerPort();
+    }
+
+    private static long download(ByteChannel peer) throws IOException {
+        try (peer) {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            Map<String, String> headers = PeerProtocol.readHeaders(peer, buffer);
+            if (headers == null) {
+                throw new IOException("Peer sent no headers");
+            }
+            long received = buffer.position();
+            buffer.clear();
+            int n;
+            while ((n = peer.read(buffer)) >= 0) {
+                received += n;
+                buffer.clear();
+            }
+            return received;
+        }
+    }
+
+    /** A fresh context has no session to resume, so the certificates are exchanged. */
+    private static long fullHandshake(FileSharer sharer, int port, Config config) throws IOException {
+        PeerTls client = PeerTls.fromConfig(config);
+        long start = System.nanoTime();
+        TimedSocketChannel transport = TimedSocketChannel.open(
+                new InetSocketAddress("localhost", port), sharer.getTimeouts());
+        download(client.connect(transport, "localhost"));
+        return System.nanoTime() - start;
+    }
+
+    private static long resumedHandshake(FileSharer sharer, int port) throws IOException {
+        long start = System.nanoTime();
+        download(sharer.connect("localhost", port));
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,161 @@
+package p2p;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.*;
+
+import p2p.config.Config;
+import p2p.controller.FileController;
+import p2p.service.FileSharer;
+import p2p.service.PeerProtocol;
+import p2p.utils.PeerTls;
+import p2p.utils.TimedSocketChannel;
+
+/**
+ * Serves peer transfers over TLS and resumes sessions between them.
+ */
+public class PeerTlsTest {
+
+    static final String PASSWORD = "changeit";
+
+    private static Path dir;
+    private static Path keyStore;
+
+    @BeforeAll
+    static void createKeyStores() throws Exception {
+        dir = Files.createTempDirectory("tls-");
+        keyStore = createKeyStore(dir.resolve("peer.p12"));
+    }
+
+    @AfterAll
+    static void deleteKeyStores() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    /**
+     * Creates a PKCS#12 key store holding a self-signed certificate, with
+     * the JDK's keytool.
+     */
+    static Path createKeyStore(Path file) throws IOException, InterruptedException {
+        Path keytool = Paths.get(System.getProperty("java.home"), "bin", "keytool");
+        Process process = new ProcessBuilder(keytool.toString(), "-genkeypair", "-alias", "peer",
+                "-keyalg", "EC", "-groupname", "secp256r1", "-dname", "CN=peerlink-test", "-validity", "2",
+                "-storetype", "PKCS12", "-keystore", file.toString(),
+                "-storepass", PASSWORD, "-keypass", PASSWORD)
+            .redirectErrorStream(true)
+            .start();
+        process.getInputStream().transferTo(OutputStream.nullOutputStream());
+        assertTrue(process.waitFor(60, TimeUnit.SECONDS));
+        assertEquals(0, process.exitValue(), "keytool failed");
+        return file;
+    }
+
+    static Config tlsConfig(Path keyStore) {
+        return Config.load()
+            .with(Config.PORT, 0)
+            .with(Config.PEER_TLS_KEY_STORE, keyStore.toString())
+            .with(Config.PEER_TLS_PASSWORD, PASSWORD)
+            .with(Config.PEER_TLS, true);
+    }
+
+    @Test
+    @DisplayName("Downloads should go over TLS and later ones should resume the session")
+    void testDownloadOverTls() throws Exception {
+        FileController controller = new FileController(tlsConfig(keyStore));
+        controller.start();
+        try {
+            String baseUrl = "http://localhost:" + controller.getPort();
+            HttpClient client = HttpClient.newHttpClient();
+            byte[] content = new byte[1_500_000];
+            new Random(1).nextBytes(content);
+
+            HttpResponse<String> upload = client.send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/upload"))
+                .header("Content-Type", "multipart/form-data; boundary=" + FileTransferTest.BOUNDARY)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(FileTransferTest.multipart("tls.bin", content)))
+                .build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(200, upload.statusCode(), upload.body());
+            Matcher matcher = Pattern.compile("\"port\":\\s*(\\d+)").matcher(upload.body());
+            assertTrue(matcher.find(), upload.body());
+
+            for (int i = 0; i < 3; i++) {
+                HttpResponse<byte[]> download = client.send(HttpRequest.newBuilder()
+                    .uri(URI.create(baseUrl + "/download/" + matcher.group(1)))
+                    .GET()
+                    .build(), HttpResponse.BodyHandlers.ofByteArray());
+                assertEquals(200, download.statusCode());
+                assertArrayEquals(content, download.body());
+            }
+
+            String metrics = client.send(HttpRequest.newBuilder().uri(URI.create(baseUrl + "/metrics")).GET().build(),
+                HttpResponse.BodyHandlers.ofString()).body();
+            assertEquals(6, metric(metrics, "peerlink_tls_handshakes_total"));
+            assertTrue(metric(metrics, "peerlink_tls_resumed_total") >= 2, metrics);
+        } finally {
+            controller.stop();
+        }
+    }
+
+    @Test
+    @DisplayName("A peer without a trusted certificate or without TLS should get nothing")
+    void testUntrustedPeerRejected() throws Exception {
+        Path file = Files.createTempFile(dir, "shared-", ".txt");
+        Files.writeString(file, "for trusted peers only");
+        FileSharer sharer = new FileSharer(code -> true, tlsConfig(keyStore));
+        try {
+            int code = sharer.offerFile(file.toString());
+            sharer.startFileServer(code);
+            int port = sharer.getSharedFile(code).getPeerPort();
+
+            try (ByteChannel peer = sharer.connect("localhost", port)) {
+                Map<String, String> headers = PeerProtocol.readHeaders(peer, ByteBuffer.allocate(4096));
+                assertNotNull(headers);
+                assertEquals(file.getFileName().toString(), headers.get("Filename"));
+            }
+
+            PeerTls stranger = new PeerTls(createKeyStore(dir.resolve("stranger.p12")), PASSWORD.toCharArray(),
+                dir.resolve("stranger.p12"));
+            TimedSocketChannel transport = TimedSocketChannel.open(new InetSocketAddress("localhost", port),
+                sharer.getTimeouts());
+            assertThrows(IOException.class, () -> stranger.connect(transport, "localhost"));
+            transport.close();
+
+            try (TimedSocketChannel plain = TimedSocketChannel.open(new InetSocketAddress("localhost", port),
+                    sharer.getTimeouts())) {
+                plain.write(ByteBuffer.wrap("hello\n\n".getBytes()));
+                assertNull(PeerProtocol.readHeaders(plain, ByteBuffer.allocate(4096)));
+            } catch (IOException e) {
+                // A reset instead of a clean close is fine too.
+            }
+        } finally {
+            sharer.shutdown();
+        }
+    }
+
+    private static long metric(String metrics, String name) {
+        Matcher matcher = Pattern.compile("(?m)^" + name + " (\\d+)$").matcher(metrics);
+        assertTrue(matcher.find(), metrics);
+        return Long.parseLong(matcher.group(1));
+    }
+}
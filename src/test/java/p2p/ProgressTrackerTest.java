@@ -0,0 +1,88 @@
+package p2p;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.*;
+
+import p2p.service.ProgressTracker;
+import p2p.service.TransferProgress;
+
+public class ProgressTrackerTest {
+
+    private ProgressTracker tracker;
+
+    @BeforeEach
+    void setUp() {
+        tracker = new ProgressTracker(20);
+    }
+
+    @AfterEach
+    void tearDown() {
+        tracker.shutdown();
+    }
+
+    @Test
+    @DisplayName("Client-chosen ids should be used unless invalid or taken")
+    void testIds() {
+        TransferProgress first = tracker.start("abc-123", "upload", 10);
+        assertEquals("abc-123", first.getId());
+        assertNotEquals("abc-123", tracker.start("abc-123", "upload", 10).getId());
+        assertNotEquals("../x", tracker.start("../x", "upload", 10).getId());
+        assertNotNull(tracker.start(null, "download", -1).getId());
+    }
+
+    @Test
+    @DisplayName("Updates between ticks should be coalesced and the stream closed when done")
+    void testCoalescing() throws Exception {
+        RecordingStream out = new RecordingStream();
+        tracker.subscribe("job", out);
+        TransferProgress progress = tracker.start("job", "upload", 1_000_000);
+        progress.setFilename("a \"quoted\" name.txt");
+
+        for (int i = 0; i < 1_000_000; i++) {
+            progress.add(1);
+        }
+        progress.complete();
+        for (int i = 0; i < 100 && !out.closed; i++) {
+            Thread.sleep(20);
+        }
+
+        assertTrue(out.closed, "Stream should be closed after the final event");
+        String events = out.toString(StandardCharsets.UTF_8);
+        assertTrue(events.endsWith("\"transferred\": 1000000, \"total\": 1000000, \"state\": \"completed\"}\n\n"),
+            events);
+        assertTrue(events.contains("\"filename\": \"a \\\"quoted\\\" name.txt\""), events);
+        int count = events.split("data: ").length - 1;
+        assertTrue(count < 100, "Expected coalesced events, got " + count);
+        assertEquals(0, tracker.getWatcherCount());
+    }
+
+    @Test
+    @DisplayName("Watchers joining after completion should still get the final state")
+    void testLateWatcher() throws Exception {
+        tracker.start("late", "download", 5).complete();
+        RecordingStream out = new RecordingStream();
+        tracker.subscribe("late", out);
+        for (int i = 0; i < 100 && !out.closed; i++) {
+            Thread.sleep(20);
+        }
+        assertTrue(out.toString(StandardCharsets.UTF_8).startsWith("event: done\n"));
+    }
+
+    private static class RecordingStream extends ByteArrayOutputStream {
+        volatile boolean closed;
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            super.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package p2p;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.*;
+
+import p2p.config.Config;
+import p2p.controller.FileController;
+import p2p.service.FileSharer;
+import p2p.service.SharedFile;
+import p2p.utils.ThroughputGuard;
+import p2p.utils.TimedSocketChannel;
+import p2p.utils.Timeouts;
+
+/**
+ * Checks that stalled and trickling peers are cut off and unused shares expire.
+ */
+public class TimeoutTest {
+
+    private static final Config SHORT = Config.load()
+        .with(Config.PORT, 0)
+        .with(Config.TIMEOUT_HEADER, 500)
+        .with(Config.TIMEOUT_READ, 2000)
+        .with(Config.MIN_THROUGHPUT, 1024)
+        .with(Config.MIN_THROUGHPUT_WINDOW, 500);
+
+    private static FileController controller;
+
+    @BeforeAll
+    static void startServer() throws IOException {
+        controller = new FileController(SHORT);
+        controller.start();
+    }
+
+    @AfterAll
+    static void stopServer() {
+        controller.stop();
+    }
+
+    @Test
+    @DisplayName("A request head trickling in should be cut off at the header timeout")
+    void testSlowHeader() throws Exception {
+        try (Socket socket = new Socket("localhost", controller.getPort())) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            out.write("GET /metrics HTTP/1.1\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            long start = System.currentTimeMillis();
+            assertEquals(-1, trickleUntilClosed(socket, "X-Slow: a\r\n".getBytes(StandardCharsets.ISO_8859_1)));
+            long elapsed = System.currentTimeMillis() - start;
+            assertTrue(elapsed < 4000, "Closed after " + elapsed + " ms");
+        }
+    }
+
+    @Test
+    @DisplayName("An upload body sent below the minimum rate should be dropped")
+    void testSlowBody() throws Exception {
+        long before = ThroughputGuard.getDroppedCount();
+        try (Socket socket = new Socket("localhost", controller.getPort())) {
+            socket.setSoTimeout(10_000);
+            OutputStream out = socket.getOutputStream();
+            out.write(("POST /upload HTTP/1.1\r\nHost: localhost\r\n"
+                + "Content-Type: multipart/form-data; boundary=x\r\nContent-Length: 1000000\r\n\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1));
+            trickleUntilClosed(socket, new byte[8]);
+        }
+        assertTrue(ThroughputGuard.getDroppedCount() > before, "Slow client was not counted");
+    }
+
+    @Test
+    @DisplayName("Reads from a silent peer should time out")
+    void testPeerReadTimeout() throws Exception {
+        try (ServerSocket silent = new ServerSocket(0)) {
+            CompletableFuture<Socket> accepted = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return silent.accept();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            Timeouts timeouts = Timeouts.DEFAULT.withReadMillis(200);
+            try (TimedSocketChannel channel = TimedSocketChannel.open(
+                    new InetSocketAddress("localhost", silent.getLocalPort()), timeouts);
+                 Socket peer = accepted.get(5, TimeUnit.SECONDS)) {
+                assertTrue(peer.isConnected());
+                long start = System.currentTimeMillis();
+                assertThrows(SocketTimeoutException.class, () -> channel.read(ByteBuffer.allocate(16)));
+                assertTrue(System.currentTimeMillis() - start < 2000);
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("A share nobody downloads should expire and close its port")
+    void testShareExpiry() throws Exception {
+        Path file = Files.createTempFile("expiring-", ".txt");
+        Files.writeString(file, "never downloaded");
+        FileSharer sharer = new FileSharer(code -> true, Config.load().with(Config.TIMEOUT_SHARE_IDLE, 300));
+        CompletableFuture<SharedFile> expired = new CompletableFuture<>();
+        sharer.setExpiryListener(expired::complete);
+        try {
+            int code = sharer.offerFile(file.toString());
+            sharer.startFileServer(code);
+            int port = sharer.getSharedFile(code).getPeerPort();
+
+            SharedFile sharedFile = expired.get(5, TimeUnit.SECONDS);
+            assertEquals(new File(file.toString()).getName(), sharedFile.getFilename());
+            assertNull(sharer.getSharedFile(code));
+            assertEquals(1, sharer.getExpiredCount());
+            assertThrows(IOException.class, () -> new Socket("localhost", port).close());
+        } finally {
+            sharer.shutdown();
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Sends {@code chunk} every 100 ms until the server closes the
+     * connection, then returns the final read result.
+     */
+    private static int trickleUntilClosed(Socket socket, byte[] chunk) throws IOException, InterruptedException {
+        OutputStream out = socket.getOutputStream();
+        InputStream in = socket.getInputStream();
+        for (int i = 0; i < 100; i++) {
+            try {
+                out.write(chunk);
+                out.flush();
+            } catch (IOException e) {
+                break;
+            }
+            Thread.sleep(100);
+        }
+        try {
+            int b;
+            while ((b = in.read()) >= 0) {
+                // Skip any error response.
+            }
+            return b;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package p2p;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import p2p.config.Config;
+import p2p.controller.FileController;
+import p2p.utils.Tracer;
+
+/**
+ * Measures what tracing costs: the median latency of small uploads with
+ * tracing off and on, and the time to open and close one span.
+ * <p>
+ * Run with {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=p2p.TracingBenchmark [-Dexec.args="uploads sizeKb"]}.
+ */
+public class TracingBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int uploads = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int sizeKb = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        byte[] content = new byte[sizeKb * 1024];
+        new Random(5).nextBytes(content);
+        byte[] body = FileTransferTest.multipart("bench.bin", content);
+        Path export = Files.createTempFile("trace-bench-", ".json");
+        try {
+            System.out.printf("%-8s %12s%n", "tracing", "p50 us");
+            for (int round = 0; round < 2; round++) {
+                // The first round warms up the JIT.
+                for (boolean traced : new boolean[] {false, true}) {
+                    Config config = Config.load().with(Config.PORT, 0)
+                        .with(Config.TRACE_EXPORT, traced ? export.toString() : "");
+                    double micros = uploads(config, body, uploads);
+                    if (round == 1) {
+                        System.out.printf("%-8s %12.1f%n", traced ? "on" : "off", micros);
+                    }
+                }
+            }
+            System.out.printf("%.1f ns per span%n", spanNanos(export));
+        } finally {
+            Files.delete(export);
+        }
+    }
+
+    private static double uploads(Config config, byte[] body, int count) throws Exception {
+        FileController controller = new FileController(config);
+        controller.start();
+        try {
+            HttpClient client = HttpClient.newHttpClient();
+            HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create("http://localhost:" + controller.getPort() + "/upload"))
+                .header("Content-Type", "multipart/form-data; boundary=" + FileTransferTest.BOUNDARY)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                .build();
+            long[] nanos = new long[count];
+            for (int i = 0; i < count; i++) {
+                long start = System.nanoTime();
+                HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+                nanos[i] = System.nanoTime() - start;
+                if (response.statusCode() != 200) {
+                    throw new IllegalStateException("Upload failed: " + response.body());
+                }
+            }
+            Arrays.sort(nanos);
+            return nanos[count / 2] / 1e3;
+        } finally {
+            controller.stop();
+        }
+    }
+
+    /**
+     * Times the spans of the traces that got a record; the exporter is far
+     * slower than this loop, so most are dropped.
+     */
+    private static double spanNanos(Path export) throws Exception {
+        int spans = 30;
+        try (Tracer tracer = new Tracer(export.toString(), Tracer.DEFAULT_CAPACITY)) {
+            long elapsed = 0;
+            long timed = 0;
+            for (int t = 0; t < 400_000; t++) {
+                try (Tracer.Trace trace = tracer.start("bench")) {
+                    if (trace == null) {
+                        continue;
+                    }
+                    long start = System.nanoTime();
+                    for (int i = 0; i < spans; i++) {
+                        Tracer.end(Tracer.span("step"));
+                    }
+                    if (t >= 200_000) {
+                        elapsed += System.nanoTime() - start;
+                        timed += spans;
+                    }
+                }
+            }
+            tracer.flush(10_000);
+            return (double) elapsed / Math.max(1, timed);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package p2p;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.*;
+
+import p2p.config.Config;
+import p2p.controller.FileController;
+import p2p.utils.Tracer;
+
+/**
+ * Traces uploads, share registration and downloads as OTLP spans.
+ */
+public class TracingTest {
+
+    private static final Pattern SPAN = Pattern.compile("\\{\"traceId\":\"(\\w+)\",\"spanId\":\"(\\w+)\""
+        + "(?:,\"parentSpanId\":\"(\\w+)\")?,\"name\":\"([^\"]+)\",\"kind\":\\d,"
+        + "\"startTimeUnixNano\":\"(\\d+)\",\"endTimeUnixNano\":\"(\\d+)\"");
+
+    private Path export;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        export = Files.createTempFile("traces-", ".json");
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        Files.deleteIfExists(export);
+    }
+
+    @Test
+    @DisplayName("An upload and a download should export their steps as spans under one root each")
+    void testUploadAndDownloadTraced() throws Exception {
+        FileController controller = new FileController(Config.load()
+            .with(Config.PORT, 0)
+            .with(Config.TRACE_EXPORT, export.toString()));
+        controller.start();
+        try {
+            String baseUrl = "http://localhost:" + controller.getPort();
+            HttpClient client = HttpClient.newHttpClient();
+            byte[] content = new byte[300_000];
+            new Random(3).nextBytes(content);
+
+            HttpResponse<String> upload = client.send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/upload"))
+                .header("Content-Type", "multipart/form-data; boundary=" + FileTransferTest.BOUNDARY)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(FileTransferTest.multipart("traced.bin", content)))
+                .build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(200, upload.statusCode(), upload.body());
+            Matcher matcher = Pattern.compile("\"port\":\\s*(\\d+)").matcher(upload.body());
+            assertTrue(matcher.find(), upload.body());
+
+            HttpResponse<byte[]> download = client.send(HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/download/" + matcher.group(1)))
+                .GET()
+                .build(), HttpResponse.BodyHandlers.ofByteArray());
+            assertEquals(200, download.statusCode());
+            assertArrayEquals(content, download.body());
+
+            // The upload, the download and the peer send behind it.
+            long deadline = System.currentTimeMillis() + 5000;
+            String metrics;
+            do {
+                Thread.sleep(20);
+                metrics = client.send(HttpRequest.newBuilder().uri(URI.create(baseUrl + "/metrics")).GET().build(),
+                    HttpResponse.BodyHandlers.ofString()).body();
+            } while (!metrics.contains("peerlink_traces_exported_total 3") && System.currentTimeMillis() < deadline);
+            assertTrue(metrics.contains("peerlink_traces_exported_total 3"), metrics);
+        } finally {
+            controller.stop();
+        }
+
+        List<String[]> spans = new ArrayList<>();
+        Map<String, String[]> byId = new HashMap<>();
+        Matcher matcher = SPAN.matcher(Files.readString(export));
+        while (matcher.find()) {
+            String[] span = {matcher.group(1), matcher.group(2), matcher.group(3), matcher.group(4),
+                matcher.group(5), matcher.group(6)};
+            spans.add(span);
+            byId.put(span[1], span);
+        }
+
+        assertChildren(spans, byId, "POST /upload",
+            "multipart.parse", "upload.open", "upload.receive", "upload.flush", "upload.share", "upload.respond");
+        assertChildren(spans, byId, "upload.share", "share.offer", "share.serve");
+        assertChildren(spans, byId, "GET /download",
+            "peer.connect", "download.receive", "download.respond");
+        assertChildren(spans, byId, "peer.send", "peer.send.content");
+    }
+
+    @Test
+    @DisplayName("Requests beyond the trace pool should go untraced and spans outside a trace should be no-ops")
+    void testPoolExhausted() throws Exception {
+        assertEquals(-1, Tracer.span("untraced"));
+        try (Tracer tracer = new Tracer(export.toString(), 1)) {
+            assertEquals(-1, Tracer.span("untraced"));
+            try (Tracer.Trace trace = tracer.start("first")) {
+                assertNotNull(trace);
+                assertNull(tracer.start("second"));
+                int span = Tracer.span("step");
+                assertTrue(span > 0);
+                Tracer.end(span);
+            }
+            assertTrue(tracer.flush(5000));
+            assertEquals(1, tracer.getExportedCount());
+            assertEquals(1, tracer.getDroppedCount());
+            assertNotNull(tracer.start("third"));
+        }
+        String exported = Files.readString(export);
+        assertEquals(1, exported.lines().count());
+        assertTrue(exported.contains("\"name\":\"step\""), exported);
+    }
+
+    /**
+     * Checks that the span named {@code parent} has a child named after
+     * each of {@code children}, in the same trace and within its time.
+     */
+    private static void assertChildren(List<String[]> spans, Map<String, String[]> byId, String parent,
+            String... children) {
+        for (String name : children) {
+            String[] child = spans.stream().filter(span -> span[3].equals(name)).findFirst()
+                .orElseThrow(() -> new AssertionError("no span " + name));
+            String[] owner = byId.get(child[2]);
+            assertNotNull(owner, name + " has no parent");
+            assertEquals(parent, owner[3], name);
+            assertEquals(owner[0], child[0], name);
+            assertTrue(Long.parseLong(child[4]) >= Long.parseLong(owner[4]), name + " starts early");
+            assertTrue(Long.parseLong(child[5]) <= Long.parseLong(owner[5]), name + " ends late");
+        }
+    }
+}
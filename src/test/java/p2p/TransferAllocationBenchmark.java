@@ -0,0 +1,113 @@
+package p2p;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import p2p.controller.FileController;
+import p2p.utils.BufferPool;
+
+/**
+ * Measures heap allocated by the whole JVM per upload and per download of a
+ * file through {@link FileController}. With pooled buffers the figure should
+ * stay a small constant regardless of the file size.
+ * <p>
+ * Run with {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=p2p.TransferAllocationBenchmark [-Dexec.args="fileSizeKb iterations"]}.
+ */
+public class TransferAllocationBenchmark {
+
+    private static final String BOUNDARY = "----PeerLinkBenchBoundary";
+
+    public static void main(String[] args) throws Exception {
+        int sizeKb = args.length > 0 ? Integer.parseInt(args[0]) : 8 * 1024;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+        FileController controller = new FileController(0);
+        controller.start();
+        int port = controller.getPort();
+        byte[] content = new byte[sizeKb * 1024];
+        new Random(1).nextBytes(content);
+        byte[] head = ("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"file\"; filename=\"bench.bin\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        byte[] tail = ("\r\n--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        byte[] sink = new byte[64 * 1024];
+
+        // Warm up so class loading and JIT don't count against the transfers.
+        for (int i = 0; i < 5; i++) {
+            download(port, upload(port, head, content, tail), sink);
+        }
+
+        long uploadBytes = 0;
+        long downloadBytes = 0;
+        for (int i = 0; i < iterations; i++) {
+            long before = allocatedBytes();
+            int code = upload(port, head, content, tail);
+            long middle = allocatedBytes();
+            download(port, code, sink);
+            long after = allocatedBytes();
+            uploadBytes += middle - before;
+            downloadBytes += after - middle;
+        }
+        controller.stop();
+
+        BufferPool pool = BufferPool.shared();
+        System.out.printf("file size            %,d bytes%n", content.length);
+        System.out.printf("allocated / upload   %,d bytes%n", uploadBytes / iterations);
+        System.out.printf("allocated / download %,d bytes%n", downloadBytes / iterations);
+        System.out.printf("pool: %,d acquired, %,d allocated, %,d leaked%n",
+                pool.getAcquiredCount(), pool.getAllocatedCount(), pool.getLeakedCount());
+        System.exit(0);
+    }
+
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+
+    private static int upload(int port, byte[] head, byte[] content, byte[] tail) throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            OutputStream out = socket.getOutputStream();
+            long length = head.length + content.length + tail.length;
+            out.write(("POST /upload HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n"
+                    + "Content-Type: multipart/form-data; boundary=" + BOUNDARY + "\r\n"
+                    + "Content-Length: " + length + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.write(head);
+            out.write(content);
+            out.write(tail);
+            String response = new String(socket.getInputStream().readAllBytes(), StandardCharsets.ISO_8859_1);
+            String value = response.substring(response.indexOf("\"port\": ") + 8, response.lastIndexOf('}'));
+            return Integer.parseInt(value.trim());
+        }
+    }
+
+    private static void download(int port, int code, byte[] sink) throws Exception {
+        for (int attempt = 0; attempt < 50; attempt++) {
+            try (Socket socket = new Socket("localhost", port)) {
+                socket.getOutputStream().write(("GET /download/" + code + " HTTP/1.1\r\nHost: localhost\r\n"
+                        + "Connection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                boolean ok = in.read() == 'H' && in.skip(8) == 8 && in.read() == '2';
+                while (in.read(sink) >= 0) {
+                    // Discard the body.
+                }
+                if (ok) {
+                    return;
+                }
+            }
+            Thread.sleep(20);
+        }
+        throw new IOException("Download of " + code + " failed");
+    }
+}
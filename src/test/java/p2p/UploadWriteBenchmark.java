@@ -0,0 +1,96 @@
+package p2p;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Random;
+
+import p2p.utils.UploadWriter;
+
+/**
+ * Compares upload write strategies: plain 64 KB writes as the copy loop
+ * issues them, aggregated aligned writes, aggregated writes with periodic
+ * fsync, and O_DIRECT. Reports throughput and how much the page cache and
+ * dirty memory grew (from /proc/meminfo, so Linux only).
+ * <p>
+ * Run with {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=p2p.UploadWriteBenchmark [-Dexec.args="sizeMb dir"]}.
+ */
+public class UploadWriteBenchmark {
+
+    private static final int CHUNK = 64 * 1024;
+    private static final long SYNC_BYTES = 8L * 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+        Path dir = Paths.get(args.length > 1 ? args[1] : System.getProperty("java.io.tmpdir"));
+        ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK);
+        byte[] random = new byte[CHUNK];
+        new Random(7).nextBytes(random);
+        chunk.put(random).flip();
+
+        System.out.printf("%-16s %10s %14s %14s%n", "mode", "MB/s", "cache +MB", "dirty +MB");
+        for (int round = 0; round < 2; round++) {
+            // The first round warms up the JIT and the file system.
+            for (String mode : List.of("64k-writes", "aggregated", "aggregated+sync", "direct")) {
+                Path file = dir.resolve("upload-bench-" + mode + ".bin");
+                Files.deleteIfExists(file);
+                long cacheBefore = meminfoKb("Cached:");
+                long dirtyBefore = meminfoKb("Dirty:");
+                long start = System.nanoTime();
+                try (WritableByteChannel out = open(mode, file)) {
+                    for (long written = 0; written < sizeMb * 1024L * 1024; written += CHUNK) {
+                        chunk.rewind();
+                        while (chunk.hasRemaining()) {
+                            out.write(chunk);
+                        }
+                    }
+                }
+                double seconds = (System.nanoTime() - start) / 1e9;
+                long cacheGrowth = meminfoKb("Cached:") - cacheBefore;
+                long dirtyGrowth = meminfoKb("Dirty:") - dirtyBefore;
+                if (round == 1) {
+                    System.out.printf("%-16s %10.1f %14d %14d%n", mode, sizeMb / seconds,
+                            cacheGrowth / 1024, dirtyGrowth / 1024);
+                }
+                Files.delete(file);
+            }
+        }
+    }
+
+    private static WritableByteChannel open(String mode, Path file) throws IOException {
+        switch (mode) {
+            case "64k-writes":
+                return FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            case "aggregated":
+                return new UploadWriter(file, -1, false, 0);
+            case "aggregated+sync":
+                return new UploadWriter(file, -1, false, SYNC_BYTES);
+            default:
+                UploadWriter writer = new UploadWriter(file, -1, true, 0);
+                if (!writer.isDirect()) {
+                    System.out.println("(direct I/O not supported here, buffered instead)");
+                }
+                return writer;
+        }
+    }
+
+    private static long meminfoKb(String field) throws IOException {
+        Path meminfo = Paths.get("/proc/meminfo");
+        if (!Files.exists(meminfo)) {
+            return 0;
+        }
+        for (String line : Files.readAllLines(meminfo)) {
+            if (line.startsWith(field)) {
+                return Long.parseLong(line.substring(field.length()).trim().split("\\s+")[0]);
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,82 @@
+package p2p;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+import p2p.utils.UploadWriter;
+
+public class UploadWriterTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    @DisplayName("Buffered writes should reproduce the input exactly")
+    void testBuffered() throws IOException {
+        byte[] content = randomBytes(3 * UploadWriter.DEFAULT_WRITE_SIZE + 12345);
+        Path file = dir.resolve("buffered.bin");
+        write(new UploadWriter(file, content.length, false, 0), content);
+        assertArrayEquals(content, Files.readAllBytes(file));
+    }
+
+    @Test
+    @DisplayName("Direct writes should pad the tail and truncate it away")
+    void testDirect() throws IOException {
+        byte[] content = randomBytes(UploadWriter.DEFAULT_WRITE_SIZE + 777);
+        Path file = dir.resolve("direct.bin");
+        UploadWriter writer = new UploadWriter(file, -1, true, 256 * 1024);
+        write(writer, content);
+        assertEquals(content.length, Files.size(file));
+        assertArrayEquals(content, Files.readAllBytes(file));
+    }
+
+    @Test
+    @DisplayName("Small and empty uploads should work with a known size")
+    void testSmall() throws IOException {
+        Path empty = dir.resolve("empty.bin");
+        write(new UploadWriter(empty, 0, true, 0), new byte[0]);
+        assertEquals(0, Files.size(empty));
+
+        byte[] content = randomBytes(10);
+        Path small = dir.resolve("small.bin");
+        write(new UploadWriter(small, content.length, false, 1), content);
+        assertArrayEquals(content, Files.readAllBytes(small));
+    }
+
+    @Test
+    @DisplayName("Existing files should not be overwritten")
+    void testCreateNew() throws IOException {
+        Path file = Files.write(dir.resolve("taken.bin"), new byte[] {1});
+        assertThrows(IOException.class, () -> new UploadWriter(file, -1, true, 0));
+        assertArrayEquals(new byte[] {1}, Files.readAllBytes(file));
+    }
+
+    private static void write(UploadWriter writer, byte[] content) throws IOException {
+        try (writer) {
+            // Odd chunk sizes, like the multipart parser produces.
+            int offset = 0;
+            int chunk = 1;
+            while (offset < content.length) {
+                int n = Math.min(chunk, content.length - offset);
+                writer.write(ByteBuffer.wrap(content, offset, n));
+                offset += n;
+                chunk = chunk * 7 % 70_001 + 1;
+            }
+            assertEquals(content.length, writer.size());
+        }
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,180 @@
+package p2p;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.*;
+
+import p2p.controller.FileController;
+
+/**
+ * Downloads shares over the WebSocket endpoint with the JDK client.
+ */
+public class WebSocketTransferTest {
+
+    private static FileController controller;
+    private static String baseUrl;
+    private static HttpClient httpClient;
+
+    @BeforeAll
+    static void startServer() throws IOException {
+        controller = new FileController(0);
+        controller.start();
+        baseUrl = "http://localhost:" + controller.getPort();
+        httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    }
+
+    @AfterAll
+    static void stopServer() {
+        controller.stop();
+    }
+
+    @Test
+    @DisplayName("Chunks should only flow while the client grants credits")
+    void testCreditFlowControl() throws Exception {
+        byte[] content = new byte[5 * 65536 + 777];
+        new Random(36).nextBytes(content);
+        int code = FileTransferTest.upload(httpClient, baseUrl, "socket.bin", content);
+
+        Collector collector = new Collector();
+        WebSocket ws = connect("/ws/download/" + code + "?credits=1", collector);
+        collector.chunks.get(0).get(5, TimeUnit.SECONDS);
+        Thread.sleep(200);
+        assertEquals(1, collector.count(), "Server sent chunks without credit");
+        assertTrue(collector.meta.contains("\"filename\": \""), collector.meta);
+        assertTrue(collector.meta.contains("\"size\": " + content.length), collector.meta);
+
+        ws.sendText("{\"credit\": 16}", true).join();
+        collector.closed.get(10, TimeUnit.SECONDS);
+        assertArrayEquals(content, collector.body());
+        assertEquals(6, collector.count());
+        assertTrue(collector.done.contains("\"type\": \"done\""), collector.done);
+        assertEquals(1000, collector.closeCode);
+    }
+
+    @Test
+    @DisplayName("A transfer should resume from the requested offset")
+    void testResume() throws Exception {
+        byte[] content = new byte[300_000];
+        new Random(37).nextBytes(content);
+        int code = FileTransferTest.upload(httpClient, baseUrl, "resume.bin", content);
+
+        Collector collector = new Collector();
+        connect("/ws/download/" + code + "?offset=123456&credits=64", collector);
+        collector.closed.get(10, TimeUnit.SECONDS);
+        assertTrue(collector.meta.contains("\"offset\": 123456"), collector.meta);
+        assertArrayEquals(Arrays.copyOfRange(content, 123456, content.length), collector.body());
+    }
+
+    @Test
+    @DisplayName("Plain requests and unknown codes should be rejected before the upgrade")
+    void testRejections() throws Exception {
+        HttpResponse<String> plain = httpClient.send(HttpRequest.newBuilder()
+            .uri(URI.create(baseUrl + "/ws/download/12345"))
+            .GET()
+            .build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(426, plain.statusCode());
+
+        CompletableFuture<WebSocket> unknown = httpClient.newWebSocketBuilder()
+            .buildAsync(URI.create(baseUrl.replace("http", "ws") + "/ws/download/1"), new Collector());
+        assertThrows(Exception.class, () -> unknown.get(5, TimeUnit.SECONDS), "Unknown code must not upgrade");
+    }
+
+    private WebSocket connect(String path, Collector collector) throws Exception {
+        return httpClient.newWebSocketBuilder()
+            .connectTimeout(Duration.ofSeconds(5))
+            .buildAsync(URI.create(baseUrl.replace("http", "ws") + path), collector)
+            .get(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Gathers the messages of one socket. Binary messages may arrive in
+     * parts; each complete one is a chunk.
+     */
+    private static class Collector implements WebSocket.Listener {
+        final List<byte[]> received = new ArrayList<>();
+        final List<CompletableFuture<Void>> chunks = new ArrayList<>();
+        final CompletableFuture<Void> closed = new CompletableFuture<>();
+        private final ByteArrayOutputStream current = new ByteArrayOutputStream();
+        private final StringBuilder text = new StringBuilder();
+        volatile String meta = "";
+        volatile String done = "";
+        volatile int closeCode;
+
+        Collector() {
+            for (int i = 0; i < 64; i++) {
+                chunks.add(new CompletableFuture<>());
+            }
+        }
+
+        synchronized int count() {
+            return received.size();
+        }
+
+        synchronized byte[] body() {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            for (byte[] chunk : received) {
+                body.writeBytes(chunk);
+            }
+            return body.toByteArray();
+        }
+
+        @Override
+        public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+            text.append(data);
+            if (last) {
+                String message = text.toString();
+                text.setLength(0);
+                if (message.contains("\"type\": \"meta\"")) {
+                    meta = message;
+                } else {
+                    done = message;
+                }
+            }
+            webSocket.request(1);
+            return null;
+        }
+
+        @Override
+        public synchronized CompletionStage<?> onBinary(WebSocket webSocket, ByteBuffer data, boolean last) {
+            byte[] bytes = new byte[data.remaining()];
+            data.get(bytes);
+            current.writeBytes(bytes);
+            if (last) {
+                received.add(current.toByteArray());
+                current.reset();
+                chunks.get(received.size() - 1).complete(null);
+            }
+            webSocket.request(1);
+            return null;
+        }
+
+        @Override
+        public CompletionStage<?> onClose(WebSocket webSocket, int statusCode, String reason) {
+            closeCode = statusCode;
+            closed.complete(null);
+            return null;
+        }
+
+        @Override
+        public void onError(WebSocket webSocket, Throwable error) {
+            closed.completeExceptionally(error);
+        }
+    }
+}
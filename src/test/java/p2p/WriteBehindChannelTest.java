@@ -0,0 +1,99 @@
+package p2p;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.*;
+
+import p2p.utils.WriteBehindChannel;
+
+public class WriteBehindChannelTest {
+
+    private ExecutorService executor;
+
+    @BeforeEach
+    void setUp() {
+        executor = Executors.newFixedThreadPool(2);
+    }
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    @DisplayName("Everything written should reach a slow delegate, in order")
+    void testOrderingWithSlowDelegate() throws IOException {
+        byte[] content = new byte[300_000];
+        new Random(3).nextBytes(content);
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        WritableByteChannel slow = new WritableByteChannel() {
+            private final WritableByteChannel out = Channels.newChannel(sink);
+
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return out.write(src);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        long stalls = WriteBehindChannel.getProducerStalls();
+        try (WriteBehindChannel pipeline = new WriteBehindChannel(slow, executor, 3, 4096)) {
+            for (int offset = 0; offset < content.length; offset += 1000) {
+                pipeline.write(ByteBuffer.wrap(content, offset, Math.min(1000, content.length - offset)));
+            }
+        }
+        assertArrayEquals(content, sink.toByteArray());
+        assertTrue(WriteBehindChannel.getProducerStalls() > stalls, "A slow disk should push back on the writer");
+    }
+
+    @Test
+    @DisplayName("Disk failures should surface to the writer")
+    void testFailurePropagates() {
+        WritableByteChannel failing = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                throw new IOException("disk full");
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        IOException e = assertThrows(IOException.class, () -> {
+            try (WriteBehindChannel pipeline = new WriteBehindChannel(failing, executor, 2, 1024)) {
+                for (int i = 0; i < 100; i++) {
+                    pipeline.write(ByteBuffer.allocate(1024));
+                }
+            }
+        });
+        assertEquals("disk full", e.getMessage());
+    }
+}
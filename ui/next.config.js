@@ -12,6 +12,14 @@ const nextConfig = {
         source: '/api/download/:port',
         destination: 'http://localhost:8080/download/:port',
       },
+      {
+        source: '/api/ws/download/:port',
+        destination: 'http://localhost:8080/ws/download/:port',
+      },
+      {
+        source: '/api/progress/:id',
+        destination: 'http://localhost:8080/progress/:id',
+      },
     ];
   },
 }
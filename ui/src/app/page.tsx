@@ -6,22 +6,118 @@ import FileDownload from '@/components/FileDownload';
 import InviteCode from '@/components/InviteCode';
 import axios from 'axios';
 
+// Follows a transfer through the backend's Server-Sent Events stream.
+function watchProgress(id: string, onPercent: (percent: number | null) => void): EventSource {
+  const source = new EventSource(`/api/progress/${id}`);
+  const update = (event: MessageEvent) => {
+    const progress = JSON.parse(event.data);
+    onPercent(progress.total > 0 ? Math.min(100, Math.round((progress.transferred * 100) / progress.total)) : null);
+  };
+  source.addEventListener('progress', update);
+  source.addEventListener('done', (event) => {
+    update(event as MessageEvent);
+    source.close();
+  });
+  return source;
+}
+
+// Streams a share over the backend's WebSocket endpoint. Each chunk grants the
+// server one more credit, and a dropped socket resumes from the bytes kept.
+function downloadOverSocket(
+  port: number,
+  onPercent: (percent: number | null) => void,
+): Promise<{ blob: Blob; filename: string }> {
+  const chunks: ArrayBuffer[] = [];
+  let received = 0;
+  let size = -1;
+  let sha256 = '';
+  let filename = 'downloaded-file';
+  let retries = 0;
+
+  return new Promise((resolve, reject) => {
+    const connect = () => {
+      const scheme = window.location.protocol === 'https:' ? 'wss' : 'ws';
+      const socket = new WebSocket(
+        `${scheme}://${window.location.host}/api/ws/download/${port}?offset=${received}&credits=8`,
+      );
+      socket.binaryType = 'arraybuffer';
+      let finished = false;
+
+      socket.onmessage = (event) => {
+        if (typeof event.data === 'string') {
+          const message = JSON.parse(event.data);
+          if (message.type === 'meta') {
+            filename = message.filename;
+            size = message.size;
+            sha256 = message.sha256;
+          } else if (message.type === 'done') {
+            finished = true;
+          }
+          return;
+        }
+        chunks.push(event.data);
+        received += event.data.byteLength;
+        retries = 0;
+        onPercent(size > 0 ? Math.min(100, Math.round((received * 100) / size)) : null);
+        if (socket.readyState === WebSocket.OPEN) {
+          socket.send(JSON.stringify({ credit: 1 }));
+        }
+      };
+
+      socket.onclose = async () => {
+        if (finished) {
+          const blob = new Blob(chunks);
+          if (crypto.subtle && sha256) {
+            const digest = new Uint8Array(await crypto.subtle.digest('SHA-256', await blob.arrayBuffer()));
+            const hex = Array.from(digest, (b) => b.toString(16).padStart(2, '0')).join('');
+            if (hex !== sha256) {
+              reject(new Error('Downloaded file does not match its digest'));
+              return;
+            }
+          }
+          resolve({ blob, filename });
+        } else if (size >= 0 && retries++ < 3) {
+          setTimeout(connect, 500);
+        } else {
+          // Never got going: not served over WebSocket here, or gave up resuming.
+          reject(new Error('WebSocket transfer failed'));
+        }
+      };
+    };
+    connect();
+  });
+}
+
+function saveBlob(blob: Blob, filename: string) {
+  const url = window.URL.createObjectURL(blob);
+  const link = document.createElement('a');
+  link.href = url;
+  link.setAttribute('download', filename);
+  document.body.appendChild(link);
+  link.click();
+  link.remove();
+}
+
 export default function Home() {
   const [uploadedFile, setUploadedFile] = useState<File | null>(null);
   const [isUploading, setIsUploading] = useState(false);
   const [isDownloading, setIsDownloading] = useState(false);
   const [port, setPort] = useState<number | null>(null);
   const [activeTab, setActiveTab] = useState<'upload' | 'download'>('upload');
+  const [progress, setProgress] = useState<number | null>(null);
 
   const handleFileUpload = async (file: File) => {
     setUploadedFile(file);
     setIsUploading(true);
+    setProgress(null);
+    const progressId = crypto.randomUUID();
+    const source = watchProgress(progressId, setProgress);
     
     try {
       const formData = new FormData();
       formData.append('file', file);
       
-      const response = await axios.post('/api/upload', formData, {
+      const response = await axios.post(`/api/upload?progress=${progressId}`, formData, {
         headers: {
           'Content-Type': 'multipart/form-data',
         },
@@ -32,23 +128,33 @@ export default function Home() {
       console.error('Error uploading file:', error);
       alert('Failed to upload file. Please try again.');
     } finally {
+      source.close();
       setIsUploading(false);
     }
   };
   
   const handleDownload = async (port: number) => {
     setIsDownloading(true);
+    setProgress(null);
+
+    try {
+      const { blob, filename } = await downloadOverSocket(port, setProgress);
+      saveBlob(blob, filename);
+      setIsDownloading(false);
+      return;
+    } catch (error) {
+      console.warn('WebSocket download failed, falling back to HTTP:', error);
+    }
+
+    const progressId = crypto.randomUUID();
+    const source = watchProgress(progressId, setProgress);
     
     try {
       // Request download from Java backend
-      const response = await axios.get(`/api/download/${port}`, {
+      const response = await axios.get(`/api/download/${port}?progress=${progressId}`, {
         responseType: 'blob',
       });
       
-      const url = window.URL.createObjectURL(new Blob([response.data]));
-      const link = document.createElement('a');
-      link.href = url;
-      
       // Try to get filename from response headers
       // Axios normalizes headers to lowercase, but we need to handle different cases
       const headers = response.headers;
@@ -71,14 +177,12 @@ export default function Home() {
         }
       }
       
-      link.setAttribute('download', filename);
-      document.body.appendChild(link);
-      link.click();
-      link.remove();
+      saveBlob(new Blob([response.data]), filename);
     } catch (error) {
       console.error('Error downloading file:', error);
       alert('Failed to download file. Please check the invite code and try again.');
     } finally {
+      source.close();
       setIsDownloading(false);
     }
   };
@@ -129,7 +233,7 @@ export default function Home() {
             {isUploading && (
               <div className="mt-6 text-center">
                 <div className="inline-block animate-spin rounded-full h-8 w-8 border-4 border-blue-500 border-t-transparent"></div>
-                <p className="mt-2 text-gray-600">Uploading file...</p>
+                <p className="mt-2 text-gray-600">Uploading file...{progress !== null && ` ${progress}%`}</p>
               </div>
             )}
             
@@ -142,7 +246,7 @@ export default function Home() {
             {isDownloading && (
               <div className="mt-6 text-center">
                 <div className="inline-block animate-spin rounded-full h-8 w-8 border-4 border-blue-500 border-t-transparent"></div>
-                <p className="mt-2 text-gray-600">Downloading file...</p>
+                <p className="mt-2 text-gray-600">Downloading file...{progress !== null && ` ${progress}%`}</p>
               </div>
             )}
           </div>